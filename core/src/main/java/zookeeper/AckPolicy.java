@@ -0,0 +1,101 @@
+package zookeeper;
+
+/**
+ * How many follower acknowledgements commit a replicated entry.
+ *
+ * The policy is written as {@code all}, {@code majority} or the number of followers that must
+ * acknowledge. With {@code majority}, the leader counts as one of the replicas, so a cluster of
+ * three servers commits once one follower acknowledged.
+ */
+public class AckPolicy {
+    /**
+     * The kinds of policy.
+     */
+    public enum Kind {
+        /** Every follower acknowledges. */
+        ALL,
+        /** A majority of the replicas, the leader included, has the entry. */
+        MAJORITY,
+        /** A fixed number of followers acknowledges. */
+        COUNT
+    }
+
+    private final Kind kind;
+    private final int followerAcks;
+
+    private AckPolicy(Kind kind, int followerAcks) {
+        this.kind = kind;
+        this.followerAcks = followerAcks;
+    }
+
+    /**
+     * Parse a policy.
+     *
+     * @param policy {@code all}, {@code majority} or a number of followers
+     * @return the policy
+     * @throws IllegalArgumentException if the policy is none of them
+     */
+    public static AckPolicy parse(String policy) {
+        policy = policy.trim().toLowerCase();
+
+        if (policy.equals("all")) {
+            return new AckPolicy(Kind.ALL, -1);
+        } else if (policy.equals("majority")) {
+            return new AckPolicy(Kind.MAJORITY, -1);
+        }
+
+        try {
+            int followerAcks = Integer.parseInt(policy);
+
+            if (followerAcks >= 0) {
+                return new AckPolicy(Kind.COUNT, followerAcks);
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+
+        throw new IllegalArgumentException("Invalid ack policy: " + policy + " (use all, majority or a number)");
+    }
+
+    /**
+     * Get the kind of the policy.
+     *
+     * @return the kind
+     */
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * Check if the policy asks more acknowledgements than a cluster has followers, which only a
+     * fixed number can do.
+     *
+     * @param followers the number of followers
+     * @return true if the policy cannot be met by that many followers, false otherwise
+     */
+    public boolean exceeds(int followers) {
+        return kind == Kind.COUNT && followerAcks > followers;
+    }
+
+    /**
+     * Get the number of follower acknowledgements needed to commit an entry. A fixed number above
+     * the number of followers is capped to all of them, see {@link #exceeds(int)}.
+     *
+     * @param followers the number of followers
+     * @return the number of acknowledgements, never more than the number of followers
+     */
+    public int requiredAcks(int followers) {
+        if (kind == Kind.ALL) {
+            return followers;
+        } else if (kind == Kind.MAJORITY) {
+            return (followers + 1) / 2;
+        }
+
+        return Math.min(followerAcks, followers);
+    }
+
+    @Override
+    public String toString() {
+        return kind == Kind.COUNT ? String.valueOf(followerAcks) : kind.name().toLowerCase();
+    }
+}
@@ -0,0 +1,132 @@
+package zookeeper;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+
+/**
+ * Bloom filter over UTF-8 keys, used to skip the segments that do not hold a key.
+ *
+ * The bits are kept in a {@link LongBuffer}, so a filter read from a memory-mapped segment is used
+ * in place, without copying it to the heap.
+ */
+public class BloomFilter {
+    private static final int BITS_PER_KEY = 10;
+    private static final int HASHES = 7;
+
+    private final LongBuffer bits;
+    private final long bitCount;
+
+    /**
+     * Create a filter over the specified bits.
+     *
+     * @param bits the bits of the filter
+     */
+    private BloomFilter(LongBuffer bits) {
+        this.bits = bits;
+        this.bitCount = bits.capacity() * 64L;
+    }
+
+    /**
+     * Create an empty filter sized for the expected number of keys.
+     *
+     * @param expectedKeys the expected number of keys
+     * @return the filter
+     */
+    public static BloomFilter create(long expectedKeys) {
+        int longs = (int) Math.max(1, Math.min(Integer.MAX_VALUE / 8, (expectedKeys * BITS_PER_KEY + 63) / 64));
+        return new BloomFilter(LongBuffer.allocate(longs));
+    }
+
+    /**
+     * Read a filter written by {@link #writeTo(ByteBuffer)}, without copying its bits.
+     *
+     * @param buffer the buffer, positioned at the filter
+     * @param longs the number of longs of the filter
+     * @return the filter
+     */
+    public static BloomFilter read(ByteBuffer buffer, int longs) {
+        ByteBuffer slice = buffer.slice();
+        slice.limit(longs * 8);
+        return new BloomFilter(slice.asLongBuffer());
+    }
+
+    /**
+     * Add a key to the filter.
+     *
+     * @param key the key in UTF-8
+     */
+    public void add(byte[] key) {
+        long hash = hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+
+        for (int i = 0; i < HASHES; i++) {
+            long bit = Integer.toUnsignedLong(h1 + i * h2) % bitCount;
+            int index = (int) (bit >>> 6);
+            bits.put(index, bits.get(index) | (1L << bit));
+        }
+    }
+
+    /**
+     * Check if a key may have been added to the filter.
+     *
+     * @param key the key in UTF-8
+     * @return false if the key was not added, true if it may have been
+     */
+    public boolean mightContain(byte[] key) {
+        long hash = hash(key);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+
+        for (int i = 0; i < HASHES; i++) {
+            long bit = Integer.toUnsignedLong(h1 + i * h2) % bitCount;
+
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Get the number of longs of the filter.
+     *
+     * @return the size in longs
+     */
+    public int getLongs() {
+        return bits.capacity();
+    }
+
+    /**
+     * Write the bits of the filter.
+     *
+     * @param buffer the buffer
+     */
+    public void writeTo(ByteBuffer buffer) {
+        for (int i = 0; i < bits.capacity(); i++) {
+            buffer.putLong(bits.get(i));
+        }
+    }
+
+    /**
+     * Hash a key with 64-bit FNV-1a followed by a final mix.
+     *
+     * @param key the key in UTF-8
+     * @return the hash
+     */
+    private static long hash(byte[] key) {
+        long hash = 0xcbf29ce484222325L;
+
+        for (byte b : key) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+
+        return hash;
+    }
+}
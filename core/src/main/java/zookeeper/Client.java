@@ -0,0 +1,1652 @@
+package zookeeper;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.lang.StringBuilder;
+
+/**
+ * Client of the key-value store, usable from many threads at once.
+ *
+ * Every operation returns a {@link CompletableFuture} without blocking the caller. Writes are
+ * sent on the shared connection to a server and tagged with a request ID, so many of them are in
+ * flight at once, and the PUT_OK the leader sends to the client address completes the write with
+ * the same ID. Reads are pipelined on the same connections, and their retries and hedging are
+ * scheduled on a timer instead of a waiting thread. The futures complete on the threads reading
+ * the connections, so callbacks should not block.
+ *
+ * The {@link #main} console is a shell on top of these operations.
+ */
+public class Client implements Closeable {
+    private String clientIP;
+    private int clientPort;
+    private volatile List<String[]> serverList;
+    private final AtomicLong timestamp;
+    private final ConcurrentHashMap<String, Long> keyTimestamps;
+    private final ConcurrentHashMap<String, Long> serverTimestamps;
+    private ConnectionPool connections;
+    private ClientConfig config;
+    private ReadCache cache;
+    private volatile long sessionId;
+    private ScheduledExecutorService heartbeats;
+    private ScheduledExecutorService refresher;
+    private final ScheduledExecutorService timer;
+    private ServerSocket serverSocket;
+    private final Set<String> ephemeralKeys = ConcurrentHashMap.newKeySet();
+    private final AtomicLong nextRequestId = new AtomicLong(1);
+    private final ConcurrentHashMap<Long, CompletableFuture<PutResult>> pendingWrites = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, List<WatchListener>> watchListeners = new ConcurrentHashMap<>();
+    private CompletableFuture<Long> session;
+
+    /**
+     * Listener of the changes of a watched key, called on the thread reading the connection of the
+     * server, so it should not block.
+     */
+    @FunctionalInterface
+    public interface WatchListener {
+        /**
+         * Handle a change of the key.
+         *
+         * @param key the key
+         * @param value the new value, or null when the key was removed
+         * @param version the version of the change, or 0 when the key was removed
+         */
+        void changed(String key, String value, long version);
+    }
+
+    /**
+     * Create an instance of Client.
+     */
+    public Client() {
+        this.serverList = new CopyOnWriteArrayList<>();
+        this.timestamp = new AtomicLong();
+        this.keyTimestamps = new ConcurrentHashMap<>();
+        this.serverTimestamps = new ConcurrentHashMap<>();
+        this.config = new ClientConfig();
+        this.connections = new ConnectionPool(config.getConnectTimeoutMillis());
+        this.timer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "client-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        if (config.getCacheMaxEntries() > 0) {
+            this.cache = new ReadCache(config.getCacheMaxEntries(), config.getCacheTtlMillis());
+        }
+    }
+
+    /**
+     * Get the client timestamp.
+     *
+     * @return the client timestamp
+     */
+    public long getTimestamp() {
+        return timestamp.get();
+    }
+
+    /**
+     * Update the client timestamp with the current time. The timestamp never goes back, even when
+     * several threads update it at once or the clock is moved back.
+     *
+     * @return the updated client timestamp
+     */
+    public long updateTimestamp() {
+        return timestamp.accumulateAndGet(System.currentTimeMillis(), Math::max);
+    }
+
+    /**
+     * Get the client IP address.
+     *
+     * @return the client IP address
+     */
+    public String getClientIP() {
+        return clientIP;
+    }
+
+    /**
+     * Get the client port.
+     *
+     * @return the client port
+     */
+    public int getClientPort() {
+        return clientPort;
+    }
+
+    /**
+     * Start the client: listen on the client address for the answers the leader sends to the
+     * writes, and use the specified servers. With port 0, the client listens on a free port.
+     *
+     * @param clientInfo the client address, as IP:port
+     * @param servers the servers, as IP:port
+     * @throws IOException exception when listening on the client address
+     */
+    public void start(String clientInfo, List<String> servers) throws IOException {
+        setClientInfo(clientInfo);
+
+        serverSocket = new ServerSocket(clientPort);
+        clientPort = serverSocket.getLocalPort();
+
+        for (String server : servers) {
+            serverList.add(server.split(":"));
+        }
+
+        Thread receiverThread = new Thread(this::startMessageReceiver, "message-receiver");
+        receiverThread.setDaemon(true);
+        receiverThread.start();
+        startServerRefresh();
+    }
+
+    /**
+     * Perform the PUT operation.
+     *
+     * @param key the key to insert
+     * @param value the value to insert
+     * @return the future completed with the PUT_OK of the leader
+     */
+    public CompletableFuture<PutResult> put(String key, String value) {
+        long now = updateTimestamp();
+
+        Message message = new Message(Message.Operation.PUT, key, value, clientIP, clientPort);
+        message.setClientTimestamp(now);
+
+        return write(message);
+    }
+
+    /**
+     * Perform the CREATE operation, inserting a path that must not exist yet and whose parent path
+     * must exist. The leader answers PUT_OK, NODE_EXISTS or NO_NODE.
+     *
+     * @param path the path to create
+     * @param value the value of the path
+     * @return the future completed with the answer of the leader
+     */
+    public CompletableFuture<PutResult> create(String path, String value) {
+        long now = updateTimestamp();
+
+        Message message = new Message(Message.Operation.CREATE, path, value, clientIP, clientPort);
+        message.setClientTimestamp(now);
+
+        return write(message);
+    }
+
+    /**
+     * Perform the CAS operation, writing a key only if its version is still the expected one. The
+     * leader answers PUT_OK with the new version, or CAS_FAILED with the current value and version.
+     *
+     * @param key the key to write
+     * @param expectedVersion the expected timestamp of the key, or 0 when it must not exist
+     * @param value the value to write
+     * @return the future completed with the answer of the leader
+     */
+    public CompletableFuture<PutResult> compareAndSet(String key, long expectedVersion, String value) {
+        long now = updateTimestamp();
+
+        Message message = new Message(Message.Operation.CAS, key, value, clientIP, clientPort);
+        message.setClientTimestamp(now);
+        message.setServerTimestamp(expectedVersion);
+
+        return write(message);
+    }
+
+    /**
+     * Perform the LIST_CHILDREN operation, reading one page of the paths right below a path. The
+     * cursor of the page asks for the next one, from any server.
+     *
+     * @param path the path
+     * @param cursor the cursor of the previous page, or null for the first page
+     * @return the future completed with the page, or failed when the server does not answer in time
+     */
+    public CompletableFuture<PageResult> listChildren(String path, String cursor) {
+        Message message = new Message(Message.Operation.LIST_CHILDREN, path, cursor, clientIP, clientPort);
+        message.setIndex(config.getScanPageSize());
+
+        return requestPage(message);
+    }
+
+    /**
+     * Perform the SCAN operation, reading one page of the keys that start with a prefix, with their
+     * values. The cursor of the page asks for the next one, so a large listing is never held in
+     * memory.
+     *
+     * @param prefix the prefix
+     * @param cursor the cursor of the previous page, or null for the first page
+     * @return the future completed with the page, or failed when the server does not answer in time
+     */
+    public CompletableFuture<PageResult> scan(String prefix, String cursor) {
+        Message message = new Message(Message.Operation.SCAN, prefix, cursor, clientIP, clientPort);
+        message.setIndex(config.getScanPageSize());
+
+        return requestPage(message);
+    }
+
+    /**
+     * Ask a random server for a page of a LIST_CHILDREN or SCAN.
+     *
+     * @param message the request
+     * @return the future completed with the page
+     */
+    private CompletableFuture<PageResult> requestPage(Message message) {
+        String[] server = getRandomServer();
+
+        return request(server, message, config.getGetTimeoutMillis())
+                .thenApply(response -> new PageResult(response, server[0] + ":" + server[1]));
+    }
+
+    /**
+     * Send a request to a server, without blocking the caller.
+     *
+     * @param server the server
+     * @param message the request
+     * @param timeoutMillis how long to wait for the response
+     * @return the future completed with the response, or failed when it does not come in time
+     */
+    private CompletableFuture<Message> request(String[] server, Message message, long timeoutMillis) {
+        try {
+            return connections.get(server[0], Integer.parseInt(server[1])).request(message)
+                    .orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Perform the MULTI_PUT operation, writing several keys in one request. The keys are replicated
+     * together and acknowledged with a single PUT_OK.
+     *
+     * @param keys the keys to insert
+     * @param values the values to insert, in the order of the keys
+     * @return the future completed with the PUT_OK of the leader, holding the version of each key
+     */
+    public CompletableFuture<PutResult> multiPut(List<String> keys, List<String> values) {
+        long now = updateTimestamp();
+
+        List<Message.Entry> entries = new ArrayList<>(keys.size());
+
+        for (int i = 0; i < keys.size(); i++) {
+            entries.add(new Message.Entry(keys.get(i), values.get(i), now));
+        }
+
+        Message message = new Message(Message.Operation.MULTI_PUT, null, null, clientIP, clientPort);
+        message.setClientTimestamp(now);
+        message.setEntries(entries);
+
+        return write(message);
+    }
+
+    /**
+     * Perform the MULTI_GET operation, reading several keys in one request per server.
+     *
+     * Each key carries the last timestamp seen for it. The keys answered too old, or missing when
+     * the client already saw them, are asked again to the next server, and to every server again
+     * after a backoff, like a GET.
+     *
+     * @param keys the keys to search
+     * @return the future completed with the result of each key, in the order of the keys, or failed
+     *         when no server answered
+     */
+    public CompletableFuture<Map<String, GetResult>> multiGet(List<String> keys) {
+        return new MultiGet(keys).start();
+    }
+
+    /**
+     * Send a MULTI_GET request to a server, recording the timestamp it has.
+     *
+     * @param server the server
+     * @param keys the keys to search
+     * @param floors the last timestamp seen for each key
+     * @return the future completed with the GET_OK answer, or failed when the server cannot be
+     *         reached or does not answer in time
+     */
+    private CompletableFuture<Message> requestMultiGet(String[] server, List<String> keys, Map<String, Long> floors) {
+        String serverIP = server[0];
+        int serverPort = Integer.parseInt(server[1]);
+        List<Message.Entry> entries = new ArrayList<>(keys.size());
+
+        for (String key : keys) {
+            entries.add(new Message.Entry(key, null, floors.get(key)));
+        }
+
+        Message message = new Message(Message.Operation.MULTI_GET, null, clientIP, clientPort);
+        message.setEntries(entries);
+
+        try {
+            return connections.get(serverIP, serverPort).request(message)
+                    .orTimeout(config.getGetTimeoutMillis(), TimeUnit.MILLISECONDS)
+                    .thenApply(response -> {
+                        for (Message.Entry entry : response.getEntries() == null ? List.<Message.Entry>of() : response.getEntries()) {
+                            serverTimestamps.merge(serverIP + ":" + serverPort, entry.getTimestamp(), Math::max);
+                        }
+
+                        return response;
+                    });
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Perform the GET operation.
+     *
+     * The request goes first to the servers known to be fresh enough for the last timestamp seen
+     * for the key. Servers that answer {@code TRY_OTHER_SERVER_OR_LATER} are skipped, and when no
+     * server is fresh enough the client backs off and tries again.
+     *
+     * @param key the key to search
+     * @return the future completed with the value read, or failed when no server answered
+     */
+    public CompletableFuture<GetResult> get(String key) {
+        long lastTimestamp = keyTimestamps.getOrDefault(key, 0L);
+
+        if (cache != null) {
+            VersionedValue cached = cache.get(key, lastTimestamp);
+
+            if (cached != null) {
+                return CompletableFuture.completedFuture(new GetResult(Message.ResponseType.GET_OK, key, cached.getValue(),
+                        cached.getTimestamp(), lastTimestamp, "cache local"));
+            }
+        }
+
+        CompletableFuture<GetResult> result = new CompletableFuture<>();
+        attemptGet(key, lastTimestamp, 0, config.getGetBackoffMillis(), null, result);
+
+        return result;
+    }
+
+    /**
+     * Run one round of a GET over the servers, then complete the read with a fresh answer, or
+     * schedule the next round after a backoff with jitter.
+     *
+     * @param key the key to search
+     * @param lastTimestamp the last timestamp seen for the key
+     * @param attempt the number of the round, from 0
+     * @param backoff the backoff before the next round
+     * @param previous the answer of the previous rounds, or null
+     * @param result the future of the read
+     */
+    private void attemptGet(String key, long lastTimestamp, int attempt, long backoff, Message previous, CompletableFuture<GetResult> result) {
+        new HedgedGet(key, lastTimestamp).start().thenAccept(reply -> {
+            Message response = reply != null ? reply : previous;
+
+            if ((reply != null && isFresh(reply, lastTimestamp)) || attempt + 1 >= config.getGetMaxAttempts()) {
+                completeGet(key, lastTimestamp, response, result);
+                return;
+            }
+
+            long delay = ThreadLocalRandom.current().nextLong(backoff / 2, backoff + 1);
+            long nextBackoff = Math.min(backoff * 2, config.getGetMaxBackoffMillis());
+
+            timer.schedule(() -> attemptGet(key, lastTimestamp, attempt + 1, nextBackoff, response, result), delay, TimeUnit.MILLISECONDS);
+        });
+    }
+
+    /**
+     * Complete a GET with the last answer received, recording the version read.
+     *
+     * @param key the key searched
+     * @param lastTimestamp the last timestamp seen for the key
+     * @param response the answer, or null when no server answered
+     * @param result the future of the read
+     */
+    private void completeGet(String key, long lastTimestamp, Message response, CompletableFuture<GetResult> result) {
+        if (response == null) {
+            result.completeExceptionally(new IOException("No server answered the GET of " + key));
+            return;
+        }
+
+        if (response.getResponse() == Message.ResponseType.GET_OK) {
+            observe(key, response.getServerTimestamp());
+            cacheValue(key, response.getValue(), response.getServerTimestamp());
+        }
+
+        result.complete(new GetResult(response.getResponse(), key, response.getValue(), response.getServerTimestamp(),
+                lastTimestamp, "servidor " + response.getServerIP() + ":" + response.getServerPort()));
+    }
+
+    /**
+     * Perform the DELETE operation, removing a key. The leader answers PUT_OK without value, or
+     * NO_NODE when the key does not exist.
+     *
+     * @param key the key to remove
+     * @return the future completed with the answer of the leader
+     */
+    public CompletableFuture<PutResult> delete(String key) {
+        long now = updateTimestamp();
+
+        Message message = new Message(Message.Operation.DELETE, key, null, clientIP, clientPort);
+        message.setClientTimestamp(now);
+
+        return write(message);
+    }
+
+    /**
+     * Open a session and start sending its heartbeats to random servers. The ephemeral keys written
+     * in the session are removed when it closes or when the servers stop hearing from it. Calling
+     * it again while the session is open, or being opened, returns the same session.
+     *
+     * @return the future completed with the session ID once the leader committed the session, or
+     *         failed when it was not opened in time
+     */
+    public synchronized CompletableFuture<Long> openSession() {
+        if (session != null) {
+            return session;
+        }
+
+        Message message = new Message(Message.Operation.SESSION_OPEN, null, clientIP, clientPort);
+        message.setIndex(config.getSessionTimeoutMillis());
+
+        CompletableFuture<Long> opening = request(getRandomServer(), message, config.getPutTimeoutMillis()).thenApply(response -> {
+            if (response.getResponse() != Message.ResponseType.SESSION_OK) {
+                throw new CompletionException(new IllegalStateException("Session not opened: " + response.getResponse()));
+            }
+
+            startHeartbeats(response.getSessionId(), response.getIndex());
+            return response.getSessionId();
+        });
+
+        session = opening;
+        opening.whenComplete((id, error) -> {
+            if (error != null) {
+                forgetSession(opening);
+            }
+        });
+
+        return opening;
+    }
+
+    /**
+     * Start sending the heartbeats of the session opened by the leader.
+     *
+     * @param id the session ID
+     * @param timeout the timeout of the session granted by the leader
+     */
+    private synchronized void startHeartbeats(long id, long timeout) {
+        sessionId = id;
+        heartbeats = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeats.scheduleAtFixedRate(this::heartbeat, timeout / 3, timeout / 3, TimeUnit.MILLISECONDS);
+
+        System.out.printf("SESSION %d aberta com timeout %d ms%n", id, timeout);
+    }
+
+    /**
+     * Forget a session that failed to open, so the next call opens a new one.
+     *
+     * @param opening the future of the session
+     */
+    private synchronized void forgetSession(CompletableFuture<Long> opening) {
+        if (session == opening) {
+            session = null;
+        }
+    }
+
+    /**
+     * Send a heartbeat of the session to a random server, and stop when the session expired.
+     */
+    private void heartbeat() {
+        long id = sessionId;
+        Message message = new Message(Message.Operation.HEARTBEAT, null, clientIP, clientPort);
+        message.setSessionId(id);
+
+        String[] server = getRandomServer();
+
+        try {
+            connections.get(server[0], Integer.parseInt(server[1])).request(message).thenAccept(response -> {
+                if (response.getResponse() == Message.ResponseType.SESSION_EXPIRED) {
+                    System.out.printf("SESSION_EXPIRED sessão %d%n", id);
+                    stopHeartbeats(id);
+                }
+            });
+        } catch (IOException e) {
+            // the next heartbeat goes to another server
+        }
+    }
+
+    /**
+     * Close the session, removing its ephemeral keys. The heartbeats stop right away, so the
+     * session expires on the servers even when the SESSION_CLOSE is lost.
+     *
+     * @return the future completed once a server answered, or failed when none answered in time
+     */
+    public CompletableFuture<Void> closeSession() {
+        long id = sessionId;
+
+        if (id == 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        stopHeartbeats(id);
+
+        Message message = new Message(Message.Operation.SESSION_CLOSE, null, clientIP, clientPort);
+        message.setSessionId(id);
+
+        return request(getRandomServer(), message, config.getPutTimeoutMillis())
+                .thenAccept(response -> System.out.printf("SESSION %d fechada%n", id));
+    }
+
+    /**
+     * Stop sending the heartbeats of a session, and forget the versions of its ephemeral keys,
+     * which the servers remove.
+     *
+     * @param id the session ID
+     */
+    private synchronized void stopHeartbeats(long id) {
+        if (sessionId != id) {
+            return;
+        }
+
+        sessionId = 0;
+        session = null;
+        heartbeats.shutdownNow();
+
+        for (String key : ephemeralKeys) {
+            keyTimestamps.remove(key);
+
+            if (cache != null) {
+                cache.invalidate(key);
+            }
+        }
+        ephemeralKeys.clear();
+    }
+
+    /**
+     * Perform a PUT of an ephemeral key, owned by the open session. The leader answers PUT_OK, or
+     * SESSION_EXPIRED when the session does not exist anymore.
+     *
+     * @param key the key to insert
+     * @param value the value to insert
+     * @return the future completed with the answer of the leader
+     */
+    public CompletableFuture<PutResult> putEphemeral(String key, String value) {
+        if (sessionId == 0) {
+            return CompletableFuture.failedFuture(new IllegalStateException("No session open"));
+        }
+
+        long now = updateTimestamp();
+
+        Message message = new Message(Message.Operation.PUT, key, value, clientIP, clientPort);
+        message.setClientTimestamp(now);
+        message.setSessionId(sessionId);
+        ephemeralKeys.add(key);
+
+        return write(message);
+    }
+
+    /**
+     * Perform the ADD_SERVER or REMOVE_SERVER operation, changing the members of the cluster. The
+     * leader answers PUT_OK with the new membership, NODE_EXISTS when the server to add is already
+     * a member, or NO_NODE when the server to remove is not a member.
+     *
+     * @param operation ADD_SERVER or REMOVE_SERVER
+     * @param server the server, as IP:port
+     * @return the future completed with the answer of the leader
+     */
+    public CompletableFuture<PutResult> changeMembership(Message.Operation operation, String server) {
+        long now = updateTimestamp();
+
+        Message message = new Message(operation, server, null, clientIP, clientPort);
+        message.setClientTimestamp(now);
+
+        return write(message);
+    }
+
+    /**
+     * Ask a server for the current members of the cluster and use them as the server list, so
+     * reads also go to the servers added after the INIT line.
+     *
+     * @return true if the server list was received, false otherwise
+     */
+    private boolean refreshServers() {
+        String[] server = getRandomServer();
+        Message message = new Message(Message.Operation.LIST_SERVERS, null, clientIP, clientPort);
+
+        try {
+            Message response = connections.get(server[0], Integer.parseInt(server[1])).request(message)
+                    .get(config.getGetTimeoutMillis(), TimeUnit.MILLISECONDS);
+
+            if (response.getEntries() == null || response.getEntries().isEmpty()) {
+                return false;
+            }
+
+            List<String[]> servers = new ArrayList<>();
+            List<String> addresses = new ArrayList<>();
+
+            for (Message.Entry entry : response.getEntries()) {
+                servers.add(entry.getKey().split(":"));
+                addresses.add(entry.getKey());
+            }
+
+            List<String> current = new ArrayList<>();
+            serverList.forEach(known -> current.add(known[0] + ":" + known[1]));
+
+            if (!current.equals(addresses)) {
+                serverList = new CopyOnWriteArrayList<>(servers);
+                System.out.printf("Servidores atualizados: %s%n", addresses);
+            }
+
+            return true;
+        } catch (IOException | ExecutionException | TimeoutException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Refresh the server list periodically, when enabled.
+     */
+    private void startServerRefresh() {
+        long interval = config.getServersRefreshMillis();
+
+        if (interval <= 0) {
+            return;
+        }
+
+        refresher = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "server-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        refresher.scheduleWithFixedDelay(this::refreshServers, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Send a write to a random server, which forwards it to the leader, and wait asynchronously
+     * for the answer of the leader with the same request ID.
+     *
+     * @param message the write
+     * @return the future completed with the answer, or failed when it does not come in time
+     */
+    private CompletableFuture<PutResult> write(Message message) {
+        long requestId = nextRequestId.getAndIncrement();
+        CompletableFuture<PutResult> future = new CompletableFuture<>();
+
+        message.setRequestId(requestId);
+        pendingWrites.put(requestId, future);
+        future.orTimeout(config.getPutTimeoutMillis(), TimeUnit.MILLISECONDS)
+                .whenComplete((result, error) -> pendingWrites.remove(requestId));
+
+        String[] server = getRandomServer();
+
+        try {
+            connections.get(server[0], Integer.parseInt(server[1])).send(message);
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+        }
+
+        return future;
+    }
+
+    /**
+     * Complete the write answered by the leader, if it is still waiting.
+     *
+     * @param response the PUT_OK or the rejection
+     */
+    private void completeWrite(Message response) {
+        CompletableFuture<PutResult> future = pendingWrites.remove(response.getRequestId());
+
+        if (future != null) {
+            future.complete(new PutResult(response));
+        }
+    }
+
+    /**
+     * Perform the WATCH operation, registering the client to the changes of a key on a server. The
+     * server then pushes each change of the key to the message receiver, which updates the read
+     * cache and calls the listener.
+     *
+     * @param key the key to watch
+     * @param listener the listener called with each change of the key, or null
+     * @return the future completed with the current value of the key once the watch is registered,
+     *         or failed when the server does not answer in time
+     */
+    public CompletableFuture<GetResult> watch(String key, WatchListener listener) {
+        if (listener != null) {
+            watchListeners.computeIfAbsent(key, k -> new CopyOnWriteArrayList<>()).add(listener);
+        }
+
+        Message message = new Message(Message.Operation.WATCH, key, clientIP, clientPort);
+        String[] server = getRandomServer();
+        long lastTimestamp = keyTimestamps.getOrDefault(key, 0L);
+
+        CompletableFuture<GetResult> future = request(server, message, config.getGetTimeoutMillis()).thenApply(response -> {
+            long version = response.getServerTimestamp();
+
+            if (version == 0) {
+                return new GetResult(Message.ResponseType.NULL, key, null, 0, lastTimestamp, server[0] + ":" + server[1]);
+            }
+
+            observe(key, version);
+            cacheValue(key, response.getValue(), version);
+
+            return new GetResult(Message.ResponseType.GET_OK, key, response.getValue(), version, lastTimestamp, server[0] + ":" + server[1]);
+        });
+
+        future.whenComplete((result, error) -> {
+            if (error != null && listener != null) {
+                watchListeners.computeIfPresent(key, (k, listeners) -> {
+                    listeners.remove(listener);
+                    return listeners.isEmpty() ? null : listeners;
+                });
+            }
+        });
+
+        return future;
+    }
+
+    /**
+     * One round of a GET over the servers, from the freshest to the stalest, until one of them is
+     * fresh enough. A server that does not answer within the timeout, or within the hedging delay
+     * when it is set, gets the request sent to the next server too, and the first fresh answer
+     * wins. The round reacts to answers and timer ticks, without a thread waiting for it.
+     */
+    private class HedgedGet {
+        private final String key;
+        private final long lastTimestamp;
+        private final List<String[]> servers;
+        private final CompletableFuture<Message> done = new CompletableFuture<>();
+        private int sent;
+        private int pending;
+        private int generation;
+        private Message stale;
+        private ScheduledFuture<?> deadline;
+
+        /**
+         * Create a round of a GET.
+         *
+         * @param key the key to search
+         * @param lastTimestamp the last timestamp seen for the key
+         */
+        HedgedGet(String key, long lastTimestamp) {
+            this.key = key;
+            this.lastTimestamp = lastTimestamp;
+            this.servers = rankServers(lastTimestamp);
+        }
+
+        /**
+         * Send the request to the first server.
+         *
+         * @return the future completed with the fresh answer, else the last stale one, or null
+         *         when no server answered
+         */
+        synchronized CompletableFuture<Message> start() {
+            if (servers.isEmpty()) {
+                done.complete(null);
+            } else {
+                sendNext();
+            }
+
+            return done;
+        }
+
+        /**
+         * Send the request to the next server, and wait for its answer until the hedging delay, or
+         * the timeout when no server is left.
+         */
+        private void sendNext() {
+            String[] server = servers.get(sent++);
+            pending++;
+            arm();
+
+            requestGet(server, key, lastTimestamp).whenComplete((response, error) -> onReply(error == null ? response : null));
+        }
+
+        /**
+         * Restart the wait for an answer.
+         */
+        private void arm() {
+            if (deadline != null) {
+                deadline.cancel(false);
+            }
+
+            long hedgeMillis = config.getGetHedgeMillis();
+            long wait = sent < servers.size() && hedgeMillis > 0 ? hedgeMillis : config.getGetTimeoutMillis();
+            int current = ++generation;
+
+            deadline = timer.schedule(() -> onTimeout(current), wait, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Handle the answer of a server.
+         *
+         * @param response the answer, or null when the server could not be reached
+         */
+        private synchronized void onReply(Message response) {
+            if (done.isDone()) {
+                return;
+            }
+
+            pending--;
+
+            if (response != null && isFresh(response, lastTimestamp)) {
+                finish(response);
+                return;
+            }
+            if (response != null) {
+                stale = response;
+            }
+
+            if (pending > 0) {
+                arm();
+            } else if (sent < servers.size()) {
+                sendNext();
+            } else {
+                finish(stale);
+            }
+        }
+
+        /**
+         * Send the request to the next server when the wait expired, or give up when no server is
+         * left.
+         *
+         * @param expected the generation of the wait
+         */
+        private synchronized void onTimeout(int expected) {
+            if (done.isDone() || expected != generation) {
+                return;
+            }
+
+            if (sent < servers.size()) {
+                sendNext();
+            } else {
+                finish(stale);
+            }
+        }
+
+        /**
+         * Complete the round.
+         *
+         * @param response the answer, or null
+         */
+        private void finish(Message response) {
+            if (deadline != null) {
+                deadline.cancel(false);
+            }
+
+            done.complete(response);
+        }
+    }
+
+    /**
+     * A MULTI_GET over the servers. Each round asks the pending keys to the servers one after the
+     * other, from the freshest to the stalest, and a key leaves the pending ones with the first
+     * answer fresh enough for it. The rounds are spaced by a backoff with jitter scheduled on the
+     * timer, like the rounds of a GET.
+     */
+    private class MultiGet {
+        private final Map<String, Long> floors = new LinkedHashMap<>();
+        private final Map<String, GetResult> results = new HashMap<>();
+        private final List<String> pending = new ArrayList<>();
+        private final CompletableFuture<Map<String, GetResult>> done = new CompletableFuture<>();
+        private boolean answered;
+
+        /**
+         * Create a MULTI_GET, taking the last timestamp seen for each key.
+         *
+         * @param keys the keys to search, repeated keys being read once
+         */
+        MultiGet(List<String> keys) {
+            for (String key : keys) {
+                if (floors.putIfAbsent(key, keyTimestamps.getOrDefault(key, 0L)) == null) {
+                    pending.add(key);
+                }
+            }
+        }
+
+        /**
+         * Run the first round.
+         *
+         * @return the future completed with the result of each key
+         */
+        CompletableFuture<Map<String, GetResult>> start() {
+            attempt(0, config.getGetBackoffMillis());
+
+            return done;
+        }
+
+        /**
+         * Run one round over the servers, then complete the read when no key is pending or no
+         * attempt is left, or schedule the next round after a backoff with jitter.
+         *
+         * @param attempt the number of the round, from 0
+         * @param backoff the backoff before the next round
+         */
+        private void attempt(int attempt, long backoff) {
+            long maxFloor = pending.stream().mapToLong(floors::get).max().orElse(0);
+
+            ask(rankServers(maxFloor), 0).thenRun(() -> {
+                if (pending.isEmpty() || attempt + 1 >= config.getGetMaxAttempts()) {
+                    finish();
+                    return;
+                }
+
+                long delay = ThreadLocalRandom.current().nextLong(backoff / 2, backoff + 1);
+                long nextBackoff = Math.min(backoff * 2, config.getGetMaxBackoffMillis());
+
+                timer.schedule(() -> attempt(attempt + 1, nextBackoff), delay, TimeUnit.MILLISECONDS);
+            });
+        }
+
+        /**
+         * Ask the pending keys to a server, then to the next ones while keys are left.
+         *
+         * @param servers the servers of the round, ordered
+         * @param next the position of the server to ask
+         * @return the future completed when the round is over
+         */
+        private CompletableFuture<Void> ask(List<String[]> servers, int next) {
+            if (pending.isEmpty() || next >= servers.size()) {
+                return CompletableFuture.completedFuture(null);
+            }
+
+            String[] server = servers.get(next);
+
+            return requestMultiGet(server, pending, floors)
+                    .handle((response, error) -> {
+                        if (error == null) {
+                            collect(server, response);
+                        }
+
+                        return null;
+                    })
+                    .thenCompose(ignored -> ask(servers, next + 1));
+        }
+
+        /**
+         * Take the keys a server answered fresh enough out of the pending ones.
+         *
+         * @param server the server
+         * @param response the GET_OK answer
+         */
+        private void collect(String[] server, Message response) {
+            Map<String, Message.Entry> found = new HashMap<>();
+            String source = "servidor " + server[0] + ":" + server[1];
+
+            if (response.getEntries() != null) {
+                response.getEntries().forEach(entry -> found.put(entry.getKey(), entry));
+            }
+
+            answered = true;
+
+            for (Iterator<String> iterator = pending.iterator(); iterator.hasNext(); ) {
+                String key = iterator.next();
+                Message.Entry entry = found.get(key);
+                long floor = floors.get(key);
+
+                if (entry == null && floor == 0) {
+                    results.put(key, new GetResult(Message.ResponseType.NULL, key, null, 0, floor, source));
+                    iterator.remove();
+                } else if (entry != null && entry.getTimestamp() >= floor) {
+                    observe(key, entry.getTimestamp());
+                    cacheValue(key, entry.getValue(), entry.getTimestamp());
+                    results.put(key, new GetResult(Message.ResponseType.GET_OK, key, entry.getValue(), entry.getTimestamp(), floor, source));
+                    iterator.remove();
+                }
+            }
+        }
+
+        /**
+         * Complete the read, the keys still pending being answered TRY_OTHER_SERVER_OR_LATER.
+         */
+        private void finish() {
+            if (!answered) {
+                done.completeExceptionally(new IOException("No server answered the MULTI_GET"));
+                return;
+            }
+
+            Map<String, GetResult> ordered = new LinkedHashMap<>();
+
+            for (Map.Entry<String, Long> floor : floors.entrySet()) {
+                String key = floor.getKey();
+                GetResult result = results.get(key);
+
+                ordered.put(key, result != null ? result
+                        : new GetResult(Message.ResponseType.TRY_OTHER_SERVER_OR_LATER, key, null, 0, floor.getValue(), null));
+            }
+
+            done.complete(ordered);
+        }
+    }
+
+    /**
+     * Send a GET request to a server, recording the timestamp it has.
+     *
+     * @param server the server
+     * @param key the key to search
+     * @param lastTimestamp the last timestamp seen for the key
+     * @return the future completed with the answer, or failed when the server cannot be reached
+     */
+    private CompletableFuture<Message> requestGet(String[] server, String key, long lastTimestamp) {
+        String serverIP = server[0];
+        int serverPort = Integer.parseInt(server[1]);
+
+        Message message = new Message(Message.Operation.GET, key, clientIP, clientPort);
+        message.setClientTimestamp(lastTimestamp);
+
+        try {
+            return connections.get(serverIP, serverPort).request(message).thenApply(response -> {
+                response.setServerIP(serverIP);
+                response.setServerPort(serverPort);
+
+                if (response.getResponse() != Message.ResponseType.NULL) {
+                    serverTimestamps.merge(serverIP + ":" + serverPort, response.getServerTimestamp(), Math::max);
+                }
+
+                return response;
+            });
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Order the servers for a read: first the servers not seen yet or seen with a timestamp at
+     * least as recent as the key's, in random order, then the others from the most to the least
+     * recent.
+     *
+     * @param lastTimestamp the last timestamp seen for the key
+     * @return the ordered servers
+     */
+    private List<String[]> rankServers(long lastTimestamp) {
+        List<String[]> fresh = new ArrayList<>();
+        List<String[]> others = new ArrayList<>();
+
+        for (String[] server : serverList) {
+            Long serverTimestamp = serverTimestamps.get(server[0] + ":" + server[1]);
+
+            if (serverTimestamp == null || serverTimestamp >= lastTimestamp) {
+                fresh.add(server);
+            } else {
+                others.add(server);
+            }
+        }
+
+        Collections.shuffle(fresh);
+        Collections.shuffle(others);
+        others.sort(Comparator.comparingLong(this::getServerTimestamp).reversed());
+        fresh.addAll(others);
+
+        return fresh;
+    }
+
+    /**
+     * Get the most recent timestamp seen from a server.
+     *
+     * @param server the server
+     * @return the timestamp, or 0 when the server was not seen yet
+     */
+    private long getServerTimestamp(String[] server) {
+        return serverTimestamps.getOrDefault(server[0] + ":" + server[1], 0L);
+    }
+
+    /**
+     * Check if a GET answer is fresh enough. A NULL answer is stale when the client already saw
+     * the key, since the server has not received it yet.
+     *
+     * @param response the answer
+     * @param lastTimestamp the last timestamp seen for the key
+     * @return true if the answer can be returned, false otherwise
+     */
+    private static boolean isFresh(Message response, long lastTimestamp) {
+        if (response.getResponse() == Message.ResponseType.NULL) {
+            return lastTimestamp == 0;
+        }
+
+        return response.getResponse() == Message.ResponseType.GET_OK;
+    }
+
+    /**
+     * Handle a change of a watched key pushed by a server. The new version updates the key
+     * timestamp and the read cache, a removed key is dropped from the cache, and then the listeners
+     * of the key are called.
+     *
+     * @param event the WATCH_EVENT message
+     */
+    private void handleWatchEvent(Message event) {
+        String key = event.getKey();
+
+        if (event.getServerTimestamp() == 0 && event.getValue() == null) {
+            if (cache != null) {
+                cache.invalidate(key);
+            }
+        } else {
+            observe(key, event.getServerTimestamp());
+            cacheValue(key, event.getValue(), event.getServerTimestamp());
+        }
+
+        List<WatchListener> listeners = watchListeners.get(key);
+
+        if (listeners == null) {
+            return;
+        }
+
+        for (WatchListener listener : listeners) {
+            try {
+                listener.changed(key, event.getValue(), event.getServerTimestamp());
+            } catch (RuntimeException e) {
+                // a failing listener must not stop the reader of the connection
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Record a version of a key seen by the client. The versions of a key only move forward, so a
+     * late answer from one thread never hides a newer version seen by another.
+     *
+     * @param key the key
+     * @param version the version seen
+     */
+    void observe(String key, long version) {
+        keyTimestamps.merge(key, version, Math::max);
+    }
+
+    /**
+     * Forget the version of a removed key, unless a newer version was seen since the removal.
+     *
+     * @param key the key
+     * @param version the version of the removal
+     */
+    private void forget(String key, long version) {
+        keyTimestamps.computeIfPresent(key, (k, current) -> current <= version ? null : current);
+    }
+
+    /**
+     * Store a value read or written in the read cache, when it is enabled.
+     *
+     * @param key the key
+     * @param value the value
+     * @param timestamp the timestamp of the value
+     */
+    private void cacheValue(String key, String value, long timestamp) {
+        if (cache != null) {
+            cache.put(key, new VersionedValue(value, timestamp));
+        }
+    }
+
+    /**
+     * Print the response related to the PUT operation.
+     *
+     * @param key the key inserted
+     * @param value the value inserted
+     * @param serverTimestamp the timestamp registered on the server
+     * @param IP the server IP address
+     * @param port the server port
+     */
+    private static void printPUT(String key, String value, long serverTimestamp, String IP, int port) {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("PUT_OK ");
+        sb.append("key: ").append(key).append(" ");
+        sb.append("value ").append(value).append(" ");
+        sb.append("timestamp ").append(serverTimestamp).append(" ");
+        sb.append("realizada no servidor ").append(IP).append(":").append(port);
+
+        System.out.println(sb.toString());
+    }
+
+    /**
+     * Print the response related to the GET operation.
+     *
+     * @param key the key searched
+     * @param value the value retrieved
+     * @param lastTimestamp the last version of the key seen by the client
+     * @param serverTimestamp the version returned
+     * @param source where the value was read, a server or the local cache
+     */
+    private static void printGET(String key, String value, long lastTimestamp, long serverTimestamp, String source) {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("GET ");
+        sb.append("key: ").append(key).append(" ");
+        sb.append("value: ").append(value).append(" ");
+        sb.append("obtido do ").append(source).append(", ");
+        sb.append("meu timestamp ").append(lastTimestamp).append(" ");
+        sb.append("do servidor ").append(serverTimestamp);
+
+        System.out.println(sb.toString());
+    }
+
+    /**
+     * Print the answer of a write once it arrives, or why it failed.
+     *
+     * @param operation the operation, for the failure message
+     * @param future the future of the write
+     */
+    private static void printWrite(String operation, CompletableFuture<PutResult> future) {
+        future.whenComplete((result, error) -> {
+            if (error != null) {
+                System.out.printf("%s falhou: %s%n", operation, error);
+                return;
+            }
+
+            String[] server = result.getServer().split(":");
+
+            if (result.getEntries() != null) {
+                for (Message.Entry entry : result.getEntries()) {
+                    printPUT(entry.getKey(), entry.getValue(), entry.getTimestamp(), server[0], Integer.parseInt(server[1]));
+                }
+            } else if (result.isOk() && result.getValue() == null) {
+                System.out.printf("DELETE key: %s removida no servidor %s%n", result.getKey(), result.getServer());
+            } else if (result.isOk()) {
+                printPUT(result.getKey(), result.getValue(), result.getVersion(), server[0], Integer.parseInt(server[1]));
+            } else {
+                System.out.printf("%s key: %s value atual: %s timestamp %d do servidor %s%n", result.getResponse(),
+                        result.getKey(), result.getValue(), result.getVersion(), result.getServer());
+            }
+        });
+    }
+
+    /**
+     * Wait for the answer of a read and print it.
+     *
+     * @param key the key searched
+     * @param future the future of the read
+     */
+    private static void printRead(String key, CompletableFuture<GetResult> future) {
+        GetResult result;
+
+        try {
+            result = future.join();
+        } catch (CompletionException e) {
+            System.out.println("GET key: " + key + " sem resposta dos servidores");
+            return;
+        }
+
+        if (result.getResponse() == Message.ResponseType.NULL) {
+            System.out.println("NULL");
+        } else {
+            String value = result.isFound() ? result.getValue() : result.getResponse().toString();
+            printGET(key, value, result.getLastVersion(), result.getVersion(), result.getSource());
+        }
+    }
+
+    /**
+     * Wait for the answer of a MULTI_GET and print the result of each key.
+     *
+     * @param future the future of the read
+     */
+    private static void printMultiRead(CompletableFuture<Map<String, GetResult>> future) {
+        Map<String, GetResult> results;
+
+        try {
+            results = future.join();
+        } catch (CompletionException e) {
+            System.out.println("MULTI_GET sem resposta dos servidores");
+            return;
+        }
+
+        for (GetResult result : results.values()) {
+            if (result.isFound()) {
+                printGET(result.getKey(), result.getValue(), result.getLastVersion(), result.getVersion(), result.getSource());
+            } else {
+                System.out.println("GET key: " + result.getKey() + " value: " + result.getResponse());
+            }
+        }
+    }
+
+    /**
+     * Read a LIST_CHILDREN or SCAN page after page, printing each page before asking for the next.
+     *
+     * @param operation LIST_CHILDREN or SCAN
+     * @param path the path or the prefix
+     * @param pages the operation, reading the page after a cursor
+     */
+    private static void printPages(String operation, String path, BiFunction<String, String, CompletableFuture<PageResult>> pages) {
+        String cursor = null;
+        String server = null;
+        int count = 0;
+
+        try {
+            do {
+                PageResult page = pages.apply(path, cursor).get();
+                server = page.getServer();
+
+                if (!page.isOk()) {
+                    System.out.printf("%s %s: %s do servidor %s%n", operation, path, page.getResponse(), server);
+                    return;
+                }
+
+                if (operation.equals("SCAN")) {
+                    for (Message.Entry entry : page.getEntries()) {
+                        System.out.printf("SCAN key: %s value: %s timestamp %d%n", entry.getKey(), entry.getValue(), entry.getTimestamp());
+                    }
+                } else {
+                    StringBuilder sb = new StringBuilder();
+                    sb.append("LIST_CHILDREN ").append(path).append(":");
+                    page.getEntries().forEach(child -> sb.append(" ").append(child.getKey()));
+                    System.out.println(sb.toString());
+                }
+
+                count += page.getEntries().size();
+                cursor = page.getCursor();
+            } while (cursor != null);
+        } catch (ExecutionException e) {
+            System.out.printf("%s falhou: %s%n", operation, e.getCause());
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        if (operation.equals("SCAN")) {
+            System.out.printf("SCAN %s: %d keys obtidas do servidor %s%n", path, count, server);
+        } else {
+            System.out.printf("LIST_CHILDREN %s: %d paths obtidos do servidor %s%n", path, count, server);
+        }
+    }
+
+    /**
+     * Wait for the registration of a watch and print the current value of the key.
+     *
+     * @param key the key watched
+     * @param future the future of the watch
+     */
+    private static void printWatch(String key, CompletableFuture<GetResult> future) {
+        future.whenComplete((result, error) -> {
+            if (error != null) {
+                System.out.printf("WATCH falhou: %s%n", error);
+                return;
+            }
+
+            System.out.printf("WATCH key: %s registrado no servidor %s, value: %s timestamp %d%n",
+                    key, result.getSource(), result.getValue(), result.getVersion());
+        });
+    }
+
+    /**
+     * Print a change of a watched key.
+     *
+     * @param key the key
+     * @param value the new value, or null when the key was removed
+     * @param version the version of the change
+     */
+    private static void printWatchEvent(String key, String value, long version) {
+        System.out.printf("WATCH key: %s value: %s timestamp %d%n", key, value, version);
+    }
+
+    /**
+     * Get a random server from the server list.
+     *
+     * @return the random server
+     */
+    private String[] getRandomServer() {
+        Random random = new Random();
+        List<String[]> servers = serverList;
+        int randomIndex = random.nextInt(servers.size());
+
+        return servers.get(randomIndex);
+    }
+
+    /**
+     * Get the client input from the console.
+     *
+     * @return the input string
+     * @throws IOException exception when reading from the console
+     */
+    private static String getClientInput() throws IOException {
+        InputStreamReader is = new InputStreamReader(System.in);
+        BufferedReader reader = new BufferedReader(is);
+
+        return reader.readLine();
+    }
+
+    /**
+     * Set client Info.
+     *
+     * @param clientInfo the client info
+     */
+    private void setClientInfo(String clientInfo) {
+        this.clientIP = clientInfo.split(":")[0];
+        this.clientPort = Integer.parseInt(clientInfo.split(":")[1]);
+    }
+
+    /**
+     * Start the message receiver from the server.
+     *
+     * Servers keep their connection to the client open, so every accepted connection is read
+     * on its own thread until the server closes it.
+     */
+    private void startMessageReceiver() {
+        try {
+           while (true) {
+                Socket s = serverSocket.accept();
+
+                Thread receiverThread = new Thread(() -> receiveMessages(s));
+                receiverThread.setDaemon(true);
+                receiverThread.start();
+            }
+        } catch (IOException e) {
+            if (!serverSocket.isClosed()) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Close the session, stop the background tasks and the connections, and fail the writes still
+     * waiting for their answer. A session that cannot be closed does not stop the rest.
+     */
+    @Override
+    public void close() {
+        try {
+            closeSession().get(config.getPutTimeoutMillis(), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | TimeoutException | RuntimeException e) {
+            // the session expires on the servers without heartbeats, the rest still has to stop
+            System.out.printf("CLOSE_SESSION falhou: %s%n", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (refresher != null) {
+            refresher.shutdownNow();
+        }
+        timer.shutdownNow();
+
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        connections.closeAll();
+
+        IOException cause = new IOException("Client closed");
+        pendingWrites.values().forEach(future -> future.completeExceptionally(cause));
+        pendingWrites.clear();
+    }
+
+    /**
+     * Read the messages sent by a server over one connection.
+     *
+     * @param s the server connection
+     */
+    private void receiveMessages(Socket s) {
+        try {
+            InputStream is = new BufferedInputStream(s.getInputStream());
+            DataInputStream reader = new DataInputStream(is);
+
+            MessageCodec decoder = new MessageCodec();
+
+            while (true) {
+                Message response = decoder.read(reader);
+
+                if (response.getResponse() == Message.ResponseType.PUT_OK && Server.MEMBERSHIP_KEY.equals(response.getKey())) {
+                    // a membership change is not a key written by this client, so it is not cached
+                    serverTimestamps.merge(response.getServerIP() + ":" + response.getServerPort(), response.getServerTimestamp(), Math::max);
+                    completeWrite(response);
+                } else if (response.getResponse() == Message.ResponseType.PUT_OK && response.getEntries() != null) {
+                    serverTimestamps.merge(response.getServerIP() + ":" + response.getServerPort(), response.getServerTimestamp(), Math::max);
+
+                    for (Message.Entry entry : response.getEntries()) {
+                        observe(entry.getKey(), entry.getTimestamp());
+                        cacheValue(entry.getKey(), entry.getValue(), entry.getTimestamp());
+                    }
+
+                    completeWrite(response);
+                } else if (response.getResponse() == Message.ResponseType.PUT_OK && response.getValue() == null) {
+                    // a removed key has no version to read at least
+                    forget(response.getKey(), response.getServerTimestamp());
+                    serverTimestamps.merge(response.getServerIP() + ":" + response.getServerPort(), response.getServerTimestamp(), Math::max);
+
+                    if (cache != null) {
+                        cache.invalidate(response.getKey());
+                    }
+
+                    completeWrite(response);
+                } else if (response.getResponse() == Message.ResponseType.PUT_OK) {
+                    observe(response.getKey(), response.getServerTimestamp());
+                    serverTimestamps.merge(response.getServerIP() + ":" + response.getServerPort(), response.getServerTimestamp(), Math::max);
+                    cacheValue(response.getKey(), response.getValue(), response.getServerTimestamp());
+                    completeWrite(response);
+                } else if (response.getResponse() == Message.ResponseType.WATCH_EVENT) {
+                    handleWatchEvent(response);
+                } else if (response.getResponse() == Message.ResponseType.NODE_EXISTS
+                        || response.getResponse() == Message.ResponseType.NO_NODE
+                        || response.getResponse() == Message.ResponseType.CAS_FAILED
+                        || response.getResponse() == Message.ResponseType.SESSION_EXPIRED
+                        || response.getResponse() == Message.ResponseType.RESERVED_KEY
+                        || response.getResponse() == Message.ResponseType.TRY_OTHER_SERVER_OR_LATER) {
+                    if (response.getServerTimestamp() > 0) {
+                        observe(response.getKey(), response.getServerTimestamp());
+                    }
+
+                    completeWrite(response);
+                }
+            }
+        } catch (EOFException e) {
+            // the server closed the connection
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                s.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        try {
+            Client client = new Client();
+            
+            while (true) {
+                String clientInput = getClientInput();
+
+                if (clientInput.equalsIgnoreCase("exit")) {
+                    client.close();
+                    System.out.println("Closing the client...");
+                    break;
+                }
+
+                String[] inputParts = clientInput.split(" ");
+                String operation = inputParts[0];
+
+                if (operation.equals("INIT")) {
+                    String clientInfo = inputParts[1];
+                    String[] serverInfos = Arrays.copyOfRange(inputParts, 2, inputParts.length);
+
+                    client.start(clientInfo, Arrays.asList(serverInfos));
+                } else if (operation.equals("PUT")) {
+                    String key = inputParts[1];
+                    String value = inputParts[2];
+                    printWrite(operation, client.put(key, value));
+                } else if (operation.equals("GET")) {
+                    String key = inputParts[1];
+                    printRead(key, client.get(key));
+                } else if (operation.equals("MULTI_PUT")) {
+                    List<String> keys = new ArrayList<>();
+                    List<String> values = new ArrayList<>();
+
+                    for (int i = 1; i + 1 < inputParts.length; i += 2) {
+                        keys.add(inputParts[i]);
+                        values.add(inputParts[i + 1]);
+                    }
+                    printWrite(operation, client.multiPut(keys, values));
+                } else if (operation.equals("MULTI_GET")) {
+                    List<String> keys = Arrays.asList(inputParts).subList(1, inputParts.length);
+                    printMultiRead(client.multiGet(keys));
+                } else if (operation.equals("CAS")) {
+                    String key = inputParts[1];
+                    long expectedVersion = Long.parseLong(inputParts[2]);
+                    String value = inputParts[3];
+                    printWrite(operation, client.compareAndSet(key, expectedVersion, value));
+                } else if (operation.equals("CREATE")) {
+                    String path = inputParts[1];
+                    String value = inputParts[2];
+                    printWrite(operation, client.create(path, value));
+                } else if (operation.equals("LIST_CHILDREN")) {
+                    String path = inputParts[1];
+                    printPages(operation, path, client::listChildren);
+                } else if (operation.equals("SCAN")) {
+                    String prefix = inputParts.length > 1 ? inputParts[1] : "";
+                    printPages(operation, prefix, client::scan);
+                } else if (operation.equals("WATCH")) {
+                    String key = inputParts[1];
+                    printWatch(key, client.watch(key, Client::printWatchEvent));
+                } else if (operation.equals("DELETE")) {
+                    String key = inputParts[1];
+                    printWrite(operation, client.delete(key));
+                } else if (operation.equals("SESSION")) {
+                    client.openSession().whenComplete((id, error) -> {
+                        if (error != null) {
+                            System.out.printf("SESSION não aberta: %s%n", error);
+                        }
+                    });
+                } else if (operation.equals("EPHEMERAL")) {
+                    String key = inputParts[1];
+                    String value = inputParts[2];
+                    printWrite(operation, client.putEphemeral(key, value));
+                } else if (operation.equals("CLOSE_SESSION")) {
+                    client.closeSession().whenComplete((result, error) -> {
+                        if (error != null) {
+                            System.out.printf("CLOSE_SESSION falhou: %s%n", error);
+                        }
+                    });
+                } else if (operation.equals("ADD_SERVER")) {
+                    printWrite(operation, client.changeMembership(Message.Operation.ADD_SERVER, inputParts[1]));
+                } else if (operation.equals("REMOVE_SERVER")) {
+                    printWrite(operation, client.changeMembership(Message.Operation.REMOVE_SERVER, inputParts[1]));
+                } else if (operation.equals("SERVERS")) {
+                    client.refreshServers();
+
+                    StringBuilder sb = new StringBuilder("SERVERS:");
+                    client.serverList.forEach(server -> sb.append(" ").append(server[0]).append(":").append(server[1]));
+                    System.out.println(sb.toString());
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package zookeeper;
+
+import java.util.Properties;
+
+/**
+ * Client settings, read from {@code zookeeper.client.*} properties with sensible defaults.
+ *
+ * By default the properties are the JVM system properties, so they can be set on the command
+ * line with {@code -Dzookeeper.client.<name>=<value>}.
+ */
+public class ClientConfig {
+    private final Properties properties;
+
+    /**
+     * Create the configuration from the system properties.
+     */
+    public ClientConfig() {
+        this(System.getProperties());
+    }
+
+    /**
+     * Create the configuration from the specified properties.
+     *
+     * @param properties the properties
+     */
+    public ClientConfig(Properties properties) {
+        this.properties = properties;
+    }
+
+    /**
+     * Get how long the client waits for a server to accept a connection.
+     *
+     * @return the connect timeout in milliseconds
+     */
+    public int getConnectTimeoutMillis() {
+        return getInt("connection.connectTimeoutMillis", Connection.DEFAULT_CONNECT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Get the number of rounds over the servers before a GET gives up.
+     *
+     * @return the number of rounds
+     */
+    public int getGetMaxAttempts() {
+        return getInt("get.maxAttempts", 5);
+    }
+
+    /**
+     * Get the backoff after the first round of a GET where no server was fresh enough. It doubles
+     * after each round.
+     *
+     * @return the backoff in milliseconds
+     */
+    public long getGetBackoffMillis() {
+        return getLong("get.backoffMillis", 50);
+    }
+
+    /**
+     * Get the maximum backoff between two rounds of a GET.
+     *
+     * @return the maximum backoff in milliseconds
+     */
+    public long getGetMaxBackoffMillis() {
+        return getLong("get.maxBackoffMillis", 1000);
+    }
+
+    /**
+     * Get how long a GET waits for a server before sending the same request to the next one, or 0
+     * to wait for the timeout.
+     *
+     * @return the hedging delay in milliseconds
+     */
+    public long getGetHedgeMillis() {
+        return getLong("get.hedgeMillis", 0);
+    }
+
+    /**
+     * Get how long a GET waits for a server before trying the next one.
+     *
+     * @return the timeout in milliseconds
+     */
+    public long getGetTimeoutMillis() {
+        return getLong("get.timeoutMillis", 2000);
+    }
+
+    /**
+     * Get how long a write waits for the PUT_OK of the leader before failing.
+     *
+     * @return the timeout in milliseconds
+     */
+    public long getPutTimeoutMillis() {
+        return getLong("put.timeoutMillis", 5000);
+    }
+
+    /**
+     * Get the maximum number of keys of the read cache, or 0 to disable it.
+     *
+     * @return the maximum number of keys
+     */
+    public int getCacheMaxEntries() {
+        return getInt("cache.maxEntries", 0);
+    }
+
+    /**
+     * Get how long a value is served from the read cache after it was read.
+     *
+     * @return the TTL in milliseconds
+     */
+    public long getCacheTtlMillis() {
+        return getLong("cache.ttlMillis", 1000);
+    }
+
+    /**
+     * Get the number of keys asked per SCAN or LIST_CHILDREN page.
+     *
+     * @return the page size
+     */
+    public int getScanPageSize() {
+        return getInt("scan.pageSize", 100);
+    }
+
+    /**
+     * Get the session timeout asked to the servers. Heartbeats are sent three times per timeout.
+     *
+     * @return the timeout in milliseconds
+     */
+    public long getSessionTimeoutMillis() {
+        return getLong("session.timeoutMillis", 10000);
+    }
+
+    /**
+     * Get the interval at which the client asks a server for the current list of servers, or 0 to
+     * keep the servers of the INIT line.
+     *
+     * @return the interval in milliseconds
+     */
+    public long getServersRefreshMillis() {
+        return getLong("servers.refreshMillis", 5000);
+    }
+
+    /**
+     * Get a property value.
+     *
+     * @param name the property name, without the {@code zookeeper.client.} prefix
+     * @param defaultValue the value used when the property is not set
+     * @return the property value
+     */
+    private String get(String name, String defaultValue) {
+        return properties.getProperty("zookeeper.client." + name, defaultValue);
+    }
+
+    /**
+     * Get an integer property value.
+     *
+     * @param name the property name, without the {@code zookeeper.client.} prefix
+     * @param defaultValue the value used when the property is not set
+     * @return the property value
+     */
+    private int getInt(String name, int defaultValue) {
+        String value = get(name, null);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    /**
+     * Get a long property value.
+     *
+     * @param name the property name, without the {@code zookeeper.client.} prefix
+     * @param defaultValue the value used when the property is not set
+     * @return the property value
+     */
+    private long getLong(String name, long defaultValue) {
+        String value = get(name, null);
+        return value == null ? defaultValue : Long.parseLong(value.trim());
+    }
+}
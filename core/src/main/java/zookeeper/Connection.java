@@ -0,0 +1,240 @@
+package zookeeper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * A long-lived TCP connection shared by many requests.
+ *
+ * Every request is tagged with a request ID, so several requests can be in flight
+ * on the same socket and their responses can arrive in any order.
+ */
+public class Connection implements Closeable {
+    /**
+     * How long a node has to accept a connection when no connect timeout is given.
+     */
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 1000;
+
+    private static final AtomicLong nextRequestId = new AtomicLong(1);
+
+    private final String address;
+    private final Socket socket;
+    private final DataInputStream reader;
+    private final DataOutputStream writer;
+    private final MessageCodec encoder;
+    private final MessageCodec decoder;
+    private final ConcurrentHashMap<Long, CompletableFuture<Message>> pending;
+    private volatile Consumer<Message> listener;
+    private volatile boolean closed;
+
+    /**
+     * Open a connection to the specified node, waiting up to the default connect timeout, and
+     * start reading its responses.
+     *
+     * @param IP the node IP address
+     * @param port the node port
+     * @throws IOException exception when connecting to the node
+     */
+    public Connection(String IP, int port) throws IOException {
+        this(IP, port, DEFAULT_CONNECT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Open a connection to the specified node and start reading its responses.
+     *
+     * @param IP the node IP address
+     * @param port the node port
+     * @param connectTimeoutMillis how long to wait for the node to accept the connection
+     * @throws IOException exception when connecting to the node, or when it does not accept the
+     *         connection in time
+     */
+    public Connection(String IP, int port, int connectTimeoutMillis) throws IOException {
+        this.address = IP + ":" + port;
+        this.socket = new Socket();
+
+        try {
+            socket.connect(new InetSocketAddress(IP, port), connectTimeoutMillis);
+            socket.setTcpNoDelay(true);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+
+        this.reader = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.writer = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        this.encoder = new MessageCodec();
+        this.decoder = new MessageCodec();
+        this.pending = new ConcurrentHashMap<>();
+
+        Thread readerThread = new Thread(this::readResponses, "connection-" + address);
+        readerThread.setDaemon(true);
+        readerThread.start();
+    }
+
+    /**
+     * Send a message and wait asynchronously for the response with the same request ID.
+     * Completing the future, including failing it on a timeout, forgets the request.
+     *
+     * @param message the message to send
+     * @return the future completed with the response
+     */
+    public CompletableFuture<Message> request(Message message) {
+        long requestId = nextRequestId.getAndIncrement();
+        CompletableFuture<Message> future = new CompletableFuture<>();
+
+        message.setRequestId(requestId);
+        pending.put(requestId, future);
+        future.whenComplete((response, error) -> pending.remove(requestId));
+
+        try {
+            if (closed) {
+                throw new IOException("Connection to " + address + " closed");
+            }
+            send(message);
+        } catch (IOException e) {
+            pending.remove(requestId);
+            future.completeExceptionally(e);
+        }
+
+        return future;
+    }
+
+    /**
+     * Send a message without waiting for a response. The request ID is kept as is.
+     *
+     * @param message the message to send
+     * @throws IOException exception when writing to the socket
+     */
+    public void send(Message message) throws IOException {
+        synchronized (writer) {
+            // a frame over the limit is refused before any byte is written, so the connection stays usable
+            ByteBuffer frame = encoder.encode(message);
+
+            try {
+                writer.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+                encoder.release();
+                writer.flush();
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Send several messages without waiting for responses, flushing the socket once.
+     *
+     * @param messages the messages to send
+     * @throws IOException exception when writing to the socket
+     */
+    public void sendAll(List<Message> messages) throws IOException {
+        synchronized (writer) {
+            for (Message message : messages) {
+                ByteBuffer frame = encoder.encode(message);
+
+                try {
+                    writer.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+                    encoder.release();
+                } catch (IOException e) {
+                    close();
+                    throw e;
+                }
+            }
+
+            try {
+                writer.flush();
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Set the listener for messages that do not answer a pending request.
+     *
+     * @param listener the listener
+     */
+    public void setListener(Consumer<Message> listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Get the remote address of the connection.
+     *
+     * @return the address as IP:port
+     */
+    public String getAddress() {
+        return address;
+    }
+
+    /**
+     * Check if the connection is closed.
+     *
+     * @return true if it is closed, false otherwise
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Close the socket and fail every request still waiting for a response.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        IOException cause = new IOException("Connection to " + address + " closed");
+        pending.values().forEach(future -> future.completeExceptionally(cause));
+        pending.clear();
+    }
+
+    /**
+     * Read responses from the socket and complete the matching requests.
+     */
+    private void readResponses() {
+        try {
+            while (!closed) {
+                Message message = decoder.read(reader);
+
+                CompletableFuture<Message> future = pending.remove(message.getRequestId());
+
+                if (future != null) {
+                    future.complete(message);
+                } else if (listener != null) {
+                    listener.accept(message);
+                }
+            }
+        } catch (EOFException e) {
+            // the remote node closed the connection
+        } catch (IOException e) {
+            if (!closed) {
+                e.printStackTrace();
+            }
+        } finally {
+            close();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package zookeeper;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Keep one persistent connection per remote node and reopen it when it is closed.
+ *
+ * Each address has its own future, completed once the connection is open, so opening a connection
+ * to a slow or unreachable node only blocks the callers of that node, and for at most the connect
+ * timeout. The callers asking for the same node while it is being opened wait for the same
+ * connection instead of opening one each.
+ */
+public class ConnectionPool {
+    private final ConcurrentHashMap<String, CompletableFuture<Connection>> connections = new ConcurrentHashMap<>();
+    private final int connectTimeoutMillis;
+
+    /**
+     * Create a pool with the default connect timeout.
+     */
+    public ConnectionPool() {
+        this(Connection.DEFAULT_CONNECT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Create a pool.
+     *
+     * @param connectTimeoutMillis how long to wait for a node to accept a connection
+     */
+    public ConnectionPool(int connectTimeoutMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    /**
+     * Get the connection to the specified node, opening it if needed.
+     *
+     * @param IP the node IP address
+     * @param port the node port
+     * @return the open connection
+     * @throws IOException exception when connecting to the node
+     */
+    public Connection get(String IP, int port) throws IOException {
+        String address = IP + ":" + port;
+
+        while (true) {
+            CompletableFuture<Connection> current = connections.get(address);
+
+            if (current == null || isClosed(current)) {
+                CompletableFuture<Connection> opening = new CompletableFuture<>();
+                boolean owner = current == null ? connections.putIfAbsent(address, opening) == null
+                        : connections.replace(address, current, opening);
+
+                if (owner) {
+                    return open(IP, port, address, opening);
+                }
+                // another caller is opening the connection, wait for it on the next round
+                continue;
+            }
+
+            try {
+                return current.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while connecting to " + address, e);
+            }
+        }
+    }
+
+    /**
+     * Close every connection of the pool.
+     */
+    public void closeAll() {
+        connections.values().forEach(future -> future.thenAccept(Connection::close));
+        connections.clear();
+    }
+
+    /**
+     * Open the connection of an address on behalf of every caller waiting for it. A failed
+     * connection is removed from the pool, so the next caller tries again.
+     *
+     * @param IP the node IP address
+     * @param port the node port
+     * @param address the address as IP:port
+     * @param opening the future of the connection, registered in the pool
+     * @return the open connection
+     * @throws IOException exception when connecting to the node
+     */
+    private Connection open(String IP, int port, String address, CompletableFuture<Connection> opening) throws IOException {
+        try {
+            Connection connection = new Connection(IP, port, connectTimeoutMillis);
+            opening.complete(connection);
+            return connection;
+        } catch (IOException | RuntimeException e) {
+            connections.remove(address, opening);
+            opening.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Check if a connection of the pool has to be opened again: it failed to open, or it was closed.
+     *
+     * @param future the future of the connection
+     * @return true if the connection is closed or failed, false if it is open or being opened
+     */
+    private static boolean isClosed(CompletableFuture<Connection> future) {
+        if (!future.isDone()) {
+            return false;
+        }
+        return future.isCompletedExceptionally() || future.join().isClosed();
+    }
+}
@@ -0,0 +1,578 @@
+package zookeeper;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Raft-style election of the leader among the members of the cluster.
+ *
+ * Time is divided in terms, each with at most one leader. The leader sends a LEADER_HEARTBEAT to
+ * every member on each heartbeat interval. A member that hears nothing from a leader for its
+ * election timeout, randomized between one and two timeouts so members rarely campaign together,
+ * starts a new term and asks the other members for their vote with REQUEST_VOTE. A member votes
+ * once per term, only for a candidate whose log is at least as up to date as its own, so the
+ * candidate that wins a majority holds every committed entry. A message of a newer term makes any
+ * member a follower of that term.
+ *
+ * A leader that has not heard from a majority of the members for an election timeout steps down,
+ * so a leader cut off from the quorum stops accepting writes once the others may have elected a
+ * new one.
+ *
+ * The term is used as the epoch of the log of the leader, and the term and vote are saved in the
+ * data directory before they are announced, so a restarted member never votes twice in a term.
+ * Role changes are applied to the server on the election thread, in order, outside the lock of the
+ * election. Vote requests and heartbeats are sent by the I/O threads of the election, also outside
+ * the lock, so a member that is slow to accept a connection delays neither the timer nor the
+ * handling of the messages of the other members.
+ */
+public class Election {
+    private static final String STATE_FILE = "election";
+
+    private final String self;
+    private final Node node;
+    private final ConnectionPool connections;
+    private final long timeoutMillis;
+    private final long heartbeatMillis;
+    private final Path stateFile;
+    private final ScheduledExecutorService executor;
+    private final ExecutorService io;
+    private final Set<String> votes = new HashSet<>();
+    private final Map<String, Long> lastContacts = new HashMap<>();
+    private final Set<String> sending = ConcurrentHashMap.newKeySet();
+    private volatile long term;
+    private volatile String leader;
+    private String votedFor;
+    private Role role = Role.FOLLOWER;
+    private long deadline;
+    private long leaderSince;
+
+    /**
+     * Role of a member in the current term.
+     */
+    enum Role {
+        FOLLOWER,
+        CANDIDATE,
+        LEADER
+    }
+
+    /**
+     * The server taking part in the election.
+     */
+    public interface Node {
+        /**
+         * Get the members of the cluster, this server included.
+         *
+         * @return the members as IP:port
+         */
+        List<String> getMembers();
+
+        /**
+         * Get the position of the last entry applied by this server.
+         *
+         * @return the leader epoch and the index of the last entry
+         */
+        long[] getLogPosition();
+
+        /**
+         * Start leading the cluster.
+         *
+         * @param term the term won, used as the epoch of the log
+         */
+        void becomeLeader(long term);
+
+        /**
+         * Follow a leader.
+         *
+         * @param leader the leader as IP:port, or null while no leader is known
+         */
+        void becomeFollower(String leader);
+    }
+
+    /**
+     * Create the election state of a server.
+     *
+     * @param self the address of the server as IP:port
+     * @param node the server
+     * @param connections the connections of the server, used to reach the other members
+     * @param config the server configuration
+     * @param directory the data directory where the term and vote are saved, or null to keep them in memory
+     * @param lastEpoch the leader epoch of the last entry recovered, the lowest term this server can be in
+     */
+    public Election(String self, Node node, ConnectionPool connections, ServerConfig config, Path directory, long lastEpoch) {
+        this.self = self;
+        this.node = node;
+        this.connections = connections;
+        this.timeoutMillis = config.getElectionTimeoutMillis();
+        this.heartbeatMillis = config.getElectionHeartbeatMillis();
+        this.stateFile = directory == null ? null : directory.resolve(STATE_FILE);
+        this.term = lastEpoch;
+        this.executor = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "election");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.io = Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, "election-io");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        loadState();
+    }
+
+    /**
+     * Start the election timer. A server started with another leader follows it until it stops
+     * hearing from it. A server started with itself as leader runs for leader right away instead of
+     * waiting for the election timeout, but it still needs the votes of a majority, so a restarted
+     * server cannot take over a cluster that already has a leader, or lead on its own.
+     *
+     * @param initialLeader the leader given at startup as IP:port, or null to elect one
+     */
+    public void start(String initialLeader) {
+        boolean campaign = self.equals(initialLeader);
+        String knownLeader = campaign ? null : initialLeader;
+
+        synchronized (this) {
+            resetDeadline();
+            leader = knownLeader;
+        }
+
+        // applied before the server starts, so it serves as follower from the first request
+        node.becomeFollower(knownLeader);
+
+        if (campaign) {
+            Runnable requestVotes;
+
+            synchronized (this) {
+                requestVotes = startElection();
+            }
+
+            if (requestVotes != null) {
+                requestVotes.run();
+            }
+
+            // a single member wins right away, and then serves as leader from the first request
+            awaitRoleChanges();
+        }
+
+        executor.scheduleAtFixedRate(this::tick, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Get the current term.
+     *
+     * @return the term
+     */
+    public long getTerm() {
+        return term;
+    }
+
+    /**
+     * Get the leader of the current term.
+     *
+     * @return the leader as IP:port, or null while no leader is known
+     */
+    public String getLeader() {
+        return leader;
+    }
+
+    /**
+     * Stop the election timer.
+     */
+    public void close() {
+        executor.shutdownNow();
+        io.shutdownNow();
+    }
+
+    /**
+     * Handle the REQUEST_VOTE of a candidate. The candidate carries its term as epoch, the epoch of
+     * its last entry as server timestamp and the index of its last entry as index.
+     *
+     * @param request the request
+     * @return VOTE_GRANTED or VOTE_DENIED, with the term of this server as epoch
+     */
+    public Message handleVoteRequest(Message request) {
+        String candidate = request.getServerIP() + ":" + request.getServerPort();
+        boolean granted = false;
+
+        synchronized (this) {
+            if (request.getEpoch() > term) {
+                stepDown(request.getEpoch(), null);
+            }
+
+            if (request.getEpoch() == term && (votedFor == null || votedFor.equals(candidate))
+                    && isUpToDate(request.getServerTimestamp(), request.getIndex())) {
+                votedFor = candidate;
+                saveState();
+                resetDeadline();
+                granted = true;
+            }
+        }
+
+        System.out.printf("Voto %s para %s no termo %d%n", granted ? "concedido" : "negado", candidate, request.getEpoch());
+
+        Message response = new Message(granted ? Message.ResponseType.VOTE_GRANTED : Message.ResponseType.VOTE_DENIED);
+        response.setEpoch(term);
+        response.setServerIP(self.split(":")[0]);
+        response.setServerPort(Integer.parseInt(self.split(":")[1]));
+        return response;
+    }
+
+    /**
+     * Handle the LEADER_HEARTBEAT of a leader, which carries its term as epoch.
+     *
+     * @param heartbeat the heartbeat
+     * @return REPLICATION_OK with the term of this server as epoch, so a leader of an older term
+     *         steps down
+     */
+    public Message handleHeartbeat(Message heartbeat) {
+        String sender = heartbeat.getServerIP() + ":" + heartbeat.getServerPort();
+
+        synchronized (this) {
+            if (heartbeat.getEpoch() >= term) {
+                if (heartbeat.getEpoch() > term || role != Role.FOLLOWER || !sender.equals(leader)) {
+                    stepDown(heartbeat.getEpoch(), sender);
+                }
+                resetDeadline();
+            }
+        }
+
+        Message response = new Message(Message.ResponseType.REPLICATION_OK);
+        response.setEpoch(term);
+        return response;
+    }
+
+    /**
+     * Send the heartbeats of the leader, or start an election when the leader was not heard from
+     * for the election timeout. A leader that lost contact with the quorum steps down instead.
+     */
+    private void tick() {
+        Runnable send = null;
+
+        synchronized (this) {
+            if (role == Role.LEADER) {
+                if (!hasQuorum()) {
+                    System.out.printf("Sem contato com a maioria no termo %d%n", term);
+                    stepDown(term, null);
+                    return;
+                }
+
+                long leaderTerm = term;
+                send = () -> sendHeartbeats(leaderTerm);
+            } else if (System.currentTimeMillis() >= deadline) {
+                send = startElection();
+            }
+        }
+
+        // the messages are sent outside the lock, so the answers of the members are never blocked
+        if (send != null) {
+            send.run();
+        }
+    }
+
+    /**
+     * Start a new term as candidate, voting for itself. Only a member of the cluster runs for
+     * leader. Called with the lock of the election held.
+     *
+     * @return the task asking the other members for their vote, to run outside the lock, or null when
+     *         this server does not run or already won
+     */
+    private Runnable startElection() {
+        List<String> members = node.getMembers();
+
+        resetDeadline();
+
+        if (!members.contains(self)) {
+            return null;
+        }
+
+        term++;
+        role = Role.CANDIDATE;
+        votedFor = self;
+        votes.clear();
+        votes.add(self);
+        saveState();
+
+        if (leader != null) {
+            leader = null;
+            executor.execute(() -> node.becomeFollower(null));
+        }
+
+        long electionTerm = term;
+        long[] position = node.getLogPosition();
+
+        System.out.printf("Iniciando eleição no termo %d (época %d, índice %d)%n", electionTerm, position[0], position[1]);
+
+        if (votes.size() > members.size() / 2) {
+            becomeLeader();
+            return null;
+        }
+
+        return () -> {
+            for (String member : members) {
+                if (member.equals(self)) {
+                    continue;
+                }
+
+                Message request = new Message();
+                request.setOperation(Message.Operation.REQUEST_VOTE);
+                request.setEpoch(electionTerm);
+                request.setServerTimestamp(position[0]);
+                request.setIndex(position[1]);
+                request.setServerIP(self.split(":")[0]);
+                request.setServerPort(Integer.parseInt(self.split(":")[1]));
+
+                send(member, request, response -> onVote(response, electionTerm, members.size()));
+            }
+        };
+    }
+
+    /**
+     * Count a vote received for an election.
+     *
+     * @param response the VOTE_GRANTED or VOTE_DENIED response
+     * @param electionTerm the term of the election
+     * @param memberCount the number of members when the election started
+     */
+    private synchronized void onVote(Message response, long electionTerm, int memberCount) {
+        if (response.getEpoch() > term) {
+            stepDown(response.getEpoch(), null);
+            return;
+        }
+
+        if (role != Role.CANDIDATE || term != electionTerm || response.getResponse() != Message.ResponseType.VOTE_GRANTED) {
+            return;
+        }
+
+        votes.add(response.getServerIP() + ":" + response.getServerPort());
+
+        if (votes.size() > memberCount / 2) {
+            becomeLeader();
+        }
+    }
+
+    /**
+     * Become the leader of the current term and announce it right away.
+     */
+    private void becomeLeader() {
+        long leaderTerm = term;
+
+        role = Role.LEADER;
+        leader = self;
+        leaderSince = System.currentTimeMillis();
+        lastContacts.clear();
+
+        System.out.printf("Eleito líder no termo %d com %d votos%n", leaderTerm, votes.size());
+
+        executor.execute(() -> node.becomeLeader(leaderTerm));
+        executor.execute(() -> sendHeartbeats(leaderTerm));
+    }
+
+    /**
+     * Become a follower, moving to a newer term when needed.
+     *
+     * @param newTerm the term
+     * @param newLeader the leader of the term as IP:port, or null when it is not known yet
+     */
+    private void stepDown(long newTerm, String newLeader) {
+        if (newTerm > term) {
+            term = newTerm;
+            votedFor = null;
+            saveState();
+        }
+
+        boolean changed = role != Role.FOLLOWER || (newLeader == null ? leader != null : !newLeader.equals(leader));
+
+        role = Role.FOLLOWER;
+        leader = newLeader;
+        resetDeadline();
+
+        if (changed) {
+            System.out.printf("Seguindo o líder %s no termo %d%n", newLeader, term);
+            executor.execute(() -> node.becomeFollower(newLeader));
+        }
+    }
+
+    /**
+     * Send a heartbeat to every other member. A member answering with a newer term makes this
+     * server step down, and a member answering in the term of the leadership is counted as in
+     * contact with the leader.
+     *
+     * @param leaderTerm the term of the leadership
+     */
+    private void sendHeartbeats(long leaderTerm) {
+        for (String member : node.getMembers()) {
+            if (member.equals(self)) {
+                continue;
+            }
+
+            Message heartbeat = new Message();
+            heartbeat.setOperation(Message.Operation.LEADER_HEARTBEAT);
+            heartbeat.setEpoch(leaderTerm);
+            heartbeat.setServerIP(self.split(":")[0]);
+            heartbeat.setServerPort(Integer.parseInt(self.split(":")[1]));
+
+            send(member, heartbeat, response -> {
+                synchronized (this) {
+                    if (response.getEpoch() > term) {
+                        stepDown(response.getEpoch(), null);
+                    } else if (response.getEpoch() == leaderTerm && term == leaderTerm && role == Role.LEADER) {
+                        lastContacts.put(member, System.currentTimeMillis());
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Send a message to a member on an I/O thread of the election, waiting for its answer up to
+     * the election timeout. A member still connecting from a previous message is skipped, so an
+     * unreachable member does not pile up threads.
+     *
+     * @param member the member as IP:port
+     * @param message the message
+     * @param onResponse the callback of the answer
+     */
+    private void send(String member, Message message, Consumer<Message> onResponse) {
+        if (!sending.add(member)) {
+            return;
+        }
+
+        try {
+            io.execute(() -> {
+                try {
+                    String[] address = member.split(":");
+                    connections.get(address[0], Integer.parseInt(address[1])).request(message)
+                            .orTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                            .thenAccept(onResponse);
+                } catch (IOException e) {
+                    // the member is down: it neither votes nor acknowledges, and catches up when it comes back
+                } finally {
+                    sending.remove(member);
+                }
+            });
+        } catch (RuntimeException e) {
+            // the election is closed
+            sending.remove(member);
+        }
+    }
+
+    /**
+     * Check if the leader heard from a majority of the members, itself included, within the last
+     * election timeout. A leader is given one election timeout after it was elected to hear from
+     * them. Called with the lock of the election held.
+     *
+     * @return true if the leader is in contact with the quorum, false otherwise
+     */
+    private boolean hasQuorum() {
+        long now = System.currentTimeMillis();
+
+        if (now - leaderSince < timeoutMillis) {
+            return true;
+        }
+
+        List<String> members = node.getMembers();
+        int contacted = members.contains(self) ? 1 : 0;
+
+        for (String member : members) {
+            Long lastContact = lastContacts.get(member);
+
+            if (!member.equals(self) && lastContact != null && now - lastContact < timeoutMillis) {
+                contacted++;
+            }
+        }
+
+        return contacted > members.size() / 2;
+    }
+
+    /**
+     * Wait until the role changes queued on the election thread were applied to the server.
+     */
+    private void awaitRoleChanges() {
+        try {
+            executor.submit(() -> { }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Check if a candidate log is at least as up to date as the log of this server: its last entry
+     * has a newer epoch, or the same epoch and at least the same index.
+     *
+     * @param epoch the epoch of the last entry of the candidate
+     * @param index the index of the last entry of the candidate
+     * @return true if the candidate log is at least as up to date, false otherwise
+     */
+    private boolean isUpToDate(long epoch, long index) {
+        long[] position = node.getLogPosition();
+        return epoch > position[0] || (epoch == position[0] && index >= position[1]);
+    }
+
+    /**
+     * Pick the next election deadline, randomized between one and two election timeouts.
+     */
+    private void resetDeadline() {
+        deadline = System.currentTimeMillis() + timeoutMillis + ThreadLocalRandom.current().nextLong(timeoutMillis);
+    }
+
+    /**
+     * Load the term and vote saved in the data directory, if any.
+     */
+    private void loadState() {
+        if (stateFile == null || !Files.exists(stateFile)) {
+            return;
+        }
+
+        try {
+            String[] state = new String(Files.readAllBytes(stateFile), StandardCharsets.UTF_8).trim().split(" ");
+            long savedTerm = Long.parseLong(state[0]);
+
+            if (savedTerm >= term) {
+                term = savedTerm;
+                votedFor = state.length > 1 ? state[1] : null;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Save the term and vote to the data directory, synced to disk, before they are announced.
+     */
+    private void saveState() {
+        if (stateFile == null) {
+            return;
+        }
+
+        try {
+            Path temporary = stateFile.resolveSibling(STATE_FILE + ".tmp");
+            String state = votedFor == null ? Long.toString(term) : term + " " + votedFor;
+
+            Files.write(temporary, state.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE, StandardOpenOption.SYNC);
+            Files.move(temporary, stateFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package zookeeper;
+
+/**
+ * The outcome of a read of the client: the value and version of the key, NULL when the key does
+ * not exist, or TRY_OTHER_SERVER_OR_LATER when no server was fresh enough after every attempt.
+ */
+public class GetResult {
+    private final Message.ResponseType response;
+    private final String key;
+    private final String value;
+    private final long version;
+    private final long lastVersion;
+    private final String source;
+
+    /**
+     * Create the result of a read.
+     *
+     * @param response GET_OK, NULL or TRY_OTHER_SERVER_OR_LATER
+     * @param key the key read
+     * @param value the value, or null
+     * @param version the version of the value
+     * @param lastVersion the last version of the key seen by the client before the read
+     * @param source where the value was read, a server or the local cache
+     */
+    public GetResult(Message.ResponseType response, String key, String value, long version, long lastVersion, String source) {
+        this.response = response;
+        this.key = key;
+        this.value = value;
+        this.version = version;
+        this.lastVersion = lastVersion;
+        this.source = source;
+    }
+
+    /**
+     * Check if the key was found.
+     *
+     * @return true if the value was read, false otherwise
+     */
+    public boolean isFound() {
+        return response == Message.ResponseType.GET_OK;
+    }
+
+    /**
+     * Get the answer of the read.
+     *
+     * @return GET_OK, NULL or TRY_OTHER_SERVER_OR_LATER
+     */
+    public Message.ResponseType getResponse() {
+        return response;
+    }
+
+    /**
+     * Get the key read.
+     *
+     * @return the key
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Get the value read.
+     *
+     * @return the value, or null when the key was not found
+     */
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * Get the version of the value read.
+     *
+     * @return the version
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Get the last version of the key seen by the client before the read. The value read is at
+     * least that recent.
+     *
+     * @return the version, or 0 when the client had not seen the key
+     */
+    public long getLastVersion() {
+        return lastVersion;
+    }
+
+    /**
+     * Get where the value was read.
+     *
+     * @return a server, or the local cache
+     */
+    public String getSource() {
+        return source;
+    }
+}
@@ -0,0 +1,136 @@
+package zookeeper;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Storage engine that keeps the keys in a {@link ConcurrentHashMap} on the Java heap.
+ *
+ * The memory used is an estimate of the map node, the strings and the version of each key.
+ */
+public class HeapStorageEngine implements StorageEngine {
+    private static final int ENTRY_OVERHEAD = 32 + 24 + 2 * (24 + 16);
+
+    private final ConcurrentHashMap<String, VersionedValue> map = new ConcurrentHashMap<>();
+    private final AtomicLong bytesUsed = new AtomicLong();
+
+    /**
+     * Get the version of a key.
+     *
+     * @param key the key
+     * @return the version, or null when the key is not stored
+     */
+    @Override
+    public VersionedValue get(String key) {
+        return map.get(key);
+    }
+
+    /**
+     * Store a version of a key, unless a newer version is already stored.
+     *
+     * @param key the key
+     * @param value the version
+     */
+    @Override
+    public void put(String key, VersionedValue value) {
+        map.compute(key, (k, current) -> {
+            if (current == null) {
+                bytesUsed.addAndGet(entrySize(k, value));
+                return value;
+            }
+
+            VersionedValue kept = VersionedValue.lastWriterWins(current, value);
+            bytesUsed.addAndGet(valueSize(kept) - valueSize(current));
+            return kept;
+        });
+    }
+
+    /**
+     * Store a version of a key, whatever the stored version.
+     *
+     * @param key the key
+     * @param value the version
+     */
+    @Override
+    public void replace(String key, VersionedValue value) {
+        VersionedValue current = map.put(key, value);
+        bytesUsed.addAndGet(current == null ? entrySize(key, value) : valueSize(value) - valueSize(current));
+    }
+
+    /**
+     * Remove a key.
+     *
+     * @param key the key
+     */
+    @Override
+    public void remove(String key) {
+        VersionedValue current = map.remove(key);
+
+        if (current != null) {
+            bytesUsed.addAndGet(-entrySize(key, current));
+        }
+    }
+
+    /**
+     * Get the number of keys stored.
+     *
+     * @return the number of keys
+     */
+    @Override
+    public long size() {
+        return map.size();
+    }
+
+    /**
+     * Iterate over the entries of the map.
+     *
+     * @return the iterator of the entries
+     */
+    @Override
+    public Iterator<Message.Entry> entries() {
+        return map.entrySet().stream()
+                .map(entry -> new Message.Entry(entry.getKey(), entry.getValue().getValue(), entry.getValue().getTimestamp()))
+                .iterator();
+    }
+
+    /**
+     * Get the estimated memory used by the keys.
+     *
+     * @return the memory used in bytes
+     */
+    @Override
+    public long getBytesUsed() {
+        return bytesUsed.get();
+    }
+
+    /**
+     * Remove every key.
+     */
+    @Override
+    public void close() {
+        map.clear();
+        bytesUsed.set(0);
+    }
+
+    /**
+     * Estimate the memory used by a key and its version.
+     *
+     * @param key the key
+     * @param value the version
+     * @return the size in bytes
+     */
+    private static long entrySize(String key, VersionedValue value) {
+        return ENTRY_OVERHEAD + key.length() + valueSize(value);
+    }
+
+    /**
+     * Estimate the memory used by the characters of a value.
+     *
+     * @param value the version
+     * @return the size in bytes
+     */
+    private static long valueSize(VersionedValue value) {
+        return value.getValue() == null ? 0 : value.getValue().length();
+    }
+}
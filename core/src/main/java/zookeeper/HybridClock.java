@@ -0,0 +1,48 @@
+package zookeeper;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hybrid logical clock assigning the versions of the writes on the leader.
+ *
+ * A version holds the wall-clock time in milliseconds in its high bits and a logical counter in
+ * its 16 low bits. Each version is greater than the previous one and than every version observed,
+ * even when the clock of the leader goes back or several writes happen in the same millisecond,
+ * and it stays close to the wall-clock time. Every server observes the versions it applies, so a
+ * newly elected leader keeps assigning greater versions than the previous one.
+ */
+public class HybridClock {
+    private static final int LOGICAL_BITS = 16;
+
+    private final AtomicLong last = new AtomicLong();
+
+    /**
+     * Assign the next version.
+     *
+     * @return the version, greater than every version assigned or observed before
+     */
+    public long next() {
+        return last.updateAndGet(version -> Math.max(version + 1, System.currentTimeMillis() << LOGICAL_BITS));
+    }
+
+    /**
+     * Observe a version assigned elsewhere, so the next versions are greater.
+     *
+     * @param version the version
+     */
+    public void observe(long version) {
+        if (version > last.get()) {
+            last.accumulateAndGet(version, Math::max);
+        }
+    }
+
+    /**
+     * Get the wall-clock time of a version.
+     *
+     * @param version the version
+     * @return the time in milliseconds
+     */
+    public static long getMillis(long version) {
+        return version >>> LOGICAL_BITS;
+    }
+}
@@ -0,0 +1,453 @@
+package zookeeper;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable, sorted and memory-mapped file of versioned keys, written by {@link LsmStorageEngine}.
+ *
+ * The file holds the records in key order, each one as
+ * {@code [int key length][key][long timestamp][int value length][value]}, with a value length of -1
+ * for a null value and -2 for a deleted key. After the records come a sparse index with the key and
+ * offset of every 16th record, a {@link BloomFilter} of the keys and a fixed-size footer.
+ *
+ * Keys are UTF-8 and compared as unsigned bytes, which is the code point order of
+ * {@link #compareKeys(String, String)}. A lookup compares the keys in the mapped file with the
+ * searched key in place and only decodes the value it returns.
+ */
+public class LsmSegment {
+    /** Version of a deleted key, which hides the older versions until compaction drops it. */
+    public static final VersionedValue TOMBSTONE = new VersionedValue(null, Long.MIN_VALUE);
+
+    private static final String PREFIX = "segment.";
+    private static final int MAGIC = 0x4c534d31;
+    private static final int FOOTER_SIZE = 8 + 4 * 5;
+    private static final int INDEX_INTERVAL = 16;
+    private static final int NULL_VALUE = -1;
+    private static final int TOMBSTONE_VALUE = -2;
+
+    private final long id;
+    private final Path path;
+    private final MappedByteBuffer data;
+    private final long count;
+    private final int dataEnd;
+    private final byte[][] indexKeys;
+    private final int[] indexOffsets;
+    private final BloomFilter bloomFilter;
+
+    /**
+     * Map a segment file and load its sparse index.
+     *
+     * @param id the segment ID
+     * @param path the segment file
+     * @throws IOException exception when reading the file or when it is invalid
+     */
+    private LsmSegment(long id, Path path) throws IOException {
+        this.id = id;
+        this.path = path;
+
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            this.data = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+        }
+
+        int footer = data.capacity() - FOOTER_SIZE;
+
+        if (footer < 0 || data.getInt(footer + FOOTER_SIZE - 4) != MAGIC) {
+            throw new IOException("Invalid segment " + path);
+        }
+
+        this.count = data.getLong(footer);
+        this.dataEnd = data.getInt(footer + 8);
+        int indexCount = data.getInt(footer + 12);
+        int bloomOffset = data.getInt(footer + 16);
+        int bloomLongs = data.getInt(footer + 20);
+
+        this.indexKeys = new byte[indexCount][];
+        this.indexOffsets = new int[indexCount];
+
+        int offset = dataEnd;
+
+        for (int i = 0; i < indexCount; i++) {
+            indexKeys[i] = new byte[data.getInt(offset)];
+            data.get(offset + 4, indexKeys[i]);
+            indexOffsets[i] = data.getInt(offset + 4 + indexKeys[i].length);
+            offset += 8 + indexKeys[i].length;
+        }
+
+        this.bloomFilter = BloomFilter.read(data.duplicate().position(bloomOffset), bloomLongs);
+    }
+
+    /**
+     * Write the sorted entries to a new segment, until they end or the segment reaches the maximum
+     * size.
+     *
+     * @param directory the directory of the segments
+     * @param id the segment ID
+     * @param entries the entries, in key order, without duplicate keys
+     * @param expectedKeys the expected number of keys, to size the bloom filter
+     * @param maxBytes the size after which no more entries are written
+     * @return the segment
+     * @throws IOException exception when writing the file
+     */
+    public static LsmSegment write(Path directory, long id, Iterator<Map.Entry<String, VersionedValue>> entries,
+                                   long expectedKeys, long maxBytes) throws IOException {
+        Path path = directory.resolve(PREFIX + id);
+        Path temporary = directory.resolve(PREFIX + id + ".tmp");
+        BloomFilter bloomFilter = BloomFilter.create(expectedKeys);
+        List<byte[]> indexKeys = new ArrayList<>();
+        List<Integer> indexOffsets = new ArrayList<>();
+        long count = 0;
+        long offset = 0;
+
+        try (FileChannel file = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(file), 64 * 1024));
+
+            while (offset < maxBytes && entries.hasNext()) {
+                Map.Entry<String, VersionedValue> entry = entries.next();
+                byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                VersionedValue version = entry.getValue();
+                byte[] value = version.getValue() == null ? null : version.getValue().getBytes(StandardCharsets.UTF_8);
+
+                if (count % INDEX_INTERVAL == 0) {
+                    indexKeys.add(key);
+                    indexOffsets.add((int) offset);
+                }
+
+                bloomFilter.add(key);
+
+                out.writeInt(key.length);
+                out.write(key);
+                out.writeLong(version.getTimestamp());
+
+                if (version == TOMBSTONE) {
+                    out.writeInt(TOMBSTONE_VALUE);
+                } else if (value == null) {
+                    out.writeInt(NULL_VALUE);
+                } else {
+                    out.writeInt(value.length);
+                    out.write(value);
+                }
+
+                offset += 4 + key.length + 8 + 4 + (value == null ? 0 : value.length);
+                count++;
+            }
+
+            int dataEnd = (int) offset;
+
+            for (int i = 0; i < indexKeys.size(); i++) {
+                out.writeInt(indexKeys.get(i).length);
+                out.write(indexKeys.get(i));
+                out.writeInt(indexOffsets.get(i));
+                offset += 8 + indexKeys.get(i).length;
+            }
+
+            ByteBuffer bloom = ByteBuffer.allocate(bloomFilter.getLongs() * 8);
+            bloomFilter.writeTo(bloom);
+            out.write(bloom.array());
+
+            out.writeLong(count);
+            out.writeInt(dataEnd);
+            out.writeInt(indexKeys.size());
+            out.writeInt((int) offset);
+            out.writeInt(bloomFilter.getLongs());
+            out.writeInt(MAGIC);
+            out.flush();
+
+            file.force(true);
+        } catch (IOException e) {
+            // a failed write leaves no partial file behind
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+
+        Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        return new LsmSegment(id, path);
+    }
+
+    /**
+     * Delete the segment files left in a directory.
+     *
+     * @param directory the directory of the segments
+     * @throws IOException exception when deleting a file
+     */
+    public static void deleteAll(Path directory) throws IOException {
+        try (DirectoryStream<Path> paths = Files.newDirectoryStream(directory, PREFIX + "*")) {
+            for (Path path : paths) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    /**
+     * Compare two keys in code point order, the order of their UTF-8 bytes.
+     *
+     * @param a the first key
+     * @param b the second key
+     * @return a negative number, zero or a positive number when the first key is lower, equal or
+     *         greater than the second one
+     */
+    public static int compareKeys(String a, String b) {
+        int length = Math.min(a.length(), b.length());
+
+        for (int i = 0; i < length; i++) {
+            char x = a.charAt(i);
+            char y = b.charAt(i);
+
+            if (x != y) {
+                // a surrogate starts a code point above every other character
+                if (Character.isSurrogate(x) != Character.isSurrogate(y)) {
+                    return Character.isSurrogate(x) ? 1 : -1;
+                }
+                return x - y;
+            }
+        }
+
+        return a.length() - b.length();
+    }
+
+    /**
+     * Find the version of a key.
+     *
+     * @param key the key in UTF-8
+     * @return the version, {@link #TOMBSTONE} when the key was deleted, or null when the segment
+     *         does not hold the key
+     */
+    public VersionedValue get(byte[] key) {
+        if (indexKeys.length == 0 || !bloomFilter.mightContain(key)) {
+            return null;
+        }
+
+        int low = 0;
+        int high = indexKeys.length - 1;
+
+        // find the last index entry not greater than the key
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+
+            if (compareBytes(indexKeys[middle], key) <= 0) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        if (compareBytes(indexKeys[low], key) > 0) {
+            return null;
+        }
+
+        int offset = indexOffsets[low];
+        int end = low + 1 < indexOffsets.length ? indexOffsets[low + 1] : dataEnd;
+
+        while (offset < end) {
+            int keyLength = data.getInt(offset);
+            int comparison = compareRecordKey(offset + 4, keyLength, key);
+            int versionOffset = offset + 4 + keyLength;
+            int valueLength = data.getInt(versionOffset + 8);
+
+            if (comparison == 0) {
+                return readVersion(versionOffset);
+            }
+            if (comparison > 0) {
+                return null;
+            }
+
+            offset = versionOffset + 12 + Math.max(0, valueLength);
+        }
+
+        return null;
+    }
+
+    /**
+     * Iterate over the records of the segment, in key order.
+     *
+     * @return the iterator of the keys and their versions, deleted keys included
+     */
+    public Iterator<Map.Entry<String, VersionedValue>> iterator() {
+        return iterator(0);
+    }
+
+    /**
+     * Iterate over the records of the segment in key order, from a key on. The sparse index gives
+     * the block where the key would be, and the records of that block below the key are skipped.
+     *
+     * @param from the first key, included when the segment holds it
+     * @return the iterator of the keys and their versions, deleted keys included
+     */
+    public Iterator<Map.Entry<String, VersionedValue>> iterator(String from) {
+        byte[] key = from.getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = indexKeys.length - 1;
+
+        if (high < 0 || compareBytes(indexKeys[0], key) >= 0) {
+            return iterator(0);
+        }
+
+        // find the last index entry lower than the key
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+
+            if (compareBytes(indexKeys[middle], key) < 0) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        int offset = indexOffsets[low];
+
+        while (offset < dataEnd) {
+            int keyLength = data.getInt(offset);
+
+            if (compareRecordKey(offset + 4, keyLength, key) >= 0) {
+                break;
+            }
+
+            int versionOffset = offset + 4 + keyLength;
+            offset = versionOffset + 12 + Math.max(0, data.getInt(versionOffset + 8));
+        }
+
+        return iterator(offset);
+    }
+
+    /**
+     * Iterate over the records of the segment, from a record on.
+     *
+     * @param start the offset of the first record
+     * @return the iterator of the keys and their versions, deleted keys included
+     */
+    private Iterator<Map.Entry<String, VersionedValue>> iterator(int start) {
+        return new Iterator<Map.Entry<String, VersionedValue>>() {
+            private int offset = start;
+
+            public boolean hasNext() {
+                return offset < dataEnd;
+            }
+
+            public Map.Entry<String, VersionedValue> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                int keyLength = data.getInt(offset);
+                byte[] key = new byte[keyLength];
+                data.get(offset + 4, key);
+
+                int versionOffset = offset + 4 + keyLength;
+                offset = versionOffset + 12 + Math.max(0, data.getInt(versionOffset + 8));
+
+                return new AbstractMap.SimpleImmutableEntry<>(new String(key, StandardCharsets.UTF_8), readVersion(versionOffset));
+            }
+        };
+    }
+
+    /**
+     * Get the segment ID. Segments with higher IDs hold newer versions.
+     *
+     * @return the segment ID
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * Get the number of records of the segment.
+     *
+     * @return the number of records
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Get the size of the segment file.
+     *
+     * @return the size in bytes
+     */
+    public long getSizeBytes() {
+        return data.capacity();
+    }
+
+    /**
+     * Delete the segment file. The mapping stays valid for the readers still using it.
+     *
+     * @throws IOException exception when deleting the file
+     */
+    public void delete() throws IOException {
+        Files.deleteIfExists(path);
+    }
+
+    /**
+     * Read the version of a record.
+     *
+     * @param offset the offset of the timestamp of the record
+     * @return the version
+     */
+    private VersionedValue readVersion(int offset) {
+        long timestamp = data.getLong(offset);
+        int valueLength = data.getInt(offset + 8);
+
+        if (valueLength == TOMBSTONE_VALUE) {
+            return TOMBSTONE;
+        }
+        if (valueLength == NULL_VALUE) {
+            return new VersionedValue(null, timestamp);
+        }
+
+        byte[] value = new byte[valueLength];
+        data.get(offset + 12, value);
+
+        return new VersionedValue(new String(value, StandardCharsets.UTF_8), timestamp);
+    }
+
+    /**
+     * Compare the key of a record with a key, as unsigned bytes.
+     *
+     * @param offset the offset of the record key
+     * @param length the length of the record key
+     * @param key the key in UTF-8
+     * @return the comparison of the record key with the key
+     */
+    private int compareRecordKey(int offset, int length, byte[] key) {
+        int common = Math.min(length, key.length);
+
+        for (int i = 0; i < common; i++) {
+            int comparison = Byte.compareUnsigned(data.get(offset + i), key[i]);
+
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+
+        return length - key.length;
+    }
+
+    /**
+     * Compare two keys as unsigned bytes.
+     *
+     * @param a the first key in UTF-8
+     * @param b the second key in UTF-8
+     * @return the comparison of the keys
+     */
+    private static int compareBytes(byte[] a, byte[] b) {
+        return Arrays.compareUnsigned(a, b);
+    }
+}
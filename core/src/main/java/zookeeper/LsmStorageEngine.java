@@ -0,0 +1,658 @@
+package zookeeper;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Log-structured storage engine for datasets larger than the memory.
+ *
+ * Writes go to a sorted in-memory memtable. When it is full, the memtable becomes immutable and a
+ * background thread flushes it to a new {@link LsmSegment}, a sorted and memory-mapped file. Reads go
+ * through the memtable, the memtables being flushed and the segments, from the newest to the oldest,
+ * and the first version found wins.
+ *
+ * Compaction is size-tiered: when enough consecutive segments have a similar size, the same thread
+ * merges them into one, keeping the newest version of each key, so each key is rewritten about once
+ * per tier instead of on every compaction. The merged segments are consecutive, so the result takes
+ * their place in the order; deleted keys are dropped only when no older segment remains.
+ *
+ * A flush that fails is retried with a growing delay. When it keeps failing, the engine fails: the
+ * memtables stay readable, but every write throws, since the data can no longer be made durable.
+ *
+ * The writes are serialized, since each one reads the current version to apply last-writer-wins,
+ * while the reads never block. The engine is rebuilt by the server recovery, so the segments left
+ * by a previous run are deleted when it starts.
+ */
+public class LsmStorageEngine implements StorageEngine {
+    private static final int COMPACTION_TRIGGER = 4;
+    private static final int TIER_RATIO = 2;
+    private static final long MIN_TIER_BYTES = 1L << 20;
+    private static final long MAX_SEGMENT_BYTES = 1L << 30;
+    private static final int FLUSH_ATTEMPTS = 5;
+    private static final long FLUSH_RETRY_MILLIS = 100;
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private final Path directory;
+    private final long memtableBytes;
+    private final Object lock = new Object();
+    private final AtomicLong size = new AtomicLong();
+    private final ExecutorService background;
+    private volatile State state;
+    private long memtableSize;
+    private long nextSegmentId = 1;
+    private volatile IOException failure;
+
+    /**
+     * Memtables and segments visible to the readers, from the newest to the oldest. A state is never
+     * modified; each change publishes a new one.
+     */
+    private static class State {
+        final ConcurrentSkipListMap<String, VersionedValue> memtable;
+        final List<ConcurrentSkipListMap<String, VersionedValue>> flushing;
+        final List<LsmSegment> segments;
+
+        State(ConcurrentSkipListMap<String, VersionedValue> memtable, List<ConcurrentSkipListMap<String, VersionedValue>> flushing,
+              List<LsmSegment> segments) {
+            this.memtable = memtable;
+            this.flushing = Collections.unmodifiableList(flushing);
+            this.segments = Collections.unmodifiableList(segments);
+        }
+    }
+
+    /**
+     * Create an empty engine, deleting the segments left in the directory.
+     *
+     * @param directory the directory of the segments
+     * @param memtableBytes the memtable size that triggers a flush
+     * @throws IOException exception when preparing the directory
+     */
+    public LsmStorageEngine(Path directory, long memtableBytes) throws IOException {
+        this.directory = directory;
+        this.memtableBytes = memtableBytes;
+        this.state = new State(newMemtable(), new ArrayList<>(), new ArrayList<>());
+
+        Files.createDirectories(directory);
+        LsmSegment.deleteAll(directory);
+
+        this.background = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "lsm-compaction");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Get the version of a key, from the newest memtable or segment holding it.
+     *
+     * @param key the key
+     * @return the version, or null when the key is not stored
+     */
+    @Override
+    public VersionedValue get(String key) {
+        VersionedValue value = find(state, key);
+        return value == LsmSegment.TOMBSTONE ? null : value;
+    }
+
+    /**
+     * Store a version of a key, unless a newer version is already stored.
+     *
+     * @param key the key
+     * @param value the version
+     */
+    @Override
+    public void put(String key, VersionedValue value) {
+        write(key, value, true);
+    }
+
+    /**
+     * Store a version of a key, whatever the stored version.
+     *
+     * @param key the key
+     * @param value the version
+     */
+    @Override
+    public void replace(String key, VersionedValue value) {
+        write(key, value, false);
+    }
+
+    /**
+     * Remove a key, writing a tombstone that hides its older versions.
+     *
+     * @param key the key
+     */
+    @Override
+    public void remove(String key) {
+        synchronized (lock) {
+            checkFailure();
+
+            if (get(key) != null) {
+                size.decrementAndGet();
+                append(key, LsmSegment.TOMBSTONE);
+            }
+        }
+    }
+
+    /**
+     * Get the number of keys stored.
+     *
+     * @return the number of keys
+     */
+    @Override
+    public long size() {
+        return size.get();
+    }
+
+    /**
+     * Iterate over the keys in order, merging the memtables and the segments.
+     *
+     * @return the iterator of the entries
+     */
+    @Override
+    public Iterator<Message.Entry> entries() {
+        Iterator<Map.Entry<String, VersionedValue>> merged = merge(state, null, true);
+
+        return new Iterator<Message.Entry>() {
+            public boolean hasNext() {
+                return merged.hasNext();
+            }
+
+            public Message.Entry next() {
+                Map.Entry<String, VersionedValue> entry = merged.next();
+                return new Message.Entry(entry.getKey(), entry.getValue().getValue(), entry.getValue().getTimestamp());
+            }
+        };
+    }
+
+    /**
+     * The keys are kept in order, so the engine serves ranges of keys.
+     *
+     * @return true
+     */
+    @Override
+    public boolean isSorted() {
+        return true;
+    }
+
+    /**
+     * Iterate over the keys in order from a key on, seeking into the memtables and the segments.
+     *
+     * @param from the first key, included when it is stored
+     * @return the iterator of the keys
+     */
+    @Override
+    public Iterator<String> keys(String from) {
+        Iterator<Map.Entry<String, VersionedValue>> merged = merge(state, from, true);
+
+        return new Iterator<String>() {
+            public boolean hasNext() {
+                return merged.hasNext();
+            }
+
+            public String next() {
+                return merged.next().getKey();
+            }
+        };
+    }
+
+    /**
+     * Get the estimated memory of the memtables plus the size of the segment files.
+     *
+     * @return the size in bytes
+     */
+    @Override
+    public long getBytesUsed() {
+        State current = state;
+        long bytes;
+
+        synchronized (lock) {
+            // each memtable being flushed reached the flush size
+            bytes = memtableSize + memtableBytes * current.flushing.size();
+        }
+
+        for (LsmSegment segment : current.segments) {
+            bytes += segment.getSizeBytes();
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Stop the background thread and drop the memtables. The segment files are left on disk until
+     * the next start.
+     */
+    @Override
+    public void close() {
+        background.shutdownNow();
+
+        try {
+            background.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (lock) {
+            state = new State(newMemtable(), new ArrayList<>(), new ArrayList<>());
+            size.set(0);
+        }
+    }
+
+    /**
+     * Write a version to the memtable.
+     *
+     * @param key the key
+     * @param value the version
+     * @param lastWriterWins true to keep a newer stored version
+     */
+    private void write(String key, VersionedValue value, boolean lastWriterWins) {
+        synchronized (lock) {
+            checkFailure();
+
+            VersionedValue current = get(key);
+
+            if (current == null) {
+                size.incrementAndGet();
+            } else if (lastWriterWins && value.getTimestamp() < current.getTimestamp()) {
+                return;
+            }
+
+            append(key, value);
+        }
+    }
+
+    /**
+     * Add a version to the memtable and start a flush when it is full. The caller holds the lock.
+     *
+     * @param key the key
+     * @param value the version, or {@link LsmSegment#TOMBSTONE}
+     */
+    private void append(String key, VersionedValue value) {
+        State current = state;
+        current.memtable.put(key, value);
+        memtableSize += ENTRY_OVERHEAD + 2L * (key.length() + (value.getValue() == null ? 0 : value.getValue().length()));
+
+        if (memtableSize < memtableBytes) {
+            return;
+        }
+
+        // the full memtable is published as flushing before it is replaced, so readers always see it
+        List<ConcurrentSkipListMap<String, VersionedValue>> flushing = new ArrayList<>();
+        flushing.add(current.memtable);
+        flushing.addAll(current.flushing);
+
+        ConcurrentSkipListMap<String, VersionedValue> memtable = current.memtable;
+        state = new State(newMemtable(), flushing, current.segments);
+        memtableSize = 0;
+
+        background.execute(() -> flush(memtable));
+    }
+
+    /**
+     * Write an immutable memtable to a new segment, then compact the segments while a tier has
+     * enough of them. A failed write is retried; when every attempt failed, the engine fails.
+     *
+     * @param memtable the memtable
+     */
+    private void flush(ConcurrentSkipListMap<String, VersionedValue> memtable) {
+        LsmSegment segment;
+
+        if (failure != null) {
+            return;
+        }
+
+        try {
+            segment = writeSegment(memtable);
+        } catch (IOException e) {
+            failure = e;
+            System.out.printf("Falha definitiva ao gravar segmento LSM, recusando escritas: %s%n", e.getMessage());
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        synchronized (lock) {
+            State current = state;
+            List<ConcurrentSkipListMap<String, VersionedValue>> flushing = new ArrayList<>(current.flushing);
+            flushing.remove(memtable);
+
+            List<LsmSegment> segments = new ArrayList<>();
+            segments.add(segment);
+            segments.addAll(current.segments);
+
+            state = new State(current.memtable, flushing, segments);
+        }
+
+        try {
+            List<LsmSegment> inputs;
+
+            while ((inputs = pickCompaction(state.segments)) != null) {
+                compact(inputs);
+            }
+        } catch (IOException e) {
+            // the inputs stay in place, and the next flush tries again
+            System.out.printf("Falha na compactação LSM: %s%n", e.getMessage());
+        }
+    }
+
+    /**
+     * Write a memtable to a new segment, retrying with a growing delay when the write fails.
+     *
+     * @param memtable the memtable
+     * @return the segment
+     * @throws IOException exception of the last attempt, when every attempt failed
+     * @throws InterruptedException exception when the engine is closed while waiting to retry
+     */
+    private LsmSegment writeSegment(ConcurrentSkipListMap<String, VersionedValue> memtable) throws IOException, InterruptedException {
+        long delay = FLUSH_RETRY_MILLIS;
+
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return LsmSegment.write(directory, nextSegmentId(), memtable.entrySet().iterator(), memtable.size(), Long.MAX_VALUE);
+            } catch (IOException e) {
+                // the memtable stays readable in the flushing list meanwhile
+                System.out.printf("Falha ao gravar segmento LSM (tentativa %d de %d): %s%n", attempt, FLUSH_ATTEMPTS, e.getMessage());
+
+                if (attempt == FLUSH_ATTEMPTS) {
+                    throw e;
+                }
+            }
+
+            Thread.sleep(delay);
+            delay *= 2;
+        }
+    }
+
+    /**
+     * Pick the segments to compact: the newest run of at least {@link #COMPACTION_TRIGGER}
+     * consecutive segments of a similar size, the largest being at most {@link #TIER_RATIO} times
+     * the smallest. Segments below {@link #MIN_TIER_BYTES} count as that size, so small flushes fall
+     * in the same tier, and segments of half the maximum size or more are never compacted again,
+     * since merging them would only split them the same way.
+     *
+     * @param segments the segments, from the newest to the oldest
+     * @return the consecutive segments to compact, or null when no tier has enough of them
+     */
+    private static List<LsmSegment> pickCompaction(List<LsmSegment> segments) {
+        int start = 0;
+
+        while (start < segments.size()) {
+            long smallest = Long.MAX_VALUE;
+            long largest = 0;
+            int end = start;
+
+            while (end < segments.size()) {
+                long size = Math.max(MIN_TIER_BYTES, segments.get(end).getSizeBytes());
+
+                if (size >= MAX_SEGMENT_BYTES / 2 || Math.max(largest, size) > TIER_RATIO * Math.min(smallest, size)) {
+                    break;
+                }
+
+                smallest = Math.min(smallest, size);
+                largest = Math.max(largest, size);
+                end++;
+            }
+
+            if (end - start >= COMPACTION_TRIGGER) {
+                return new ArrayList<>(segments.subList(start, end));
+            }
+
+            start++;
+        }
+
+        return null;
+    }
+
+    /**
+     * Merge consecutive segments into new ones, keeping the newest version of each key. The result
+     * takes the place of the inputs, between the newer and the older segments.
+     *
+     * @param inputs the consecutive segments, from the newest to the oldest
+     * @throws IOException exception when writing or deleting a segment
+     */
+    private void compact(List<LsmSegment> inputs) throws IOException {
+        long expectedKeys = 0;
+
+        for (LsmSegment segment : inputs) {
+            expectedKeys += segment.getCount();
+        }
+
+        // only the flushes run meanwhile, and they add newer segments, so the oldest one stays the oldest
+        List<LsmSegment> current = state.segments;
+        boolean oldest = current.get(current.size() - 1) == inputs.get(inputs.size() - 1);
+
+        // the deleted keys can be dropped only when no older segment holds a version they hide
+        Iterator<Map.Entry<String, VersionedValue>> merged = merge(new State(newMemtable(), new ArrayList<>(), inputs), null, oldest);
+        List<LsmSegment> outputs = new ArrayList<>();
+
+        try {
+            do {
+                outputs.add(LsmSegment.write(directory, nextSegmentId(), merged, expectedKeys, MAX_SEGMENT_BYTES));
+            } while (merged.hasNext());
+        } catch (IOException e) {
+            for (LsmSegment output : outputs) {
+                output.delete();
+            }
+            throw e;
+        }
+
+        // the outputs do not overlap, so their order is free
+        synchronized (lock) {
+            List<LsmSegment> segments = new ArrayList<>(state.segments);
+            int position = segments.indexOf(inputs.get(0));
+
+            segments.removeAll(inputs);
+            segments.addAll(position, outputs);
+            state = new State(state.memtable, state.flushing, segments);
+        }
+
+        for (LsmSegment segment : inputs) {
+            segment.delete();
+        }
+    }
+
+    /**
+     * Throw when a flush failed for good. The caller holds the lock.
+     */
+    private void checkFailure() {
+        if (failure != null) {
+            throw new IllegalStateException("LSM storage failed: " + failure.getMessage(), failure);
+        }
+    }
+
+    /**
+     * Get a new segment ID.
+     *
+     * @return the segment ID
+     */
+    private long nextSegmentId() {
+        synchronized (lock) {
+            return nextSegmentId++;
+        }
+    }
+
+    /**
+     * Find the newest version of a key.
+     *
+     * @param state the memtables and segments
+     * @param key the key
+     * @return the version, {@link LsmSegment#TOMBSTONE} when it was deleted, or null when it is unknown
+     */
+    private static VersionedValue find(State state, String key) {
+        VersionedValue value = state.memtable.get(key);
+
+        if (value != null) {
+            return value;
+        }
+
+        for (ConcurrentSkipListMap<String, VersionedValue> memtable : state.flushing) {
+            value = memtable.get(key);
+
+            if (value != null) {
+                return value;
+            }
+        }
+
+        if (state.segments.isEmpty()) {
+            return null;
+        }
+
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+
+        for (LsmSegment segment : state.segments) {
+            value = segment.get(bytes);
+
+            if (value != null) {
+                return value;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Merge the memtables and segments into one sorted iterator with the newest version of each key.
+     *
+     * @param state the memtables and segments
+     * @param from the first key, or null to start from the lowest key
+     * @param skipDeleted true to leave the deleted keys out
+     * @return the iterator
+     */
+    private static Iterator<Map.Entry<String, VersionedValue>> merge(State state, String from, boolean skipDeleted) {
+        List<Iterator<Map.Entry<String, VersionedValue>>> sources = new ArrayList<>();
+
+        sources.add(tail(state.memtable, from));
+
+        for (ConcurrentSkipListMap<String, VersionedValue> memtable : state.flushing) {
+            sources.add(tail(memtable, from));
+        }
+        for (LsmSegment segment : state.segments) {
+            sources.add(from == null ? segment.iterator() : segment.iterator(from));
+        }
+
+        return new MergingIterator(sources, skipDeleted);
+    }
+
+    /**
+     * Iterate over a memtable from a key on.
+     *
+     * @param memtable the memtable
+     * @param from the first key, or null to start from the lowest key
+     * @return the iterator of the entries
+     */
+    private static Iterator<Map.Entry<String, VersionedValue>> tail(ConcurrentSkipListMap<String, VersionedValue> memtable, String from) {
+        return (from == null ? memtable : memtable.tailMap(from, true)).entrySet().iterator();
+    }
+
+    /**
+     * Create an empty memtable, sorted in the key order of the segments.
+     *
+     * @return the memtable
+     */
+    private static ConcurrentSkipListMap<String, VersionedValue> newMemtable() {
+        return new ConcurrentSkipListMap<>(LsmSegment::compareKeys);
+    }
+
+    /**
+     * Sorted merge of several sorted sources, ordered from the newest to the oldest. For a key found
+     * in several sources, the version of the newest one wins.
+     */
+    private static class MergingIterator implements Iterator<Map.Entry<String, VersionedValue>> {
+        private final PriorityQueue<Head> heads = new PriorityQueue<>();
+        private final boolean skipDeleted;
+        private Map.Entry<String, VersionedValue> next;
+
+        /**
+         * Current entry of a source.
+         */
+        private static class Head implements Comparable<Head> {
+            final Iterator<Map.Entry<String, VersionedValue>> source;
+            final int rank;
+            Map.Entry<String, VersionedValue> entry;
+
+            Head(Iterator<Map.Entry<String, VersionedValue>> source, int rank) {
+                this.source = source;
+                this.rank = rank;
+                this.entry = source.next();
+            }
+
+            public int compareTo(Head other) {
+                int comparison = LsmSegment.compareKeys(entry.getKey(), other.entry.getKey());
+                return comparison != 0 ? comparison : Integer.compare(rank, other.rank);
+            }
+        }
+
+        MergingIterator(List<Iterator<Map.Entry<String, VersionedValue>>> sources, boolean skipDeleted) {
+            this.skipDeleted = skipDeleted;
+
+            for (int i = 0; i < sources.size(); i++) {
+                if (sources.get(i).hasNext()) {
+                    heads.add(new Head(sources.get(i), i));
+                }
+            }
+
+            advance();
+        }
+
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        public Map.Entry<String, VersionedValue> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+
+            Map.Entry<String, VersionedValue> entry = next;
+            advance();
+            return entry;
+        }
+
+        /**
+         * Find the next entry, skipping the older versions of the same key.
+         */
+        private void advance() {
+            next = null;
+
+            while (next == null && !heads.isEmpty()) {
+                Head newest = heads.poll();
+                Map.Entry<String, VersionedValue> entry = newest.entry;
+
+                skip(newest);
+
+                while (!heads.isEmpty() && heads.peek().entry.getKey().equals(entry.getKey())) {
+                    skip(heads.poll());
+                }
+
+                if (!skipDeleted || entry.getValue() != LsmSegment.TOMBSTONE) {
+                    next = entry;
+                }
+            }
+        }
+
+        /**
+         * Move a source to its next entry.
+         *
+         * @param head the current entry of the source, out of the queue
+         */
+        private void skip(Head head) {
+            if (head.source.hasNext()) {
+                head.entry = head.source.next();
+                heads.add(head);
+            }
+        }
+    }
+}
@@ -0,0 +1,487 @@
+package zookeeper;
+
+import java.util.List;
+import com.google.gson.Gson;
+
+public class Message {
+    private static final Gson gson = new Gson();
+
+    enum Operation {
+        PUT,
+        GET,
+        REPLICATION,
+        SYNC,
+        SNAPSHOT,
+        WATCH,
+        MULTI_GET,
+        MULTI_PUT,
+        CREATE,
+        LIST_CHILDREN,
+        SCAN,
+        CAS,
+        DELETE,
+        SESSION_OPEN,
+        SESSION_CLOSE,
+        HEARTBEAT,
+        SESSION_TOUCH,
+        ADD_SERVER,
+        REMOVE_SERVER,
+        LIST_SERVERS,
+        REQUEST_VOTE,
+        LEADER_HEARTBEAT
+    }
+
+    enum ResponseType {
+        PUT_OK,
+        GET_OK,
+        REPLICATION_OK,
+        NULL,
+        TRY_OTHER_SERVER_OR_LATER,
+        WATCH_OK,
+        WATCH_EVENT,
+        NODE_EXISTS,
+        NO_NODE,
+        CAS_FAILED,
+        SESSION_OK,
+        SESSION_EXPIRED,
+        VOTE_GRANTED,
+        VOTE_DENIED,
+        RESERVED_KEY
+    }
+
+    private long requestId;
+    private Operation operation;
+    private String key;
+    private String value;
+    private String clientIP;
+    private int clientPort;
+    private String serverIP;
+    private int serverPort;
+    private ResponseType response;
+    private long clientTimestamp;
+    protected long serverTimestamp;
+    private long index;
+    private long epoch;
+    private long sessionId;
+    private List<Entry> entries;
+    private boolean lastChunk;
+
+    /**
+     * A key-value pair and its timestamp, as carried by batch messages, or the removal of a key.
+     */
+    public static class Entry {
+        private String key;
+        private String value;
+        private long timestamp;
+        private boolean deleted;
+
+        /**
+         * Create an entry.
+         *
+         * @param key the key
+         * @param value the value
+         * @param timestamp the timestamp associated to the key
+         */
+        public Entry(String key, String value, long timestamp) {
+            this.key = key;
+            this.value = value;
+            this.timestamp = timestamp;
+        }
+
+        /**
+         * Get the key.
+         *
+         * @return the key
+         */
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * Get the value.
+         *
+         * @return the value
+         */
+        public String getValue() {
+            return value;
+        }
+
+        /**
+         * Get the timestamp associated to the key.
+         *
+         * @return the timestamp
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * Check if the entry removes the key.
+         *
+         * @return true if the key is removed, false otherwise
+         */
+        public boolean isDeleted() {
+            return deleted;
+        }
+
+        /**
+         * Create an entry that removes a key.
+         *
+         * @param key the key
+         * @param timestamp the timestamp of the removal
+         * @return the entry
+         */
+        public static Entry deletion(String key, long timestamp) {
+            Entry entry = new Entry(key, null, timestamp);
+            entry.deleted = true;
+            return entry;
+        }
+    }
+
+    public Message() {}
+
+    /**
+     * Create an instance of Message for PUT and REPLICATION operations.
+     *
+     * @param operation PUT
+     * @param key the key to insert
+     * @param value the value to insert
+     * @param clientIP the client IP address
+     * @param clientPort the client port
+     */
+    public Message(Operation operation, String key, String value, String clientIP, int clientPort) {
+        this.operation = operation;
+        this.key = key;
+        this.value = value;
+        this.clientIP = clientIP;
+        this.clientPort = clientPort;
+    }
+
+    /**
+     * Create an instance of Message for GET operation.
+     *
+     * @param operation GET
+     * @param key the key to request
+     * @param clientIP the client IP address
+     * @param clientPort the client port
+     */
+    public Message(Operation operation, String key, String clientIP, int clientPort) {
+        this.operation = operation;
+        this.key = key;
+        this.clientIP = clientIP;
+        this.clientPort = clientPort;
+    }
+
+    /**
+     * Create an instance of Message for response operation.
+     *
+     * @param response the response type
+     */
+    public Message(ResponseType response) {
+        this.response = response;
+    }
+
+    /**
+     * Convert the Message object to a JSON string.
+     *
+     * @return the JSON representation of the Message
+     */
+    public String toJson() {
+        return gson.toJson(this);
+    }
+
+    /**
+     * Convert a JSON string to a Message object.
+     *
+     * @param json the JSON representation of the Message
+     * @return the Message object
+     */
+    public static Message fromJson(String json) {
+        return gson.fromJson(json, Message.class);
+    }
+    
+    /**
+     * Get the request ID used to match a response with its request.
+     *
+     * @return the request ID
+     */
+    public long getRequestId() {
+        return requestId;
+    }
+
+    /**
+     * Set the request ID used to match a response with its request.
+     *
+     * @param requestId the request ID
+     */
+    public void setRequestId(long requestId) {
+        this.requestId = requestId;
+    }
+
+    /**
+     * Get the response
+     * @return the response type
+     */
+    public ResponseType getResponse() {
+        return response;
+    }
+
+    /**
+     * Set the response.
+     *
+     * @param response the response type
+     */
+    public void setResponse(ResponseType response) {
+        this.response = response;
+    }
+
+    /**
+     * Get the operation
+     *
+     * @return the operation type
+     */
+    public Operation getOperation() {
+        return operation;
+    }
+
+    /**
+     * Set the operation.
+     *
+     * @param operation the operation type
+     */
+    public void setOperation(Operation operation) {
+        this.operation = operation;
+    }
+
+    /**
+     * Get the key.
+     *
+     * @return the key
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Set the key.
+     *
+     * @param key the key
+     */
+    public void setKey(String key) {
+        this.key = key;
+    }
+
+    /**
+     * Get the value.
+     *
+     * @return the value
+     */
+    public String getValue() {
+        return value;
+    }
+
+    /*
+     * Set the value.
+     */
+    public void setValue(String value) {
+        this.value = value;
+    }
+
+    /**
+     * Get the client IP address.
+     *
+     * @return the client IP address
+     */
+    public String getClientIP() {
+        return clientIP;
+    }
+
+    /**
+     * Set the client IP address.
+     *
+     * @param clientIP the client IP address
+     */
+    public void setClientIP(String clientIP) {
+        this.clientIP = clientIP;
+    }
+
+    /**
+     * Get the client port.
+     *
+     * @return the client port
+     */
+    public int getClientPort() {
+        return clientPort;
+    }
+
+    /**
+     * Set the client port.
+     *
+     * @param clientPort the client port
+     */
+    public void setClientPort(int clientPort) {
+        this.clientPort = clientPort;
+    }
+
+    /**
+     * Get the server IP address.
+     *
+     * @return the server IP address
+     */
+    public String getServerIP() {
+        return serverIP;
+    }
+
+    /**
+     * Set the server IP address.
+     *
+     * @param serverIP the server IP address
+     */
+    public void setServerIP(String serverIP) {
+        this.serverIP = serverIP;
+    }
+
+    /**
+     * Get the server port.
+     *
+     * @return the server port
+     */
+    public int getServerPort() {
+        return serverPort;
+    }
+
+    /**
+     * Set the server port.
+     *
+     * @param serverPort the server port
+     */
+    public void setServerPort(int serverPort) {
+        this.serverPort = serverPort;
+    }
+
+    /**
+     * Get the client timestamp.
+     *
+     * @return the client timestamp
+     */
+    public long getClientTimestamp() {
+        return clientTimestamp;
+    }
+
+    /**
+     * Set the client timestamp.
+     *
+     * @param clientTimestamp the client timestamp
+     */
+    public void setClientTimestamp(long clientTimestamp) {
+        this.clientTimestamp = clientTimestamp;
+    }
+
+    /**
+     * Get the server timestamp.
+     *
+     * @return the server timestamp
+     */
+    public long getServerTimestamp() {
+        return this.serverTimestamp;
+    }
+
+    /**
+     * Set the server timestamp.
+     *
+     * @param serverTimestamp the server timestamp
+     */
+    public void setServerTimestamp(long serverTimestamp) {
+        this.serverTimestamp = serverTimestamp;
+    }
+
+    /**
+     * Get the log index of a replicated entry, or the last index acknowledged by a follower.
+     *
+     * @return the log index
+     */
+    public long getIndex() {
+        return index;
+    }
+
+    /**
+     * Set the log index of a replicated entry, or the last index acknowledged by a follower.
+     *
+     * @param index the log index
+     */
+    public void setIndex(long index) {
+        this.index = index;
+    }
+
+    /**
+     * Get the epoch that identifies the log of the leader.
+     *
+     * @return the leader epoch
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Set the epoch that identifies the log of the leader.
+     *
+     * @param epoch the leader epoch
+     */
+    public void setEpoch(long epoch) {
+        this.epoch = epoch;
+    }
+
+    /**
+     * Get the entries of a batch message.
+     *
+     * @return the entries, or null when the message is not a batch
+     */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Set the entries of a batch message.
+     *
+     * @param entries the entries
+     */
+    public void setEntries(List<Entry> entries) {
+        this.entries = entries;
+    }
+
+    /**
+     * Get the session of the client, which owns the ephemeral keys written with it.
+     *
+     * @return the session ID, or 0 without a session
+     */
+    public long getSessionId() {
+        return sessionId;
+    }
+
+    /**
+     * Set the session of the client.
+     *
+     * @param sessionId the session ID, or 0 without a session
+     */
+    public void setSessionId(long sessionId) {
+        this.sessionId = sessionId;
+    }
+
+    /**
+     * Check if the message is the last chunk of a state transfer.
+     *
+     * @return true if it is the last chunk, false otherwise
+     */
+    public boolean isLastChunk() {
+        return lastChunk;
+    }
+
+    /**
+     * Set if the message is the last chunk of a state transfer.
+     *
+     * @param lastChunk true if it is the last chunk
+     */
+    public void setLastChunk(boolean lastChunk) {
+        this.lastChunk = lastChunk;
+    }
+}
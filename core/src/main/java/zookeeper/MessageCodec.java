@@ -0,0 +1,512 @@
+package zookeeper;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gson.JsonParseException;
+
+/**
+ * Encode and decode messages as length-prefixed frames.
+ *
+ * A frame is a 4-byte length followed by a 1-byte codec version and the payload. Version 1 is a
+ * compact binary layout, where enums go out as ordinals and absent fields are skipped by a presence
+ * bitmask. Version 0 carries the JSON representation, which is kept for debugging and is selected
+ * with the system property {@code zookeeper.codec=json}. The decoder accepts both versions.
+ *
+ * A codec reuses its buffer between messages, so it is not thread-safe: every connection keeps one
+ * codec for writing and another one for reading.
+ */
+public class MessageCodec {
+    public static final byte JSON_VERSION = 0;
+    public static final byte BINARY_VERSION = 1;
+    public static final int MAX_FRAME_SIZE = 256 * 1024 * 1024;
+
+    private static final int INITIAL_CAPACITY = 4096;
+    private static final int RETAINED_CAPACITY = 1024 * 1024;
+
+    private static final int HAS_OPERATION = 1;
+    private static final int HAS_RESPONSE = 1 << 1;
+    private static final int HAS_KEY = 1 << 2;
+    private static final int HAS_VALUE = 1 << 3;
+    private static final int HAS_CLIENT_IP = 1 << 4;
+    private static final int HAS_SERVER_IP = 1 << 5;
+    private static final int HAS_ENTRIES = 1 << 6;
+    private static final int LAST_CHUNK = 1 << 7;
+
+    private static final byte NULL_ENTRY = 0;
+    private static final byte VALUE_ENTRY = 1;
+    private static final byte DELETED_ENTRY = 2;
+
+    private static final Message.Operation[] OPERATIONS = Message.Operation.values();
+    private static final Message.ResponseType[] RESPONSE_TYPES = Message.ResponseType.values();
+
+    private final boolean json;
+    private final int maxFrameSize;
+    private ByteBuffer buffer;
+
+    /**
+     * Create a codec in the mode set by the {@code zookeeper.codec} system property.
+     */
+    public MessageCodec() {
+        this("json".equalsIgnoreCase(System.getProperty("zookeeper.codec", "binary")));
+    }
+
+    /**
+     * Create a codec.
+     *
+     * @param json true to write JSON frames, false to write binary frames
+     */
+    public MessageCodec(boolean json) {
+        this(json, MAX_FRAME_SIZE);
+    }
+
+    /**
+     * Create a codec with a smaller frame limit.
+     *
+     * @param json true to write JSON frames, false to write binary frames
+     * @param maxFrameSize the largest frame payload encoded or read, in bytes
+     */
+    MessageCodec(boolean json, int maxFrameSize) {
+        this.json = json;
+        this.maxFrameSize = maxFrameSize;
+        this.buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Write a message frame to the stream. The stream is not flushed.
+     *
+     * @param message the message to write
+     * @param writer the stream
+     * @throws IOException exception when writing to the stream or when the frame is too large
+     */
+    public void write(Message message, DataOutputStream writer) throws IOException {
+        ByteBuffer frame = encode(message);
+        writer.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+        release();
+    }
+
+    /**
+     * Read a message frame from the stream.
+     *
+     * @param reader the stream
+     * @return the message
+     * @throws IOException exception when reading from the stream or when the frame is invalid
+     */
+    public Message read(DataInputStream reader) throws IOException {
+        int length = reader.readInt();
+        checkLength(length);
+
+        if (length > maxFrameSize) {
+            throw new IOException("Invalid frame length " + length);
+        }
+
+        ensureCapacity(length);
+        buffer.clear().limit(length);
+        reader.readFully(buffer.array(), 0, length);
+
+        Message message = decode(buffer);
+        release();
+
+        return message;
+    }
+
+    /**
+     * Encode a message into a frame, including its length prefix.
+     *
+     * The returned buffer belongs to the codec and is overwritten by the next call. A frame larger
+     * than the limit the peer accepts is refused here, before it reaches the socket: the peer would
+     * drop the connection on reading its length.
+     *
+     * @param message the message to encode
+     * @return the frame, ready to be written
+     * @throws IOException exception when the frame is larger than {@link #MAX_FRAME_SIZE}
+     */
+    public ByteBuffer encode(Message message) throws IOException {
+        if (json) {
+            byte[] bytes = message.toJson().getBytes(StandardCharsets.UTF_8);
+            checkSize(1L + bytes.length);
+            ensureCapacity(5 + bytes.length);
+            buffer.clear();
+            buffer.putInt(1 + bytes.length).put(JSON_VERSION).put(bytes);
+        } else {
+            long size = 1L + binarySize(message);
+            checkSize(size);
+            ensureCapacity(4 + (int) size);
+            buffer.clear();
+            buffer.position(4);
+            buffer.put(BINARY_VERSION);
+            writeBinary(message);
+            buffer.putInt(0, buffer.position() - 4);
+        }
+
+        return buffer.flip();
+    }
+
+    /**
+     * Decode the payload of a frame, without its length prefix.
+     *
+     * @param frame the frame payload, from its position to its limit
+     * @return the message
+     * @throws IOException exception when the frame is invalid
+     */
+    public Message decode(ByteBuffer frame) throws IOException {
+        if (!frame.hasRemaining()) {
+            throw new IOException("Empty frame");
+        }
+
+        byte version = frame.get();
+
+        if (version == BINARY_VERSION) {
+            try {
+                return readBinary(frame);
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Truncated frame", e);
+            }
+        } else if (version == JSON_VERSION) {
+            String messageJson = new String(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining(), StandardCharsets.UTF_8);
+            frame.position(frame.limit());
+
+            try {
+                return Message.fromJson(messageJson);
+            } catch (JsonParseException e) {
+                throw new IOException("Invalid JSON frame", e);
+            }
+        }
+
+        throw new IOException("Unknown codec version " + version);
+    }
+
+    /**
+     * Check if a frame length is valid.
+     *
+     * @param length the frame length
+     * @throws IOException exception when the length is out of bounds
+     */
+    public static void checkLength(int length) throws IOException {
+        if (length <= 0 || length > MAX_FRAME_SIZE) {
+            throw new IOException("Invalid frame length " + length);
+        }
+    }
+
+    /**
+     * Drop the buffer once it has grown past a megabyte for an oversized frame, so a single large
+     * message does not pin its memory for the life of the connection. The frame returned by the last
+     * {@link #encode} must no longer be in use.
+     */
+    public void release() {
+        if (buffer.capacity() > RETAINED_CAPACITY) {
+            buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+        }
+    }
+
+    /**
+     * Check if a frame payload to encode fits in the frame limit.
+     *
+     * @param size the payload size, or an upper bound of it
+     * @throws IOException exception when the payload is too large
+     */
+    private void checkSize(long size) throws IOException {
+        if (size > maxFrameSize) {
+            throw new IOException("Frame of " + size + " bytes exceeds the limit of " + maxFrameSize + " bytes");
+        }
+    }
+
+    /**
+     * Compute an upper bound of the binary payload size of a message.
+     *
+     * @param message the message
+     * @return the size in bytes
+     */
+    private static long binarySize(Message message) {
+        long size = 8 + 1 + 2 + 4 + 4 + 8 + 8 + 8 + 8 + 8
+                + stringSize(message.getKey())
+                + stringSize(message.getValue())
+                + stringSize(message.getClientIP())
+                + stringSize(message.getServerIP());
+
+        if (message.getEntries() != null) {
+            size += 4;
+
+            for (Message.Entry entry : message.getEntries()) {
+                size += 1 + 8 + stringSize(entry.getKey()) + stringSize(entry.getValue());
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * Write the binary payload of a message into the buffer.
+     *
+     * @param message the message
+     */
+    private void writeBinary(Message message) {
+        int flags = 0;
+
+        if (message.getOperation() != null) {
+            flags |= HAS_OPERATION;
+        }
+        if (message.getResponse() != null) {
+            flags |= HAS_RESPONSE;
+        }
+        if (message.getKey() != null) {
+            flags |= HAS_KEY;
+        }
+        if (message.getValue() != null) {
+            flags |= HAS_VALUE;
+        }
+        if (message.getClientIP() != null) {
+            flags |= HAS_CLIENT_IP;
+        }
+        if (message.getServerIP() != null) {
+            flags |= HAS_SERVER_IP;
+        }
+        if (message.getEntries() != null) {
+            flags |= HAS_ENTRIES;
+        }
+        if (message.isLastChunk()) {
+            flags |= LAST_CHUNK;
+        }
+
+        buffer.putLong(message.getRequestId());
+        buffer.put((byte) flags);
+
+        if ((flags & HAS_OPERATION) != 0) {
+            buffer.put((byte) message.getOperation().ordinal());
+        }
+        if ((flags & HAS_RESPONSE) != 0) {
+            buffer.put((byte) message.getResponse().ordinal());
+        }
+        if ((flags & HAS_KEY) != 0) {
+            putString(message.getKey());
+        }
+        if ((flags & HAS_VALUE) != 0) {
+            putString(message.getValue());
+        }
+        if ((flags & HAS_CLIENT_IP) != 0) {
+            putString(message.getClientIP());
+        }
+        if ((flags & HAS_SERVER_IP) != 0) {
+            putString(message.getServerIP());
+        }
+
+        buffer.putInt(message.getClientPort());
+        buffer.putInt(message.getServerPort());
+        buffer.putLong(message.getClientTimestamp());
+        buffer.putLong(message.getServerTimestamp());
+        buffer.putLong(message.getIndex());
+        buffer.putLong(message.getEpoch());
+        buffer.putLong(message.getSessionId());
+
+        if ((flags & HAS_ENTRIES) != 0) {
+            buffer.putInt(message.getEntries().size());
+
+            for (Message.Entry entry : message.getEntries()) {
+                putString(entry.getKey());
+                buffer.putLong(entry.getTimestamp());
+
+                if (entry.isDeleted()) {
+                    buffer.put(DELETED_ENTRY);
+                } else if (entry.getValue() != null) {
+                    buffer.put(VALUE_ENTRY);
+                    putString(entry.getValue());
+                } else {
+                    buffer.put(NULL_ENTRY);
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the binary payload of a message.
+     *
+     * @param frame the frame payload, after the codec version
+     * @return the message
+     * @throws IOException exception when the payload is invalid
+     */
+    private static Message readBinary(ByteBuffer frame) throws IOException {
+        Message message = new Message();
+
+        message.setRequestId(frame.getLong());
+        int flags = frame.get() & 0xFF;
+
+        if ((flags & HAS_OPERATION) != 0) {
+            message.setOperation(getEnum(OPERATIONS, frame));
+        }
+        if ((flags & HAS_RESPONSE) != 0) {
+            message.setResponse(getEnum(RESPONSE_TYPES, frame));
+        }
+        if ((flags & HAS_KEY) != 0) {
+            message.setKey(getString(frame));
+        }
+        if ((flags & HAS_VALUE) != 0) {
+            message.setValue(getString(frame));
+        }
+        if ((flags & HAS_CLIENT_IP) != 0) {
+            message.setClientIP(getString(frame));
+        }
+        if ((flags & HAS_SERVER_IP) != 0) {
+            message.setServerIP(getString(frame));
+        }
+        message.setLastChunk((flags & LAST_CHUNK) != 0);
+
+        message.setClientPort(frame.getInt());
+        message.setServerPort(frame.getInt());
+        message.setClientTimestamp(frame.getLong());
+        message.setServerTimestamp(frame.getLong());
+        message.setIndex(frame.getLong());
+        message.setEpoch(frame.getLong());
+        message.setSessionId(frame.getLong());
+
+        if ((flags & HAS_ENTRIES) != 0) {
+            int count = frame.getInt();
+
+            if (count < 0 || count > frame.remaining()) {
+                throw new IOException("Invalid entry count " + count);
+            }
+
+            List<Message.Entry> entries = new ArrayList<>(count);
+
+            for (int i = 0; i < count; i++) {
+                String key = getString(frame);
+                long timestamp = frame.getLong();
+                byte kind = frame.get();
+
+                if (kind == DELETED_ENTRY) {
+                    entries.add(Message.Entry.deletion(key, timestamp));
+                } else if (kind == VALUE_ENTRY || kind == NULL_ENTRY) {
+                    entries.add(new Message.Entry(key, kind == VALUE_ENTRY ? getString(frame) : null, timestamp));
+                } else {
+                    throw new IOException("Invalid entry kind " + kind);
+                }
+            }
+
+            message.setEntries(entries);
+        }
+
+        return message;
+    }
+
+    /**
+     * Read an enum written as its ordinal.
+     *
+     * @param values the values of the enum
+     * @param frame the frame payload
+     * @param <T> the enum
+     * @return the value
+     * @throws IOException exception when the ordinal is out of range
+     */
+    private static <T extends Enum<T>> T getEnum(T[] values, ByteBuffer frame) throws IOException {
+        int ordinal = frame.get() & 0xFF;
+
+        if (ordinal >= values.length) {
+            throw new IOException("Invalid " + values[0].getDeclaringClass().getSimpleName() + " ordinal " + ordinal);
+        }
+
+        return values[ordinal];
+    }
+
+    /**
+     * Compute the encoded size of a string: its 4-byte length and its UTF-8 bytes.
+     *
+     * @param s the string
+     * @return the size in bytes
+     */
+    private static int stringSize(String s) {
+        if (s == null) {
+            return 0;
+        }
+
+        int size = 4;
+
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+
+            if (c < 0x80) {
+                size += 1;
+            } else if (c < 0x800) {
+                size += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                size += 4;
+                i++;
+            } else {
+                size += 3;
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * Write a string as its UTF-8 length and bytes, without intermediate arrays.
+     *
+     * @param s the string
+     */
+    private void putString(String s) {
+        int lengthPosition = buffer.position();
+        buffer.position(lengthPosition + 4);
+
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                buffer.put((byte) (0xF0 | (codePoint >> 18)));
+                buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                // unpaired surrogates are replaced, like String.getBytes does
+                buffer.put((byte) '?');
+            } else {
+                buffer.put((byte) (0xE0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+
+        buffer.putInt(lengthPosition, buffer.position() - lengthPosition - 4);
+    }
+
+    /**
+     * Read a string written by {@link #putString(String)}.
+     *
+     * @param frame the frame payload
+     * @return the string
+     * @throws IOException exception when the length is invalid
+     */
+    private static String getString(ByteBuffer frame) throws IOException {
+        int length = frame.getInt();
+
+        if (length < 0 || length > frame.remaining()) {
+            throw new IOException("Invalid string length " + length);
+        }
+
+        String s = new String(frame.array(), frame.arrayOffset() + frame.position(), length, StandardCharsets.UTF_8);
+        frame.position(frame.position() + length);
+
+        return s;
+    }
+
+    /**
+     * Grow the buffer when it is smaller than the specified capacity.
+     *
+     * @param capacity the required capacity
+     */
+    private void ensureCapacity(int capacity) {
+        if (buffer.capacity() < capacity) {
+            buffer = ByteBuffer.allocate(Math.max(capacity, buffer.capacity() * 2));
+        }
+    }
+}
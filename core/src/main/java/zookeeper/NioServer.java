@@ -0,0 +1,575 @@
+package zookeeper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Non-blocking server that accepts, reads and writes on a few selector threads.
+ *
+ * Decoded requests are handed to a bounded worker executor. When the executor rejects a request,
+ * the connection stops reading until a worker becomes free, so a burst of requests is pushed back
+ * to the sender instead of growing the number of threads or queued requests.
+ *
+ * Responses are pushed back the same way: once a connection has more than a few megabytes of
+ * responses its client is not reading, the server stops reading its requests until the output
+ * drains to half of that, so a client that never reads cannot grow the server memory.
+ *
+ * A failure to accept a connection, such as running out of file descriptors, is logged and the
+ * server stops accepting for a short while, so the selector thread keeps serving the open
+ * connections instead of dying or spinning on the failure.
+ */
+public class NioServer implements Closeable {
+    private static final long STALLED_RETRY_MILLIS = 10;
+    private static final long ACCEPT_BACKOFF_MILLIS = 100;
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_PENDING_OUTPUT = 4 * 1024 * 1024;
+
+    private final int port;
+    private final ExecutorService workers;
+    private final Function<Message, CompletableFuture<Message>> handler;
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private ServerSocketChannel serverChannel;
+    private volatile boolean closed;
+
+    /**
+     * Create the server.
+     *
+     * @param port the port to listen on
+     * @param ioThreads the number of selector threads
+     * @param workers the bounded executor that handles requests
+     * @param handler the request handler, returning the future of the response, or of null when
+     *                there is none; a response that is not ready yet is written when it completes
+     */
+    public NioServer(int port, int ioThreads, ExecutorService workers, Function<Message, CompletableFuture<Message>> handler) {
+        this.port = port;
+        this.workers = workers;
+        this.handler = handler;
+        this.loops = new EventLoop[Math.max(1, ioThreads)];
+    }
+
+    /**
+     * Bind the port and start the selector threads.
+     *
+     * @throws IOException exception when binding the port
+     */
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+        }
+
+        serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+
+        for (int i = 0; i < loops.length; i++) {
+            Thread thread = new Thread(loops[i], "nio-" + port + "-" + i);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stop the selector threads and close every connection.
+     */
+    @Override
+    public void close() {
+        closed = true;
+
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        for (EventLoop loop : loops) {
+            if (loop != null) {
+                loop.selector.wakeup();
+            }
+        }
+    }
+
+    /**
+     * A selector thread and the connections registered on it.
+     */
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+        private final Queue<NioConnection> ready = new ConcurrentLinkedQueue<>();
+        private final List<NioConnection> stalled = new ArrayList<>();
+        private SelectionKey acceptKey;
+        private long acceptPausedUntil;
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        public void run() {
+            try {
+                while (!closed) {
+                    if (!stalled.isEmpty()) {
+                        selector.select(STALLED_RETRY_MILLIS);
+                    } else if (acceptKey != null) {
+                        selector.select(Math.max(1, acceptPausedUntil - System.currentTimeMillis()));
+                    } else {
+                        selector.select();
+                    }
+
+                    resumeAccept();
+                    registerAccepted();
+                    processReady();
+                    retryStalled();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+
+                        if (!key.isValid()) {
+                            continue;
+                        }
+
+                        if (key.isAcceptable()) {
+                            accept(key);
+                        } else {
+                            NioConnection connection = (NioConnection) key.attachment();
+
+                            if (key.isReadable()) {
+                                connection.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flush();
+                            }
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof NioConnection) {
+                        ((NioConnection) key.attachment()).close();
+                    }
+                }
+
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        /**
+         * Accept the pending connections and spread them over the selector threads.
+         *
+         * When accepting fails, the failure is logged and accepting is paused for a short while,
+         * since retrying right away would fail the same way.
+         *
+         * @param key the key of the server channel
+         */
+        private void accept(SelectionKey key) {
+            while (true) {
+                SocketChannel channel;
+
+                try {
+                    channel = serverChannel.accept();
+                } catch (IOException e) {
+                    if (closed) {
+                        return;
+                    }
+
+                    System.out.printf("Falha ao aceitar conexão na porta %d: %s, nova tentativa em %d ms%n", port, e.getMessage(),
+                            ACCEPT_BACKOFF_MILLIS);
+                    key.interestOps(0);
+                    acceptKey = key;
+                    acceptPausedUntil = System.currentTimeMillis() + ACCEPT_BACKOFF_MILLIS;
+                    break;
+                }
+
+                if (channel == null) {
+                    break;
+                }
+
+                try {
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                } catch (IOException e) {
+                    System.out.printf("Falha ao configurar conexão na porta %d: %s%n", port, e.getMessage());
+                    closeQuietly(channel);
+                    continue;
+                }
+
+                EventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+                loop.accepted.add(channel);
+
+                if (loop != this) {
+                    loop.selector.wakeup();
+                }
+            }
+
+            registerAccepted();
+        }
+
+        /**
+         * Accept connections again once the pause after a failure is over.
+         */
+        private void resumeAccept() {
+            if (acceptKey == null || System.currentTimeMillis() < acceptPausedUntil) {
+                return;
+            }
+
+            if (acceptKey.isValid()) {
+                acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+            }
+            acceptKey = null;
+        }
+
+        /**
+         * Close a channel that could not be set up.
+         *
+         * @param channel the channel
+         */
+        private void closeQuietly(SocketChannel channel) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // the channel is dropped anyway
+            }
+        }
+
+        /**
+         * Register the connections accepted for this selector thread.
+         */
+        private void registerAccepted() {
+            SocketChannel channel;
+
+            while ((channel = accepted.poll()) != null) {
+                try {
+                    NioConnection connection = new NioConnection(this, channel);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        /**
+         * Resume the connections that have responses to write.
+         */
+        private void processReady() {
+            NioConnection connection;
+
+            while ((connection = ready.poll()) != null) {
+                connection.resume();
+            }
+        }
+
+        /**
+         * Submit again the requests rejected by the workers.
+         */
+        private void retryStalled() {
+            if (stalled.isEmpty()) {
+                return;
+            }
+
+            List<NioConnection> connections = new ArrayList<>(stalled);
+            stalled.clear();
+
+            for (NioConnection connection : connections) {
+                connection.retry();
+            }
+        }
+
+        /**
+         * Ask this selector thread to resume a connection.
+         *
+         * @param connection the connection
+         */
+        private void schedule(NioConnection connection) {
+            ready.add(connection);
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * The state of one client or server connection.
+     */
+    private class NioConnection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final MessageCodec decoder = new MessageCodec();
+        private final MessageCodec encoder = new MessageCodec();
+        private SelectionKey key;
+        private ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private ByteBuffer writeBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private boolean writeScheduled;
+        private boolean outputPaused;
+        private Message stalledRequest;
+
+        NioConnection(EventLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+        }
+
+        /**
+         * Read the available bytes and dispatch the complete frames.
+         */
+        void read() {
+            try {
+                if (!readBuffer.hasRemaining()) {
+                    readBuffer = grow(readBuffer, readBuffer.capacity() * 2);
+                }
+
+                if (channel.read(readBuffer) < 0) {
+                    close();
+                    return;
+                }
+
+                dispatchFrames();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /**
+         * Decode the complete frames of the read buffer and submit them to the workers.
+         *
+         * @throws IOException exception when a frame is invalid
+         */
+        private void dispatchFrames() throws IOException {
+            int required = 0;
+            readBuffer.flip();
+
+            try {
+                while (stalledRequest == null && readBuffer.remaining() >= 4) {
+                    int length = readBuffer.getInt(readBuffer.position());
+                    MessageCodec.checkLength(length);
+
+                    if (readBuffer.remaining() < 4 + length) {
+                        required = 4 + length;
+                        break;
+                    }
+
+                    int end = readBuffer.position() + 4 + length;
+                    ByteBuffer frame = readBuffer.duplicate();
+                    frame.position(readBuffer.position() + 4).limit(end);
+                    readBuffer.position(end);
+
+                    submit(decoder.decode(frame));
+                }
+            } finally {
+                readBuffer.compact();
+            }
+
+            if (readBuffer.capacity() < required) {
+                readBuffer = grow(readBuffer, required);
+            }
+        }
+
+        /**
+         * Submit a request to the workers, or stop reading when they are all busy.
+         *
+         * @param message the request
+         */
+        private void submit(Message message) {
+            try {
+                workers.execute(() -> handle(message));
+            } catch (RejectedExecutionException e) {
+                stalledRequest = message;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                loop.stalled.add(this);
+            }
+        }
+
+        /**
+         * Submit again the request rejected by the workers and resume reading when it is accepted.
+         */
+        void retry() {
+            if (!key.isValid()) {
+                return;
+            }
+
+            Message message = stalledRequest;
+            stalledRequest = null;
+            submit(message);
+
+            if (stalledRequest == null) {
+                try {
+                    synchronized (this) {
+                        if (!outputPaused) {
+                            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                        }
+                    }
+                    dispatchFrames();
+                } catch (IOException e) {
+                    close();
+                }
+            }
+        }
+
+        /**
+         * Handle a request on a worker thread and queue its response.
+         *
+         * @param message the request
+         */
+        private void handle(Message message) {
+            try {
+                handler.apply(message).whenComplete((response, error) -> {
+                    if (error != null) {
+                        error.printStackTrace();
+                    } else if (response != null) {
+                        response.setRequestId(message.getRequestId());
+                        write(response);
+                    }
+                });
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * Append a response to the write buffer and ask the selector thread to flush it.
+         *
+         * @param response the response
+         */
+        private void write(Message response) {
+            boolean schedule;
+
+            synchronized (this) {
+                ByteBuffer frame;
+
+                try {
+                    frame = encoder.encode(response);
+                } catch (IOException e) {
+                    System.out.printf("Resposta %s da requisição %d descartada: %s%n", response.getResponse(), response.getRequestId(), e.getMessage());
+                    return;
+                }
+
+                if (writeBuffer.remaining() < frame.remaining()) {
+                    writeBuffer = grow(writeBuffer, writeBuffer.position() + frame.remaining());
+                }
+                writeBuffer.put(frame);
+                encoder.release();
+
+                // past the limit the selector thread is woken up even when a flush is already scheduled, to stop reading
+                schedule = !writeScheduled || (!outputPaused && writeBuffer.position() > MAX_PENDING_OUTPUT);
+                writeScheduled = true;
+            }
+
+            if (schedule) {
+                loop.schedule(this);
+            }
+        }
+
+        /**
+         * Enable writing when responses are waiting, and stop reading when too many are.
+         */
+        void resume() {
+            if (!key.isValid()) {
+                return;
+            }
+
+            synchronized (this) {
+                if (writeScheduled) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                }
+
+                checkPendingOutput();
+            }
+        }
+
+        /**
+         * Write the buffered responses that the socket accepts.
+         */
+        synchronized void flush() {
+            try {
+                writeBuffer.flip();
+                channel.write(writeBuffer);
+                writeBuffer.compact();
+
+                if (writeBuffer.position() == 0) {
+                    writeScheduled = false;
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+
+                    if (writeBuffer.capacity() > BUFFER_SIZE) {
+                        writeBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+                    }
+                }
+
+                checkPendingOutput();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /**
+         * Stop reading requests while the client leaves more than {@link #MAX_PENDING_OUTPUT} bytes
+         * of responses unread, and read again once half of them were written. The caller holds the
+         * connection lock.
+         */
+        private void checkPendingOutput() {
+            int pending = writeBuffer.position();
+
+            if (!outputPaused && pending > MAX_PENDING_OUTPUT) {
+                outputPaused = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            } else if (outputPaused && pending <= MAX_PENDING_OUTPUT / 2) {
+                outputPaused = false;
+
+                // a request rejected by the workers keeps the connection from reading on its own
+                if (stalledRequest == null) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                }
+            }
+        }
+
+        /**
+         * Close the connection.
+         */
+        void close() {
+            key.cancel();
+
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * Copy a buffer into a larger one.
+         *
+         * @param buffer the buffer in write mode
+         * @param capacity the minimum capacity
+         * @return the new buffer in write mode
+         */
+        private ByteBuffer grow(ByteBuffer buffer, int capacity) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(capacity, buffer.capacity() * 2));
+            buffer.flip();
+            grown.put(buffer);
+            return grown;
+        }
+    }
+}
@@ -0,0 +1,656 @@
+package zookeeper;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Storage engine that keeps the keys and values outside the Java heap.
+ *
+ * The keyspace is split in segments, each one guarded by a read-write lock. A segment stores its
+ * records in direct {@link ByteBuffer} arenas and finds them through an open-addressing index of
+ * primitive arrays, so a key costs no Java object besides its 12 bytes of index slot. A record is
+ * laid out as {@code [long timestamp][int key length][int value length][key][value]}, with the
+ * strings in UTF-8 and a value length of -1 for a null value.
+ *
+ * A new value that is not longer than the previous one is written in place; otherwise the record is
+ * appended and the old one becomes garbage, which is reclaimed by compacting the arenas of the
+ * segment when it needs memory. The total size of the arenas is bounded.
+ */
+public class OffHeapStorageEngine implements StorageEngine {
+    private static final int SEGMENTS = 16;
+    private static final int MIN_ARENA_SIZE = 64 * 1024;
+    private static final int MAX_ARENA_SIZE = 4 * 1024 * 1024;
+    private static final int RECORD_HEADER = 8 + 4 + 4;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final long EMPTY = -1;
+    private static final long DELETED = -2;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final long maxBytes;
+    private final AtomicLong arenaBytes = new AtomicLong();
+
+    /**
+     * Create an empty engine.
+     *
+     * @param maxBytes the maximum memory of the arenas
+     */
+    public OffHeapStorageEngine(long maxBytes) {
+        this.maxBytes = maxBytes;
+
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * Get the version of a key.
+     *
+     * @param key the key
+     * @return the version, or null when the key is not stored
+     */
+    @Override
+    public VersionedValue get(String key) {
+        int hash = hash(key);
+        return segmentFor(hash).get(key.getBytes(StandardCharsets.UTF_8), hash);
+    }
+
+    /**
+     * Store a version of a key, unless a newer version is already stored.
+     *
+     * @param key the key
+     * @param value the version
+     */
+    @Override
+    public void put(String key, VersionedValue value) {
+        int hash = hash(key);
+        segmentFor(hash).put(key.getBytes(StandardCharsets.UTF_8), hash, value, true);
+    }
+
+    /**
+     * Store a version of a key, whatever the stored version.
+     *
+     * @param key the key
+     * @param value the version
+     */
+    @Override
+    public void replace(String key, VersionedValue value) {
+        int hash = hash(key);
+        segmentFor(hash).put(key.getBytes(StandardCharsets.UTF_8), hash, value, false);
+    }
+
+    /**
+     * Remove a key.
+     *
+     * @param key the key
+     */
+    @Override
+    public void remove(String key) {
+        int hash = hash(key);
+        segmentFor(hash).remove(key.getBytes(StandardCharsets.UTF_8), hash);
+    }
+
+    /**
+     * Get the number of keys stored.
+     *
+     * @return the number of keys
+     */
+    @Override
+    public long size() {
+        long size = 0;
+
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+
+        return size;
+    }
+
+    /**
+     * Iterate over the entries, one segment at a time. The entries of a segment are copied when
+     * the iterator reaches it.
+     *
+     * @return the iterator of the entries
+     */
+    @Override
+    public Iterator<Message.Entry> entries() {
+        return new Iterator<Message.Entry>() {
+            private int next;
+            private Iterator<Message.Entry> current = Collections.emptyIterator();
+
+            public boolean hasNext() {
+                while (!current.hasNext() && next < SEGMENTS) {
+                    current = segments[next++].entries().iterator();
+                }
+                return current.hasNext();
+            }
+
+            public Message.Entry next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return current.next();
+            }
+        };
+    }
+
+    /**
+     * Get the memory used by the arenas and the indexes.
+     *
+     * @return the memory used in bytes
+     */
+    @Override
+    public long getBytesUsed() {
+        long bytes = arenaBytes.get();
+
+        for (Segment segment : segments) {
+            bytes += segment.indexBytes();
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Release the arenas. The memory is freed once the buffers are collected.
+     */
+    @Override
+    public void close() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * Hash a key, spreading the bits so both the segment and the slot bits are mixed.
+     *
+     * @param key the key
+     * @return the hash
+     */
+    private static int hash(String key) {
+        int hash = key.hashCode() * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Get the segment of a hash.
+     *
+     * @param hash the key hash
+     * @return the segment
+     */
+    private Segment segmentFor(int hash) {
+        return segments[(hash >>> 28) & (SEGMENTS - 1)];
+    }
+
+    /**
+     * Get the size of a record.
+     *
+     * @param keyLength the key length in bytes
+     * @param valueLength the value length in bytes, -1 for null
+     * @return the record size
+     */
+    private static int recordSize(int keyLength, int valueLength) {
+        return RECORD_HEADER + keyLength + Math.max(0, valueLength);
+    }
+
+    /**
+     * Part of the keyspace, with its own index, arenas and lock.
+     *
+     * An address is the arena number in the high 32 bits and the offset of the record in the low
+     * 32 bits.
+     */
+    private class Segment {
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private final List<ByteBuffer> arenas = new ArrayList<>();
+        private long[] addresses = newAddresses(INITIAL_CAPACITY);
+        private int[] hashes = new int[INITIAL_CAPACITY];
+        private int size;
+        private int used;
+        private long allocatedBytes;
+        private long liveBytes;
+
+        /**
+         * Get the version of a key.
+         *
+         * @param key the key in UTF-8
+         * @param hash the key hash
+         * @return the version, or null when the key is not stored
+         */
+        VersionedValue get(byte[] key, int hash) {
+            lock.readLock().lock();
+            try {
+                int slot = probe(key, hash);
+                return slot >= 0 ? readValue(addresses[slot]) : null;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        /**
+         * Store a version of a key.
+         *
+         * @param key the key in UTF-8
+         * @param hash the key hash
+         * @param value the version
+         * @param lastWriterWins true to keep a newer stored version
+         */
+        void put(byte[] key, int hash, VersionedValue value, boolean lastWriterWins) {
+            byte[] bytes = value.getValue() == null ? null : value.getValue().getBytes(StandardCharsets.UTF_8);
+            int valueLength = bytes == null ? -1 : bytes.length;
+
+            lock.writeLock().lock();
+            try {
+                int slot = probe(key, hash);
+
+                if (slot >= 0) {
+                    long address = addresses[slot];
+                    ByteBuffer arena = arenas.get(arena(address));
+                    int offset = offset(address);
+
+                    if (lastWriterWins && value.getTimestamp() < arena.getLong(offset)) {
+                        return;
+                    }
+
+                    int oldValueLength = arena.getInt(offset + 12);
+
+                    if (valueLength <= oldValueLength) {
+                        writeRecord(arena, offset, key, value.getTimestamp(), bytes);
+                        // a null value (length -1) takes no bytes, like an empty one
+                        liveBytes -= recordSize(key.length, oldValueLength) - recordSize(key.length, valueLength);
+                        return;
+                    }
+
+                    long newAddress = append(key, value.getTimestamp(), bytes);
+                    liveBytes -= recordSize(key.length, oldValueLength);
+                    addresses[slot] = newAddress;
+                    return;
+                }
+
+                if (used + 1 > addresses.length * 3 / 4) {
+                    rehash();
+                    slot = probe(key, hash);
+                }
+
+                slot = -slot - 1;
+                long newAddress = append(key, value.getTimestamp(), bytes);
+
+                if (addresses[slot] == EMPTY) {
+                    used++;
+                }
+
+                hashes[slot] = hash;
+                addresses[slot] = newAddress;
+                size++;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        /**
+         * Remove a key.
+         *
+         * @param key the key in UTF-8
+         * @param hash the key hash
+         */
+        void remove(byte[] key, int hash) {
+            lock.writeLock().lock();
+            try {
+                int slot = probe(key, hash);
+
+                if (slot >= 0) {
+                    ByteBuffer arena = arenas.get(arena(addresses[slot]));
+                    liveBytes -= recordSize(key.length, arena.getInt(offset(addresses[slot]) + 12));
+                    addresses[slot] = DELETED;
+                    size--;
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        /**
+         * Get the number of keys of the segment.
+         *
+         * @return the number of keys
+         */
+        int size() {
+            lock.readLock().lock();
+            try {
+                return size;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        /**
+         * Copy the entries of the segment.
+         *
+         * @return the entries
+         */
+        List<Message.Entry> entries() {
+            lock.readLock().lock();
+            try {
+                List<Message.Entry> entries = new ArrayList<>(size);
+
+                for (long address : addresses) {
+                    if (address >= 0) {
+                        VersionedValue value = readValue(address);
+                        entries.add(new Message.Entry(readKey(address), value.getValue(), value.getTimestamp()));
+                    }
+                }
+
+                return entries;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        /**
+         * Get the memory used by the index of the segment.
+         *
+         * @return the memory used in bytes
+         */
+        long indexBytes() {
+            lock.readLock().lock();
+            try {
+                return addresses.length * 12L;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        /**
+         * Drop every key and arena of the segment.
+         */
+        void clear() {
+            lock.writeLock().lock();
+            try {
+                arenaBytes.addAndGet(-allocatedBytes);
+                arenas.clear();
+                addresses = newAddresses(INITIAL_CAPACITY);
+                hashes = new int[INITIAL_CAPACITY];
+                size = 0;
+                used = 0;
+                allocatedBytes = 0;
+                liveBytes = 0;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        /**
+         * Find the slot of a key.
+         *
+         * @param key the key in UTF-8
+         * @param hash the key hash
+         * @return the slot of the key, or -(slot + 1) of the slot where it can be inserted
+         */
+        private int probe(byte[] key, int hash) {
+            int mask = addresses.length - 1;
+            int insertion = -1;
+
+            for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+                long address = addresses[slot];
+
+                if (address == EMPTY) {
+                    return -(insertion >= 0 ? insertion : slot) - 1;
+                }
+                if (address == DELETED) {
+                    if (insertion < 0) {
+                        insertion = slot;
+                    }
+                } else if (hashes[slot] == hash && keyEquals(address, key)) {
+                    return slot;
+                }
+            }
+        }
+
+        /**
+         * Rebuild the index without the deleted slots, doubling its capacity when it is more than
+         * half full.
+         */
+        private void rehash() {
+            long[] oldAddresses = addresses;
+            int[] oldHashes = hashes;
+            int capacity = size + 1 > oldAddresses.length / 2 ? oldAddresses.length * 2 : oldAddresses.length;
+
+            addresses = newAddresses(capacity);
+            hashes = new int[capacity];
+            used = 0;
+
+            for (int i = 0; i < oldAddresses.length; i++) {
+                if (oldAddresses[i] >= 0) {
+                    int slot = oldHashes[i] & (capacity - 1);
+
+                    while (addresses[slot] != EMPTY) {
+                        slot = (slot + 1) & (capacity - 1);
+                    }
+
+                    addresses[slot] = oldAddresses[i];
+                    hashes[slot] = oldHashes[i];
+                    used++;
+                }
+            }
+        }
+
+        /**
+         * Append a record to the last arena, compacting the segment or adding an arena when it is
+         * full.
+         *
+         * @param key the key in UTF-8
+         * @param timestamp the timestamp
+         * @param value the value in UTF-8, or null
+         * @return the address of the record
+         */
+        private long append(byte[] key, long timestamp, byte[] value) {
+            int size = recordSize(key.length, value == null ? -1 : value.length);
+            ByteBuffer arena = arenas.isEmpty() ? null : arenas.get(arenas.size() - 1);
+
+            if (arena == null || arena.remaining() < size) {
+                // arenas grow with the segment, so small segments do not hold large buffers
+                int arenaSize = (int) Math.max(size, Math.min(MAX_ARENA_SIZE, Math.max(MIN_ARENA_SIZE, allocatedBytes)));
+                long garbageBytes = allocatedBytes - liveBytes;
+
+                // reclaim the garbage before asking for more memory
+                if (garbageBytes >= Math.max(MIN_ARENA_SIZE, liveBytes / 2) || arenaBytes.get() + arenaSize > maxBytes) {
+                    compact();
+                    arena = arenas.isEmpty() ? null : arenas.get(arenas.size() - 1);
+                }
+
+                if (arena == null || arena.remaining() < size) {
+
+                    if (arenaBytes.addAndGet(arenaSize) > maxBytes) {
+                        arenaBytes.addAndGet(-arenaSize);
+                        throw new IllegalStateException("Off-heap storage is full: " + maxBytes + " bytes");
+                    }
+
+                    arena = ByteBuffer.allocateDirect(arenaSize);
+                    arenas.add(arena);
+                    allocatedBytes += arenaSize;
+                }
+            }
+
+            int offset = arena.position();
+            writeRecord(arena, offset, key, timestamp, value);
+            arena.position(offset + size);
+            liveBytes += size;
+
+            return ((long) (arenas.size() - 1) << 32) | offset;
+        }
+
+        /**
+         * Move the live records to the start of the arenas, in address order, and release the
+         * arenas left empty.
+         *
+         * A record never moves past its current address, so the arenas are compacted in place,
+         * without extra memory.
+         */
+        private void compact() {
+            List<Integer> slots = new ArrayList<>(size);
+
+            for (int slot = 0; slot < addresses.length; slot++) {
+                if (addresses[slot] >= 0) {
+                    slots.add(slot);
+                }
+            }
+
+            long[] slotAddresses = addresses;
+            slots.sort((a, b) -> Long.compare(slotAddresses[a], slotAddresses[b]));
+
+            byte[] buffer = new byte[256];
+            int targetArena = 0;
+            int targetOffset = 0;
+
+            for (int slot : slots) {
+                long address = addresses[slot];
+                ByteBuffer source = arenas.get(arena(address));
+                int offset = offset(address);
+                int size = recordSize(source.getInt(offset + 8), source.getInt(offset + 12));
+
+                if (targetOffset + size > arenas.get(targetArena).capacity()) {
+                    arenas.get(targetArena).position(targetOffset);
+                    targetArena++;
+                    targetOffset = 0;
+                }
+
+                if (buffer.length < size) {
+                    buffer = new byte[size];
+                }
+
+                source.get(offset, buffer, 0, size);
+                arenas.get(targetArena).put(targetOffset, buffer, 0, size);
+                addresses[slot] = ((long) targetArena << 32) | targetOffset;
+                targetOffset += size;
+            }
+
+            if (!arenas.isEmpty()) {
+                arenas.get(targetArena).position(targetOffset);
+            }
+
+            while (arenas.size() > targetArena + 1) {
+                ByteBuffer released = arenas.remove(arenas.size() - 1);
+                allocatedBytes -= released.capacity();
+                arenaBytes.addAndGet(-released.capacity());
+            }
+        }
+
+        /**
+         * Write a record at an offset of an arena.
+         *
+         * @param arena the arena
+         * @param offset the record offset
+         * @param key the key in UTF-8
+         * @param timestamp the timestamp
+         * @param value the value in UTF-8, or null
+         */
+        private void writeRecord(ByteBuffer arena, int offset, byte[] key, long timestamp, byte[] value) {
+            arena.putLong(offset, timestamp);
+            arena.putInt(offset + 8, key.length);
+            arena.putInt(offset + 12, value == null ? -1 : value.length);
+            arena.put(offset + RECORD_HEADER, key);
+
+            if (value != null) {
+                arena.put(offset + RECORD_HEADER + key.length, value);
+            }
+        }
+
+        /**
+         * Compare the key of a record with a key.
+         *
+         * @param address the record address
+         * @param key the key in UTF-8
+         * @return true if the keys are equal, false otherwise
+         */
+        private boolean keyEquals(long address, byte[] key) {
+            ByteBuffer arena = arenas.get(arena(address));
+            int offset = offset(address);
+
+            if (arena.getInt(offset + 8) != key.length) {
+                return false;
+            }
+
+            for (int i = 0; i < key.length; i++) {
+                if (arena.get(offset + RECORD_HEADER + i) != key[i]) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        /**
+         * Read the key of a record.
+         *
+         * @param address the record address
+         * @return the key
+         */
+        private String readKey(long address) {
+            ByteBuffer arena = arenas.get(arena(address));
+            int offset = offset(address);
+            byte[] key = new byte[arena.getInt(offset + 8)];
+
+            arena.get(offset + RECORD_HEADER, key);
+            return new String(key, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Read the version of a record.
+         *
+         * @param address the record address
+         * @return the version
+         */
+        private VersionedValue readValue(long address) {
+            ByteBuffer arena = arenas.get(arena(address));
+            int offset = offset(address);
+            int keyLength = arena.getInt(offset + 8);
+            int valueLength = arena.getInt(offset + 12);
+            String value = null;
+
+            if (valueLength >= 0) {
+                byte[] bytes = new byte[valueLength];
+                arena.get(offset + RECORD_HEADER + keyLength, bytes);
+                value = new String(bytes, StandardCharsets.UTF_8);
+            }
+
+            return new VersionedValue(value, arena.getLong(offset));
+        }
+    }
+
+    /**
+     * Create an index array with every slot empty.
+     *
+     * @param capacity the number of slots, a power of two
+     * @return the array
+     */
+    private static long[] newAddresses(int capacity) {
+        long[] addresses = new long[capacity];
+        Arrays.fill(addresses, EMPTY);
+        return addresses;
+    }
+
+    /**
+     * Get the arena number of an address.
+     *
+     * @param address the record address
+     * @return the arena number
+     */
+    private static int arena(long address) {
+        return (int) (address >>> 32);
+    }
+
+    /**
+     * Get the offset of an address in its arena.
+     *
+     * @param address the record address
+     * @return the offset
+     */
+    private static int offset(long address) {
+        return (int) address;
+    }
+}
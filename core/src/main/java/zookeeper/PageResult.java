@@ -0,0 +1,73 @@
+package zookeeper;
+
+import java.util.List;
+
+/**
+ * One page of a LIST_CHILDREN or SCAN of the client: the paths or keys of the page, and the cursor
+ * that asks for the next one, or TRY_OTHER_SERVER_OR_LATER when the server cannot serve ranges.
+ */
+public class PageResult {
+    private final Message.ResponseType response;
+    private final List<Message.Entry> entries;
+    private final String cursor;
+    private final String server;
+
+    /**
+     * Create the page from the answer of a server.
+     *
+     * @param response the GET_OK with the page, or TRY_OTHER_SERVER_OR_LATER
+     * @param server the server that answered, as IP:port
+     */
+    public PageResult(Message response, String server) {
+        this.response = response.getResponse();
+        this.entries = response.getEntries() != null ? response.getEntries() : List.of();
+        this.cursor = response.getValue();
+        this.server = server;
+    }
+
+    /**
+     * Check if the server answered with a page.
+     *
+     * @return true if the page was read, false otherwise
+     */
+    public boolean isOk() {
+        return response == Message.ResponseType.GET_OK;
+    }
+
+    /**
+     * Get the answer of the server.
+     *
+     * @return GET_OK or TRY_OTHER_SERVER_OR_LATER
+     */
+    public Message.ResponseType getResponse() {
+        return response;
+    }
+
+    /**
+     * Get the entries of the page. A LIST_CHILDREN page only holds the paths of the children, a
+     * SCAN page the keys with their value and version.
+     *
+     * @return the entries, in order
+     */
+    public List<Message.Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Get the cursor of the next page.
+     *
+     * @return the cursor, or null when this is the last page
+     */
+    public String getCursor() {
+        return cursor;
+    }
+
+    /**
+     * Get the server that answered.
+     *
+     * @return the server as IP:port
+     */
+    public String getServer() {
+        return server;
+    }
+}
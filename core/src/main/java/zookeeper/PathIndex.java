@@ -0,0 +1,180 @@
+package zookeeper;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Sorted index of the keys of a server, for the path-structured namespace.
+ *
+ * Keys are paths such as {@code /services/foo/host}, and the children of a path are the keys right
+ * below it. Listing the children or scanning a prefix seeks to the first key of the range and walks
+ * the sorted keys from there, so the cost follows the size of the result and not the keyspace.
+ *
+ * An engine that keeps its keys in order, such as {@link LsmStorageEngine}, serves the ranges
+ * itself and the index holds nothing. For the hash-based engines, the index keeps a copy of the
+ * keys in a {@link ConcurrentSkipListSet} on the heap.
+ */
+public class PathIndex {
+    private static final char SEPARATOR = '/';
+
+    private final ConcurrentSkipListSet<String> keys;
+    private final StorageEngine engine;
+
+    /**
+     * Create an index holding a sorted copy of the keys on the heap.
+     */
+    public PathIndex() {
+        this.keys = new ConcurrentSkipListSet<>();
+        this.engine = null;
+    }
+
+    /**
+     * Create an index reading the ranges from an engine that keeps its keys in order.
+     *
+     * @param engine the engine
+     * @throws IllegalArgumentException when the engine does not keep its keys in order
+     */
+    public PathIndex(StorageEngine engine) {
+        if (!engine.isSorted()) {
+            throw new IllegalArgumentException("The storage engine does not keep its keys in order");
+        }
+
+        this.keys = null;
+        this.engine = engine;
+    }
+
+    /**
+     * Add a key to the index. Does nothing when the engine serves the ranges.
+     *
+     * @param key the key
+     */
+    public void add(String key) {
+        if (keys != null) {
+            keys.add(key);
+        }
+    }
+
+    /**
+     * Remove a key from the index. Does nothing when the engine serves the ranges.
+     *
+     * @param key the key
+     */
+    public void remove(String key) {
+        if (keys != null) {
+            keys.remove(key);
+        }
+    }
+
+    /**
+     * Get the parent path of a key.
+     *
+     * @param key the key
+     * @return the parent path, or null when the key is at the root
+     */
+    public static String getParent(String key) {
+        int separator = key.lastIndexOf(SEPARATOR);
+        return separator <= 0 ? null : key.substring(0, separator);
+    }
+
+    /**
+     * Get a page of the children of a path, the keys right below it. A child is listed once, even
+     * when only keys deeper below it are stored.
+     *
+     * @param path the path
+     * @param after the last child of the previous page, or null for the first page
+     * @param limit the maximum number of children of the page
+     * @return the full paths of the children, in the order of the first key of each one, which
+     *         puts a child listed for its subtree only after its siblings such as child + '!'
+     */
+    public List<String> listChildren(String path, String after, int limit) {
+        String prefix = path.endsWith("/") ? path : path + SEPARATOR;
+        List<String> children = new ArrayList<>(Math.min(limit, 1024));
+        // a child that is not stored was listed for its subtree, which the next page skips
+        String from = after == null ? prefix : contains(after) ? after + '\0' : after + (char) (SEPARATOR + 1);
+        String key;
+
+        while (children.size() < limit && (key = ceiling(from)) != null && key.startsWith(prefix)) {
+            int separator = key.indexOf(SEPARATOR, prefix.length());
+
+            if (separator < 0) {
+                children.add(key);
+                from = key + '\0';
+                continue;
+            }
+
+            String child = key.substring(0, separator);
+
+            // a sibling such as child + '!' comes between a stored child and its subtree, so the
+            // subtree of a stored child is found after the child was listed
+            if (!contains(child)) {
+                children.add(child);
+            }
+
+            // skip the subtree of the child: its keys are below child + '/', and '0' follows '/'
+            from = child + (char) (SEPARATOR + 1);
+        }
+
+        return children;
+    }
+
+    /**
+     * Get a page of the keys that start with a prefix.
+     *
+     * @param prefix the prefix
+     * @param after the last key of the previous page, or null for the first page
+     * @param limit the maximum number of keys of the page
+     * @return the keys of the page, in order
+     */
+    public List<String> scan(String prefix, String after, int limit) {
+        List<String> page = new ArrayList<>(Math.min(limit, 1024));
+        Iterator<String> tail = keysFrom(after == null ? prefix : after + '\0');
+
+        while (page.size() < limit && tail.hasNext()) {
+            String key = tail.next();
+
+            if (!key.startsWith(prefix)) {
+                break;
+            }
+            page.add(key);
+        }
+
+        return page;
+    }
+
+    /**
+     * Iterate over the keys in order, from a key on.
+     *
+     * @param from the first key, included when it is stored
+     * @return the iterator of the keys
+     */
+    private Iterator<String> keysFrom(String from) {
+        return keys != null ? keys.tailSet(from, true).iterator() : engine.keys(from);
+    }
+
+    /**
+     * Get the first key not lower than a key.
+     *
+     * @param from the key
+     * @return the first key, or null when there is none
+     */
+    private String ceiling(String from) {
+        if (keys != null) {
+            return keys.ceiling(from);
+        }
+
+        Iterator<String> tail = engine.keys(from);
+        return tail.hasNext() ? tail.next() : null;
+    }
+
+    /**
+     * Check if a key is stored.
+     *
+     * @param key the key
+     * @return true if the key is stored, false otherwise
+     */
+    private boolean contains(String key) {
+        return keys != null ? keys.contains(key) : engine.get(key) != null;
+    }
+}
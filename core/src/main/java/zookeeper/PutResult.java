@@ -0,0 +1,93 @@
+package zookeeper;
+
+import java.util.List;
+
+/**
+ * The outcome of a write of the client: PUT_OK with the version assigned by the leader, or the
+ * rejection of a conditional write with the current value and version of its key.
+ */
+public class PutResult {
+    private final Message.ResponseType response;
+    private final String key;
+    private final String value;
+    private final long version;
+    private final List<Message.Entry> entries;
+    private final String server;
+
+    /**
+     * Create the result of a write from the answer of the leader.
+     *
+     * @param response the PUT_OK or the rejection
+     */
+    public PutResult(Message response) {
+        this.response = response.getResponse();
+        this.key = response.getKey();
+        this.value = response.getValue();
+        this.version = response.getServerTimestamp();
+        this.entries = response.getEntries();
+        this.server = response.getServerIP() + ":" + response.getServerPort();
+    }
+
+    /**
+     * Check if the write was applied.
+     *
+     * @return true if the leader answered PUT_OK, false if it rejected the write
+     */
+    public boolean isOk() {
+        return response == Message.ResponseType.PUT_OK;
+    }
+
+    /**
+     * Get the answer of the leader.
+     *
+     * @return PUT_OK, NODE_EXISTS, NO_NODE, CAS_FAILED or SESSION_EXPIRED
+     */
+    public Message.ResponseType getResponse() {
+        return response;
+    }
+
+    /**
+     * Get the key written, or null for a MULTI_PUT.
+     *
+     * @return the key
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Get the value written, null for a DELETE, or the current value when the write was rejected.
+     *
+     * @return the value
+     */
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * Get the version assigned to the write, or the current version when the write was rejected.
+     *
+     * @return the version, or 0 when the key does not exist
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Get the keys written by a MULTI_PUT, with their version.
+     *
+     * @return the entries, or null for a single-key write
+     */
+    public List<Message.Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Get the server that answered, the leader.
+     *
+     * @return the server as IP:port
+     */
+    public String getServer() {
+        return server;
+    }
+}
@@ -0,0 +1,130 @@
+package zookeeper;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded client cache of the values read, evicting the least recently used key when it is full.
+ *
+ * Each entry expires after a TTL, and an entry is only served when its timestamp is at least the
+ * last timestamp the client saw for the key, so the cache never returns a value older than one the
+ * client already read or wrote.
+ *
+ * The keys are spread over segments, each with its own lock and its own share of the capacity,
+ * so threads reading different keys do not wait for each other. The eviction is least recently
+ * used within a segment.
+ */
+public class ReadCache {
+    private static final int SEGMENTS = 16;
+
+    private final long ttlNanos;
+    private final List<LinkedHashMap<String, CachedValue>> segments;
+
+    /**
+     * Cached version of a key and the time it expires.
+     */
+    private static class CachedValue {
+        final VersionedValue value;
+        final long expiresAt;
+
+        CachedValue(VersionedValue value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Create an empty cache.
+     *
+     * @param maxEntries the maximum number of keys
+     * @param ttlMillis the time an entry is served after it was stored, in milliseconds
+     */
+    public ReadCache(int maxEntries, long ttlMillis) {
+        int count = maxEntries >= SEGMENTS ? SEGMENTS : 1;
+        int segmentEntries = (maxEntries + count - 1) / count;
+
+        this.ttlNanos = ttlMillis * 1_000_000L;
+        this.segments = new ArrayList<>(count);
+
+        for (int i = 0; i < count; i++) {
+            segments.add(new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CachedValue> eldest) {
+                    return size() > segmentEntries;
+                }
+            });
+        }
+    }
+
+    /**
+     * Get the cached version of a key, if it is still valid.
+     *
+     * @param key the key
+     * @param minTimestamp the last timestamp the client saw for the key
+     * @return the version, or null when the key is not cached, expired or older than the timestamp
+     */
+    public VersionedValue get(String key, long minTimestamp) {
+        LinkedHashMap<String, CachedValue> entries = segmentOf(key);
+
+        synchronized (entries) {
+            CachedValue cached = entries.get(key);
+
+            if (cached == null) {
+                return null;
+            }
+            if (System.nanoTime() - cached.expiresAt >= 0) {
+                entries.remove(key);
+                return null;
+            }
+            if (cached.value.getTimestamp() < minTimestamp) {
+                return null;
+            }
+
+            return cached.value;
+        }
+    }
+
+    /**
+     * Cache a version of a key, unless a newer version is already cached.
+     *
+     * @param key the key
+     * @param value the version
+     */
+    public void put(String key, VersionedValue value) {
+        LinkedHashMap<String, CachedValue> entries = segmentOf(key);
+
+        synchronized (entries) {
+            CachedValue cached = entries.get(key);
+
+            if (cached == null || value.getTimestamp() >= cached.value.getTimestamp()) {
+                entries.put(key, new CachedValue(value, System.nanoTime() + ttlNanos));
+            }
+        }
+    }
+
+    /**
+     * Remove a key from the cache.
+     *
+     * @param key the key
+     */
+    public void invalidate(String key) {
+        LinkedHashMap<String, CachedValue> entries = segmentOf(key);
+
+        synchronized (entries) {
+            entries.remove(key);
+        }
+    }
+
+    /**
+     * Get the segment holding a key.
+     *
+     * @param key the key
+     * @return the segment
+     */
+    private LinkedHashMap<String, CachedValue> segmentOf(String key) {
+        int hash = key.hashCode();
+        return segments.get((hash ^ (hash >>> 16)) & (segments.size() - 1));
+    }
+}
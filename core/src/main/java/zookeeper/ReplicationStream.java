@@ -0,0 +1,354 @@
+package zookeeper;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.LongConsumer;
+
+/**
+ * Ordered stream of REPLICATION messages from the leader to one follower.
+ *
+ * Entries are sent as soon as they are queued, without waiting for the acknowledgement of the
+ * previous ones. The follower acknowledges cumulatively with the last index it applied. Entries are
+ * kept until they are acknowledged, up to a maximum backlog, so they are sent again when the
+ * connection is reopened.
+ *
+ * When the connection is opened, the follower reports the epoch and index of the last entry it
+ * applied. If the stream still holds every entry after it, the missing entries are sent again;
+ * otherwise, the state of the leader is transferred in chunks before the stream resumes. The chunks
+ * are read from the store of the leader as they are sent, so the transfer never copies the whole
+ * state in memory.
+ */
+public class ReplicationStream implements Runnable {
+    private static final long RECONNECT_DELAY_MILLIS = 1000;
+    private static final long SYNC_TIMEOUT_MILLIS = 5000;
+    private static final int MAX_BATCH = 256;
+    private static final int TRANSFER_CHUNK = 4096;
+    private static final long DELAY_MILLIS = 20000;
+
+    /**
+     * Key whose replication is delayed, to test a follower that lags behind; only set by tests with
+     * {@code -Dzookeeper.test.replicationDelayKey=<key>}, and off by default.
+     */
+    private static final String DELAYED_KEY = System.getProperty("zookeeper.test.replicationDelayKey");
+
+    private final String followerIP;
+    private final int followerPort;
+    private final long epoch;
+    private final int maxBacklog;
+    private final StateSource stateSource;
+    private final LongConsumer ackListener;
+    private final LinkedBlockingQueue<Message> queue = new LinkedBlockingQueue<>();
+    private final ArrayDeque<Message> unacked = new ArrayDeque<>();
+    private volatile long ackedIndex;
+    private long floorIndex;
+    private volatile boolean closed;
+    private Connection connection;
+
+    /**
+     * State of the leader, transferred to a follower that is too far behind.
+     */
+    public interface StateSource {
+        /**
+         * Get the index of the last entry applied by the leader. It is read before the entries, so
+         * every entry up to it is included.
+         *
+         * @return the index of the state
+         */
+        long getIndex();
+
+        /**
+         * Iterate over the entries of the store of the leader. The iteration is weakly consistent:
+         * the entries written after the index may be included, and the follower gets them again from
+         * the stream.
+         *
+         * @return the iterator of the entries
+         */
+        Iterator<Message.Entry> getEntries();
+    }
+
+    /**
+     * Create the stream of a follower.
+     *
+     * @param followerIP the follower IP address
+     * @param followerPort the follower port
+     * @param epoch the epoch of the leader log
+     * @param startIndex the index of the last entry in the log before the stream was created
+     * @param maxBacklog the maximum number of unacknowledged entries kept for the follower
+     * @param stateSource the leader state, transferred when the follower is too far behind
+     * @param ackListener the listener called with the index acknowledged by the follower
+     */
+    public ReplicationStream(String followerIP, int followerPort, long epoch, long startIndex, int maxBacklog,
+                             StateSource stateSource, LongConsumer ackListener) {
+        this.followerIP = followerIP;
+        this.followerPort = followerPort;
+        this.epoch = epoch;
+        this.floorIndex = startIndex;
+        this.maxBacklog = maxBacklog;
+        this.stateSource = stateSource;
+        this.ackListener = ackListener;
+    }
+
+    /**
+     * Queue an entry to be sent to the follower.
+     *
+     * @param entry the REPLICATION message
+     */
+    public void append(Message entry) {
+        queue.add(entry);
+    }
+
+    /**
+     * Get the last index acknowledged by the follower.
+     *
+     * @return the acknowledged index
+     */
+    public long getAckedIndex() {
+        return ackedIndex;
+    }
+
+    /**
+     * Get the follower address.
+     *
+     * @return the address as IP:port
+     */
+    public String getAddress() {
+        return followerIP + ":" + followerPort;
+    }
+
+    /**
+     * Stop the stream and close its connection.
+     */
+    public void close() {
+        closed = true;
+
+        if (connection != null) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Send the queued entries, in batches, until the stream is closed.
+     *
+     * While the follower is unreachable, the stream keeps trying to reconnect, even without new
+     * entries, so a follower that comes back catches up without waiting for the next write.
+     */
+    public void run() {
+        List<Message> batch = new ArrayList<>(MAX_BATCH);
+
+        try {
+            while (!closed) {
+                boolean connected = connection != null && !connection.isClosed();
+                Message first = queue.poll(RECONNECT_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, connected ? MAX_BATCH - 1 : Integer.MAX_VALUE);
+                }
+
+                if (DELAYED_KEY != null) {
+                    delayTestKey(batch);
+                }
+
+                if (!batch.isEmpty() || !connected) {
+                    send(batch);
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Delay a batch that writes the test key, simulating a high replication latency.
+     *
+     * @param batch the entries
+     * @throws InterruptedException exception when the stream is interrupted while waiting
+     */
+    private void delayTestKey(List<Message> batch) throws InterruptedException {
+        for (Message message : batch) {
+            for (Message.Entry entry : message.getEntries()) {
+                if (entry.getKey().equals(DELAYED_KEY)) {
+                    Thread.sleep(DELAY_MILLIS);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Send a batch of entries, reopening the connection when it is closed.
+     *
+     * When the connection cannot be opened, the entries stay in the backlog and the stream waits
+     * before the next attempt.
+     *
+     * @param batch the entries
+     * @throws InterruptedException exception when the stream is interrupted while waiting to reconnect
+     */
+    private void send(List<Message> batch) throws InterruptedException {
+        addToBacklog(batch);
+
+        try {
+            if (connection == null || connection.isClosed()) {
+                connect();
+            } else {
+                connection.sendAll(batch);
+            }
+        } catch (IOException e) {
+            System.out.printf("Falha na replicação para %s: %s%n", getAddress(), e.getMessage());
+            Thread.sleep(RECONNECT_DELAY_MILLIS);
+        }
+    }
+
+    /**
+     * Open the connection and bring the follower up to date.
+     *
+     * The follower answers the SYNC message with the epoch and index of the last entry it applied.
+     * When it applied entries of this leader that are still in the backlog, the following ones are
+     * sent again; otherwise, the leader state is transferred first.
+     *
+     * @throws IOException exception when connecting to the follower or when it does not answer
+     * @throws InterruptedException exception when the stream is interrupted while waiting
+     */
+    private void connect() throws IOException, InterruptedException {
+        connection = new Connection(followerIP, followerPort);
+        connection.setListener(this::onMessage);
+
+        Message sync = new Message();
+        sync.setOperation(Message.Operation.SYNC);
+        sync.setEpoch(epoch);
+
+        try {
+            Message response = connection.request(sync).get(SYNC_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+
+            if (response.getEpoch() == epoch && response.getIndex() >= getFloorIndex()) {
+                acknowledge(response.getIndex());
+            } else {
+                transferState();
+            }
+        } catch (ExecutionException | TimeoutException e) {
+            connection.close();
+            throw new IOException("SYNC with " + getAddress() + " failed", e);
+        }
+
+        connection.sendAll(getBacklog());
+    }
+
+    /**
+     * Send the leader state to the follower in chunks, each one acknowledged before the next. The
+     * chunks are numbered from 0, so the follower knows when a transfer starts over.
+     *
+     * The state is taken at a log index, and the entries after it are still in the backlog, so the
+     * stream resumes from there once the follower installed the state.
+     *
+     * @throws IOException exception when sending a chunk
+     * @throws InterruptedException exception when the stream is interrupted while waiting
+     * @throws ExecutionException exception when the follower fails to receive a chunk
+     * @throws TimeoutException exception when the follower does not acknowledge a chunk
+     */
+    private void transferState() throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        long index = stateSource.getIndex();
+        Iterator<Message.Entry> entries = stateSource.getEntries();
+        long chunkNumber = 0;
+        long count = 0;
+
+        System.out.printf("Transferindo estado para %s até o índice %d%n", getAddress(), index);
+
+        do {
+            List<Message.Entry> chunk = new ArrayList<>(TRANSFER_CHUNK);
+
+            while (chunk.size() < TRANSFER_CHUNK && entries.hasNext()) {
+                chunk.add(entries.next());
+            }
+            count += chunk.size();
+
+            Message message = new Message();
+            message.setOperation(Message.Operation.SNAPSHOT);
+            message.setEpoch(epoch);
+            message.setIndex(index);
+            message.setServerTimestamp(chunkNumber++);
+            message.setEntries(chunk);
+            message.setLastChunk(!entries.hasNext());
+
+            connection.request(message).get(SYNC_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } while (entries.hasNext());
+
+        System.out.printf("Estado transferido para %s: %d keys até o índice %d%n", getAddress(), count, index);
+        acknowledge(index);
+    }
+
+    /**
+     * Add entries to the backlog, dropping the oldest ones beyond the maximum backlog. A follower
+     * that misses a dropped entry receives a state transfer when it reconnects.
+     *
+     * @param batch the entries
+     */
+    private synchronized void addToBacklog(List<Message> batch) {
+        while (!unacked.isEmpty() && unacked.size() + batch.size() > maxBacklog) {
+            floorIndex = unacked.pollFirst().getIndex();
+        }
+
+        unacked.addAll(batch);
+    }
+
+    /**
+     * Get a copy of the entries not acknowledged yet.
+     *
+     * @return the entries, in index order
+     */
+    private synchronized List<Message> getBacklog() {
+        return new ArrayList<>(unacked);
+    }
+
+    /**
+     * Get the index of the last entry no longer held by the stream.
+     *
+     * @return the floor index
+     */
+    private synchronized long getFloorIndex() {
+        return floorIndex;
+    }
+
+    /**
+     * Handle a message sent by the follower.
+     *
+     * @param message the message
+     */
+    private void onMessage(Message message) {
+        if (message.getResponse() == Message.ResponseType.REPLICATION_OK) {
+            acknowledge(message.getIndex());
+        }
+    }
+
+    /**
+     * Record a cumulative acknowledgement and drop the acknowledged entries.
+     *
+     * The listener is called after the stream lock is released, since it commits entries whose
+     * futures run the callers' code.
+     *
+     * @param index the last index applied by the follower
+     */
+    private void acknowledge(long index) {
+        synchronized (this) {
+            if (index <= ackedIndex) {
+                return;
+            }
+            ackedIndex = index;
+            floorIndex = Math.max(floorIndex, index);
+
+            Message entry;
+            while ((entry = unacked.peekFirst()) != null && entry.getIndex() <= index) {
+                unacked.pollFirst();
+            }
+        }
+
+        ackListener.accept(index);
+    }
+}
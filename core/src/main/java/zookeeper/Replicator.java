@@ -0,0 +1,162 @@
+package zookeeper;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Replicate the leader entries to the followers through one {@link ReplicationStream} each.
+ *
+ * Every entry gets the next log index and is pipelined on all streams. An entry is committed once
+ * the followers required by the {@link AckPolicy} acknowledged it, and the futures returned by
+ * {@link #replicate(Message)} are completed in index order. The other followers keep receiving
+ * the entries on their streams and catch up on their own.
+ *
+ * Followers can be added and removed while entries are replicated. A new follower gets a stream
+ * starting at the current index, so it receives the leader state before the next entries.
+ */
+public class Replicator {
+    private final long epoch;
+    private final AckPolicy ackPolicy;
+    private final ExecutorService executor;
+    private final int maxBacklog;
+    private final ReplicationStream.StateSource stateSource;
+    private final List<ReplicationStream> streams = new CopyOnWriteArrayList<>();
+    private final ConcurrentSkipListMap<Long, CompletableFuture<Long>> pending = new ConcurrentSkipListMap<>();
+    private final Object commitLock = new Object();
+    private long lastIndex;
+    private volatile long commitIndex;
+
+    /**
+     * Create the replicator and start the stream of each follower.
+     *
+     * @param followers the followers, as {IP, port} pairs
+     * @param epoch the epoch of the log of this leader, its election term
+     * @param ackPolicy the acknowledgements needed to commit an entry
+     * @param executor the executor that runs the streams
+     * @param lastIndex the index of the last entry already in the log
+     * @param maxBacklog the maximum number of unacknowledged entries kept per follower
+     * @param stateSource the leader state, transferred to followers that are too far behind
+     */
+    public Replicator(List<String[]> followers, long epoch, AckPolicy ackPolicy, ExecutorService executor, long lastIndex,
+                      int maxBacklog, ReplicationStream.StateSource stateSource) {
+        this.epoch = epoch;
+        this.ackPolicy = ackPolicy;
+        this.executor = executor;
+        this.maxBacklog = maxBacklog;
+        this.stateSource = stateSource;
+        this.lastIndex = lastIndex;
+        this.commitIndex = lastIndex;
+
+        setFollowers(followers);
+    }
+
+    /**
+     * Change the followers: start a stream for each new follower and stop the streams of the
+     * followers that are not in the list anymore.
+     *
+     * @param followers the followers, as {IP, port} pairs
+     */
+    public synchronized void setFollowers(List<String[]> followers) {
+        Set<String> addresses = new HashSet<>();
+
+        for (String[] follower : followers) {
+            addresses.add(follower[0] + ":" + follower[1]);
+        }
+
+        for (ReplicationStream stream : streams) {
+            if (!addresses.remove(stream.getAddress())) {
+                streams.remove(stream);
+                stream.close();
+            }
+        }
+
+        for (String address : addresses) {
+            String[] follower = address.split(":");
+            ReplicationStream stream = new ReplicationStream(follower[0], Integer.parseInt(follower[1]), epoch, lastIndex,
+                    maxBacklog, stateSource, index -> commit());
+            streams.add(stream);
+            executor.execute(stream);
+        }
+
+        // fewer followers may be enough to commit the pending entries
+        commit();
+    }
+
+    /**
+     * Assign the next log index to an entry and queue it on every follower stream.
+     *
+     * @param entry the REPLICATION message
+     * @return the future completed with the entry index once it is committed
+     */
+    public synchronized CompletableFuture<Long> replicate(Message entry) {
+        long index = ++lastIndex;
+        entry.setIndex(index);
+        entry.setEpoch(epoch);
+
+        CompletableFuture<Long> future = new CompletableFuture<>();
+        pending.put(index, future);
+
+        for (ReplicationStream stream : streams) {
+            stream.append(entry);
+        }
+
+        if (ackPolicy.requiredAcks(streams.size()) == 0) {
+            commit();
+        }
+
+        return future;
+    }
+
+    /**
+     * Get the index of the last committed entry.
+     *
+     * @return the commit index
+     */
+    public long getCommitIndex() {
+        return commitIndex;
+    }
+
+    /**
+     * Stop every follower stream.
+     */
+    public void close() {
+        streams.forEach(ReplicationStream::close);
+    }
+
+    /**
+     * Complete the entries acknowledged by enough followers, in index order.
+     */
+    private void commit() {
+        synchronized (commitLock) {
+            ReplicationStream[] current = streams.toArray(new ReplicationStream[0]);
+            int required = ackPolicy.requiredAcks(current.length);
+            long index = Long.MAX_VALUE;
+
+            if (required > 0) {
+                long[] ackedIndexes = new long[current.length];
+
+                for (int i = 0; i < ackedIndexes.length; i++) {
+                    ackedIndexes[i] = current[i].getAckedIndex();
+                }
+
+                // the entries up to the required-th highest acknowledgement are on enough followers
+                Arrays.sort(ackedIndexes);
+                index = ackedIndexes[ackedIndexes.length - required];
+            }
+
+            Map.Entry<Long, CompletableFuture<Long>> entry;
+            while ((entry = pending.firstEntry()) != null && entry.getKey() <= index) {
+                pending.remove(entry.getKey());
+                commitIndex = entry.getKey();
+                entry.getValue().complete(entry.getKey());
+            }
+        }
+    }
+}
@@ -0,0 +1,2121 @@
+package zookeeper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class Server {
+    private static final int MAX_EXPIRED_SESSIONS = 10000;
+    /** Key of the replicated membership, written by ADD_SERVER and REMOVE_SERVER only. */
+    public static final String MEMBERSHIP_KEY = "/zookeeper/config";
+    private static final String STORAGE_NAME = "lsm";
+    private static final long STORE_CLOSE_DELAY_MILLIS = 5000;
+
+    private String serverIP;
+    private int serverPort;
+    private volatile String leader;
+    private volatile boolean leading;
+    private Election election;
+    private volatile StorageEngine keyValueStore;
+    private String storageName = STORAGE_NAME;
+    private volatile boolean ready;
+    private ServerConfig config;
+    private ConnectionPool connections;
+    private WatchManager watches;
+    private volatile PathIndex pathIndex;
+    private final HybridClock clock = new HybridClock();
+    private volatile SessionManager sessions;
+    private final ConcurrentHashMap<Long, CompletableFuture<Boolean>> openingSessions = new ConcurrentHashMap<>();
+    private final Set<Long> touchedSessions = ConcurrentHashMap.newKeySet();
+    private final Set<Long> expiredSessions = Collections.newSetFromMap(Collections.synchronizedMap(new LinkedHashMap<Long, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+            return size() > MAX_EXPIRED_SESSIONS;
+        }
+    }));
+    private ExecutorService requestExecutor;
+    private ExecutorService connectionExecutor;
+    private ExecutorService replicationExecutor;
+    private NioServer nioServer;
+    private volatile Replicator replicator;
+    private volatile WriteBatcher writeBatcher;
+    private ScheduledExecutorService scheduler;
+    private final Object replicationLock = new Object();
+    private final TreeMap<Long, Message> outOfOrderReplications = new TreeMap<>();
+    private long leaderEpoch;
+    private long appliedIndex;
+    private Path dataDirectory;
+    private WriteAheadLog wal;
+    private final AtomicLong recordsSinceSnapshot = new AtomicLong();
+    private final AtomicBoolean snapshotRunning = new AtomicBoolean();
+    private final Object snapshotLock = new Object();
+    private StorageEngine transferStore;
+    private long transferEpoch;
+    private long transferIndex;
+    private long transferChunk;
+    private ServerSocket serverSocket;
+
+    /**
+     * Thread the handle client requests.
+     *
+     * It runs on the connection executor, so it is a platform or a virtual thread depending on the
+     * configured thread mode.
+     *
+     * The connection is kept open, so a node can send many requests over it. Each request is
+     * handled on the request executor and the responses are written back with the request ID,
+     * in the order they are ready.
+     */
+    public class ServerServiceThread implements Runnable {
+        private Socket node = null;
+
+        public ServerServiceThread(Socket node) {
+            this.node = node;
+        }
+
+        public void run() {
+            try {
+                node.setTcpNoDelay(true);
+
+                OutputStream os = new BufferedOutputStream(node.getOutputStream());
+                DataOutputStream writer = new DataOutputStream(os);
+
+                InputStream is = new BufferedInputStream(node.getInputStream());
+                DataInputStream reader = new DataInputStream(is);
+
+                MessageCodec encoder = new MessageCodec();
+                MessageCodec decoder = new MessageCodec();
+
+                while (true) {
+                    Message message = decoder.read(reader);
+
+                    requestExecutor.submit(() -> respond(message, writer, encoder));
+                }
+            } catch (EOFException e) {
+                // the node closed the connection
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                try {
+                    node.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Create an instance of Server.
+     *
+     * @param server the server info
+     * @param leader the leader info, or null to elect the leader
+     */
+    public Server(String server, String leader) {
+        this.serverIP = server.split(":")[0];
+        this.serverPort = Integer.parseInt(server.split(":")[1]);
+        this.config = new ServerConfig();
+        this.keyValueStore = createStorageEngine();
+        this.pathIndex = createPathIndex(keyValueStore);
+        this.connections = new ConnectionPool(config.getConnectTimeoutMillis());
+        this.watches = new WatchManager(connections, serverIP, serverPort);
+
+        if (config.getIoMode().equals("blocking")) {
+            this.requestExecutor = ThreadMode.newTaskExecutor(config.getThreadMode(), "request");
+            this.connectionExecutor = ThreadMode.newTaskExecutor(config.getThreadMode(), "connection");
+        } else {
+            int workerThreads = config.getWorkerThreads();
+            this.requestExecutor = new ThreadPoolExecutor(workerThreads, workerThreads, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(config.getWorkerQueueSize()));
+        }
+
+        this.replicationExecutor = ThreadMode.newTaskExecutor(config.getThreadMode(), "replication");
+
+        if (!config.getDataDir().equals("none")) {
+            recover(Paths.get(config.getDataDir(), serverIP + "_" + serverPort));
+        }
+
+        AckPolicy ackPolicy = config.getAckPolicy();
+        int followers = getFollowers().size();
+
+        if (ackPolicy.exceeds(followers)) {
+            throw new IllegalArgumentException("Ack policy " + ackPolicy + " needs more followers than the " + followers
+                    + " of the cluster");
+        }
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        int metricsInterval = config.getMetricsIntervalSeconds();
+
+        if (metricsInterval > 0) {
+            scheduler.scheduleAtFixedRate(this::reportMetrics, metricsInterval, metricsInterval, TimeUnit.SECONDS);
+        }
+
+        long sessionTick = config.getSessionTickMillis();
+        scheduler.scheduleAtFixedRate(this::tickSessions, sessionTick, sessionTick, TimeUnit.MILLISECONDS);
+
+        this.election = new Election(serverIP + ":" + serverPort, new Election.Node() {
+            @Override
+            public List<String> getMembers() {
+                return Server.this.getMembers();
+            }
+
+            @Override
+            public long[] getLogPosition() {
+                synchronized (replicationLock) {
+                    return new long[]{leaderEpoch, appliedIndex};
+                }
+            }
+
+            @Override
+            public void becomeLeader(long term) {
+                Server.this.becomeLeader(term);
+            }
+
+            @Override
+            public void becomeFollower(String leader) {
+                Server.this.becomeFollower(leader);
+            }
+        }, connections, config, dataDirectory, leaderEpoch);
+        election.start(leader);
+    }
+
+    /**
+     * Start leading the cluster: replicate to the other members in a log whose epoch is the term
+     * won, and accept writes and sessions.
+     *
+     * @param term the term won
+     */
+    private void becomeLeader(long term) {
+        long lastIndex;
+
+        synchronized (replicationLock) {
+            lastIndex = appliedIndex;
+            outOfOrderReplications.clear();
+        }
+
+        List<String[]> followers = getFollowers();
+        warnAckPolicy(followers.size());
+
+        Replicator newReplicator = new Replicator(followers, term, config.getAckPolicy(), replicationExecutor, lastIndex,
+                config.getReplicationMaxBacklog(), getState());
+        WriteBatcher newWriteBatcher = new WriteBatcher(config.getBatchWindowMillis(), config.getBatchMaxSize(),
+                config.getBatchMaxQueued(), this::replicate, this::rejectWrite);
+
+        // the sessions of the previous leaders are in the store, and their clients get a whole
+        // timeout to reach this leader
+        SessionManager newSessions = new SessionManager(config.getSessionTickMillis(), config.getSessionMinTimeoutMillis(),
+                config.getSessionMaxTimeoutMillis(), newWriteBatcher::submit);
+        int recovered = newSessions.recover(readSessionRecords());
+
+        if (recovered > 0) {
+            System.out.printf("%d sessões recuperadas do estado replicado%n", recovered);
+        }
+
+        this.sessions = newSessions;
+
+        Thread batcherThread = new Thread(newWriteBatcher, "write-batcher");
+        batcherThread.setDaemon(true);
+        batcherThread.start();
+
+        this.replicator = newReplicator;
+        this.writeBatcher = newWriteBatcher;
+        this.leader = serverIP + ":" + serverPort;
+        this.leading = true;
+        this.ready = true;
+
+        System.out.printf("Liderando o cluster no termo %d a partir do índice %d%n", term, lastIndex);
+    }
+
+    /**
+     * Read the sessions and the owners of the ephemeral keys from the store, with the path index
+     * when there is one and by a walk over every key otherwise.
+     *
+     * @return the iterator of the session entries
+     */
+    private Iterator<Message.Entry> readSessionRecords() {
+        PathIndex index = pathIndex;
+
+        if (index == null) {
+            return keyValueStore.entries();
+        }
+
+        List<Message.Entry> records = new ArrayList<>();
+        int limit = config.getScanMaxPageSize();
+        List<String> page;
+        String after = null;
+
+        do {
+            page = index.scan(SessionManager.PREFIX, after, limit);
+
+            for (String key : page) {
+                VersionedValue entry = keyValueStore.get(key);
+
+                if (entry != null) {
+                    records.add(new Message.Entry(key, entry.getValue(), entry.getTimestamp()));
+                }
+            }
+
+            after = page.isEmpty() ? null : page.get(page.size() - 1);
+        } while (page.size() == limit);
+
+        return records.iterator();
+    }
+
+    /**
+     * Follow a leader, giving up the leadership if this server was leading. A former leader stops
+     * serving reads until the new leader brought it up to date, since it may hold writes that were
+     * never committed.
+     *
+     * @param newLeader the leader as IP:port, or null while no leader is known
+     */
+    private void becomeFollower(String newLeader) {
+        if (leading) {
+            leading = false;
+            ready = false;
+            writeBatcher.close();
+            replicator.close();
+            System.out.println("Deixando a liderança");
+        }
+
+        this.leader = newLeader;
+    }
+
+    /**
+     * Expire the sessions on the leader, or forward the heartbeats received to the leader on a
+     * follower. Called on every session tick.
+     */
+    private void tickSessions() {
+        if (isLeader()) {
+            sessions.expireSessions();
+        } else {
+            forwardSessionTouches();
+        }
+    }
+
+    /**
+     * Get the connection to the current leader.
+     *
+     * @return the connection
+     * @throws IOException exception when no leader is known or when connecting to it
+     */
+    private Connection getLeaderConnection() throws IOException {
+        String current = leader;
+
+        if (current == null) {
+            throw new IOException("No leader elected");
+        }
+
+        String[] address = current.split(":");
+        return connections.get(address[0], Integer.parseInt(address[1]));
+    }
+
+    /**
+     * Handle a request received on a node connection.
+     *
+     * @param message the request
+     * @return the response, or null when the operation has no response
+     */
+    private CompletableFuture<Message> handleRequest(Message message) {
+        if (message.getOperation() == Message.Operation.REPLICATION) {
+            // answered once its entries are synced to the log, without holding a worker meanwhile
+            return handleReplication(message);
+        }
+        if (message.getOperation() == Message.Operation.SESSION_OPEN) {
+            // answered once the session is committed
+            return handleSessionOpen(message);
+        }
+
+        return CompletableFuture.completedFuture(handleOperation(message));
+    }
+
+    /**
+     * Handle a request other than REPLICATION.
+     *
+     * @param message the request
+     * @return the response, or null when there is none
+     */
+    private Message handleOperation(Message message) {
+        if (message.getOperation() == Message.Operation.PUT || message.getOperation() == Message.Operation.MULTI_PUT
+                || message.getOperation() == Message.Operation.CREATE || message.getOperation() == Message.Operation.CAS
+                || message.getOperation() == Message.Operation.DELETE || message.getOperation() == Message.Operation.ADD_SERVER
+                || message.getOperation() == Message.Operation.REMOVE_SERVER) {
+            handlePut(message);
+        } else if (message.getOperation() == Message.Operation.GET) {
+            return handleGet(message);
+        } else if (message.getOperation() == Message.Operation.SYNC) {
+            return handleSync(message);
+        } else if (message.getOperation() == Message.Operation.SNAPSHOT) {
+            return handleSnapshot(message);
+        } else if (message.getOperation() == Message.Operation.WATCH) {
+            return handleWatch(message);
+        } else if (message.getOperation() == Message.Operation.MULTI_GET) {
+            return handleMultiGet(message);
+        } else if (message.getOperation() == Message.Operation.LIST_CHILDREN) {
+            return handleListChildren(message);
+        } else if (message.getOperation() == Message.Operation.SCAN) {
+            return handleScan(message);
+        } else if (message.getOperation() == Message.Operation.HEARTBEAT) {
+            return handleHeartbeat(message);
+        } else if (message.getOperation() == Message.Operation.SESSION_CLOSE) {
+            return handleSessionClose(message);
+        } else if (message.getOperation() == Message.Operation.SESSION_TOUCH) {
+            return handleSessionTouch(message);
+        } else if (message.getOperation() == Message.Operation.LIST_SERVERS) {
+            return handleListServers();
+        } else if (message.getOperation() == Message.Operation.REQUEST_VOTE) {
+            return election.handleVoteRequest(message);
+        } else if (message.getOperation() == Message.Operation.LEADER_HEARTBEAT) {
+            return election.handleHeartbeat(message);
+        }
+
+        return null;
+    }
+
+    /**
+     * Handle a request and write its response on the connection, if any.
+     *
+     * @param message the request
+     * @param writer the connection writer
+     * @param encoder the codec used to write on the connection
+     */
+    private void respond(Message message, DataOutputStream writer, MessageCodec encoder) {
+        handleRequest(message).thenAccept(response -> {
+            if (response == null) {
+                return;
+            }
+
+            response.setRequestId(message.getRequestId());
+
+            try {
+                synchronized (writer) {
+                    encoder.write(response, writer);
+                    writer.flush();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * Handle the PUT, MULTI_PUT, CREATE, CAS, DELETE, ADD_SERVER and REMOVE_SERVER operations.
+     *
+     * @param message the message from the client
+     */
+    void handlePut(Message message) {
+        String key = message.getKey();
+        String value = message.getValue();
+        String clientIP = message.getClientIP();
+        int clientPort = message.getClientPort();
+        long timestamp = message.getClientTimestamp();
+
+        if (isLeader()) {
+            if (message.getOperation() == Message.Operation.MULTI_PUT) {
+                System.out.printf("Cliente %s:%s MULTI_PUT %d keys%n", clientIP, clientPort, message.getEntries().size());
+            } else {
+                System.out.printf("Cliente %s:%s %s key:%s value:%s%n", clientIP, clientPort, message.getOperation(), key, value);
+            }
+
+            writeBatcher.submit(message);
+        } else {
+            if (message.getOperation() == Message.Operation.MULTI_PUT) {
+                System.out.printf("Encaminhando MULTI_PUT %d keys%n", message.getEntries().size());
+            } else {
+                System.out.printf("Encaminhando %s key:%s value:%s%n", message.getOperation(), key, value);
+            }
+            forwardPutToLeader(message);
+        }
+    }
+
+    /**
+     * Handle the GET operation.
+     *
+     * @param message the message sent by the client
+     * @return the response
+     */
+    Message handleGet(Message message) {
+        String key = message.getKey();
+        String clientIP = message.getClientIP();
+        int clientPort = message.getClientPort();
+        long clientTimestamp = message.getClientTimestamp();
+        VersionedValue entry = keyValueStore.get(key);
+
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("Cliente ").append(clientIP).append(":").append(clientPort).append(" ");
+        sb.append("GET key: ").append(key).append(" ");
+        sb.append("ts: ").append(clientTimestamp).append(". ");
+
+        Message response;
+
+        if (!ready) {
+            response = new Message(Message.ResponseType.TRY_OTHER_SERVER_OR_LATER);
+            sb.append("Aguardando o estado do líder").append(", ");
+            sb.append("portanto devolvendo ");
+            sb.append("TRY_OTHER_SERVER_OR_LATER");
+        } else if (entry == null) {
+            response = new Message(Message.ResponseType.NULL);
+            sb.append("Meu ts é NAO_EXISTE").append(", ");
+            sb.append("portanto devolvendo ");
+            sb.append("NULL");
+        } else {
+            String value = entry.getValue();
+            long serverTimestamp = entry.getTimestamp();
+
+            if (serverTimestamp >= clientTimestamp) {
+                response = new Message(Message.ResponseType.GET_OK);
+                response.setValue(value);
+                response.setServerTimestamp(serverTimestamp);
+
+                sb.append("Meu ts é ").append(serverTimestamp).append(", ");
+                sb.append("portanto devolvendo ");
+                sb.append(value);
+            } else {
+                response = new Message(Message.ResponseType.TRY_OTHER_SERVER_OR_LATER);
+                response.setServerTimestamp(serverTimestamp);
+                
+                sb.append("Meu ts é ").append(serverTimestamp).append(", ");
+                sb.append("portanto devolvendo ");
+                sb.append("TRY_OTHER_SERVER_OR_LATER");
+            }
+        }
+
+        System.out.println(sb.toString());
+        return response;
+    }
+
+    /**
+     * Handle the MULTI_GET operation, reading every requested key in one pass.
+     *
+     * Each key is answered with its value and timestamp, and missing keys are left out, so the
+     * client checks each timestamp against the one it requested and asks another server for the
+     * keys that are too old.
+     *
+     * @param message the message sent by the client, with the keys as entries
+     * @return GET_OK with an entry for each key found
+     */
+    private Message handleMultiGet(Message message) {
+        if (!ready) {
+            System.out.printf("Cliente %s:%s MULTI_GET aguardando o estado do líder, devolvendo TRY_OTHER_SERVER_OR_LATER%n",
+                    message.getClientIP(), message.getClientPort());
+            return new Message(Message.ResponseType.TRY_OTHER_SERVER_OR_LATER);
+        }
+
+        List<Message.Entry> found = new ArrayList<>(message.getEntries().size());
+
+        for (Message.Entry requested : message.getEntries()) {
+            VersionedValue entry = keyValueStore.get(requested.getKey());
+
+            if (entry != null) {
+                found.add(new Message.Entry(requested.getKey(), entry.getValue(), entry.getTimestamp()));
+            }
+        }
+
+        System.out.printf("Cliente %s:%s MULTI_GET %d keys, devolvendo %d%n",
+                message.getClientIP(), message.getClientPort(), message.getEntries().size(), found.size());
+
+        Message response = new Message(Message.ResponseType.GET_OK);
+        response.setEntries(found);
+        return response;
+    }
+
+    /**
+     * Handle the LIST_CHILDREN operation, returning one page of the keys right below a path.
+     *
+     * The request holds the path as key, the last child of the previous page as value (null for the
+     * first page) and the page size as index. The response holds the children of the page, and as
+     * value the child to send back for the next page, or null after the last page.
+     *
+     * @param message the message sent by the client
+     * @return GET_OK with an entry for each child path of the page
+     */
+    private Message handleListChildren(Message message) {
+        Message refused = refuseRange(message);
+
+        if (refused != null) {
+            return refused;
+        }
+
+        int limit = (int) Math.max(1, Math.min(message.getIndex(), config.getScanMaxPageSize()));
+        List<String> children = pathIndex.listChildren(message.getKey(), message.getValue(), limit);
+        List<Message.Entry> entries = new ArrayList<>(children.size());
+
+        for (String child : children) {
+            entries.add(new Message.Entry(child, null, 0));
+        }
+
+        System.out.printf("Cliente %s:%s LIST_CHILDREN %s, devolvendo %d%n",
+                message.getClientIP(), message.getClientPort(), message.getKey(), entries.size());
+
+        Message response = new Message(Message.ResponseType.GET_OK);
+        response.setKey(message.getKey());
+        response.setEntries(entries);
+
+        if (children.size() == limit) {
+            response.setValue(children.get(children.size() - 1));
+        }
+
+        return response;
+    }
+
+    /**
+     * Handle the SCAN operation, returning one page of the keys that start with a prefix.
+     *
+     * The request holds the prefix as key, the last key of the previous page as value (null for
+     * the first page) and the page size as index. The response holds the entries of the page, and
+     * as value the key to send back for the next page, or null after the last page.
+     *
+     * @param message the message sent by the client
+     * @return GET_OK with the entries of the page
+     */
+    private Message handleScan(Message message) {
+        Message refused = refuseRange(message);
+
+        if (refused != null) {
+            return refused;
+        }
+
+        int limit = (int) Math.max(1, Math.min(message.getIndex(), config.getScanMaxPageSize()));
+        List<String> keys = pathIndex.scan(message.getKey(), message.getValue(), limit);
+        List<Message.Entry> entries = new ArrayList<>(keys.size());
+
+        for (String key : keys) {
+            VersionedValue entry = keyValueStore.get(key);
+
+            // a key removed after the index lookup is left out of the page
+            if (entry != null) {
+                entries.add(new Message.Entry(key, entry.getValue(), entry.getTimestamp()));
+            }
+        }
+
+        System.out.printf("Cliente %s:%s SCAN %s, devolvendo %d%n",
+                message.getClientIP(), message.getClientPort(), message.getKey(), entries.size());
+
+        Message response = new Message(Message.ResponseType.GET_OK);
+        response.setKey(message.getKey());
+        response.setEntries(entries);
+
+        if (keys.size() == limit) {
+            response.setValue(keys.get(keys.size() - 1));
+        }
+
+        return response;
+    }
+
+    /**
+     * Refuse a LIST_CHILDREN or SCAN while the state of the leader was not received, or when the
+     * keys are not kept in order.
+     *
+     * @param message the message sent by the client
+     * @return TRY_OTHER_SERVER_OR_LATER when the request is refused, null otherwise
+     */
+    private Message refuseRange(Message message) {
+        if (!ready) {
+            System.out.printf("Cliente %s:%s %s aguardando o estado do líder, devolvendo TRY_OTHER_SERVER_OR_LATER%n",
+                    message.getClientIP(), message.getClientPort(), message.getOperation());
+            return new Message(Message.ResponseType.TRY_OTHER_SERVER_OR_LATER);
+        }
+        if (pathIndex == null) {
+            System.out.printf("Cliente %s:%s %s sem índice de paths, devolvendo TRY_OTHER_SERVER_OR_LATER%n",
+                    message.getClientIP(), message.getClientPort(), message.getOperation());
+            return new Message(Message.ResponseType.TRY_OTHER_SERVER_OR_LATER);
+        }
+
+        return null;
+    }
+
+    /**
+     * Handle the WATCH operation, registering the client to the changes of a key applied by this
+     * server.
+     *
+     * @param message the message sent by the client
+     * @return WATCH_OK with the current value and timestamp of the key
+     */
+    private Message handleWatch(Message message) {
+        String key = message.getKey();
+        String clientIP = message.getClientIP();
+        int clientPort = message.getClientPort();
+
+        watches.watch(key, clientIP, clientPort);
+        System.out.printf("Cliente %s:%s WATCH key:%s%n", clientIP, clientPort, key);
+
+        VersionedValue entry = keyValueStore.get(key);
+        Message response = new Message(Message.ResponseType.WATCH_OK);
+        response.setKey(key);
+
+        if (entry != null) {
+            response.setValue(entry.getValue());
+            response.setServerTimestamp(entry.getTimestamp());
+        }
+
+        return response;
+    }
+
+    /**
+     * Handle the SESSION_OPEN operation. The leader opens the session and answers once the session
+     * is replicated, so a new leader knows it; a follower asks the leader on behalf of the client.
+     *
+     * @param message the message sent by the client, with the requested timeout as index
+     * @return the future completed with SESSION_OK, holding the session ID and the granted timeout
+     *         as index, with TRY_OTHER_SERVER_OR_LATER when the session could not be committed, or
+     *         with null when the leader cannot be reached
+     */
+    private CompletableFuture<Message> handleSessionOpen(Message message) {
+        if (!isLeader()) {
+            return CompletableFuture.completedFuture(askLeader(message));
+        }
+
+        long sessionId = sessions.open(message.getIndex());
+        long timeout = sessions.getTimeout(sessionId);
+        CompletableFuture<Boolean> opened = new CompletableFuture<>();
+
+        Message record = new Message(Message.Operation.SESSION_OPEN, null, null, null, 0);
+        record.setSessionId(sessionId);
+        record.setIndex(timeout);
+
+        openingSessions.put(sessionId, opened);
+        writeBatcher.submit(record);
+
+        return opened.thenApply(committed -> {
+            Message response = new Message(committed ? Message.ResponseType.SESSION_OK : Message.ResponseType.TRY_OTHER_SERVER_OR_LATER);
+            response.setSessionId(sessionId);
+            response.setIndex(timeout);
+
+            System.out.printf("Cliente %s:%s SESSION_OPEN sessão:%d timeout:%d, devolvendo %s%n",
+                    message.getClientIP(), message.getClientPort(), sessionId, timeout, response.getResponse());
+            return response;
+        });
+    }
+
+    /**
+     * Answer the SESSION_OPEN waiting for the commit of a session.
+     *
+     * @param sessionId the session ID
+     * @param committed true if the session was committed, false if it was dropped
+     */
+    private void completeSessionOpen(long sessionId, boolean committed) {
+        CompletableFuture<Boolean> opened = openingSessions.remove(sessionId);
+
+        if (opened != null) {
+            opened.complete(committed);
+        }
+    }
+
+    /**
+     * Handle the HEARTBEAT operation of a session.
+     *
+     * The leader renews the session right away. A follower only records the session and forwards
+     * the sessions heard since the last tick in one SESSION_TOUCH, so the heartbeats of many
+     * sessions cost the leader one message per follower and tick.
+     *
+     * @param message the message sent by the client
+     * @return SESSION_OK, or SESSION_EXPIRED when the session is known to be expired
+     */
+    private Message handleHeartbeat(Message message) {
+        long sessionId = message.getSessionId();
+        boolean alive;
+
+        if (isLeader()) {
+            alive = sessions.touch(sessionId);
+        } else {
+            alive = !expiredSessions.contains(sessionId);
+
+            if (alive) {
+                touchedSessions.add(sessionId);
+            }
+        }
+
+        Message response = new Message(alive ? Message.ResponseType.SESSION_OK : Message.ResponseType.SESSION_EXPIRED);
+        response.setSessionId(sessionId);
+        return response;
+    }
+
+    /**
+     * Handle the SESSION_CLOSE operation, removing the ephemeral keys of the session.
+     *
+     * @param message the message sent by the client
+     * @return SESSION_OK
+     */
+    private Message handleSessionClose(Message message) {
+        long sessionId = message.getSessionId();
+
+        System.out.printf("Cliente %s:%s SESSION_CLOSE sessão:%d%n", message.getClientIP(), message.getClientPort(), sessionId);
+
+        if (isLeader()) {
+            sessions.close(sessionId);
+        } else {
+            Message forwardedMessage = new Message(Message.Operation.SESSION_CLOSE, null, null, message.getClientIP(), message.getClientPort());
+            forwardedMessage.setSessionId(sessionId);
+
+            try {
+                getLeaderConnection().send(forwardedMessage);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        Message response = new Message(Message.ResponseType.SESSION_OK);
+        response.setSessionId(sessionId);
+        return response;
+    }
+
+    /**
+     * Handle the SESSION_TOUCH operation, sent by a follower with the sessions whose heartbeats it
+     * received since its last tick.
+     *
+     * @param message the message, with one entry per session ID
+     * @return SESSION_OK with the sessions that do not exist anymore as entries
+     */
+    private Message handleSessionTouch(Message message) {
+        List<Message.Entry> expired = new ArrayList<>();
+
+        for (Message.Entry entry : message.getEntries()) {
+            if (!sessions.touch(Long.parseLong(entry.getKey()))) {
+                expired.add(entry);
+            }
+        }
+
+        Message response = new Message(Message.ResponseType.SESSION_OK);
+        response.setEntries(expired);
+        return response;
+    }
+
+    /**
+     * Forward the sessions whose heartbeats this follower received since the last tick to the
+     * leader, and remember the ones the leader reports as expired.
+     */
+    private void forwardSessionTouches() {
+        if (touchedSessions.isEmpty()) {
+            return;
+        }
+
+        List<Message.Entry> entries = new ArrayList<>();
+
+        for (Iterator<Long> iterator = touchedSessions.iterator(); iterator.hasNext(); ) {
+            entries.add(new Message.Entry(Long.toString(iterator.next()), null, 0));
+            iterator.remove();
+        }
+
+        Message touch = new Message();
+        touch.setOperation(Message.Operation.SESSION_TOUCH);
+        touch.setEntries(entries);
+
+        try {
+            getLeaderConnection().request(touch).whenComplete((response, e) -> {
+                if (response == null) {
+                    return;
+                }
+                for (Message.Entry entry : response.getEntries()) {
+                    expiredSessions.add(Long.parseLong(entry.getKey()));
+                }
+            });
+        } catch (IOException e) {
+            System.out.printf("Falha ao encaminhar heartbeats ao líder: %s%n", e.getMessage());
+        }
+    }
+
+    /**
+     * Send a copy of a client request to the leader and wait for its response.
+     *
+     * @param message the message sent by the client
+     * @return the response of the leader, or null when it cannot be reached
+     */
+    private Message askLeader(Message message) {
+        Message forwardedMessage = new Message(message.getOperation(), message.getKey(), message.getValue(), message.getClientIP(), message.getClientPort());
+        forwardedMessage.setIndex(message.getIndex());
+        forwardedMessage.setSessionId(message.getSessionId());
+
+        try {
+            return getLeaderConnection().request(forwardedMessage).get(5, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            System.out.printf("Falha ao encaminhar %s ao líder: %s%n", message.getOperation(), e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Forward PUT operation to the current leader. While no leader is reachable the write is
+     * dropped, and the client gets no PUT_OK.
+     *
+     * @param message the message from the client
+     */
+    private void forwardPutToLeader(Message message) {
+        String key = message.getKey();
+        String value = message.getValue();
+        String clientIP = message.getClientIP();
+        int clientPort = message.getClientPort();
+        long timestamp = message.getClientTimestamp();
+
+        try {
+            Message forwardedMessage = new Message(message.getOperation(), key, value, clientIP, clientPort);
+            forwardedMessage.setClientTimestamp(timestamp);
+            forwardedMessage.setServerTimestamp(message.getServerTimestamp());
+            forwardedMessage.setSessionId(message.getSessionId());
+            forwardedMessage.setEntries(message.getEntries());
+            forwardedMessage.setRequestId(message.getRequestId());
+
+            getLeaderConnection().send(forwardedMessage);
+        } catch (IOException e) {
+            System.out.printf("Falha ao encaminhar %s ao líder: %s%n", message.getOperation(), e.getMessage());
+        }
+    }
+
+    /**
+     * Store a batch of PUTs and replicate the information on other servers.
+     *
+     * The batch is pipelined on the follower streams as a single REPLICATION message, so the keys of
+     * a MULTI_PUT are always replicated together, and PUT_OK is sent to each client once the
+     * followers required by the ack policy acknowledged it, without blocking the batcher.
+     *
+     * Batches are applied one at a time, so the conditions of the writes of a batch, such as a
+     * CREATE of a key that must not exist yet or a CAS on the version of a key, are checked
+     * atomically. A write whose condition fails is answered right away and left out of the batch.
+     *
+     * Each accepted write gets its version from the hybrid logical clock of the leader, replacing
+     * the timestamp of the client, so the versions of a key only grow whatever the clocks of the
+     * clients, and the version is returned in PUT_OK.
+     *
+     * The sessions travel in the same batches: the SESSION_OPEN and SESSION_CLOSE writes of the
+     * leader and the owner keys of the ephemeral keys are entries like the others, so every server
+     * holds the sessions a new leader takes over.
+     *
+     * @param puts the PUT messages of the batch, in arrival order
+     * @return the future completed when the batch is committed
+     */
+    private CompletableFuture<?> replicate(List<Message> puts) {
+        List<Message.Entry> entries = new ArrayList<>(puts.size());
+        List<Message> accepted = new ArrayList<>(puts.size());
+
+        for (Message put : puts) {
+            if (put.getOperation() == Message.Operation.SESSION_OPEN || put.getOperation() == Message.Operation.SESSION_CLOSE) {
+                List<Message.Entry> record = sessionEntries(put, clock.next());
+
+                if (!applyAll(record)) {
+                    rejectWrite(put);
+                    continue;
+                }
+
+                if (put.getOperation() == Message.Operation.SESSION_CLOSE) {
+                    for (Message.Entry owned : put.getEntries()) {
+                        if (sessions.isOwner(owned.getKey(), put.getSessionId())) {
+                            sessions.disown(owned.getKey());
+                        }
+                    }
+                }
+
+                entries.addAll(record);
+                accepted.add(put);
+                continue;
+            }
+
+            long previousOwner = put.getKey() == null ? 0 : sessions.getOwner(put.getKey());
+            Message.ResponseType rejection = checkCondition(put);
+
+            if (rejection != null) {
+                System.out.printf("Enviando %s ao Cliente %s:%s da key:%s%n", rejection, put.getClientIP(), put.getClientPort(), put.getKey());
+                sendRejection(put, rejection);
+                continue;
+            }
+
+            long version = clock.next();
+            put.setClientTimestamp(version);
+
+            if (put.getOperation() == Message.Operation.MULTI_PUT) {
+                List<Message.Entry> versioned = new ArrayList<>(put.getEntries().size());
+                List<Message.Entry> write = new ArrayList<>(put.getEntries().size());
+
+                for (Message.Entry entry : put.getEntries()) {
+                    versioned.add(new Message.Entry(entry.getKey(), entry.getValue(), version));
+                }
+                write.addAll(versioned);
+
+                for (Message.Entry entry : put.getEntries()) {
+                    long owner = sessions.getOwner(entry.getKey());
+
+                    // the keys become persistent
+                    if (owner != 0) {
+                        write.add(Message.Entry.deletion(SessionManager.ownerKey(owner, entry.getKey()), version));
+                    }
+                }
+
+                if (!applyAll(write)) {
+                    rejectWrite(put);
+                    continue;
+                }
+
+                for (Message.Entry entry : versioned) {
+                    sessions.disown(entry.getKey());
+                }
+
+                // PUT_OK returns the entries with their version
+                put.setEntries(versioned);
+                entries.addAll(write);
+                accepted.add(put);
+                continue;
+            }
+
+            Message.Entry entry = put.getOperation() == Message.Operation.DELETE
+                    ? Message.Entry.deletion(put.getKey(), put.getClientTimestamp())
+                    : new Message.Entry(put.getKey(), put.getValue(), put.getClientTimestamp());
+            List<Message.Entry> write = new ArrayList<>(3);
+            write.add(entry);
+
+            // the owner keys follow the key from one session to another, or to no session
+            if (previousOwner != 0 && (entry.isDeleted() || previousOwner != put.getSessionId())) {
+                write.add(Message.Entry.deletion(SessionManager.ownerKey(previousOwner, put.getKey()), version));
+            }
+            if (put.getSessionId() != 0 && !entry.isDeleted()) {
+                write.add(new Message.Entry(SessionManager.ownerKey(put.getSessionId(), put.getKey()), "", version));
+            }
+
+            if (!applyAll(write)) {
+                // the session did not get the key
+                sessions.restoreOwner(put.getKey(), previousOwner);
+                rejectWrite(put);
+                continue;
+            }
+
+            if (put.getSessionId() == 0 || entry.isDeleted()) {
+                sessions.disown(put.getKey());
+            }
+
+            entries.addAll(write);
+            accepted.add(put);
+        }
+
+        if (accepted.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        Message repMessage = new Message();
+        repMessage.setOperation(Message.Operation.REPLICATION);
+        repMessage.setEntries(entries);
+
+        CompletableFuture<Long> committed;
+        long sequence;
+
+        synchronized (replicationLock) {
+            committed = replicator.replicate(repMessage);
+            sequence = appendToLog(repMessage);
+            leaderEpoch = repMessage.getEpoch();
+            appliedIndex = repMessage.getIndex();
+        }
+
+        // PUT_OK needs both the follower acknowledgements and the local log sync
+        return committed.thenCombine(syncLog(sequence), (index, synced) -> index).thenAccept(index -> {
+            for (Message put : accepted) {
+                if (put.getOperation() == Message.Operation.SESSION_OPEN) {
+                    completeSessionOpen(put.getSessionId(), true);
+                    continue;
+                }
+                if (put.getClientIP() == null) {
+                    // removal of a closed session
+                    continue;
+                }
+                if (put.getOperation() == Message.Operation.MULTI_PUT) {
+                    System.out.printf("Enviando PUT_OK ao Cliente %s:%s de %d keys%n", put.getClientIP(), put.getClientPort(), put.getEntries().size());
+                    sendMultiPutResponse(put);
+                    continue;
+                }
+
+                String key = put.getKey();
+                String clientIP = put.getClientIP();
+                int clientPort = put.getClientPort();
+                long timestamp = put.getClientTimestamp();
+
+                System.out.printf("Enviando PUT_OK ao Cliente %s:%s da key:%s ts:%d%n", clientIP, clientPort, key, timestamp);
+                sendResponse(key, put.getValue(), clientIP, clientPort, timestamp, put.getRequestId());
+            }
+        });
+    }
+
+    /**
+     * Check the condition of a write on the leader.
+     *
+     * A CAS carries the expected version of the key, its version or 0 when the key must not
+     * exist, as server timestamp.
+     *
+     * A DELETE removes the current version of its key, as the version assigned to the removal is
+     * newer than every stored version. A write with a session makes its key ephemeral, owned by the
+     * session, unless the session expired. The membership and the keys of the sessions are written
+     * by the leader only, so a client write to one of them is rejected with RESERVED_KEY.
+     *
+     * @param put the write
+     * @return the response rejecting the write, or null when it can be applied
+     */
+    private Message.ResponseType checkCondition(Message put) {
+        if (isReservedWrite(put)) {
+            return Message.ResponseType.RESERVED_KEY;
+        }
+
+        if (put.getOperation() == Message.Operation.DELETE) {
+            return keyValueStore.get(put.getKey()) == null ? Message.ResponseType.NO_NODE : null;
+        }
+
+        if (put.getOperation() == Message.Operation.ADD_SERVER || put.getOperation() == Message.Operation.REMOVE_SERVER) {
+            return changeMembership(put);
+        }
+
+        if (put.getOperation() == Message.Operation.CAS) {
+            VersionedValue current = keyValueStore.get(put.getKey());
+            long version = current == null ? 0 : current.getTimestamp();
+
+            if (version != put.getServerTimestamp()) {
+                return Message.ResponseType.CAS_FAILED;
+            }
+        }
+
+        if (put.getOperation() == Message.Operation.CREATE) {
+            String parent = PathIndex.getParent(put.getKey());
+
+            if (keyValueStore.get(put.getKey()) != null) {
+                return Message.ResponseType.NODE_EXISTS;
+            }
+            if (parent != null && keyValueStore.get(parent) == null) {
+                return Message.ResponseType.NO_NODE;
+            }
+        }
+
+        if (put.getSessionId() != 0 && put.getOperation() != Message.Operation.MULTI_PUT
+                && !sessions.own(put.getSessionId(), put.getKey())) {
+            return Message.ResponseType.SESSION_EXPIRED;
+        }
+
+        return null;
+    }
+
+    /**
+     * Check if a client write targets a key written by the leader only: the membership, which only
+     * ADD_SERVER and REMOVE_SERVER change, or a key of the sessions.
+     *
+     * @param put the write
+     * @return true if the write must be rejected, false otherwise
+     */
+    private boolean isReservedWrite(Message put) {
+        if (put.getOperation() == Message.Operation.ADD_SERVER || put.getOperation() == Message.Operation.REMOVE_SERVER) {
+            return false;
+        }
+        if (put.getOperation() != Message.Operation.MULTI_PUT) {
+            return isReservedKey(put.getKey());
+        }
+
+        for (Message.Entry entry : put.getEntries()) {
+            if (isReservedKey(entry.getKey())) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Check if a key is written by the leader only.
+     *
+     * @param key the key
+     * @return true if the key is the membership or a key of the sessions, false otherwise
+     */
+    private static boolean isReservedKey(String key) {
+        return MEMBERSHIP_KEY.equals(key) || SessionManager.isSessionKey(key);
+    }
+
+    /**
+     * Write or remove the key of a session. Opening a session stores its timeout, and closing it
+     * removes the session key and, for each of its keys it still owns, the key and its owner key.
+     *
+     * @param put the SESSION_OPEN or SESSION_CLOSE write of the leader
+     * @param version the version of the write
+     * @return the entries of the write
+     */
+    private List<Message.Entry> sessionEntries(Message put, long version) {
+        long sessionId = put.getSessionId();
+        List<Message.Entry> record = new ArrayList<>();
+
+        if (put.getOperation() == Message.Operation.SESSION_OPEN) {
+            record.add(new Message.Entry(SessionManager.sessionKey(sessionId), Long.toString(put.getIndex()), version));
+            return record;
+        }
+
+        for (Message.Entry owned : put.getEntries()) {
+            if (sessions.isOwner(owned.getKey(), sessionId)) {
+                record.add(Message.Entry.deletion(owned.getKey(), version));
+                record.add(Message.Entry.deletion(SessionManager.ownerKey(sessionId, owned.getKey()), version));
+            }
+        }
+
+        record.add(Message.Entry.deletion(SessionManager.sessionKey(sessionId), version));
+        return record;
+    }
+
+    /**
+     * Turn an ADD_SERVER or REMOVE_SERVER into a write of the membership, replicated and logged like
+     * any other key. The server is the key of the request, as IP:port.
+     *
+     * @param put the write
+     * @return NODE_EXISTS when the server to add is a member, NO_NODE when the server to remove is
+     *         not a member or is the leader, or null when the membership can be written
+     */
+    private Message.ResponseType changeMembership(Message put) {
+        List<String> members = getMembers();
+        String server = put.getKey();
+
+        if (put.getOperation() == Message.Operation.ADD_SERVER) {
+            if (members.contains(server)) {
+                return Message.ResponseType.NODE_EXISTS;
+            }
+            members.add(server);
+        } else {
+            if (!members.contains(server) || server.equals(serverIP + ":" + serverPort)) {
+                return Message.ResponseType.NO_NODE;
+            }
+            members.remove(server);
+        }
+
+        put.setKey(MEMBERSHIP_KEY);
+        put.setValue(String.join(",", members));
+        return null;
+    }
+
+    /**
+     * Get the members of the cluster, leader included: the replicated membership once it was
+     * changed, the configured servers before.
+     *
+     * @return the servers as IP:port
+     */
+    private List<String> getMembers() {
+        VersionedValue membership = keyValueStore.get(MEMBERSHIP_KEY);
+        String servers = membership == null ? config.getClusterServers() : membership.getValue();
+        List<String> members = new ArrayList<>();
+
+        for (String server : servers.split(",")) {
+            if (!server.trim().isEmpty()) {
+                members.add(server.trim());
+            }
+        }
+
+        return members;
+    }
+
+    /**
+     * Get the followers of the leader, the members other than itself.
+     *
+     * @return the followers, as {IP, port} pairs
+     */
+    private List<String[]> getFollowers() {
+        List<String[]> followers = new ArrayList<>();
+
+        for (String member : getMembers()) {
+            if (!member.equals(serverIP + ":" + serverPort)) {
+                followers.add(member.split(":"));
+            }
+        }
+
+        return followers;
+    }
+
+    /**
+     * Warn when the ack policy asks more acknowledgements than the cluster has followers, after a
+     * server was removed. The leader then waits for every follower.
+     *
+     * @param followers the number of followers
+     */
+    private void warnAckPolicy(int followers) {
+        AckPolicy ackPolicy = config.getAckPolicy();
+
+        if (ackPolicy.exceeds(followers)) {
+            System.out.printf("A política de acks %s exige mais seguidores que os %d do cluster, esperando todos eles%n",
+                    ackPolicy, followers);
+        }
+    }
+
+    /**
+     * Handle the LIST_SERVERS operation, so clients learn the servers added after they started.
+     *
+     * @return GET_OK with one entry per server, its IP:port as key
+     */
+    private Message handleListServers() {
+        List<Message.Entry> servers = new ArrayList<>();
+
+        for (String member : getMembers()) {
+            servers.add(new Message.Entry(member, null, 0));
+        }
+
+        Message response = new Message(Message.ResponseType.GET_OK);
+        response.setEntries(servers);
+        return response;
+    }
+
+    /**
+     * Handle the SYNC operation, sent by the leader when it opens its replication stream.
+     *
+     * The response tells the leader the epoch and index of the last entry applied, so it can send
+     * the missing entries or transfer its state.
+     *
+     * @param message the message
+     * @return REPLICATION_OK with the last applied index and its leader epoch
+     */
+    private Message handleSync(Message message) {
+        if (message.getEpoch() < election.getTerm()) {
+            // a leader of an older term, which steps down on its next heartbeat
+            return null;
+        }
+
+        synchronized (replicationLock) {
+            if (message.getEpoch() == leaderEpoch) {
+                // the log of this leader continues from the last applied entry
+                setReady();
+            }
+
+            Message response = new Message(Message.ResponseType.REPLICATION_OK);
+            response.setIndex(appliedIndex);
+            response.setEpoch(leaderEpoch);
+            return response;
+        }
+    }
+
+    /**
+     * Handle the SNAPSHOT operation, a chunk of the leader state sent to a follower that is too far
+     * behind to catch up from the replication stream.
+     *
+     * The chunks are applied to a staging store as they arrive, so the state is never buffered in
+     * memory, and the store keeps serving reads during the transfer. The first chunk starts a new
+     * staging store; a chunk that does not follow the previous one is left unanswered, and the
+     * leader starts the transfer over. The last chunk installs the staging store in place of the
+     * current one and moves the follower to the leader epoch and index of the state.
+     *
+     * The last chunk is acknowledged right away, and the new state is written to a snapshot in the
+     * background. Until it is written, a restart recovers the previous state, which the records
+     * logged after the transfer do not continue: a SNAPSHOT record marks the transfer in the log, the
+     * recovery stops there, and the leader transfers its state again.
+     *
+     * @param message the message
+     * @return REPLICATION_OK, with the index of the state for the last chunk, or null for a chunk out
+     *         of order
+     */
+    private Message handleSnapshot(Message message) {
+        if (message.getEpoch() < election.getTerm()) {
+            return null;
+        }
+
+        Message response = new Message(Message.ResponseType.REPLICATION_OK);
+        StorageEngine previous;
+
+        synchronized (replicationLock) {
+            long chunk = message.getServerTimestamp();
+
+            if (chunk == 0) {
+                if (transferStore != null) {
+                    transferStore.close();
+                }
+                transferStore = createStorageEngine(nextStorageName());
+                transferEpoch = message.getEpoch();
+                transferIndex = message.getIndex();
+            } else if (transferStore == null || message.getEpoch() != transferEpoch || message.getIndex() != transferIndex
+                    || chunk != transferChunk) {
+                return null;
+            }
+
+            for (Message.Entry entry : message.getEntries()) {
+                clock.observe(entry.getTimestamp());
+                transferStore.replace(entry.getKey(), new VersionedValue(entry.getValue(), entry.getTimestamp()));
+            }
+            transferChunk = chunk + 1;
+
+            if (!message.isLastChunk()) {
+                return response;
+            }
+
+            previous = installTransfer();
+
+            System.out.printf("Estado recebido do líder: %d keys até o índice %d%n", keyValueStore.size(), appliedIndex);
+            response.setIndex(appliedIndex);
+            setReady();
+        }
+
+        // requests that read the previous store just before the install still get their answer
+        scheduler.schedule(previous::close, STORE_CLOSE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+
+        if (wal != null) {
+            scheduler.execute(this::takeSnapshot);
+        }
+
+        return response;
+    }
+
+    /**
+     * Replace the store with the staging store of a complete transfer, updating the path index and
+     * notifying the watches of the keys whose version changed. The leader state replaces the local
+     * one, even where the local version looks newer. Called with the replication lock held.
+     *
+     * @return the previous store, to close once it is no longer read
+     */
+    private StorageEngine installTransfer() {
+        StorageEngine previous = keyValueStore;
+        StorageEngine installed = transferStore;
+        PathIndex index = createPathIndex(installed);
+
+        for (Iterator<Message.Entry> entries = installed.entries(); entries.hasNext(); ) {
+            Message.Entry entry = entries.next();
+
+            if (index != null) {
+                index.add(entry.getKey());
+            }
+
+            if (watches.isWatched(entry.getKey())) {
+                VersionedValue current = previous.get(entry.getKey());
+
+                if (current == null || current.getTimestamp() != entry.getTimestamp()) {
+                    watches.notify(entry.getKey(), installed.get(entry.getKey()));
+                }
+            }
+        }
+
+        for (Iterator<Message.Entry> entries = previous.entries(); entries.hasNext(); ) {
+            String key = entries.next().getKey();
+
+            if (installed.get(key) == null && watches.isWatched(key)) {
+                watches.notify(key, null);
+            }
+        }
+
+        keyValueStore = installed;
+        pathIndex = index;
+        storageName = nextStorageName();
+        transferStore = null;
+        leaderEpoch = transferEpoch;
+        appliedIndex = transferIndex;
+        outOfOrderReplications.clear();
+
+        Message marker = new Message();
+        marker.setOperation(Message.Operation.SNAPSHOT);
+        marker.setEpoch(leaderEpoch);
+        marker.setIndex(appliedIndex);
+        appendToLog(marker);
+
+        return previous;
+    }
+
+    /**
+     * Get the name of the storage used by the next staging store, alternating with the current one
+     * so the staging store never writes over the files of the store it replaces.
+     *
+     * @return the storage name
+     */
+    private String nextStorageName() {
+        return storageName.equals(STORAGE_NAME) ? STORAGE_NAME + ".transfer" : STORAGE_NAME;
+    }
+
+    /**
+     * Get the state of the store, transferred to a follower that is too far behind.
+     *
+     * The index is read before the store, so every entry up to it is included. Later entries may be
+     * included too, and the follower gets them again from the replication stream. The entries are
+     * read from the store as the chunks are sent.
+     *
+     * @return the state of the store
+     */
+    private ReplicationStream.StateSource getState() {
+        return new ReplicationStream.StateSource() {
+            @Override
+            public long getIndex() {
+                synchronized (replicationLock) {
+                    return appliedIndex;
+                }
+            }
+
+            @Override
+            public Iterator<Message.Entry> getEntries() {
+                return keyValueStore.entries();
+            }
+        };
+    }
+
+    /**
+     * Handle the REPLICATION operation.
+     *
+     * Entries are applied in index order. An entry that arrives before the previous ones is kept
+     * until they arrive, and the response acknowledges every entry applied so far, once the entries
+     * are synced to the write-ahead log. Entries of another leader epoch are ignored until the SYNC
+     * handshake brought the follower to that epoch.
+     *
+     * An entry leaves the queue only once it is applied. When the store rejects it, because it is
+     * full, the entry stays queued and is not acknowledged: it is applied again with the next entry
+     * received or when the leader sends its backlog again, and the leader transfers its state once
+     * the follower is too far behind.
+     *
+     * The future completes on the WAL flusher thread, so the request worker does not wait for the
+     * sync: the election messages share the workers and must not queue behind a slow disk.
+     *
+     * @param message the message
+     * @return the future of REPLICATION_OK with the last applied index, or of null while a previous
+     *         entry is missing or could not be applied
+     */
+    CompletableFuture<Message> handleReplication(Message message) {
+        Message response;
+        long sequence = 0;
+
+        synchronized (replicationLock) {
+            if (message.getEpoch() != leaderEpoch || message.getEpoch() < election.getTerm()) {
+                return CompletableFuture.completedFuture(null);
+            }
+
+            if (message.getIndex() > appliedIndex) {
+                outOfOrderReplications.put(message.getIndex(), message);
+            }
+
+            Message next;
+            while ((next = outOfOrderReplications.get(appliedIndex + 1)) != null) {
+                try {
+                    applyReplication(next);
+                } catch (IllegalStateException e) {
+                    System.out.printf("Falha ao aplicar a replicação do índice %d: %s%n", next.getIndex(), e.getMessage());
+                    break;
+                }
+
+                sequence = appendToLog(next);
+                outOfOrderReplications.remove(next.getIndex());
+                appliedIndex++;
+            }
+
+            if (appliedIndex < message.getIndex()) {
+                return CompletableFuture.completedFuture(null);
+            }
+
+            response = new Message(Message.ResponseType.REPLICATION_OK);
+            response.setIndex(appliedIndex);
+        }
+
+        return syncLog(sequence).thenApply(synced -> response);
+    }
+
+    /**
+     * Apply the entries of a replicated batch to the store.
+     *
+     * @param message the REPLICATION message
+     */
+    private void applyReplication(Message message) {
+        for (Message.Entry entry : message.getEntries()) {
+            String key = entry.getKey();
+            String value = entry.getValue();
+            long timestamp = entry.getTimestamp();
+
+            System.out.printf("REPLICATION key:%s value:%s ts:%d%s%n", key, value, timestamp, entry.isDeleted() ? " (removida)" : "");
+
+            apply(entry);
+        }
+    }
+
+    /**
+     * Apply an entry to the store: store its version, or remove its key when the entry is a removal
+     * at least as recent as the stored version.
+     *
+     * @param entry the entry
+     */
+    private void apply(Message.Entry entry) {
+        if (!entry.isDeleted()) {
+            store(entry.getKey(), entry.getValue(), entry.getTimestamp());
+            return;
+        }
+
+        clock.observe(entry.getTimestamp());
+        VersionedValue current = keyValueStore.get(entry.getKey());
+
+        if (current == null || current.getTimestamp() > entry.getTimestamp()) {
+            return;
+        }
+
+        keyValueStore.remove(entry.getKey());
+        removeFromIndex(entry.getKey());
+        watches.notify(entry.getKey(), null);
+    }
+
+    /**
+     * Apply the entries of a write on the leader, all of them or none. When the store rejects an
+     * entry, because it is full or failed, the entries already applied get their previous version
+     * back, so the leader never holds a write that is neither logged nor replicated.
+     *
+     * @param entries the entries of the write
+     * @return true if every entry was applied, false if the write was undone
+     */
+    private boolean applyAll(List<Message.Entry> entries) {
+        List<VersionedValue> previous = new ArrayList<>(entries.size());
+
+        for (int i = 0; i < entries.size(); i++) {
+            Message.Entry entry = entries.get(i);
+            previous.add(keyValueStore.get(entry.getKey()));
+
+            try {
+                apply(entry);
+            } catch (IllegalStateException e) {
+                System.out.printf("Falha ao aplicar a key:%s: %s%n", entry.getKey(), e.getMessage());
+
+                for (int j = i - 1; j >= 0; j--) {
+                    restore(entries.get(j).getKey(), previous.get(j));
+                }
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Put back the version a key had before a write that was undone.
+     *
+     * @param key the key
+     * @param previous the previous version, or null when the key did not exist
+     */
+    private void restore(String key, VersionedValue previous) {
+        try {
+            if (previous == null) {
+                keyValueStore.remove(key);
+                removeFromIndex(key);
+            } else {
+                keyValueStore.replace(key, previous);
+            }
+
+            if (watches.isWatched(key)) {
+                watches.notify(key, previous);
+            }
+        } catch (IllegalStateException e) {
+            System.out.printf("Falha ao restaurar a key:%s: %s%n", key, e.getMessage());
+        }
+    }
+
+    /**
+     * Remove a key from the path index, if there is one.
+     *
+     * @param key the key
+     */
+    private void removeFromIndex(String key) {
+        PathIndex index = pathIndex;
+
+        if (index != null) {
+            index.remove(key);
+        }
+    }
+
+    /**
+     * Start serving reads, once the state of the leader was received.
+     */
+    private void setReady() {
+        if (!ready) {
+            ready = true;
+            System.out.println("Estado do líder recebido, servindo leituras");
+        }
+    }
+
+    /**
+     * Store a key in the key-value store, unless it already holds a newer version of the key, and
+     * notify the clients watching it. The version is observed by the clock, so this server keeps
+     * assigning newer versions if it becomes the leader.
+     *
+     * @param key the key
+     * @param value the value
+     * @param timestamp the timestamp associated to the key
+     */
+    private void store(String key, String value, long timestamp) {
+        clock.observe(timestamp);
+        keyValueStore.put(key, new VersionedValue(value, timestamp));
+
+        PathIndex index = pathIndex;
+
+        if (index != null) {
+            index.add(key);
+        }
+
+        if (key.equals(MEMBERSHIP_KEY) && isLeader()) {
+            List<String[]> followers = getFollowers();
+
+            System.out.printf("Membros do cluster: %s%n", getMembers());
+            warnAckPolicy(followers.size());
+            replicator.setFollowers(followers);
+        }
+
+        if (watches.isWatched(key)) {
+            watches.notify(key, keyValueStore.get(key));
+        }
+    }
+
+    /**
+     * Rebuild the store from the latest snapshot and the write-ahead log, then open the log. The
+     * replay stops at a state transfer that no snapshot covers yet.
+     *
+     * @param directory the data directory of the server
+     */
+    private void recover(Path directory) {
+        try {
+            Files.createDirectories(directory);
+
+            Snapshot snapshot = Snapshot.loadLatest(directory, entry -> store(entry.getKey(), entry.getValue(), entry.getTimestamp()));
+            long fromSegment = 0;
+
+            if (snapshot != null) {
+                leaderEpoch = snapshot.getEpoch();
+                appliedIndex = snapshot.getAppliedIndex();
+                fromSegment = snapshot.getSegmentId();
+            }
+
+            this.dataDirectory = directory;
+            this.wal = new WriteAheadLog(directory, config.isWalFsync());
+
+            AtomicLong records = new AtomicLong();
+
+            AtomicBoolean transferred = new AtomicBoolean();
+
+            wal.replay(fromSegment, record -> {
+                // the records after a state transfer whose snapshot was not written do not continue this state
+                if (transferred.get() || record.getOperation() == Message.Operation.SNAPSHOT) {
+                    transferred.set(true);
+                    return;
+                }
+
+                for (Message.Entry entry : record.getEntries()) {
+                    apply(entry);
+                }
+                leaderEpoch = record.getEpoch();
+                appliedIndex = record.getIndex();
+                records.incrementAndGet();
+            });
+
+            if (transferred.get()) {
+                System.out.printf("WAL interrompido na transferência de estado após o índice %d, aguardando o estado do líder%n", appliedIndex);
+            }
+
+            System.out.printf("Recuperadas %d keys de %s (%d registros do WAL), último índice %d%n",
+                    keyValueStore.size(), directory, records.get(), appliedIndex);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Append a REPLICATION message to the write-ahead log, and start a snapshot when enough records
+     * were appended since the last one.
+     *
+     * @param record the REPLICATION message
+     * @return the sequence number of the record, 0 when persistence is disabled
+     */
+    private long appendToLog(Message record) {
+        if (wal == null) {
+            return 0;
+        }
+
+        try {
+            long sequence = wal.append(record);
+
+            if (recordsSinceSnapshot.incrementAndGet() >= config.getSnapshotIntervalRecords()
+                    && snapshotRunning.compareAndSet(false, true)) {
+                scheduler.execute(this::takeSnapshot);
+            }
+
+            return sequence;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Get a future completed once a record is synced to the write-ahead log.
+     *
+     * @param sequence the sequence number of the record
+     * @return the future
+     */
+    private CompletableFuture<Void> syncLog(long sequence) {
+        if (wal == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return wal.sync(sequence);
+    }
+
+    /**
+     * Take a snapshot started by the log appends.
+     */
+    private void takeSnapshot() {
+        try {
+            writeSnapshot();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            snapshotRunning.set(false);
+        }
+    }
+
+    /**
+     * Write a snapshot of the store and delete the log segments it covers.
+     *
+     * The log is rolled first, so the records written during the snapshot go to the new segment and
+     * are replayed after loading it.
+     *
+     * @throws IOException exception when writing the snapshot
+     */
+    private void writeSnapshot() throws IOException {
+        synchronized (snapshotLock) {
+            long segment = wal.roll();
+            recordsSinceSnapshot.set(0);
+
+            long epoch;
+            long index;
+
+            synchronized (replicationLock) {
+                epoch = leaderEpoch;
+                index = appliedIndex;
+            }
+
+            Snapshot snapshot = Snapshot.write(dataDirectory, segment, epoch, index, keyValueStore.entries());
+
+            System.out.printf("Snapshot %d gravado com %d keys até o índice %d%n", segment, snapshot.getCount(), index);
+
+            wal.deleteSegmentsBefore(Snapshot.prune(dataDirectory));
+        }
+    }
+
+    /**
+     * Send PUT_OK to the client.
+     *
+     * @param key the key inserted
+     * @param value the value inserted
+     * @param clientIP the client IP address
+     * @param clientPort the client port
+     * @param timestamp the timestamp associated to the key
+     * @param requestId the request ID of the client PUT
+     */
+    private void sendResponse(String key, String value, String clientIP, int clientPort, long timestamp, long requestId) {
+        Message response = new Message(Message.ResponseType.PUT_OK);
+        response.setRequestId(requestId);
+        response.setKey(key);
+        response.setValue(value);
+        response.setServerIP(serverIP);
+        response.setServerPort(serverPort);
+        response.setServerTimestamp(timestamp);
+
+        sendToClient(clientIP, clientPort, response);
+    }
+
+    /**
+     * Answer a write that the leader could not commit: the batch queue was full, its batch failed
+     * or the server stopped leading with the write queued. The client may retry it.
+     *
+     * @param put the write
+     */
+    private void rejectWrite(Message put) {
+        if (put.getOperation() == Message.Operation.SESSION_OPEN) {
+            sessions.discard(put.getSessionId());
+            completeSessionOpen(put.getSessionId(), false);
+            return;
+        }
+
+        System.out.printf("Enviando TRY_OTHER_SERVER_OR_LATER ao Cliente %s:%s da key:%s%n", put.getClientIP(), put.getClientPort(), put.getKey());
+        sendRejection(put, Message.ResponseType.TRY_OTHER_SERVER_OR_LATER);
+    }
+
+    /**
+     * Answer a write whose condition failed, with the current value and timestamp of its key.
+     *
+     * @param put the write
+     * @param rejection the response type
+     */
+    private void sendRejection(Message put, Message.ResponseType rejection) {
+        if (put.getClientIP() == null) {
+            return;
+        }
+
+        // a MULTI_PUT has no key of its own
+        VersionedValue current = put.getKey() == null ? null : keyValueStore.get(put.getKey());
+        Message response = new Message(rejection);
+        response.setRequestId(put.getRequestId());
+        response.setKey(put.getKey());
+        response.setServerIP(serverIP);
+        response.setServerPort(serverPort);
+
+        if (current != null) {
+            response.setValue(current.getValue());
+            response.setServerTimestamp(current.getTimestamp());
+        }
+
+        sendToClient(put.getClientIP(), put.getClientPort(), response);
+    }
+
+    /**
+     * Send PUT_OK for every key of a MULTI_PUT to the client.
+     *
+     * @param put the MULTI_PUT message
+     */
+    private void sendMultiPutResponse(Message put) {
+        Message response = new Message(Message.ResponseType.PUT_OK);
+        response.setRequestId(put.getRequestId());
+        response.setEntries(put.getEntries());
+        response.setServerIP(serverIP);
+        response.setServerPort(serverPort);
+        response.setServerTimestamp(put.getClientTimestamp());
+
+        sendToClient(put.getClientIP(), put.getClientPort(), response);
+    }
+
+    /**
+     * Send a response to the address of a client on the replication executor.
+     *
+     * Opening the connection to a client can take up to the connect timeout, so the response is never
+     * sent by the thread that completed the write: the write batcher, the WAL flusher or the
+     * connection of a follower whose acknowledgement committed the entry.
+     *
+     * @param clientIP the client IP
+     * @param clientPort the client port
+     * @param response the response
+     */
+    private void sendToClient(String clientIP, int clientPort, Message response) {
+        try {
+            replicationExecutor.execute(() -> {
+                try {
+                    connections.get(clientIP, clientPort).send(response);
+                } catch (IOException e) {
+                    System.out.printf("Falha ao enviar %s ao Cliente %s:%d: %s%n", response.getResponse(), clientIP, clientPort, e.getMessage());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the server is closing
+        }
+    }
+
+    /**
+     * Start the server to handle client requests.
+     *
+     * In the default {@code nio} mode, a few selector threads serve every connection and hand the
+     * requests to the bounded request executor. In {@code blocking} mode, an accept thread runs each
+     * connection as a {@link ServerServiceThread} on the connection executor.
+     *
+     * @throws IOException exception when binding the server port
+     */
+    public void start() throws IOException {
+        if (!config.getIoMode().equals("blocking")) {
+            nioServer = new NioServer(serverPort, config.getIoThreads(), requestExecutor, this::handleRequest);
+            nioServer.start();
+            return;
+        }
+
+        serverSocket = new ServerSocket(serverPort);
+
+        Thread acceptThread = new Thread(() -> acceptConnections(serverSocket), "accept-" + serverPort);
+        acceptThread.start();
+    }
+
+    /**
+     * Stop serving requests and release the connections and threads of the server.
+     */
+    public void close() {
+        try {
+            if (nioServer != null) {
+                nioServer.close();
+            }
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        if (replicator != null) {
+            writeBatcher.close();
+            replicator.close();
+        }
+
+        election.close();
+        scheduler.shutdownNow();
+        watches.close();
+
+        connections.closeAll();
+        requestExecutor.shutdownNow();
+        replicationExecutor.shutdownNow();
+
+        if (connectionExecutor != null) {
+            connectionExecutor.shutdownNow();
+        }
+
+        if (wal != null) {
+            wal.close();
+        }
+
+        keyValueStore.close();
+
+        synchronized (replicationLock) {
+            if (transferStore != null) {
+                transferStore.close();
+            }
+        }
+    }
+
+    /**
+     * Accept the connections and serve each one on the connection executor.
+     *
+     * @param serverSocket the server socket
+     */
+    private void acceptConnections(ServerSocket serverSocket) {
+        try {
+            while (true) {
+                Socket node = serverSocket.accept();
+
+                connectionExecutor.execute(new ServerServiceThread(node));
+            }
+        } catch (IOException e) {
+            if (!serverSocket.isClosed()) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Print the memory used by the store and, on the leader, the batch size and commit latency
+     * distributions of the last interval.
+     */
+    private void reportMetrics() {
+        if (writeBatcher != null) {
+            Histogram batchSizes = writeBatcher.getBatchSizes();
+            Histogram commitLatencies = writeBatcher.getCommitLatencies();
+
+            System.out.printf("METRICS batch size %s | commit latency (us) %s%n", batchSizes, commitLatencies);
+
+            batchSizes.reset();
+            commitLatencies.reset();
+        }
+
+        long keys = keyValueStore.size();
+        long bytes = keyValueStore.getBytesUsed();
+
+        System.out.printf("STORAGE keys=%d bytes=%d bytes/key=%.1f%n", keys, bytes, keys == 0 ? 0.0 : (double) bytes / keys);
+    }
+
+    /**
+     * Create the storage engine selected by the configuration.
+     *
+     * @return the storage engine
+     */
+    private StorageEngine createStorageEngine() {
+        return createStorageEngine(STORAGE_NAME);
+    }
+
+    /**
+     * Create the path index of a store: the store itself when it keeps its keys in order, a sorted
+     * copy of its keys on the heap when the configuration allows it, or none.
+     *
+     * @param store the store
+     * @return the path index, or null when LIST_CHILDREN and SCAN are refused
+     */
+    private PathIndex createPathIndex(StorageEngine store) {
+        if (store.isSorted()) {
+            return new PathIndex(store);
+        }
+
+        return config.isNamespaceIndex() ? new PathIndex() : null;
+    }
+
+    /**
+     * Create a storage engine, for the store or for the staging store of a state transfer.
+     *
+     * @param name the name of the subdirectory of the data directory used by the {@code lsm} engine
+     * @return the storage engine
+     */
+    private StorageEngine createStorageEngine(String name) {
+        if (config.getStorageEngine().equals("offheap")) {
+            return new OffHeapStorageEngine(config.getStorageMaxBytes());
+        }
+        if (config.getStorageEngine().equals("lsm")) {
+            try {
+                // the segments are rebuilt by the recovery, so without a data directory they go to a temporary one
+                Path directory = config.getDataDir().equals("none")
+                        ? Files.createTempDirectory("zookeeper-lsm")
+                        : Paths.get(config.getDataDir(), serverIP + "_" + serverPort, name);
+                return new LsmStorageEngine(directory, config.getStorageMemtableBytes());
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        return new HeapStorageEngine();
+    }
+
+    /**
+     * Get the current server IP address.
+     *
+     * @return the server IP address.
+     */
+    public String getServerIP() {
+        return this.serverIP;
+    }
+
+    /**
+     * Get the current server port.
+     *
+     * @return the server port
+     */
+    public int getServerPort() {
+        return this.serverPort;
+    }
+
+    /**
+     * Check if the current server is a leader.
+     *
+     * @return true if it is a leader, false otherwise
+     */
+    public boolean isLeader() {
+        return leading;
+    }
+
+    /**
+     * Get the current election term.
+     *
+     * @return the term
+     */
+    public long getTerm() {
+        return election.getTerm();
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            throw new IllegalArgumentException("Usage: java Server <IP>:<port> [<leader IP>:<leader port>]");
+        }
+
+        String serverInfo = args[0];
+        String leaderInfo = args.length > 1 ? args[1] : null;
+
+        Server server = new Server(serverInfo, leaderInfo);
+
+        try {
+            server.start();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
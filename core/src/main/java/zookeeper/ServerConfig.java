@@ -0,0 +1,308 @@
+package zookeeper;
+
+import java.util.Properties;
+
+/**
+ * Server settings, read from {@code zookeeper.*} properties with sensible defaults.
+ *
+ * By default the properties are the JVM system properties, so they can be set on the command
+ * line with {@code -Dzookeeper.<name>=<value>}.
+ */
+public class ServerConfig {
+    private final Properties properties;
+
+    /**
+     * Create the configuration from the system properties.
+     */
+    public ServerConfig() {
+        this(System.getProperties());
+    }
+
+    /**
+     * Create the configuration from the specified properties.
+     *
+     * @param properties the properties
+     */
+    public ServerConfig(Properties properties) {
+        this.properties = properties;
+    }
+
+    /**
+     * Get the I/O mode: {@code nio} for the selector event loops, {@code blocking} for one
+     * thread per connection.
+     *
+     * @return the I/O mode
+     */
+    public String getIoMode() {
+        return get("server.io", "nio");
+    }
+
+    /**
+     * Get the number of selector threads of the NIO server.
+     *
+     * @return the number of I/O threads
+     */
+    public int getIoThreads() {
+        return getInt("server.ioThreads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    }
+
+    /**
+     * Get the number of threads that handle requests in NIO mode.
+     *
+     * @return the number of worker threads
+     */
+    public int getWorkerThreads() {
+        return getInt("server.workerThreads", Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    /**
+     * Get the number of requests that can wait for a worker before the server stops reading.
+     *
+     * @return the worker queue size
+     */
+    public int getWorkerQueueSize() {
+        return getInt("server.workerQueueSize", 1024);
+    }
+
+    /**
+     * Get the thread mode of blocking connections and replication tasks: {@code platform} or
+     * {@code virtual}.
+     *
+     * @return the thread mode
+     */
+    public String getThreadMode() {
+        return get("server.threads", ThreadMode.PLATFORM);
+    }
+
+    /**
+     * Get how long a server waits for another server or a client to accept a connection.
+     *
+     * @return the connect timeout in milliseconds
+     */
+    public int getConnectTimeoutMillis() {
+        return getInt("connection.connectTimeoutMillis", Connection.DEFAULT_CONNECT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Get how long the leader waits for more PUTs after the first PUT of a batch.
+     *
+     * @return the batch window in milliseconds
+     */
+    public long getBatchWindowMillis() {
+        return getInt("batch.windowMillis", 1);
+    }
+
+    /**
+     * Get the maximum number of PUTs replicated in one batch.
+     *
+     * @return the maximum batch size
+     */
+    public int getBatchMaxSize() {
+        return getInt("batch.maxSize", 512);
+    }
+
+    /**
+     * Get the maximum number of PUTs waiting for a batch on the leader. The PUTs beyond it are
+     * answered TRY_OTHER_SERVER_OR_LATER.
+     *
+     * @return the maximum queue size
+     */
+    public int getBatchMaxQueued() {
+        return getInt("batch.maxQueued", 65536);
+    }
+
+    /**
+     * Get the initial members of the cluster, leader included. Once the membership is changed with
+     * ADD_SERVER or REMOVE_SERVER, the replicated membership replaces this list.
+     *
+     * @return the servers as comma-separated IP:port pairs
+     */
+    public String getClusterServers() {
+        return get("cluster.servers", "127.0.0.1:10097,127.0.0.1:10098,127.0.0.1:10099");
+    }
+
+    /**
+     * Get how long a member waits without hearing from a leader before it runs for leader. The
+     * actual wait is randomized between one and two timeouts.
+     *
+     * @return the election timeout in milliseconds
+     */
+    public long getElectionTimeoutMillis() {
+        return getLong("election.timeoutMillis", 1000);
+    }
+
+    /**
+     * Get the interval between two heartbeats of the leader.
+     *
+     * @return the heartbeat interval in milliseconds
+     */
+    public long getElectionHeartbeatMillis() {
+        return getLong("election.heartbeatMillis", 100);
+    }
+
+    /**
+     * Get the follower acknowledgements needed before the leader sends PUT_OK.
+     *
+     * @return the ack policy: all, majority or a number of followers
+     */
+    public AckPolicy getAckPolicy() {
+        return AckPolicy.parse(get("replication.ackPolicy", "all"));
+    }
+
+    /**
+     * Get the number of unacknowledged entries the leader keeps for a follower. A follower that
+     * misses more entries receives a state transfer when it reconnects.
+     *
+     * @return the maximum backlog per follower
+     */
+    public int getReplicationMaxBacklog() {
+        return getInt("replication.maxBacklog", 100000);
+    }
+
+    /**
+     * Get the interval of the metrics report printed by the leader, 0 to disable it.
+     *
+     * @return the interval in seconds
+     */
+    public int getMetricsIntervalSeconds() {
+        return getInt("metrics.intervalSeconds", 0);
+    }
+
+    /**
+     * Get the directory of the write-ahead logs and snapshots. Each server uses a subdirectory
+     * named after its address; {@code none} disables persistence.
+     *
+     * @return the data directory
+     */
+    public String getDataDir() {
+        return get("dataDir", "data");
+    }
+
+    /**
+     * Check if appended log records are synced to disk before they are acknowledged.
+     *
+     * @return true to fsync the write-ahead log, false to leave it to the OS
+     */
+    public boolean isWalFsync() {
+        return Boolean.parseBoolean(get("wal.fsync", "true").trim());
+    }
+
+    /**
+     * Get the number of log records appended between two snapshots.
+     *
+     * @return the snapshot interval in records
+     */
+    public int getSnapshotIntervalRecords() {
+        return getInt("snapshot.intervalRecords", 10000);
+    }
+
+    /**
+     * Get the storage engine of the keys: {@code heap} for a map on the Java heap, {@code offheap}
+     * for arenas outside the heap, {@code lsm} for memory-mapped segment files.
+     *
+     * @return the storage engine
+     */
+    public String getStorageEngine() {
+        return get("storage.engine", "heap");
+    }
+
+    /**
+     * Get the maximum memory of the off-heap storage engine.
+     *
+     * @return the maximum memory in bytes
+     */
+    public long getStorageMaxBytes() {
+        return getLong("storage.maxBytes", 1L << 30);
+    }
+
+    /**
+     * Get the memtable size after which the LSM storage engine flushes it to a segment.
+     *
+     * @return the memtable size in bytes
+     */
+    public long getStorageMemtableBytes() {
+        return getLong("storage.memtableBytes", 64L << 20);
+    }
+
+    /**
+     * Check if the hash-based storage engines keep a sorted copy of their keys on the heap, for
+     * LIST_CHILDREN and SCAN. The LSM engine serves them from its own order and needs no copy.
+     *
+     * @return true to keep the copy, false to refuse LIST_CHILDREN and SCAN on those engines
+     */
+    public boolean isNamespaceIndex() {
+        return Boolean.parseBoolean(get("namespace.index", "true").trim());
+    }
+
+    /**
+     * Get the maximum number of keys of a SCAN or LIST_CHILDREN page.
+     *
+     * @return the maximum page size
+     */
+    public int getScanMaxPageSize() {
+        return getInt("scan.maxPageSize", 1000);
+    }
+
+    /**
+     * Get the resolution of the session expiry, which is also the interval at which followers
+     * forward the heartbeats they received to the leader.
+     *
+     * @return the tick in milliseconds
+     */
+    public long getSessionTickMillis() {
+        return getLong("session.tickMillis", 100);
+    }
+
+    /**
+     * Get the minimum timeout granted to a session.
+     *
+     * @return the minimum timeout in milliseconds
+     */
+    public long getSessionMinTimeoutMillis() {
+        return getLong("session.minTimeoutMillis", 2000);
+    }
+
+    /**
+     * Get the maximum timeout granted to a session.
+     *
+     * @return the maximum timeout in milliseconds
+     */
+    public long getSessionMaxTimeoutMillis() {
+        return getLong("session.maxTimeoutMillis", 60000);
+    }
+
+    /**
+     * Get a property value.
+     *
+     * @param name the property name, without the {@code zookeeper.} prefix
+     * @param defaultValue the value used when the property is not set
+     * @return the property value
+     */
+    private String get(String name, String defaultValue) {
+        return properties.getProperty("zookeeper." + name, defaultValue);
+    }
+
+    /**
+     * Get an integer property value.
+     *
+     * @param name the property name, without the {@code zookeeper.} prefix
+     * @param defaultValue the value used when the property is not set
+     * @return the property value
+     */
+    private int getInt(String name, int defaultValue) {
+        String value = get(name, null);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    /**
+     * Get a long property value.
+     *
+     * @param name the property name, without the {@code zookeeper.} prefix
+     * @param defaultValue the value used when the property is not set
+     * @return the property value
+     */
+    private long getLong(String name, long defaultValue) {
+        String value = get(name, null);
+        return value == null ? defaultValue : Long.parseLong(value.trim());
+    }
+}
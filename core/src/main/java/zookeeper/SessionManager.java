@@ -0,0 +1,370 @@
+package zookeeper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Client sessions of the leader and the ephemeral keys they own.
+ *
+ * A heartbeat only moves the deadline of its session, and the session stays at its old place in a
+ * {@link TimingWheel}. When the wheel reaches that place, a session whose deadline moved is
+ * scheduled again, and a session whose deadline passed expires: its ephemeral keys are removed
+ * with a SESSION_CLOSE write, replicated like any other write.
+ *
+ * The sessions are also written to the store, so every server holds them: a session is the key
+ * {@code /zookeeper/sessions/<id>} with its timeout as value, and each ephemeral key has an owner
+ * key {@code /zookeeper/sessions/<id>/<key>}. The leader writes them with the session and key
+ * writes, and a new leader rebuilds its sessions from them with {@link #recover(Iterator)}.
+ */
+public class SessionManager {
+    /** Prefix of the keys holding the sessions and the owners of the ephemeral keys. */
+    public static final String PREFIX = "/zookeeper/sessions/";
+
+    private final ConcurrentHashMap<Long, Session> sessions = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Long> owners = new ConcurrentHashMap<>();
+    private final TimingWheel<Session> wheel;
+    private final AtomicLong nextId;
+    private final long minTimeoutMillis;
+    private final long maxTimeoutMillis;
+    private final Consumer<Message> writer;
+
+    /**
+     * A client session, its timeout and its ephemeral keys.
+     */
+    private static class Session {
+        final long id;
+        final long timeoutMillis;
+        final Set<String> keys = new HashSet<>();
+        volatile long deadline;
+        boolean expired;
+
+        Session(long id, long timeoutMillis, long deadline) {
+            this.id = id;
+            this.timeoutMillis = timeoutMillis;
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * Create the session manager of the leader.
+     *
+     * @param tickMillis the resolution of the expiry
+     * @param minTimeoutMillis the minimum session timeout
+     * @param maxTimeoutMillis the maximum session timeout
+     * @param writer submits the SESSION_CLOSE writes of the expired sessions
+     */
+    public SessionManager(long tickMillis, long minTimeoutMillis, long maxTimeoutMillis, Consumer<Message> writer) {
+        long now = System.currentTimeMillis();
+
+        this.wheel = new TimingWheel<>(tickMillis, now);
+        // IDs start from the current time, so they are not reused after a restart
+        this.nextId = new AtomicLong(now << 16);
+        this.minTimeoutMillis = minTimeoutMillis;
+        this.maxTimeoutMillis = maxTimeoutMillis;
+        this.writer = writer;
+    }
+
+    /**
+     * Open a session.
+     *
+     * @param timeoutMillis the timeout asked by the client
+     * @return the session ID
+     */
+    public long open(long timeoutMillis) {
+        long timeout = Math.max(minTimeoutMillis, Math.min(maxTimeoutMillis, timeoutMillis));
+        long deadline = System.currentTimeMillis() + timeout;
+        Session session = new Session(nextId.incrementAndGet(), timeout, deadline);
+
+        sessions.put(session.id, session);
+        wheel.schedule(session, deadline);
+
+        return session.id;
+    }
+
+    /**
+     * Rebuild the sessions and the owners of the ephemeral keys from the keys written by a previous
+     * leader. The deadline of a recovered session is unknown, so each one gets a whole timeout from
+     * now, the time for its client to reach this leader. An owner key without its session gets a
+     * session with the minimum timeout, so its key still expires.
+     *
+     * @param entries the stored entries, of which the ones below {@link #PREFIX} are read
+     * @return the number of sessions recovered
+     */
+    public int recover(Iterator<Message.Entry> entries) {
+        Map<Long, Long> timeouts = new HashMap<>();
+        Map<String, Long> keys = new HashMap<>();
+
+        while (entries.hasNext()) {
+            Message.Entry entry = entries.next();
+
+            if (!isSessionKey(entry.getKey())) {
+                continue;
+            }
+
+            String name = entry.getKey().substring(PREFIX.length());
+            int separator = name.indexOf('/');
+
+            try {
+                if (separator < 0) {
+                    timeouts.put(Long.parseLong(name), Long.parseLong(entry.getValue()));
+                } else {
+                    keys.put(name.substring(separator + 1), Long.parseLong(name.substring(0, separator)));
+                }
+            } catch (NumberFormatException e) {
+                System.out.printf("Registro de sessão inválido %s%n", entry.getKey());
+            }
+        }
+
+        long now = System.currentTimeMillis();
+
+        for (Map.Entry<String, Long> owned : keys.entrySet()) {
+            timeouts.putIfAbsent(owned.getValue(), minTimeoutMillis);
+        }
+
+        for (Map.Entry<Long, Long> recovered : timeouts.entrySet()) {
+            long timeout = Math.max(minTimeoutMillis, Math.min(maxTimeoutMillis, recovered.getValue()));
+            Session session = new Session(recovered.getKey(), timeout, now + timeout);
+
+            sessions.put(session.id, session);
+            wheel.schedule(session, session.deadline);
+            nextId.accumulateAndGet(session.id, Math::max);
+        }
+
+        for (Map.Entry<String, Long> owned : keys.entrySet()) {
+            sessions.get(owned.getValue()).keys.add(owned.getKey());
+            owners.put(owned.getKey(), owned.getValue());
+        }
+
+        return timeouts.size();
+    }
+
+    /**
+     * Drop a session whose opening was not committed, without any write.
+     *
+     * @param sessionId the session ID
+     */
+    public void discard(long sessionId) {
+        Session session = sessions.remove(sessionId);
+
+        if (session != null) {
+            synchronized (session) {
+                session.expired = true;
+            }
+        }
+    }
+
+    /**
+     * Get the key holding a session.
+     *
+     * @param sessionId the session ID
+     * @return the key
+     */
+    public static String sessionKey(long sessionId) {
+        return PREFIX + sessionId;
+    }
+
+    /**
+     * Get the key recording the owner of an ephemeral key.
+     *
+     * @param sessionId the session owning the key
+     * @param key the ephemeral key
+     * @return the owner key
+     */
+    public static String ownerKey(long sessionId, String key) {
+        return PREFIX + sessionId + "/" + key;
+    }
+
+    /**
+     * Check if a key holds a session or the owner of an ephemeral key.
+     *
+     * @param key the key
+     * @return true if the key is written by the sessions only, false otherwise
+     */
+    public static boolean isSessionKey(String key) {
+        return key != null && key.startsWith(PREFIX);
+    }
+
+    /**
+     * Get the timeout of a session.
+     *
+     * @param sessionId the session ID
+     * @return the timeout in milliseconds, or 0 when the session does not exist
+     */
+    public long getTimeout(long sessionId) {
+        Session session = sessions.get(sessionId);
+        return session == null ? 0 : session.timeoutMillis;
+    }
+
+    /**
+     * Renew a session for one more timeout.
+     *
+     * @param sessionId the session ID
+     * @return true if the session is alive, false if it expired or does not exist
+     */
+    public boolean touch(long sessionId) {
+        Session session = sessions.get(sessionId);
+
+        if (session == null) {
+            return false;
+        }
+
+        session.deadline = System.currentTimeMillis() + session.timeoutMillis;
+        return true;
+    }
+
+    /**
+     * Close a session now, removing its ephemeral keys.
+     *
+     * @param sessionId the session ID
+     */
+    public void close(long sessionId) {
+        Session session = sessions.get(sessionId);
+
+        if (session != null) {
+            expire(session);
+        }
+    }
+
+    /**
+     * Make a session the owner of an ephemeral key. Called by the write path of the leader.
+     *
+     * @param sessionId the session ID
+     * @param key the key
+     * @return true if the key is owned, false if the session expired or does not exist
+     */
+    public boolean own(long sessionId, String key) {
+        Session session = sessions.get(sessionId);
+
+        if (session == null) {
+            return false;
+        }
+
+        synchronized (session) {
+            if (session.expired) {
+                return false;
+            }
+            session.keys.add(key);
+        }
+
+        owners.put(key, sessionId);
+        return true;
+    }
+
+    /**
+     * Make a key persistent again, after a write without session or a removal. Called by the write
+     * path of the leader.
+     *
+     * @param key the key
+     */
+    public void disown(String key) {
+        owners.remove(key);
+    }
+
+    /**
+     * Get the session owning a key.
+     *
+     * @param key the key
+     * @return the session ID, or 0 when the key is persistent
+     */
+    public long getOwner(String key) {
+        Long owner = owners.get(key);
+        return owner == null ? 0 : owner;
+    }
+
+    /**
+     * Give a key back to the owner it had before a write that was not applied.
+     *
+     * @param key the key
+     * @param sessionId the previous owner, or 0 when the key was persistent
+     */
+    public void restoreOwner(String key, long sessionId) {
+        if (sessionId == 0) {
+            owners.remove(key);
+        } else {
+            owners.put(key, sessionId);
+        }
+    }
+
+    /**
+     * Check if a key is still owned by a session, so its removal on expiry does not remove a key
+     * written again since then.
+     *
+     * @param key the key
+     * @param sessionId the session ID
+     * @return true if the session owns the key, false otherwise
+     */
+    public boolean isOwner(String key, long sessionId) {
+        Long owner = owners.get(key);
+        return owner != null && owner == sessionId;
+    }
+
+    /**
+     * Get the number of open sessions.
+     *
+     * @return the number of sessions
+     */
+    public int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Expire the sessions whose deadline passed. Called on every tick.
+     */
+    public void expireSessions() {
+        long now = System.currentTimeMillis();
+
+        for (Session session : wheel.advance(now)) {
+            if (session.expired) {
+                continue;
+            }
+
+            long deadline = session.deadline;
+
+            if (deadline > now) {
+                wheel.schedule(session, deadline);
+            } else {
+                expire(session);
+            }
+        }
+    }
+
+    /**
+     * Expire a session and submit its removal with its ephemeral keys, as a SESSION_CLOSE write
+     * that carries the keys as entries.
+     *
+     * @param session the session
+     */
+    private void expire(Session session) {
+        List<String> keys;
+
+        synchronized (session) {
+            if (session.expired) {
+                return;
+            }
+            session.expired = true;
+            keys = new ArrayList<>(session.keys);
+        }
+
+        sessions.remove(session.id);
+        System.out.printf("Sessão %d expirada, removendo %d keys efêmeras%n", session.id, keys.size());
+
+        List<Message.Entry> entries = new ArrayList<>(keys.size());
+
+        for (String key : keys) {
+            entries.add(new Message.Entry(key, null, 0));
+        }
+
+        Message close = new Message(Message.Operation.SESSION_CLOSE, null, null, null, 0);
+        close.setSessionId(session.id);
+        close.setEntries(entries);
+        writer.accept(close);
+    }
+}
@@ -0,0 +1,384 @@
+package zookeeper;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Memory-mapped snapshot of the key-value store.
+ *
+ * A snapshot named {@code snapshot.<segment id>} holds every entry of the store and the first
+ * write-ahead log segment to replay after loading it. Snapshots are fuzzy: the store keeps changing
+ * while it is written, which is harmless because replaying the log from that segment applies the
+ * same writes again, in order.
+ *
+ * The file starts with a header (magic, version, segment ID, leader epoch, applied index, entry
+ * count, data length and CRC32 of the data), followed by the entries.
+ */
+public class Snapshot {
+    private static final String PREFIX = "snapshot.";
+    private static final int MAGIC = 0x5a4b534e;
+    private static final byte VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 1 + 8 + 8 + 8 + 8 + 8 + 4;
+    private static final int REGION_SIZE = 8 * 1024 * 1024;
+    private static final int RETAINED = 2;
+
+    private final long segmentId;
+    private final long epoch;
+    private final long appliedIndex;
+    private final long count;
+
+    private Snapshot(long segmentId, long epoch, long appliedIndex, long count) {
+        this.segmentId = segmentId;
+        this.epoch = epoch;
+        this.appliedIndex = appliedIndex;
+        this.count = count;
+    }
+
+    /**
+     * Get the first log segment to replay after this snapshot.
+     *
+     * @return the segment ID
+     */
+    public long getSegmentId() {
+        return segmentId;
+    }
+
+    /**
+     * Get the leader epoch of the last entry applied before the snapshot.
+     *
+     * @return the leader epoch
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Get the log index of the last entry applied before the snapshot.
+     *
+     * @return the applied index
+     */
+    public long getAppliedIndex() {
+        return appliedIndex;
+    }
+
+    /**
+     * Get the number of entries of the snapshot.
+     *
+     * @return the entry count
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Write a snapshot through a memory-mapped file, one region after the other.
+     *
+     * The snapshot is written to a temporary file, cut to the length of its data, synced and then
+     * renamed, and the directory is synced after the rename, so a crash never leaves a partial
+     * snapshot behind nor loses a snapshot that replaced the log it covers.
+     *
+     * @param directory the data directory
+     * @param segmentId the first log segment to replay after this snapshot
+     * @param epoch the leader epoch of the last applied entry
+     * @param appliedIndex the log index of the last applied entry
+     * @param entries the entries of the store
+     * @return the snapshot
+     * @throws IOException exception when writing the file
+     */
+    public static Snapshot write(Path directory, long segmentId, long epoch, long appliedIndex, Iterator<Message.Entry> entries) throws IOException {
+        Path temporary = directory.resolve(PREFIX + segmentId + ".tmp");
+        long count = 0;
+        long length = HEADER_SIZE;
+        CRC32 crc = new CRC32();
+
+        try (FileChannel file = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer region = file.map(FileChannel.MapMode.READ_WRITE, 0, REGION_SIZE);
+            long regionStart = 0;
+            region.position(HEADER_SIZE);
+
+            while (entries.hasNext()) {
+                Message.Entry entry = entries.next();
+                byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                byte[] value = entry.getValue() == null ? null : entry.getValue().getBytes(StandardCharsets.UTF_8);
+                int size = 4 + key.length + 8 + 4 + (value == null ? 0 : value.length);
+
+                if (region.remaining() < size) {
+                    region.force();
+                    regionStart += region.position();
+                    region = file.map(FileChannel.MapMode.READ_WRITE, regionStart, Math.max(REGION_SIZE, size));
+                }
+
+                int start = region.position();
+
+                region.putInt(key.length).put(key);
+                region.putLong(entry.getTimestamp());
+
+                if (value == null) {
+                    region.putInt(-1);
+                } else {
+                    region.putInt(value.length).put(value);
+                }
+
+                crc.update(region.duplicate().position(start).limit(region.position()));
+                length += size;
+                count++;
+            }
+
+            region.force();
+
+            MappedByteBuffer header = file.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            header.putInt(MAGIC).put(VERSION);
+            header.putLong(segmentId).putLong(epoch).putLong(appliedIndex).putLong(count).putLong(length);
+            header.putInt((int) crc.getValue());
+            header.force();
+
+            // the last region is mapped past the data, which grew the file with zeros
+            file.truncate(length);
+            file.force(true);
+        }
+
+        Files.move(temporary, directory.resolve(PREFIX + segmentId), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        syncDirectory(directory);
+
+        return new Snapshot(segmentId, epoch, appliedIndex, count);
+    }
+
+    /**
+     * Load the newest valid snapshot of the directory.
+     *
+     * @param directory the data directory
+     * @param consumer the consumer of the snapshot entries
+     * @return the snapshot, or null when there is no valid snapshot
+     * @throws IOException exception when reading a file
+     */
+    public static Snapshot loadLatest(Path directory, Consumer<Message.Entry> consumer) throws IOException {
+        List<Long> snapshots = list(directory);
+
+        for (int i = snapshots.size() - 1; i >= 0; i--) {
+            Path path = directory.resolve(PREFIX + snapshots.get(i));
+
+            try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+                Snapshot snapshot = read(file, consumer);
+
+                if (snapshot != null) {
+                    return snapshot;
+                }
+            }
+
+            System.out.printf("Snapshot %s inválido, ignorando%n", path.getFileName());
+        }
+
+        return null;
+    }
+
+    /**
+     * Delete the old snapshots, keeping the newest ones.
+     *
+     * @param directory the data directory
+     * @return the first log segment still needed by the retained snapshots
+     * @throws IOException exception when deleting a file
+     */
+    public static long prune(Path directory) throws IOException {
+        List<Long> snapshots = list(directory);
+        int retainedFrom = Math.max(0, snapshots.size() - RETAINED);
+
+        for (int i = 0; i < retainedFrom; i++) {
+            Files.deleteIfExists(directory.resolve(PREFIX + snapshots.get(i)));
+        }
+
+        return snapshots.isEmpty() ? 0 : snapshots.get(retainedFrom);
+    }
+
+    /**
+     * Read and validate a snapshot, handing its entries to the consumer.
+     *
+     * The file is mapped one region at a time, so snapshots larger than a single mapping can be
+     * read. The checksum is verified before any entry is handed out, so an invalid snapshot leaves
+     * the store untouched.
+     *
+     * @param file the snapshot file
+     * @param consumer the consumer of the entries
+     * @return the snapshot, or null when the file is invalid
+     * @throws IOException exception when reading the file
+     */
+    private static Snapshot read(FileChannel file, Consumer<Message.Entry> consumer) throws IOException {
+        long size = file.size();
+
+        if (size < HEADER_SIZE) {
+            return null;
+        }
+
+        MappedByteBuffer header = file.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+
+        if (header.getInt() != MAGIC || header.get() != VERSION) {
+            return null;
+        }
+
+        long segmentId = header.getLong();
+        long epoch = header.getLong();
+        long appliedIndex = header.getLong();
+        long count = header.getLong();
+        long length = header.getLong();
+        int expected = header.getInt();
+
+        if (length < HEADER_SIZE || length > size) {
+            return null;
+        }
+
+        CRC32 crc = new CRC32();
+
+        for (long position = HEADER_SIZE; position < length; position += REGION_SIZE) {
+            crc.update(file.map(FileChannel.MapMode.READ_ONLY, position, Math.min(REGION_SIZE, length - position)));
+        }
+
+        if ((int) crc.getValue() != expected) {
+            return null;
+        }
+
+        RegionReader data = new RegionReader(file, HEADER_SIZE, length);
+
+        for (long i = 0; i < count; i++) {
+            String key = data.getString(data.getInt());
+            long timestamp = data.getLong();
+            String value = data.getString(data.getInt());
+
+            consumer.accept(new Message.Entry(key, value, timestamp));
+        }
+
+        return new Snapshot(segmentId, epoch, appliedIndex, count);
+    }
+
+    /**
+     * Sync a directory, so the renames made in it survive a crash.
+     *
+     * @param directory the directory
+     * @throws IOException exception when syncing the directory
+     */
+    private static void syncDirectory(Path directory) throws IOException {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * List the segment IDs of the snapshots of the directory, in order.
+     *
+     * @param directory the data directory
+     * @return the snapshot segment IDs
+     * @throws IOException exception when listing the directory
+     */
+    private static List<Long> list(Path directory) throws IOException {
+        List<Long> snapshots = new ArrayList<>();
+
+        try (DirectoryStream<Path> paths = Files.newDirectoryStream(directory, PREFIX + "*")) {
+            for (Path path : paths) {
+                try {
+                    snapshots.add(Long.parseLong(path.getFileName().toString().substring(PREFIX.length())));
+                } catch (NumberFormatException e) {
+                    // temporary or foreign file
+                }
+            }
+        }
+
+        Collections.sort(snapshots);
+        return snapshots;
+    }
+
+    /**
+     * Sequential reader of the data of a snapshot, mapping the next region of the file when the
+     * current one does not hold the whole next field.
+     */
+    private static class RegionReader {
+        private final FileChannel file;
+        private final long end;
+        private long regionStart;
+        private MappedByteBuffer region;
+
+        /**
+         * Create a reader of a part of a file.
+         *
+         * @param file the file
+         * @param start the position of the first byte to read
+         * @param end the position after the last byte to read
+         */
+        RegionReader(FileChannel file, long start, long end) {
+            this.file = file;
+            this.regionStart = start;
+            this.end = end;
+        }
+
+        /**
+         * Read an int.
+         *
+         * @return the int
+         * @throws IOException exception when reading past the end
+         */
+        int getInt() throws IOException {
+            return require(4).getInt();
+        }
+
+        /**
+         * Read a long.
+         *
+         * @return the long
+         * @throws IOException exception when reading past the end
+         */
+        long getLong() throws IOException {
+            return require(8).getLong();
+        }
+
+        /**
+         * Read a UTF-8 string of the specified length.
+         *
+         * @param length the length in bytes, -1 for null
+         * @return the string
+         * @throws IOException exception when reading past the end
+         */
+        String getString(int length) throws IOException {
+            if (length < 0) {
+                return null;
+            }
+
+            byte[] bytes = new byte[length];
+            require(length).get(bytes);
+
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Get the region holding the next bytes, mapping the following region when needed.
+         *
+         * @param size the number of bytes to read
+         * @return the region, positioned at the next byte
+         * @throws IOException exception when reading past the end
+         */
+        private MappedByteBuffer require(int size) throws IOException {
+            if (region == null || region.remaining() < size) {
+                long position = region == null ? regionStart : regionStart + region.position();
+
+                if (end - position < size) {
+                    throw new IOException("Snapshot entry past the end of the data");
+                }
+
+                regionStart = position;
+                region = file.map(FileChannel.MapMode.READ_ONLY, position, Math.min(end - position, Math.max(REGION_SIZE, size)));
+            }
+
+            return region;
+        }
+    }
+}
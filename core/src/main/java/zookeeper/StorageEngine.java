@@ -0,0 +1,92 @@
+package zookeeper;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * Storage of the versioned values of the keys of a server.
+ *
+ * Implementations are thread-safe. Iteration is weakly consistent: it sees every key stored before
+ * it started and may or may not see the later writes. Engines that keep their keys in order also
+ * iterate over a range of keys.
+ */
+public interface StorageEngine extends Closeable {
+    /**
+     * Get the version of a key.
+     *
+     * @param key the key
+     * @return the version, or null when the key is not stored
+     */
+    VersionedValue get(String key);
+
+    /**
+     * Store a version of a key, unless a newer version is already stored (last writer wins).
+     *
+     * @param key the key
+     * @param value the version
+     */
+    void put(String key, VersionedValue value);
+
+    /**
+     * Store a version of a key, replacing the stored version whatever its timestamp.
+     *
+     * @param key the key
+     * @param value the version
+     */
+    void replace(String key, VersionedValue value);
+
+    /**
+     * Remove a key.
+     *
+     * @param key the key
+     */
+    void remove(String key);
+
+    /**
+     * Get the number of keys stored.
+     *
+     * @return the number of keys
+     */
+    long size();
+
+    /**
+     * Iterate over the stored keys and their versions.
+     *
+     * @return the iterator of the entries
+     */
+    Iterator<Message.Entry> entries();
+
+    /**
+     * Check if the engine keeps its keys in order, so it serves ranges of keys with
+     * {@link #keys(String)}.
+     *
+     * @return true if the keys are kept in order, false otherwise
+     */
+    default boolean isSorted() {
+        return false;
+    }
+
+    /**
+     * Iterate over the stored keys in order, from a key on.
+     *
+     * @param from the first key, included when it is stored
+     * @return the iterator of the keys
+     * @throws UnsupportedOperationException when the engine does not keep its keys in order
+     */
+    default Iterator<String> keys(String from) {
+        throw new UnsupportedOperationException("The storage engine does not keep its keys in order");
+    }
+
+    /**
+     * Get the memory used by the stored keys, values and index.
+     *
+     * @return the memory used in bytes
+     */
+    long getBytesUsed();
+
+    /**
+     * Release the memory and files of the engine.
+     */
+    @Override
+    void close();
+}
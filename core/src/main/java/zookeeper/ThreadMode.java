@@ -0,0 +1,88 @@
+package zookeeper;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Create the executors of the {@code platform} and {@code virtual} thread modes.
+ *
+ * Virtual threads are looked up at runtime, so the code still compiles and runs on JDKs without
+ * them. The {@code virtual} mode needs JDK 21 or later: on an older JDK the server refuses to start
+ * instead of running with unbounded platform threads it was not configured for.
+ */
+public class ThreadMode {
+    public static final String PLATFORM = "platform";
+    public static final String VIRTUAL = "virtual";
+
+    private static final Method newVirtualThreadPerTaskExecutor = findVirtualThreadPerTaskExecutor();
+
+    private ThreadMode() {}
+
+    /**
+     * Check if the JVM supports virtual threads.
+     *
+     * @return true if virtual threads are available, false otherwise
+     */
+    public static boolean isVirtualSupported() {
+        return newVirtualThreadPerTaskExecutor != null;
+    }
+
+    /**
+     * Create an executor that starts a thread per task.
+     *
+     * @param mode {@code virtual} for virtual threads, anything else for platform threads
+     * @param name the prefix of the thread names
+     * @return the executor
+     * @throws IllegalStateException if the mode is {@code virtual} and the JVM has no virtual threads
+     */
+    public static ExecutorService newTaskExecutor(String mode, String name) {
+        if (VIRTUAL.equals(mode)) {
+            if (!isVirtualSupported()) {
+                throw new IllegalStateException("Thread mode " + VIRTUAL + " needs JDK 21 or later, this JVM is "
+                        + System.getProperty("java.version"));
+            }
+
+            try {
+                return (ExecutorService) newVirtualThreadPerTaskExecutor.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Could not create virtual threads", e);
+            }
+        }
+
+        return Executors.newCachedThreadPool(new NamedThreadFactory(name));
+    }
+
+    /**
+     * Find the factory method of virtual thread executors.
+     *
+     * @return the method, or null when the JVM has no virtual threads
+     */
+    private static Method findVirtualThreadPerTaskExecutor() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Thread factory that numbers the threads it creates.
+     */
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(String name) {
+            this.name = name;
+        }
+
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package zookeeper;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel, expiring items at their deadline with a fixed tick resolution.
+ *
+ * Each level is a ring of 64 slots; a slot of level 0 covers one tick, and a slot of each next level
+ * covers a whole ring of the level below. An item goes to the lowest level whose ring reaches its
+ * deadline, and when the wheel enters a slot of an upper level, the items of that slot move down a
+ * level. Scheduling is constant time and advancing costs one slot per tick plus the items moved or
+ * expired, whatever the number of items waiting.
+ *
+ * @param <T> the type of the items
+ */
+public class TimingWheel<T> {
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 4;
+
+    private final long tickMillis;
+    private final List<List<ArrayDeque<Timer<T>>>> levels = new ArrayList<>(LEVELS);
+    private long currentTick;
+
+    /**
+     * An item and the tick of its deadline.
+     */
+    private static class Timer<T> {
+        final T item;
+        final long tick;
+
+        Timer(T item, long tick) {
+            this.item = item;
+            this.tick = tick;
+        }
+    }
+
+    /**
+     * Create an empty wheel.
+     *
+     * @param tickMillis the resolution of the deadlines, in milliseconds
+     * @param nowMillis the current time, in milliseconds
+     */
+    public TimingWheel(long tickMillis, long nowMillis) {
+        this.tickMillis = tickMillis;
+        this.currentTick = nowMillis / tickMillis;
+
+        for (int level = 0; level < LEVELS; level++) {
+            List<ArrayDeque<Timer<T>>> slots = new ArrayList<>(SLOTS);
+
+            for (int slot = 0; slot < SLOTS; slot++) {
+                slots.add(new ArrayDeque<>());
+            }
+            levels.add(slots);
+        }
+    }
+
+    /**
+     * Schedule an item. An item whose deadline has passed expires on the next tick.
+     *
+     * @param item the item
+     * @param deadlineMillis the deadline, in milliseconds
+     */
+    public synchronized void schedule(T item, long deadlineMillis) {
+        long tick = Math.max(currentTick + 1, (deadlineMillis + tickMillis - 1) / tickMillis);
+        insert(new Timer<>(item, tick));
+    }
+
+    /**
+     * Move the wheel to the current time.
+     *
+     * @param nowMillis the current time, in milliseconds
+     * @return the items whose deadline has passed
+     */
+    public synchronized List<T> advance(long nowMillis) {
+        List<T> expired = new ArrayList<>();
+        long targetTick = nowMillis / tickMillis;
+
+        while (currentTick < targetTick) {
+            currentTick++;
+
+            // entering a slot of an upper level moves its items down, from the top level to level 1
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((currentTick & ((1L << (level * SLOT_BITS)) - 1)) == 0) {
+                    ArrayDeque<Timer<T>> slot = levels.get(level).get(slotIndex(currentTick, level));
+                    List<Timer<T>> timers = new ArrayList<>(slot);
+                    slot.clear();
+                    timers.forEach(this::insert);
+                }
+            }
+
+            ArrayDeque<Timer<T>> slot = levels.get(0).get(slotIndex(currentTick, 0));
+            Timer<T> timer;
+
+            while ((timer = slot.poll()) != null) {
+                expired.add(timer.item);
+            }
+        }
+
+        return expired;
+    }
+
+    /**
+     * Put a timer in the lowest level whose ring reaches its tick. Ticks beyond the top level wait
+     * in the top level and are placed again when their slot is reached.
+     *
+     * @param timer the timer
+     */
+    private void insert(Timer<T> timer) {
+        long delta = timer.tick - currentTick;
+        int level = 0;
+
+        while (level < LEVELS - 1 && delta >= 1L << ((level + 1) * SLOT_BITS)) {
+            level++;
+        }
+
+        levels.get(level).get(slotIndex(timer.tick, level)).add(timer);
+    }
+
+    /**
+     * Get the slot of a tick in a level.
+     *
+     * @param tick the tick
+     * @param level the level
+     * @return the slot index
+     */
+    private static int slotIndex(long tick, int level) {
+        return (int) ((tick >>> (level * SLOT_BITS)) & (SLOTS - 1));
+    }
+}
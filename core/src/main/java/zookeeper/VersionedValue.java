@@ -0,0 +1,53 @@
+package zookeeper;
+
+/**
+ * Immutable value of a key and the timestamp of the write that produced it.
+ *
+ * The value and its timestamp are replaced together, so a reader never sees the value of one
+ * write with the timestamp of another.
+ */
+public class VersionedValue {
+    private final String value;
+    private final long timestamp;
+
+    /**
+     * Create a versioned value.
+     *
+     * @param value the value
+     * @param timestamp the timestamp of the write
+     */
+    public VersionedValue(String value, long timestamp) {
+        this.value = value;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Get the value.
+     *
+     * @return the value
+     */
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * Get the timestamp of the write.
+     *
+     * @return the timestamp
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Pick the last writer between the current and an incoming version of a key. On equal
+     * timestamps, the incoming version wins, so every replica keeps the last one in log order.
+     *
+     * @param current the stored version
+     * @param incoming the version being written
+     * @return the version to keep
+     */
+    public static VersionedValue lastWriterWins(VersionedValue current, VersionedValue incoming) {
+        return incoming.timestamp >= current.timestamp ? incoming : current;
+    }
+}
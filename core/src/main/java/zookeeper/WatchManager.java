@@ -0,0 +1,195 @@
+package zookeeper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Index of the clients watching each key, and the push of change events to them.
+ *
+ * Each key maps to the set of its subscribers, so an update only looks at the clients watching
+ * that key, and each subscriber keeps the set of its keys, so dropping a client only looks at the
+ * keys it watched. Events are queued per client and drained with one write by a notifier task of
+ * that client, at most one at a time per client, so a client that is slow to connect or to read
+ * delays neither the update nor the other clients. A watch stays until the client cannot be
+ * reached anymore.
+ */
+public class WatchManager {
+    private final ConcurrentHashMap<String, Set<Subscriber>> watchers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Subscriber> subscribers = new ConcurrentHashMap<>();
+    private final ConnectionPool connections;
+    private final String serverIP;
+    private final int serverPort;
+    private final ExecutorService notifier;
+
+    /**
+     * A watching client and the events waiting to be sent to it.
+     */
+    private static class Subscriber {
+        final String IP;
+        final int port;
+        final Set<String> keys = ConcurrentHashMap.newKeySet();
+        final ConcurrentLinkedQueue<Message> events = new ConcurrentLinkedQueue<>();
+        final AtomicBoolean scheduled = new AtomicBoolean();
+        volatile boolean removed;
+
+        Subscriber(String IP, int port) {
+            this.IP = IP;
+            this.port = port;
+        }
+    }
+
+    /**
+     * Create the watch index of a server.
+     *
+     * @param connections the connections of the server, used to reach the clients
+     * @param serverIP the server IP address, sent with the events
+     * @param serverPort the server port, sent with the events
+     */
+    public WatchManager(ConnectionPool connections, String serverIP, int serverPort) {
+        this.connections = connections;
+        this.serverIP = serverIP;
+        this.serverPort = serverPort;
+        AtomicInteger count = new AtomicInteger();
+
+        // a thread per client with events in flight at most, as each client has one task at a time
+        this.notifier = Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, "watch-notifier-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Register a client to the changes of a key.
+     *
+     * @param key the key
+     * @param clientIP the client IP address
+     * @param clientPort the client port
+     */
+    public void watch(String key, String clientIP, int clientPort) {
+        Subscriber subscriber = subscribers.computeIfAbsent(clientIP + ":" + clientPort, address -> new Subscriber(clientIP, clientPort));
+        subscriber.keys.add(key);
+        watchers.compute(key, (k, keyWatchers) -> {
+            if (keyWatchers == null) {
+                keyWatchers = ConcurrentHashMap.newKeySet();
+            }
+            keyWatchers.add(subscriber);
+            return keyWatchers;
+        });
+    }
+
+    /**
+     * Check if a key is watched by any client.
+     *
+     * @param key the key
+     * @return true if the key is watched, false otherwise
+     */
+    public boolean isWatched(String key) {
+        return watchers.containsKey(key);
+    }
+
+    /**
+     * Queue a change event of a key for every client watching it.
+     *
+     * @param key the key
+     * @param value the new version of the key, or null when it was removed
+     */
+    public void notify(String key, VersionedValue value) {
+        Set<Subscriber> keyWatchers = watchers.get(key);
+
+        if (keyWatchers == null) {
+            return;
+        }
+
+        for (Subscriber subscriber : keyWatchers) {
+            if (subscriber.removed) {
+                continue;
+            }
+
+            Message event = new Message(Message.ResponseType.WATCH_EVENT);
+            event.setKey(key);
+            event.setServerIP(serverIP);
+            event.setServerPort(serverPort);
+
+            if (value != null) {
+                event.setValue(value.getValue());
+                event.setServerTimestamp(value.getTimestamp());
+            }
+
+            subscriber.events.add(event);
+
+            if (subscriber.scheduled.compareAndSet(false, true)) {
+                try {
+                    notifier.execute(() -> drain(subscriber));
+                } catch (RejectedExecutionException e) {
+                    // the server is closing
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop pushing events.
+     */
+    public void close() {
+        notifier.shutdownNow();
+    }
+
+    /**
+     * Send the queued events of a client, each round in one write, until its queue is empty. The
+     * task stays scheduled while it sends, so the events queued meanwhile go in its next round
+     * instead of a second task blocked on the same client. A client that cannot be reached loses
+     * its watches.
+     *
+     * @param subscriber the client
+     */
+    private void drain(Subscriber subscriber) {
+        do {
+            List<Message> events = new ArrayList<>();
+            Message event;
+
+            while ((event = subscriber.events.poll()) != null) {
+                events.add(event);
+            }
+
+            if (!events.isEmpty()) {
+                try {
+                    connections.get(subscriber.IP, subscriber.port).sendAll(events);
+                } catch (IOException e) {
+                    System.out.printf("Removendo watches do Cliente %s:%s: %s%n", subscriber.IP, subscriber.port, e.getMessage());
+                    unsubscribe(subscriber);
+                    return;
+                }
+            }
+
+            subscriber.scheduled.set(false);
+        } while (!subscriber.events.isEmpty() && subscriber.scheduled.compareAndSet(false, true));
+    }
+
+    /**
+     * Remove every watch of a client.
+     *
+     * @param subscriber the client
+     */
+    private void unsubscribe(Subscriber subscriber) {
+        subscriber.removed = true;
+        subscribers.remove(subscriber.IP + ":" + subscriber.port, subscriber);
+        subscriber.events.clear();
+
+        for (String key : subscriber.keys) {
+            watchers.computeIfPresent(key, (k, keyWatchers) -> {
+                keyWatchers.remove(subscriber);
+                return keyWatchers.isEmpty() ? null : keyWatchers;
+            });
+        }
+    }
+}
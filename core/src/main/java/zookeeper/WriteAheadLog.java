@@ -0,0 +1,321 @@
+package zookeeper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the REPLICATION messages applied by a server.
+ *
+ * The log is split in segments named {@code log.<segment id>}. Each record is the CRC32 of a
+ * {@link MessageCodec} frame followed by the frame itself, so a torn or corrupted tail is detected
+ * on replay and cut off. A flusher thread syncs the file to disk: every append made while a sync is
+ * running is covered by the next one, so concurrent writers share the cost of fsync.
+ */
+public class WriteAheadLog implements Closeable {
+    private static final String SEGMENT_PREFIX = "log.";
+
+    private final Path directory;
+    private final boolean fsync;
+    private final MessageCodec encoder = new MessageCodec(false);
+    private final CRC32 crc = new CRC32();
+    private final ByteBuffer header = ByteBuffer.allocate(4);
+    private final ConcurrentSkipListMap<Long, CompletableFuture<Void>> syncWaiters = new ConcurrentSkipListMap<>();
+    private final Thread flusher;
+    private FileChannel channel;
+    private long segmentId;
+    private long appendedSequence;
+    private volatile long syncedSequence;
+    private volatile boolean closed;
+
+    /**
+     * Open the log and start a new segment after the existing ones.
+     *
+     * @param directory the data directory
+     * @param fsync true to sync the appended records to disk, false to leave it to the OS
+     * @throws IOException exception when opening the segment
+     */
+    public WriteAheadLog(Path directory, boolean fsync) throws IOException {
+        this.directory = directory;
+        this.fsync = fsync;
+
+        Files.createDirectories(directory);
+
+        List<Long> segments = listSegments();
+        this.segmentId = segments.isEmpty() ? 1 : segments.get(segments.size() - 1) + 1;
+        this.channel = openSegment(segmentId);
+
+        this.flusher = new Thread(this::flushRecords, "wal-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * Append a record to the current segment. The record is not synced yet.
+     *
+     * @param record the REPLICATION message
+     * @return the sequence number of the record, to wait for its sync
+     * @throws IOException exception when writing the record
+     */
+    public synchronized long append(Message record) throws IOException {
+        ByteBuffer frame = encoder.encode(record);
+
+        crc.reset();
+        crc.update(frame.duplicate());
+        header.clear();
+        header.putInt((int) crc.getValue()).flip();
+
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        while (frame.hasRemaining()) {
+            channel.write(frame);
+        }
+        encoder.release();
+
+        appendedSequence++;
+        notifyAll();
+
+        return appendedSequence;
+    }
+
+    /**
+     * Get a future completed once the specified record is synced to disk.
+     *
+     * @param sequence the sequence number returned by append
+     * @return the future
+     */
+    public CompletableFuture<Void> sync(long sequence) {
+        if (sequence <= syncedSequence) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        CompletableFuture<Void> future = syncWaiters.computeIfAbsent(sequence, s -> new CompletableFuture<>());
+
+        // the flusher may have passed the sequence before the future was registered
+        if (sequence <= syncedSequence) {
+            completeSynced();
+        }
+
+        return future;
+    }
+
+    /**
+     * Close the current segment and start a new one. The records appended from now on go to the
+     * new segment.
+     *
+     * @return the ID of the new segment
+     * @throws IOException exception when opening the segment
+     */
+    public synchronized long roll() throws IOException {
+        channel.force(false);
+        channel.close();
+
+        segmentId++;
+        channel = openSegment(segmentId);
+
+        return segmentId;
+    }
+
+    /**
+     * Read the records of every segment from the specified one, in order.
+     *
+     * A record with a bad checksum or a truncated record ends the replay: the segment is cut at that
+     * point and the later segments are deleted, since their records follow a gap and applying them
+     * would skip the lost writes.
+     *
+     * @param fromSegment the first segment to read
+     * @param consumer the consumer of the records
+     * @throws IOException exception when reading a segment
+     */
+    public void replay(long fromSegment, Consumer<Message> consumer) throws IOException {
+        MessageCodec decoder = new MessageCodec(false);
+        CRC32 checksum = new CRC32();
+        Long corrupted = null;
+
+        for (long segment : listSegments()) {
+            if (segment < fromSegment || segment == segmentId) {
+                continue;
+            }
+
+            if (corrupted != null) {
+                System.out.printf("WAL %s%d descartado após o registro corrompido do segmento %d%n", SEGMENT_PREFIX, segment, corrupted);
+                Files.deleteIfExists(directory.resolve(SEGMENT_PREFIX + segment));
+                continue;
+            }
+
+            Path path = directory.resolve(SEGMENT_PREFIX + segment);
+
+            try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                ByteBuffer data = ByteBuffer.allocate((int) file.size());
+
+                while (data.hasRemaining() && file.read(data) >= 0) {
+                    // read the whole segment
+                }
+                data.flip();
+
+                long valid = 0;
+
+                while (data.remaining() >= 8) {
+                    int expected = data.getInt();
+                    int length = data.getInt(data.position());
+
+                    if (length <= 0 || length > data.remaining() - 4) {
+                        break;
+                    }
+
+                    ByteBuffer frame = data.slice();
+                    frame.limit(4 + length);
+
+                    checksum.reset();
+                    checksum.update(frame.duplicate());
+
+                    if ((int) checksum.getValue() != expected) {
+                        break;
+                    }
+
+                    frame.position(4);
+                    consumer.accept(decoder.decode(frame));
+
+                    data.position(data.position() + 4 + length);
+                    valid = data.position();
+                }
+
+                if (valid < file.size()) {
+                    System.out.printf("WAL %s truncado em %d de %d bytes%n", path.getFileName(), valid, file.size());
+                    file.truncate(valid);
+                    corrupted = segment;
+                }
+            }
+        }
+    }
+
+    /**
+     * Delete the segments older than the specified one.
+     *
+     * @param segment the first segment to keep
+     * @throws IOException exception when deleting a segment
+     */
+    public void deleteSegmentsBefore(long segment) throws IOException {
+        for (long id : listSegments()) {
+            if (id < segment) {
+                Files.deleteIfExists(directory.resolve(SEGMENT_PREFIX + id));
+            }
+        }
+    }
+
+    /**
+     * Sync and close the log.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        flusher.interrupt();
+
+        synchronized (this) {
+            try {
+                channel.force(false);
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Sync the appended records until the log is closed.
+     */
+    private void flushRecords() {
+        try {
+            while (!closed) {
+                long sequence;
+                FileChannel current;
+
+                synchronized (this) {
+                    while (appendedSequence == syncedSequence) {
+                        wait();
+                    }
+                    sequence = appendedSequence;
+                    current = channel;
+                }
+
+                if (fsync) {
+                    try {
+                        current.force(false);
+                    } catch (IOException e) {
+                        // the segment was rolled, which already synced it
+                        if (current.isOpen()) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+
+                syncedSequence = sequence;
+                completeSynced();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Complete the futures of the synced records.
+     */
+    private void completeSynced() {
+        Map.Entry<Long, CompletableFuture<Void>> waiter;
+
+        while ((waiter = syncWaiters.firstEntry()) != null && waiter.getKey() <= syncedSequence) {
+            if (syncWaiters.remove(waiter.getKey(), waiter.getValue())) {
+                waiter.getValue().complete(null);
+            }
+        }
+    }
+
+    /**
+     * List the IDs of the segments of the directory, in order.
+     *
+     * @return the segment IDs
+     * @throws IOException exception when listing the directory
+     */
+    private List<Long> listSegments() throws IOException {
+        List<Long> segments = new ArrayList<>();
+
+        try (DirectoryStream<Path> paths = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*")) {
+            for (Path path : paths) {
+                try {
+                    segments.add(Long.parseLong(path.getFileName().toString().substring(SEGMENT_PREFIX.length())));
+                } catch (NumberFormatException e) {
+                    // not a segment
+                }
+            }
+        }
+
+        Collections.sort(segments);
+        return segments;
+    }
+
+    /**
+     * Open a segment for appending.
+     *
+     * @param segment the segment ID
+     * @return the channel
+     * @throws IOException exception when opening the segment
+     */
+    private FileChannel openSegment(long segment) throws IOException {
+        return FileChannel.open(directory.resolve(SEGMENT_PREFIX + segment),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+}
@@ -0,0 +1,198 @@
+package zookeeper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Leader stage that groups concurrent PUTs into batches.
+ *
+ * The batch starts with the first queued PUT and collects the PUTs that arrive during the batch
+ * window, up to the maximum batch size. Each batch is committed as a whole by the batch handler,
+ * so one replication round is paid for all of its PUTs.
+ *
+ * The queue is bounded. Every PUT is either committed by the batch handler or given to the reject
+ * handler: when the queue is full, when its batch fails and when the batcher is closed with the
+ * PUT still queued, so no client waits for an answer that never comes.
+ */
+public class WriteBatcher implements Runnable {
+    private final long windowNanos;
+    private final int maxSize;
+    private final Function<List<Message>, CompletableFuture<?>> batchHandler;
+    private final Consumer<Message> rejectHandler;
+    private final ArrayBlockingQueue<PendingPut> queue;
+    private final Histogram batchSizes = new Histogram();
+    private final Histogram commitLatencies = new Histogram();
+    private volatile boolean closed;
+
+    /**
+     * A PUT waiting in the queue and the time it was queued.
+     */
+    private static class PendingPut {
+        private final Message message;
+        private final long queuedAt;
+
+        PendingPut(Message message) {
+            this.message = message;
+            this.queuedAt = System.nanoTime();
+        }
+    }
+
+    /**
+     * Create the batcher.
+     *
+     * @param windowMillis how long a batch waits for more PUTs after the first one
+     * @param maxSize the maximum number of PUTs of a batch
+     * @param maxQueued the maximum number of PUTs waiting for a batch
+     * @param batchHandler applies and replicates a batch, returning a future completed on commit
+     * @param rejectHandler answers a PUT that was not committed
+     */
+    public WriteBatcher(long windowMillis, int maxSize, int maxQueued, Function<List<Message>, CompletableFuture<?>> batchHandler,
+                        Consumer<Message> rejectHandler) {
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.maxSize = Math.max(1, maxSize);
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, maxQueued));
+        this.batchHandler = batchHandler;
+        this.rejectHandler = rejectHandler;
+    }
+
+    /**
+     * Queue a PUT for the next batch, or reject it when the queue is full or the batcher is closed.
+     *
+     * @param message the PUT message
+     */
+    public void submit(Message message) {
+        PendingPut put = new PendingPut(message);
+
+        if (closed || !queue.offer(put)) {
+            rejectHandler.accept(message);
+        } else if (closed && queue.remove(put)) {
+            // closed while queuing, after the queue was drained
+            rejectHandler.accept(message);
+        }
+    }
+
+    /**
+     * Get the distribution of batch sizes.
+     *
+     * @return the batch size histogram
+     */
+    public Histogram getBatchSizes() {
+        return batchSizes;
+    }
+
+    /**
+     * Get the distribution of the time from queuing a PUT to its commit, in microseconds.
+     *
+     * @return the commit latency histogram
+     */
+    public Histogram getCommitLatencies() {
+        return commitLatencies;
+    }
+
+    /**
+     * Stop collecting batches and reject the queued PUTs. The batch being committed still completes.
+     */
+    public void close() {
+        closed = true;
+        rejectQueued();
+    }
+
+    /**
+     * Collect and commit batches until the batcher is closed.
+     */
+    public void run() {
+        List<PendingPut> batch = new ArrayList<>(maxSize);
+
+        try {
+            while (!closed) {
+                PendingPut first = queue.poll(100, TimeUnit.MILLISECONDS);
+
+                if (first == null) {
+                    continue;
+                }
+
+                batch.add(first);
+                long deadline = System.nanoTime() + windowNanos;
+
+                while (batch.size() < maxSize) {
+                    long remaining = deadline - System.nanoTime();
+                    PendingPut next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+
+                commit(new ArrayList<>(batch));
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            rejectQueued();
+        }
+    }
+
+    /**
+     * Reject the PUTs left in the queue.
+     */
+    private void rejectQueued() {
+        PendingPut put;
+
+        while ((put = queue.poll()) != null) {
+            rejectHandler.accept(put.message);
+        }
+    }
+
+    /**
+     * Reject the PUTs of a batch that failed.
+     *
+     * @param batch the PUTs of the batch
+     * @param cause the failure
+     */
+    private void reject(List<PendingPut> batch, Throwable cause) {
+        System.out.printf("Falha ao gravar lote de %d PUTs: %s%n", batch.size(), cause);
+
+        for (PendingPut put : batch) {
+            rejectHandler.accept(put.message);
+        }
+    }
+
+    /**
+     * Hand a batch to the batch handler and record its metrics.
+     *
+     * @param batch the PUTs of the batch
+     */
+    private void commit(List<PendingPut> batch) {
+        List<Message> messages = new ArrayList<>(batch.size());
+
+        for (PendingPut put : batch) {
+            messages.add(put.message);
+        }
+
+        batchSizes.record(batch.size());
+
+        try {
+            batchHandler.apply(messages).whenComplete((result, error) -> {
+                if (error != null) {
+                    reject(batch, error);
+                    return;
+                }
+
+                long now = System.nanoTime();
+
+                for (PendingPut put : batch) {
+                    commitLatencies.record(TimeUnit.NANOSECONDS.toMicros(now - put.queuedAt));
+                }
+            });
+        } catch (RuntimeException e) {
+            reject(batch, e);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package zookeeper;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Parsing of the ack policies and the acknowledgements they need.
+ */
+class AckPolicyTest {
+    @Test
+    void parsesThePolicies() {
+        assertEquals(AckPolicy.Kind.ALL, AckPolicy.parse("all").getKind());
+        assertEquals(AckPolicy.Kind.MAJORITY, AckPolicy.parse(" Majority ").getKind());
+        assertEquals(AckPolicy.Kind.COUNT, AckPolicy.parse("2").getKind());
+        assertEquals("2", AckPolicy.parse("2").toString());
+        assertEquals("majority", AckPolicy.parse("MAJORITY").toString());
+    }
+
+    @Test
+    void rejectsInvalidPolicies() {
+        assertThrows(IllegalArgumentException.class, () -> AckPolicy.parse("some"));
+        assertThrows(IllegalArgumentException.class, () -> AckPolicy.parse("-1"));
+        assertThrows(IllegalArgumentException.class, () -> AckPolicy.parse(""));
+    }
+
+    @Test
+    void allNeedsEveryFollower() {
+        AckPolicy policy = AckPolicy.parse("all");
+
+        assertEquals(0, policy.requiredAcks(0));
+        assertEquals(4, policy.requiredAcks(4));
+        assertFalse(policy.exceeds(0));
+    }
+
+    @Test
+    void majorityCountsTheLeader() {
+        AckPolicy policy = AckPolicy.parse("majority");
+
+        assertEquals(0, policy.requiredAcks(0));
+        assertEquals(1, policy.requiredAcks(1));
+        assertEquals(1, policy.requiredAcks(2));
+        assertEquals(2, policy.requiredAcks(3));
+        assertEquals(2, policy.requiredAcks(4));
+        assertFalse(policy.exceeds(0));
+    }
+
+    @Test
+    void countIsCappedToTheFollowers() {
+        AckPolicy policy = AckPolicy.parse("2");
+
+        assertEquals(2, policy.requiredAcks(4));
+        assertEquals(1, policy.requiredAcks(1));
+        assertTrue(policy.exceeds(1));
+        assertFalse(policy.exceeds(2));
+    }
+}
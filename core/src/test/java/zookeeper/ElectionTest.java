@@ -0,0 +1,246 @@
+package zookeeper;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Leader election of in-process servers, started the way a restarted server is: with itself given
+ * as the leader on the command line. Such a server campaigns right away, but only a majority makes
+ * it leader, so it never leads a cluster on its own next to the leader of the others.
+ */
+class ElectionTest {
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    private final List<Server> servers = new ArrayList<>();
+    private Properties saved;
+
+    @BeforeEach
+    void setUp() {
+        saved = (Properties) System.getProperties().clone();
+
+        System.setProperty("zookeeper.dataDir", "none");
+        System.setProperty("zookeeper.replication.ackPolicy", "majority");
+        System.setProperty("zookeeper.election.timeoutMillis", "300");
+        System.setProperty("zookeeper.election.heartbeatMillis", "50");
+    }
+
+    @AfterEach
+    void tearDown() {
+        servers.forEach(Server::close);
+        System.setProperties(saved);
+    }
+
+    @Test
+    void singleMemberLeadsRightAway() throws IOException {
+        String address = "127.0.0.1:" + freePort();
+        System.setProperty("zookeeper.cluster.servers", address);
+
+        Server server = start(address, address);
+
+        assertTrue(server.isLeader());
+    }
+
+    @Test
+    void restartedAloneDoesNotLead() throws Exception {
+        List<String> addresses = addresses(3);
+        System.setProperty("zookeeper.cluster.servers", String.join(",", addresses));
+
+        Server server = start(addresses.get(0), addresses.get(0));
+
+        // a few election timeouts, each one a failed campaign
+        for (int i = 0; i < 20; i++) {
+            assertFalse(server.isLeader());
+            Thread.sleep(100);
+        }
+    }
+
+    @Test
+    void restartedNextToLeaderKeepsOneLeaderPerTerm() throws Exception {
+        List<String> addresses = addresses(3);
+        System.setProperty("zookeeper.cluster.servers", String.join(",", addresses));
+
+        start(addresses.get(1), null);
+        start(addresses.get(2), null);
+        assertNotNull(awaitLeader());
+
+        start(addresses.get(0), addresses.get(0));
+
+        long deadline = System.currentTimeMillis() + 3000;
+
+        while (System.currentTimeMillis() < deadline) {
+            Map<Long, Server> leaders = new HashMap<>();
+
+            for (Server server : servers) {
+                long term = server.getTerm();
+
+                if (server.isLeader() && leaders.put(term, server) != null) {
+                    throw new AssertionError("Two leaders in term " + term);
+                }
+            }
+
+            Thread.sleep(20);
+        }
+
+        Server leader = awaitLeader();
+        assertNotNull(leader);
+
+        for (Server server : servers) {
+            assertEquals(server == leader, server.isLeader());
+        }
+    }
+
+    @Test
+    void sessionsOutliveTheLeader() throws Exception {
+        System.setProperty("zookeeper.session.tickMillis", "50");
+        System.setProperty("zookeeper.session.minTimeoutMillis", "1500");
+
+        List<String> addresses = addresses(3);
+        System.setProperty("zookeeper.cluster.servers", String.join(",", addresses));
+
+        for (String address : addresses) {
+            start(address, null);
+        }
+
+        Server leader = awaitLeader();
+        assertNotNull(leader);
+
+        ConnectionPool connections = new ConnectionPool(1000);
+
+        try {
+            Message open = new Message(Message.Operation.SESSION_OPEN, null, "127.0.0.1", freePort());
+            open.setIndex(1500);
+
+            Message opened = request(connections, leader, open);
+            assertEquals(Message.ResponseType.SESSION_OK, opened.getResponse());
+
+            long sessionId = opened.getSessionId();
+            Message put = new Message(Message.Operation.PUT, "/ephemeral", "1", "127.0.0.1", freePort());
+            put.setSessionId(sessionId);
+            connections.get("127.0.0.1", leader.getServerPort()).send(put);
+
+            for (Server server : servers) {
+                assertTrue(await(() -> isStored(server, "/ephemeral")));
+            }
+
+            leader.close();
+            servers.remove(leader);
+
+            Server newLeader = awaitLeader();
+            assertNotNull(newLeader);
+
+            // the new leader knows the session
+            Message heartbeat = new Message(Message.Operation.HEARTBEAT, null, "127.0.0.1", 0);
+            heartbeat.setSessionId(sessionId);
+
+            assertEquals(Message.ResponseType.SESSION_OK, request(connections, newLeader, heartbeat).getResponse());
+            assertTrue(isStored(newLeader, "/ephemeral"));
+
+            // without heartbeats, the session expires and its key goes away on every server
+            for (Server server : servers) {
+                assertTrue(await(() -> !isStored(server, "/ephemeral")));
+                assertFalse(isStored(server, SessionManager.sessionKey(sessionId)));
+            }
+        } finally {
+            connections.closeAll();
+        }
+    }
+
+    /**
+     * Create and start a server.
+     *
+     * @param address the server address
+     * @param leader the leader given at startup, or null
+     * @return the server
+     * @throws IOException exception when opening the server socket
+     */
+    private Server start(String address, String leader) throws IOException {
+        Server server = new Server(address, leader);
+        servers.add(server);
+        server.start();
+
+        return server;
+    }
+
+    /**
+     * Wait for exactly one of the servers to lead.
+     *
+     * @return the leader, or null when none was elected in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private Server awaitLeader() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+
+        while (System.currentTimeMillis() < deadline) {
+            List<Server> leaders = servers.stream().filter(Server::isLeader).toList();
+
+            if (leaders.size() == 1) {
+                return leaders.get(0);
+            }
+
+            Thread.sleep(20);
+        }
+
+        return null;
+    }
+
+    private static Message request(ConnectionPool connections, Server server, Message message) throws Exception {
+        return connections.get("127.0.0.1", server.getServerPort()).request(message).get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private static boolean isStored(Server server, String key) {
+        Message get = new Message(Message.Operation.GET, key, "127.0.0.1", 0);
+        return server.handleGet(get).getResponse() == Message.ResponseType.GET_OK;
+    }
+
+    /**
+     * Wait for a condition to hold.
+     *
+     * @param condition the condition
+     * @return true if the condition held in time, false otherwise
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private static boolean await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(20);
+        }
+
+        return true;
+    }
+
+    private static List<String> addresses(int count) throws IOException {
+        List<String> addresses = new ArrayList<>();
+
+        for (int i = 0; i < count; i++) {
+            addresses.add("127.0.0.1:" + freePort());
+        }
+
+        return addresses;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package zookeeper;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Versions of the hybrid logical clock: always increasing, close to the wall-clock time, and
+ * greater than the versions observed from another leader.
+ */
+class HybridClockTest {
+    @Test
+    void increasesWithinTheSameMillisecond() {
+        HybridClock clock = new HybridClock();
+        long before = System.currentTimeMillis();
+        long previous = clock.next();
+
+        for (int i = 0; i < 10000; i++) {
+            long version = clock.next();
+            assertTrue(version > previous);
+            previous = version;
+        }
+
+        long millis = HybridClock.getMillis(previous);
+        assertTrue(millis >= before && millis <= System.currentTimeMillis() + 1000);
+    }
+
+    @Test
+    void staysAheadOfTheObservedVersions() {
+        HybridClock clock = new HybridClock();
+        // a version from a leader whose clock runs an hour ahead
+        long ahead = (System.currentTimeMillis() + 3600_000L) << 16;
+
+        clock.observe(ahead);
+        assertEquals(ahead + 1, clock.next());
+
+        // an older version does not move the clock back
+        clock.observe(1);
+        assertEquals(ahead + 2, clock.next());
+    }
+
+    @Test
+    void assignsUniqueVersionsAcrossThreads() throws InterruptedException {
+        HybridClock clock = new HybridClock();
+        Set<Long> versions = ConcurrentHashMap.newKeySet();
+        CountDownLatch done = new CountDownLatch(4);
+
+        for (int t = 0; t < 4; t++) {
+            new Thread(() -> {
+                for (int i = 0; i < 5000; i++) {
+                    versions.add(clock.next());
+                }
+                done.countDown();
+            }).start();
+        }
+
+        done.await();
+        assertEquals(20000, versions.size());
+    }
+}
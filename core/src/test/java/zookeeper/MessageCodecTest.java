@@ -0,0 +1,224 @@
+package zookeeper;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Round trips of the binary and JSON frames, and rejection of the frames a peer could send
+ * corrupted or truncated.
+ */
+class MessageCodecTest {
+    // length prefix, codec version, request ID and flags come before the operation
+    private static final int OPERATION_OFFSET = 4 + 1 + 8 + 1;
+
+    @Test
+    void binaryRoundTrip() throws IOException {
+        assertRoundTrip(new MessageCodec(false));
+    }
+
+    @Test
+    void jsonRoundTrip() throws IOException {
+        assertRoundTrip(new MessageCodec(true));
+    }
+
+    @Test
+    void absentFieldsStayAbsent() throws IOException {
+        Message decoded = roundTrip(new MessageCodec(false), new Message(Message.ResponseType.NULL));
+
+        assertEquals(Message.ResponseType.NULL, decoded.getResponse());
+        assertNull(decoded.getOperation());
+        assertNull(decoded.getKey());
+        assertNull(decoded.getValue());
+        assertNull(decoded.getEntries());
+        assertFalse(decoded.isLastChunk());
+    }
+
+    @Test
+    void rejectsUnknownOperation() throws IOException {
+        MessageCodec codec = new MessageCodec(false);
+        ByteBuffer frame = copy(codec.encode(new Message(Message.Operation.GET, "a", "127.0.0.1", 10100)));
+
+        frame.put(OPERATION_OFFSET, (byte) 0xFF);
+
+        assertThrows(IOException.class, () -> codec.decode(frame.position(4)));
+    }
+
+    @Test
+    void rejectsUnknownVersion() throws IOException {
+        MessageCodec codec = new MessageCodec(false);
+        ByteBuffer frame = copy(codec.encode(new Message(Message.Operation.GET, "a", "127.0.0.1", 10100)));
+
+        frame.put(4, (byte) 9);
+
+        assertThrows(IOException.class, () -> codec.decode(frame.position(4)));
+    }
+
+    @Test
+    void rejectsTruncatedFrame() throws IOException {
+        MessageCodec codec = new MessageCodec(false);
+        ByteBuffer frame = copy(codec.encode(sample()));
+
+        frame.position(4).limit(frame.limit() - 3);
+
+        assertThrows(IOException.class, () -> codec.decode(frame));
+    }
+
+    @Test
+    void rejectsEmptyFrame() {
+        assertThrows(IOException.class, () -> new MessageCodec(false).decode(ByteBuffer.allocate(0)));
+    }
+
+    @Test
+    void rejectsInvalidJson() {
+        byte[] json = "{\"key\": ".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(1 + json.length).put(MessageCodec.JSON_VERSION).put(json).flip();
+
+        assertThrows(IOException.class, () -> new MessageCodec(false).decode(frame));
+    }
+
+    @Test
+    void rejectsInvalidLength() {
+        assertThrows(IOException.class, () -> MessageCodec.checkLength(0));
+        assertThrows(IOException.class, () -> MessageCodec.checkLength(MessageCodec.MAX_FRAME_SIZE + 1));
+    }
+
+    @Test
+    void refusesToEncodeOversizedFrame() {
+        MessageCodec codec = new MessageCodec(false, 1024);
+        Message message = new Message(Message.Operation.PUT, "a", "v".repeat(2048), "127.0.0.1", 10100);
+
+        assertThrows(IOException.class, () -> codec.encode(message));
+        assertThrows(IOException.class, () -> new MessageCodec(true, 1024).encode(message));
+    }
+
+    @Test
+    void refusesToReadOversizedFrame() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Message message = new Message(Message.Operation.PUT, "a", "v".repeat(2048), "127.0.0.1", 10100);
+
+        new MessageCodec(false).write(message, new DataOutputStream(bytes));
+
+        DataInputStream reader = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+
+        assertThrows(IOException.class, () -> new MessageCodec(false, 1024).read(reader));
+    }
+
+    @Test
+    void keepsWorkingAfterOversizedFrame() throws IOException {
+        MessageCodec codec = new MessageCodec(false);
+        String large = "v".repeat(2 * 1024 * 1024);
+
+        // the buffer grows past the retained capacity, then is released for the next frames
+        Message decoded = roundTrip(codec, new Message(Message.Operation.PUT, "a", large, "127.0.0.1", 10100));
+        codec.release();
+
+        assertEquals(large, decoded.getValue());
+        assertRoundTrip(codec);
+    }
+
+    /**
+     * Check that every field of a message survives a round trip through a codec.
+     *
+     * @param codec the codec
+     * @throws IOException exception when the frame is invalid
+     */
+    private static void assertRoundTrip(MessageCodec codec) throws IOException {
+        Message message = sample();
+        Message decoded = roundTrip(codec, message);
+
+        assertEquals(message.getRequestId(), decoded.getRequestId());
+        assertEquals(message.getOperation(), decoded.getOperation());
+        assertEquals(message.getResponse(), decoded.getResponse());
+        assertEquals(message.getKey(), decoded.getKey());
+        assertEquals(message.getValue(), decoded.getValue());
+        assertEquals(message.getClientIP(), decoded.getClientIP());
+        assertEquals(message.getClientPort(), decoded.getClientPort());
+        assertEquals(message.getServerIP(), decoded.getServerIP());
+        assertEquals(message.getServerPort(), decoded.getServerPort());
+        assertEquals(message.getClientTimestamp(), decoded.getClientTimestamp());
+        assertEquals(message.getServerTimestamp(), decoded.getServerTimestamp());
+        assertEquals(message.getIndex(), decoded.getIndex());
+        assertEquals(message.getEpoch(), decoded.getEpoch());
+        assertEquals(message.getSessionId(), decoded.getSessionId());
+        assertTrue(decoded.isLastChunk());
+        assertEquals(message.getEntries().size(), decoded.getEntries().size());
+
+        for (int i = 0; i < message.getEntries().size(); i++) {
+            Message.Entry expected = message.getEntries().get(i);
+            Message.Entry actual = decoded.getEntries().get(i);
+
+            assertEquals(expected.getKey(), actual.getKey());
+            assertEquals(expected.getValue(), actual.getValue());
+            assertEquals(expected.getTimestamp(), actual.getTimestamp());
+            assertEquals(expected.isDeleted(), actual.isDeleted());
+        }
+    }
+
+    /**
+     * Encode a message and decode its frame.
+     *
+     * @param codec the codec
+     * @param message the message
+     * @return the decoded message
+     * @throws IOException exception when the frame is invalid
+     */
+    private static Message roundTrip(MessageCodec codec, Message message) throws IOException {
+        ByteBuffer frame = copy(codec.encode(message));
+
+        assertEquals(frame.remaining() - 4, frame.getInt(0));
+
+        return codec.decode(frame.position(4));
+    }
+
+    /**
+     * Build a message with every field set, including entries with a value, a null value, a
+     * deletion and non-ASCII characters.
+     *
+     * @return the message
+     */
+    private static Message sample() {
+        Message message = new Message(Message.Operation.REPLICATION, "/services/ção", "valor €", "127.0.0.1", 10100);
+
+        message.setRequestId(42);
+        message.setResponse(Message.ResponseType.REPLICATION_OK);
+        message.setServerIP("10.0.0.2");
+        message.setServerPort(10098);
+        message.setClientTimestamp(123456789L << 16);
+        message.setServerTimestamp(987654321L << 16);
+        message.setIndex(77);
+        message.setEpoch(3);
+        message.setSessionId(5);
+        message.setLastChunk(true);
+        message.setEntries(List.of(
+                new Message.Entry("a", "1", 10),
+                new Message.Entry("b", null, 11),
+                Message.Entry.deletion("c", 12),
+                new Message.Entry("emoji-😀", "😀", 13)));
+
+        return message;
+    }
+
+    /**
+     * Copy a frame out of the buffer the codec reuses.
+     *
+     * @param frame the frame
+     * @return a copy, positioned at its length prefix
+     */
+    private static ByteBuffer copy(ByteBuffer frame) {
+        return ByteBuffer.allocate(frame.remaining()).put(frame).flip();
+    }
+}
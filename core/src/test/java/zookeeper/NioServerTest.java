@@ -0,0 +1,146 @@
+package zookeeper;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Requests and responses over the selector threads, and the backpressure on a client that sends
+ * requests without reading the responses.
+ */
+class NioServerTest {
+    private static final String VALUE = "v".repeat(64 * 1024);
+
+    private final AtomicInteger handled = new AtomicInteger();
+    private final ExecutorService workers = new ThreadPoolExecutor(2, 2, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(16));
+    private NioServer server;
+
+    @AfterEach
+    void tearDown() {
+        if (server != null) {
+            server.close();
+        }
+        workers.shutdownNow();
+    }
+
+    @Test
+    void answersRequests() throws IOException {
+        int port = start();
+
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            DataOutputStream writer = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream reader = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            MessageCodec codec = new MessageCodec(false);
+
+            for (int i = 1; i <= 3; i++) {
+                Message request = new Message(Message.Operation.GET, "key-" + i, "127.0.0.1", 0);
+                request.setRequestId(i);
+                codec.write(request, writer);
+            }
+            writer.flush();
+
+            for (int i = 1; i <= 3; i++) {
+                Message response = codec.read(reader);
+
+                assertEquals(Message.ResponseType.GET_OK, response.getResponse());
+                assertEquals(VALUE, response.getValue());
+            }
+        }
+    }
+
+    @Test
+    void stopsReadingWhileResponsesPileUp() throws Exception {
+        int port = start();
+        int requests = 2000;
+
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            Thread sender = new Thread(() -> send(socket, requests));
+            sender.setDaemon(true);
+            sender.start();
+
+            // 2000 responses of 64 KB would be 128 MB buffered for a client that does not read
+            Thread.sleep(1000);
+            int paused = handled.get();
+            Thread.sleep(500);
+
+            assertTrue(paused < requests / 2, "handled " + paused + " requests");
+            assertEquals(paused, handled.get());
+
+            DataInputStream reader = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            MessageCodec codec = new MessageCodec(false);
+
+            for (int i = 0; i < requests; i++) {
+                assertEquals(Message.ResponseType.GET_OK, codec.read(reader).getResponse());
+            }
+
+            sender.join(TimeUnit.SECONDS.toMillis(10));
+            assertEquals(requests, handled.get());
+        }
+    }
+
+    /**
+     * Start a server answering every request with a 64 KB value.
+     *
+     * @return the port of the server
+     * @throws IOException exception when binding the port
+     */
+    private int start() throws IOException {
+        int port;
+
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+
+        server = new NioServer(port, 1, workers, request -> {
+            handled.incrementAndGet();
+
+            Message response = new Message(Message.ResponseType.GET_OK);
+            response.setKey(request.getKey());
+            response.setValue(VALUE);
+
+            return CompletableFuture.completedFuture(response);
+        });
+        server.start();
+
+        return port;
+    }
+
+    /**
+     * Send requests without reading the responses.
+     *
+     * @param socket the connection
+     * @param requests the number of requests
+     */
+    private static void send(Socket socket, int requests) {
+        try {
+            DataOutputStream writer = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            MessageCodec codec = new MessageCodec(false);
+
+            for (int i = 1; i <= requests; i++) {
+                // large enough for the requests not to fit in the socket buffers
+                Message request = new Message(Message.Operation.PUT, "key-" + i, "r".repeat(1024), "127.0.0.1", 0);
+                request.setRequestId(i);
+                codec.write(request, writer);
+            }
+            writer.flush();
+        } catch (IOException e) {
+            // the test closed the socket
+        }
+    }
+}
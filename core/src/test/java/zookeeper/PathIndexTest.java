@@ -0,0 +1,143 @@
+package zookeeper;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * Children listing and prefix scans, from a sorted copy of the keys and from the order of the LSM
+ * engine, paged and with paths that are both a key and the parent of other keys.
+ */
+class PathIndexTest {
+    @TempDir
+    Path directory;
+
+    private StorageEngine store;
+    private PathIndex index;
+
+    @AfterEach
+    void tearDown() {
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"heap", "lsm"})
+    void listsEachChildOnce(String engine) throws IOException {
+        create(engine);
+        put("/a", "/a/b", "/a/b/c", "/a/b/d/e", "/a/b!", "/a/c/d", "/ab", "/b/x");
+
+        assertEquals(List.of("/a/b", "/a/b!", "/a/c"), index.listChildren("/a", null, 100));
+        assertEquals(List.of("/a/b/c", "/a/b/d"), index.listChildren("/a/b/", null, 100));
+        assertEquals(List.of(), index.listChildren("/a/b/c", null, 100));
+        assertEquals(List.of("/a", "/ab", "/b"), index.listChildren("/", null, 100));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"heap", "lsm"})
+    void pagesTheChildren(String engine) throws IOException {
+        create(engine);
+        put("/a/b", "/a/b/c", "/a/b!", "/a/c/d", "/a/c/e", "/a/c!", "/a/d", "/a/e/f/g");
+
+        List<String> expected = index.listChildren("/a", null, 100);
+        List<String> children = new ArrayList<>();
+        String cursor = null;
+
+        do {
+            List<String> page = index.listChildren("/a", cursor, 2);
+            children.addAll(page);
+            cursor = page.size() == 2 ? page.get(1) : null;
+        } while (cursor != null);
+
+        assertEquals(List.of("/a/b", "/a/b!", "/a/c!", "/a/c", "/a/d", "/a/e"), expected);
+        assertEquals(expected, children);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"heap", "lsm"})
+    void scansAPrefixInPages(String engine) throws IOException {
+        create(engine);
+
+        List<String> expected = new ArrayList<>();
+
+        for (int i = 0; i < 50; i++) {
+            String key = String.format("/p/%02d", i);
+            put(key);
+            expected.add(key);
+        }
+        put("/o", "/p", "/q/00");
+        remove("/p/07");
+        expected.remove("/p/07");
+
+        List<String> keys = new ArrayList<>();
+        String cursor = null;
+
+        do {
+            List<String> page = index.scan("/p/", cursor, 8);
+            keys.addAll(page);
+            cursor = page.size() == 8 ? page.get(7) : null;
+        } while (cursor != null);
+
+        assertEquals(expected, keys);
+        assertEquals(List.of(), index.scan("/r", null, 8));
+    }
+
+    @Test
+    void engineIndexHoldsNoKeys() throws IOException {
+        create("lsm");
+        index.add("/only/in/the/index");
+
+        assertEquals(List.of(), index.scan("/only", null, 8));
+        assertNull(PathIndex.getParent("/root"));
+        assertEquals("/a/b", PathIndex.getParent("/a/b/c"));
+    }
+
+    @Test
+    void refusesAnUnsortedEngine() {
+        try (StorageEngine heap = new HeapStorageEngine()) {
+            assertThrows(IllegalArgumentException.class, () -> new PathIndex(heap));
+            assertThrows(UnsupportedOperationException.class, () -> heap.keys("/"));
+        }
+    }
+
+    /**
+     * Create the store and its index. The LSM memtable is small, and filler keys outside the
+     * listed paths push the keys through flushes into segments.
+     *
+     * @param engine heap or lsm
+     * @throws IOException exception when preparing the LSM directory
+     */
+    private void create(String engine) throws IOException {
+        if (engine.equals("lsm")) {
+            store = new LsmStorageEngine(directory, 4 * 1024);
+            index = new PathIndex(store);
+        } else {
+            store = new HeapStorageEngine();
+            index = new PathIndex();
+        }
+    }
+
+    private void put(String... keys) {
+        for (String key : keys) {
+            store.put(key, new VersionedValue("v".repeat(256), 1));
+            index.add(key);
+        }
+    }
+
+    private void remove(String key) {
+        store.remove(key);
+        index.remove(key);
+    }
+}
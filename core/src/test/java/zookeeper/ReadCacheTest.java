@@ -0,0 +1,59 @@
+package zookeeper;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Values served by the client read cache: never older than the last timestamp seen, never after
+ * their TTL, and evicted least recently used first.
+ */
+class ReadCacheTest {
+    @Test
+    void servesOnlyValuesAsFreshAsTheLastSeen() {
+        ReadCache cache = new ReadCache(10, 60000);
+
+        cache.put("a", new VersionedValue("1", 5));
+
+        assertEquals("1", cache.get("a", 5).getValue());
+        assertEquals("1", cache.get("a", 0).getValue());
+        assertNull(cache.get("a", 6));
+
+        // an older version does not replace a newer one
+        cache.put("a", new VersionedValue("0", 4));
+        assertEquals(5, cache.get("a", 0).getTimestamp());
+
+        cache.put("a", new VersionedValue("2", 7));
+        assertEquals("2", cache.get("a", 6).getValue());
+
+        cache.invalidate("a");
+        assertNull(cache.get("a", 0));
+    }
+
+    @Test
+    void expiresAfterTheTtl() throws InterruptedException {
+        ReadCache cache = new ReadCache(10, 20);
+
+        cache.put("a", new VersionedValue("1", 1));
+        assertNotNull(cache.get("a", 0));
+
+        Thread.sleep(40);
+        assertNull(cache.get("a", 0));
+    }
+
+    @Test
+    void evictsTheLeastRecentlyUsedKey() {
+        ReadCache cache = new ReadCache(2, 60000);
+
+        cache.put("a", new VersionedValue("1", 1));
+        cache.put("b", new VersionedValue("1", 1));
+        cache.get("a", 0);
+        cache.put("c", new VersionedValue("1", 1));
+
+        assertNotNull(cache.get("a", 0));
+        assertNull(cache.get("b", 0));
+        assertNotNull(cache.get("c", 0));
+    }
+}
@@ -0,0 +1,162 @@
+package zookeeper;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Commit of replicated entries against in-process followers that acknowledge every entry, some
+ * entries only or none, checking the ack policy, the cumulative acknowledgements and the commit
+ * order.
+ */
+class ReplicatorTest {
+    private static final long EPOCH = 1;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final ExecutorService workers = new ThreadPoolExecutor(2, 2, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(1024));
+    private final List<NioServer> followers = new ArrayList<>();
+    private Replicator replicator;
+
+    @AfterEach
+    void tearDown() {
+        if (replicator != null) {
+            replicator.close();
+        }
+        followers.forEach(NioServer::close);
+        executor.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    @Test
+    void commitsRightAwayWithoutFollowers() throws Exception {
+        replicator = new Replicator(List.of(), EPOCH, AckPolicy.parse("all"), executor, 0, 100, emptyState());
+
+        assertEquals(1, replicator.replicate(entry("a")).get(5, TimeUnit.SECONDS));
+        assertEquals(2, replicator.replicate(entry("b")).get(5, TimeUnit.SECONDS));
+        assertEquals(2, replicator.getCommitIndex());
+    }
+
+    @Test
+    void waitsForEveryFollower() throws Exception {
+        List<String[]> addresses = List.of(follower(1), follower(0));
+        replicator = new Replicator(addresses, EPOCH, AckPolicy.parse("all"), executor, 0, 100, emptyState());
+
+        CompletableFuture<Long> future = replicator.replicate(entry("a"));
+        Thread.sleep(500);
+
+        assertFalse(future.isDone());
+        assertEquals(0, replicator.getCommitIndex());
+
+        // without the silent follower, the one that acknowledged is enough
+        replicator.setFollowers(addresses.subList(0, 1));
+
+        assertEquals(1, future.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void majorityNeedsOneOfTwoFollowers() throws Exception {
+        List<String[]> addresses = List.of(follower(1), follower(0));
+        replicator = new Replicator(addresses, EPOCH, AckPolicy.parse("majority"), executor, 0, 100, emptyState());
+
+        assertEquals(1, replicator.replicate(entry("a")).get(5, TimeUnit.SECONDS));
+        assertEquals(2, replicator.replicate(entry("b")).get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void commitsInOrderOnCumulativeAcks() throws Exception {
+        // the follower acknowledges every third entry only, which covers the two before it
+        replicator = new Replicator(List.<String[]>of(follower(3)), EPOCH, AckPolicy.parse("all"), executor, 0, 100,
+                emptyState());
+
+        List<Long> committed = Collections.synchronizedList(new ArrayList<>());
+        List<CompletableFuture<Long>> futures = new ArrayList<>();
+
+        for (int i = 0; i < 6; i++) {
+            CompletableFuture<Long> future = replicator.replicate(entry("key-" + i));
+            futures.add(future.thenApply(index -> {
+                committed.add(index);
+                return index;
+            }));
+        }
+
+        for (CompletableFuture<Long> future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+
+        assertEquals(List.of(1L, 2L, 3L, 4L, 5L, 6L), committed);
+        assertEquals(6, replicator.getCommitIndex());
+    }
+
+    /**
+     * Start a follower that answers SYNC with an empty log of this epoch and acknowledges the
+     * entries whose index is a multiple of the specified interval.
+     *
+     * @param ackInterval the interval of the acknowledged indexes, or 0 to acknowledge nothing
+     * @return the follower address, as an {IP, port} pair
+     * @throws IOException exception when binding the port
+     */
+    private String[] follower(int ackInterval) throws IOException {
+        int port;
+
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+
+        NioServer follower = new NioServer(port, 1, workers, message -> {
+            Message response = new Message(Message.ResponseType.REPLICATION_OK);
+            response.setEpoch(EPOCH);
+
+            if (message.getOperation() == Message.Operation.SYNC) {
+                response.setIndex(0);
+                return CompletableFuture.completedFuture(response);
+            }
+
+            if (ackInterval == 0 || message.getIndex() % ackInterval != 0) {
+                return CompletableFuture.completedFuture(null);
+            }
+
+            response.setIndex(message.getIndex());
+            return CompletableFuture.completedFuture(response);
+        });
+        follower.start();
+        followers.add(follower);
+
+        return new String[]{"127.0.0.1", String.valueOf(port)};
+    }
+
+    private static Message entry(String key) {
+        Message entry = new Message();
+        entry.setOperation(Message.Operation.REPLICATION);
+        entry.setEntries(List.of(new Message.Entry(key, "value", 1)));
+        return entry;
+    }
+
+    private static ReplicationStream.StateSource emptyState() {
+        return new ReplicationStream.StateSource() {
+            @Override
+            public long getIndex() {
+                return 0;
+            }
+
+            @Override
+            public Iterator<Message.Entry> getEntries() {
+                return Collections.emptyIterator();
+            }
+        };
+    }
+}
@@ -0,0 +1,271 @@
+package zookeeper;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The write path of a single in-process server, and the asynchronous operations of a client on
+ * top of it.
+ */
+class ServerTest {
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private Properties saved;
+    private Server server;
+    private Client client;
+    private String address;
+
+    @BeforeEach
+    void setUp() {
+        saved = (Properties) System.getProperties().clone();
+
+        System.setProperty("zookeeper.dataDir", "none");
+        System.setProperty("zookeeper.election.timeoutMillis", "300");
+        System.setProperty("zookeeper.election.heartbeatMillis", "50");
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (client != null) {
+            client.close();
+        }
+        if (server != null) {
+            server.close();
+        }
+        System.setProperties(saved);
+    }
+
+    @Test
+    void rejectsTheWritesTheStoreCannotHold() throws Exception {
+        System.setProperty("zookeeper.storage.engine", "offheap");
+        System.setProperty("zookeeper.storage.maxBytes", String.valueOf(256 * 1024));
+        start();
+
+        String value = "v".repeat(8 * 1024);
+        String rejected = null;
+
+        for (int i = 0; i < 200 && rejected == null; i++) {
+            PutResult result = client.put("key-" + i, value).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+            if (!result.isOk()) {
+                assertEquals(Message.ResponseType.TRY_OTHER_SERVER_OR_LATER, result.getResponse());
+                rejected = "key-" + i;
+            }
+        }
+
+        assertNotNull(rejected);
+        assertEquals(Message.ResponseType.NULL, client.get(rejected).get(TIMEOUT_SECONDS, TimeUnit.SECONDS).getResponse());
+
+        // a MULTI_PUT is applied whole or not at all
+        PutResult multi = client.multiPut(List.of("multi-a", "multi-b"), List.of("1", value)).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        assertEquals(Message.ResponseType.TRY_OTHER_SERVER_OR_LATER, multi.getResponse());
+        assertEquals(Message.ResponseType.NULL, client.get("multi-a").get(TIMEOUT_SECONDS, TimeUnit.SECONDS).getResponse());
+
+        // the server keeps serving the keys it holds
+        assertTrue(client.get("key-0").get(TIMEOUT_SECONDS, TimeUnit.SECONDS).isFound());
+    }
+
+    @Test
+    void rejectsClientWritesToTheReservedKeys() throws Exception {
+        start();
+
+        String sessionKey = SessionManager.sessionKey(1);
+
+        assertEquals(Message.ResponseType.RESERVED_KEY, client.put(Server.MEMBERSHIP_KEY, "127.0.0.1:1").get(TIMEOUT_SECONDS, TimeUnit.SECONDS).getResponse());
+        assertEquals(Message.ResponseType.RESERVED_KEY, client.compareAndSet(Server.MEMBERSHIP_KEY, 0, "127.0.0.1:1").get(TIMEOUT_SECONDS, TimeUnit.SECONDS).getResponse());
+        assertEquals(Message.ResponseType.RESERVED_KEY, client.delete(Server.MEMBERSHIP_KEY).get(TIMEOUT_SECONDS, TimeUnit.SECONDS).getResponse());
+        assertEquals(Message.ResponseType.RESERVED_KEY, client.create(sessionKey, "1000").get(TIMEOUT_SECONDS, TimeUnit.SECONDS).getResponse());
+
+        // the other keys of a MULTI_PUT are not written either
+        PutResult multi = client.multiPut(List.of("multi-a", Server.MEMBERSHIP_KEY), List.of("1", "127.0.0.1:1")).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        assertEquals(Message.ResponseType.RESERVED_KEY, multi.getResponse());
+        assertEquals(Message.ResponseType.NULL, client.get("multi-a").get(TIMEOUT_SECONDS, TimeUnit.SECONDS).getResponse());
+        assertEquals(Message.ResponseType.NULL, client.get(Server.MEMBERSHIP_KEY).get(TIMEOUT_SECONDS, TimeUnit.SECONDS).getResponse());
+        assertTrue(client.put("key", "1").get(TIMEOUT_SECONDS, TimeUnit.SECONDS).isOk());
+    }
+
+    @Test
+    void pagesTheNamespaceForTheClient() throws Exception {
+        System.setProperty("zookeeper.client.scan.pageSize", "2");
+        start();
+
+        for (String key : List.of("/a/b", "/a/c/d", "/a/e", "/a/f", "/b")) {
+            assertTrue(client.put(key, "v").get(TIMEOUT_SECONDS, TimeUnit.SECONDS).isOk());
+        }
+
+        List<String> children = new ArrayList<>();
+        List<String> keys = new ArrayList<>();
+        PageResult page = null;
+
+        do {
+            page = client.listChildren("/a", page == null ? null : page.getCursor()).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            assertTrue(page.isOk());
+            page.getEntries().forEach(child -> children.add(child.getKey()));
+        } while (page.getCursor() != null);
+
+        page = null;
+
+        do {
+            page = client.scan("/a/", page == null ? null : page.getCursor()).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            page.getEntries().forEach(entry -> keys.add(entry.getKey()));
+        } while (page.getCursor() != null);
+
+        assertEquals(List.of("/a/b", "/a/c", "/a/e", "/a/f"), children);
+        assertEquals(List.of("/a/b", "/a/c/d", "/a/e", "/a/f"), keys);
+    }
+
+    @Test
+    void watchesAndSessionsWithoutBlocking() throws Exception {
+        start();
+
+        BlockingQueue<String> changes = new LinkedBlockingQueue<>();
+        GetResult watched = client.watch("watched", (key, value, version) -> changes.add(key + "=" + value))
+                .get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        assertEquals(Message.ResponseType.NULL, watched.getResponse());
+        assertTrue(client.put("watched", "1").get(TIMEOUT_SECONDS, TimeUnit.SECONDS).isOk());
+        assertEquals("watched=1", changes.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        long sessionId = client.openSession().get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        assertEquals(sessionId, client.openSession().get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertTrue(client.putEphemeral("ephemeral", "1").get(TIMEOUT_SECONDS, TimeUnit.SECONDS).isOk());
+        assertTrue(client.get("ephemeral").get(TIMEOUT_SECONDS, TimeUnit.SECONDS).isFound());
+
+        client.closeSession().get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+
+        while (client.get("ephemeral").get(TIMEOUT_SECONDS, TimeUnit.SECONDS).isFound() && System.currentTimeMillis() < end) {
+            Thread.sleep(20);
+        }
+
+        assertEquals(Message.ResponseType.NULL, client.get("ephemeral").get(TIMEOUT_SECONDS, TimeUnit.SECONDS).getResponse());
+        assertNotEquals(sessionId, client.openSession().get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void closesWhenTheSessionCannotBeClosed() throws Exception {
+        start();
+        client.openSession().get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        server.close();
+        server = null;
+
+        assertDoesNotThrow(client::close);
+        client = null;
+    }
+
+    @Test
+    void writesAndReadsSeveralKeysAtOnce() throws Exception {
+        start();
+
+        PutResult written = client.multiPut(List.of("a", "b"), List.of("1", "2")).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        assertTrue(written.isOk());
+        assertEquals(List.of("a", "b"), written.getEntries().stream().map(Message.Entry::getKey).toList());
+
+        Map<String, GetResult> read = client.multiGet(List.of("a", "b", "missing")).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        for (Message.Entry entry : written.getEntries()) {
+            assertEquals(entry.getValue(), read.get(entry.getKey()).getValue());
+            assertEquals(entry.getTimestamp(), read.get(entry.getKey()).getVersion());
+        }
+        assertEquals(Message.ResponseType.NULL, read.get("missing").getResponse());
+    }
+
+    @Test
+    void swapsOnlyTheExpectedVersion() throws Exception {
+        start();
+
+        PutResult created = client.compareAndSet("key", 0, "1").get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertTrue(created.isOk());
+
+        PutResult stale = client.compareAndSet("key", 0, "2").get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertEquals(Message.ResponseType.CAS_FAILED, stale.getResponse());
+        assertEquals("1", stale.getValue());
+        assertEquals(created.getVersion(), stale.getVersion());
+
+        PutResult swapped = client.compareAndSet("key", created.getVersion(), "3").get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertTrue(swapped.isOk());
+        assertTrue(swapped.getVersion() > created.getVersion());
+
+        assertEquals(Message.ResponseType.CAS_FAILED, client.compareAndSet("key", created.getVersion(), "4")
+                .get(TIMEOUT_SECONDS, TimeUnit.SECONDS).getResponse());
+        assertEquals("3", client.get("key").get(TIMEOUT_SECONDS, TimeUnit.SECONDS).getValue());
+    }
+
+    @Test
+    void hedgesAroundASilentServer() throws Exception {
+        System.setProperty("zookeeper.client.get.hedgeMillis", "50");
+        readAroundASilentServer();
+    }
+
+    @Test
+    void movesToTheNextServerAfterTheTimeout() throws Exception {
+        System.setProperty("zookeeper.client.get.timeoutMillis", "100");
+        readAroundASilentServer();
+    }
+
+    /**
+     * Start a server leading a cluster of its own, and a client using it.
+     *
+     * @throws IOException exception when binding a port
+     */
+    private void start() throws IOException {
+        address = "127.0.0.1:" + freePort();
+        System.setProperty("zookeeper.cluster.servers", address);
+
+        server = new Server(address, address);
+        server.start();
+
+        client = new Client();
+        client.start("127.0.0.1:0", List.of(address));
+    }
+
+    /**
+     * Read a key from a client whose servers are the server and one that accepts connections but
+     * never answers. Each read goes to the silent server first about half of the time, and must
+     * still be answered well before the default GET timeout.
+     *
+     * @throws Exception exception when a read fails or takes too long
+     */
+    private void readAroundASilentServer() throws Exception {
+        System.setProperty("zookeeper.client.servers.refreshMillis", "0");
+        start();
+        assertTrue(client.put("key", "1").get(TIMEOUT_SECONDS, TimeUnit.SECONDS).isOk());
+
+        try (ServerSocket silent = new ServerSocket(0); Client reader = new Client()) {
+            reader.start("127.0.0.1:0", List.of("127.0.0.1:" + silent.getLocalPort(), address));
+
+            for (int i = 0; i < 10; i++) {
+                assertEquals("1", reader.get("key").get(1, TimeUnit.SECONDS).getValue());
+            }
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
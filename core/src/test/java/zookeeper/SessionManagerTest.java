@@ -0,0 +1,116 @@
+package zookeeper;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Opening, renewal and expiry of sessions, the SESSION_CLOSE writes they submit, and the sessions
+ * a new leader rebuilds from the replicated keys.
+ */
+class SessionManagerTest {
+    private static final long TICK_MILLIS = 10;
+    private static final long MIN_TIMEOUT_MILLIS = 200;
+    private static final long MAX_TIMEOUT_MILLIS = 5000;
+
+    private final List<Message> writes = Collections.synchronizedList(new ArrayList<>());
+    private final SessionManager sessions = new SessionManager(TICK_MILLIS, MIN_TIMEOUT_MILLIS, MAX_TIMEOUT_MILLIS, writes::add);
+
+    @Test
+    void expiresTheSessionsNotHeardFrom() throws Exception {
+        long alive = sessions.open(0);
+        long silent = sessions.open(0);
+
+        assertEquals(MIN_TIMEOUT_MILLIS, sessions.getTimeout(alive));
+        assertTrue(sessions.own(silent, "/a"));
+        assertTrue(sessions.own(silent, "/b"));
+
+        long end = System.currentTimeMillis() + 3 * MIN_TIMEOUT_MILLIS;
+
+        while (System.currentTimeMillis() < end) {
+            assertTrue(sessions.touch(alive));
+            sessions.expireSessions();
+            Thread.sleep(TICK_MILLIS);
+        }
+
+        assertTrue(sessions.touch(alive));
+        assertFalse(sessions.touch(silent));
+        assertFalse(sessions.own(silent, "/c"));
+        assertEquals(1, sessions.size());
+
+        assertEquals(1, writes.size());
+        Message close = writes.get(0);
+
+        assertEquals(Message.Operation.SESSION_CLOSE, close.getOperation());
+        assertEquals(silent, close.getSessionId());
+        assertEquals(List.of("/a", "/b"), close.getEntries().stream().map(Message.Entry::getKey).sorted().toList());
+    }
+
+    @Test
+    void closesRightAwayOnce() {
+        long sessionId = sessions.open(1000);
+        sessions.own(sessionId, "/a");
+
+        sessions.close(sessionId);
+        sessions.close(sessionId);
+        sessions.expireSessions();
+
+        assertEquals(1, writes.size());
+        assertEquals(0, sessions.size());
+    }
+
+    @Test
+    void discardsWithoutWrites() {
+        long sessionId = sessions.open(1000);
+
+        sessions.discard(sessionId);
+
+        assertFalse(sessions.touch(sessionId));
+        assertFalse(sessions.own(sessionId, "/a"));
+        assertEquals(List.of(), writes);
+    }
+
+    @Test
+    void recoversTheSessionsWithAGraceTimeout() {
+        long previous = (System.currentTimeMillis() << 16) + 1000000;
+        List<Message.Entry> stored = List.of(
+                new Message.Entry("/other", "x", 1),
+                new Message.Entry(SessionManager.sessionKey(previous), "300", 1),
+                new Message.Entry(SessionManager.ownerKey(previous, "/services/a"), "", 1),
+                new Message.Entry(SessionManager.ownerKey(7, "/services/b"), "", 1));
+
+        assertEquals(2, sessions.recover(stored.iterator()));
+
+        assertEquals(previous, sessions.getOwner("/services/a"));
+        assertEquals(7, sessions.getOwner("/services/b"));
+        assertEquals(0, sessions.getOwner("/other"));
+        assertEquals(300, sessions.getTimeout(previous));
+        assertEquals(MIN_TIMEOUT_MILLIS, sessions.getTimeout(7));
+
+        // each recovered session gets a whole timeout from now
+        sessions.expireSessions();
+        assertEquals(List.of(), writes);
+        assertTrue(sessions.touch(previous));
+
+        // new sessions do not reuse the recovered IDs
+        assertTrue(sessions.open(1000) > previous);
+
+        sessions.close(7);
+        assertEquals(List.of("/services/b"), writes.get(0).getEntries().stream().map(Message.Entry::getKey).toList());
+    }
+
+    @Test
+    void namesTheSessionKeys() {
+        assertEquals("/zookeeper/sessions/5", SessionManager.sessionKey(5));
+        assertEquals("/zookeeper/sessions/5//a/b", SessionManager.ownerKey(5, "/a/b"));
+        assertTrue(SessionManager.isSessionKey(SessionManager.ownerKey(5, "a")));
+        assertFalse(SessionManager.isSessionKey("/zookeeper/config"));
+        assertFalse(SessionManager.isSessionKey(null));
+    }
+}
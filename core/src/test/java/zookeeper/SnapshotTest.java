@@ -0,0 +1,120 @@
+package zookeeper;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Writing and loading the snapshots of the store.
+ */
+class SnapshotTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void loadsWhatWasWritten() throws IOException {
+        List<Message.Entry> entries = List.of(
+                new Message.Entry("a", "1", 10),
+                new Message.Entry("b", null, 11),
+                new Message.Entry("c", "", 12),
+                new Message.Entry("/ção", "valor €", 13));
+
+        Snapshot written = Snapshot.write(directory, 4, 2, 99, entries.iterator());
+        List<Message.Entry> loaded = new ArrayList<>();
+        Snapshot snapshot = Snapshot.loadLatest(directory, loaded::add);
+
+        assertEquals(4, snapshot.getSegmentId());
+        assertEquals(2, snapshot.getEpoch());
+        assertEquals(99, snapshot.getAppliedIndex());
+        assertEquals(entries.size(), snapshot.getCount());
+        assertEquals(written.getCount(), snapshot.getCount());
+        assertEntries(entries, loaded);
+        assertFalse(Files.exists(directory.resolve("snapshot.4.tmp")));
+    }
+
+    @Test
+    void loadsAcrossRegions() throws IOException {
+        List<Message.Entry> entries = new ArrayList<>();
+        String value = "v".repeat(200);
+
+        // about 20 MB, more than two mapped regions
+        for (int i = 0; i < 100_000; i++) {
+            entries.add(new Message.Entry("key-" + i, value + i, i));
+        }
+
+        Snapshot.write(directory, 1, 1, entries.size(), entries.iterator());
+
+        List<Message.Entry> loaded = new ArrayList<>();
+        Snapshot snapshot = Snapshot.loadLatest(directory, loaded::add);
+
+        assertEquals(entries.size(), snapshot.getCount());
+        assertEntries(entries, loaded);
+    }
+
+    @Test
+    void fileEndsWithTheData() throws IOException {
+        Snapshot.write(directory, 1, 1, 1, List.of(new Message.Entry("a", "1", 1)).iterator());
+
+        // the mapped region is cut back to the data
+        assertTrue(Files.size(directory.resolve("snapshot.1")) < 1024);
+    }
+
+    @Test
+    void skipsCorruptedSnapshot() throws IOException {
+        Snapshot.write(directory, 1, 1, 10, List.of(new Message.Entry("old", "1", 1)).iterator());
+        Snapshot.write(directory, 2, 1, 20, List.of(new Message.Entry("new", "2", 2)).iterator());
+
+        Path newest = directory.resolve("snapshot.2");
+
+        try (FileChannel file = FileChannel.open(newest, StandardOpenOption.WRITE)) {
+            file.write(ByteBuffer.wrap(new byte[]{'x'}), file.size() - 1);
+        }
+
+        List<Message.Entry> loaded = new ArrayList<>();
+        Snapshot snapshot = Snapshot.loadLatest(directory, loaded::add);
+
+        assertEquals(1, snapshot.getSegmentId());
+        assertEntries(List.of(new Message.Entry("old", "1", 1)), loaded);
+    }
+
+    @Test
+    void loadsNothingWithoutSnapshot() throws IOException {
+        assertNull(Snapshot.loadLatest(directory, entry -> { }));
+    }
+
+    @Test
+    void prunesOldSnapshots() throws IOException {
+        for (long segment = 1; segment <= 4; segment++) {
+            Snapshot.write(directory, segment, 1, segment, List.<Message.Entry>of().iterator());
+        }
+
+        assertEquals(3, Snapshot.prune(directory));
+        assertFalse(Files.exists(directory.resolve("snapshot.1")));
+        assertFalse(Files.exists(directory.resolve("snapshot.2")));
+        assertTrue(Files.exists(directory.resolve("snapshot.3")));
+        assertTrue(Files.exists(directory.resolve("snapshot.4")));
+    }
+
+    private static void assertEntries(List<Message.Entry> expected, List<Message.Entry> actual) {
+        assertEquals(expected.size(), actual.size());
+
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getKey(), actual.get(i).getKey());
+            assertEquals(expected.get(i).getValue(), actual.get(i).getValue());
+            assertEquals(expected.get(i).getTimestamp(), actual.get(i).getTimestamp());
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package zookeeper;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * The behaviour every storage engine shares: the last-writer-wins merge, replacement, removal,
+ * null values, size and iteration.
+ */
+class StorageEngineTest {
+    @TempDir
+    Path directory;
+
+    @ParameterizedTest
+    @ValueSource(strings = {"heap", "offheap", "lsm"})
+    void keepsTheLastWriter(String engine) throws IOException {
+        try (StorageEngine store = create(engine)) {
+            store.put("a", new VersionedValue("2", 20));
+            store.put("a", new VersionedValue("1", 10));
+
+            assertValue("2", 20, store.get("a"));
+
+            store.put("a", new VersionedValue("3", 20));
+
+            // on equal timestamps the incoming version wins
+            assertValue("3", 20, store.get("a"));
+            assertEquals(1, store.size());
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"heap", "offheap", "lsm"})
+    void replacesWhateverTheVersion(String engine) throws IOException {
+        try (StorageEngine store = create(engine)) {
+            store.put("a", new VersionedValue("new", 20));
+            store.replace("a", new VersionedValue("old", 10));
+
+            assertValue("old", 10, store.get("a"));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"heap", "offheap", "lsm"})
+    void removesKeys(String engine) throws IOException {
+        try (StorageEngine store = create(engine)) {
+            store.put("a", new VersionedValue("1", 1));
+            store.put("b", new VersionedValue("2", 2));
+            store.remove("a");
+            store.remove("missing");
+
+            assertNull(store.get("a"));
+            assertNull(store.get("missing"));
+            assertEquals(1, store.size());
+
+            store.put("a", new VersionedValue("3", 3));
+
+            assertValue("3", 3, store.get("a"));
+            assertEquals(2, store.size());
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"heap", "offheap", "lsm"})
+    void storesNullAndEmptyValues(String engine) throws IOException {
+        try (StorageEngine store = create(engine)) {
+            store.put("null", new VersionedValue(null, 1));
+            store.put("empty", new VersionedValue("", 2));
+
+            assertValue(null, 1, store.get("null"));
+            assertValue("", 2, store.get("empty"));
+
+            store.replace("null", new VersionedValue(null, 3));
+
+            assertValue(null, 3, store.get("null"));
+            assertEquals(2, store.size());
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"heap", "offheap", "lsm"})
+    void matchesAReferenceMap(String engine) throws IOException {
+        Map<String, VersionedValue> expected = new TreeMap<>();
+        Random random = new Random(42);
+
+        try (StorageEngine store = create(engine)) {
+            for (int i = 0; i < 20_000; i++) {
+                String key = "key-" + random.nextInt(500);
+                int operation = random.nextInt(10);
+                VersionedValue value = new VersionedValue(random.nextInt(8) == 0 ? null : "value-" + i, random.nextInt(5000));
+
+                if (operation < 6) {
+                    store.put(key, value);
+                    expected.merge(key, value, VersionedValue::lastWriterWins);
+                } else if (operation < 8) {
+                    store.replace(key, value);
+                    expected.put(key, value);
+                } else {
+                    store.remove(key);
+                    expected.remove(key);
+                }
+            }
+
+            assertEquals(expected.size(), store.size());
+
+            for (Map.Entry<String, VersionedValue> entry : expected.entrySet()) {
+                assertValue(entry.getValue().getValue(), entry.getValue().getTimestamp(), store.get(entry.getKey()));
+            }
+
+            Map<String, VersionedValue> iterated = new TreeMap<>();
+
+            for (Iterator<Message.Entry> iterator = store.entries(); iterator.hasNext(); ) {
+                Message.Entry entry = iterator.next();
+                iterated.put(entry.getKey(), new VersionedValue(entry.getValue(), entry.getTimestamp()));
+            }
+
+            assertEquals(expected.keySet(), iterated.keySet());
+
+            for (Map.Entry<String, VersionedValue> entry : expected.entrySet()) {
+                assertValue(entry.getValue().getValue(), entry.getValue().getTimestamp(), iterated.get(entry.getKey()));
+            }
+        }
+    }
+
+    /**
+     * Create an engine. The LSM memtable is small, so the writes go through flushes and
+     * compactions.
+     *
+     * @param engine heap, offheap or lsm
+     * @return the engine
+     * @throws IOException exception when preparing the LSM directory
+     */
+    private StorageEngine create(String engine) throws IOException {
+        if (engine.equals("offheap")) {
+            return new OffHeapStorageEngine(64 * 1024 * 1024);
+        } else if (engine.equals("lsm")) {
+            return new LsmStorageEngine(directory, 16 * 1024);
+        }
+
+        return new HeapStorageEngine();
+    }
+
+    private static void assertValue(String value, long timestamp, VersionedValue actual) {
+        assertEquals(value, actual.getValue());
+        assertEquals(timestamp, actual.getTimestamp());
+    }
+}
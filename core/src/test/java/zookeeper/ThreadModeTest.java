@@ -0,0 +1,44 @@
+package zookeeper;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * The executors of the thread modes, and the refusal of the virtual mode on a JVM without virtual
+ * threads.
+ */
+class ThreadModeTest {
+    @Test
+    void runsTasksOnPlatformThreads() throws Exception {
+        ExecutorService executor = ThreadMode.newTaskExecutor(ThreadMode.PLATFORM, "test");
+
+        try {
+            Thread thread = executor.submit(Thread::currentThread).get(5, TimeUnit.SECONDS);
+
+            assertEquals("test-1", thread.getName());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void virtualModeNeedsVirtualThreads() throws Exception {
+        if (!ThreadMode.isVirtualSupported()) {
+            assertThrows(IllegalStateException.class, () -> ThreadMode.newTaskExecutor(ThreadMode.VIRTUAL, "test"));
+            return;
+        }
+
+        ExecutorService executor = ThreadMode.newTaskExecutor(ThreadMode.VIRTUAL, "test");
+
+        try {
+            assertEquals(42, executor.submit(() -> 42).get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package zookeeper;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Expiry of the items of a timing wheel at the tick of their deadline, on every level of the wheel
+ * and beyond its top level.
+ */
+class TimingWheelTest {
+    private static final long TICK = 10;
+
+    @Test
+    void expiresAtTheDeadline() {
+        TimingWheel<String> wheel = new TimingWheel<>(TICK, 0);
+
+        wheel.schedule("a", 50);
+        wheel.schedule("b", 120);
+        wheel.schedule("c", 115);
+
+        assertEquals(List.of(), wheel.advance(49));
+        assertEquals(List.of("a"), wheel.advance(50));
+        assertEquals(List.of(), wheel.advance(119));
+
+        // a deadline between two ticks expires on the tick after it
+        assertEquals(List.of("b", "c"), sorted(wheel.advance(120)));
+    }
+
+    @Test
+    void passedDeadlineExpiresOnTheNextTick() {
+        TimingWheel<String> wheel = new TimingWheel<>(TICK, 1000);
+
+        wheel.schedule("late", 500);
+
+        assertEquals(List.of(), wheel.advance(1009));
+        assertEquals(List.of("late"), wheel.advance(1010));
+    }
+
+    @Test
+    void movesItemsDownTheLevels() {
+        long start = 123 * TICK;
+        TimingWheel<Long> wheel = new TimingWheel<>(TICK, start);
+        TreeMap<Long, List<Long>> deadlines = new TreeMap<>();
+        Random random = new Random(42);
+
+        // the edges of the four levels, beyond the top level and random ticks in between
+        List<Long> ticks = new ArrayList<>(List.of(1L, 63L, 64L, 65L, 4095L, 4096L, 4097L, 262143L, 262144L,
+                262145L, 16777215L, 16777216L, 16777300L, 20000000L));
+
+        for (int i = 0; i < 200; i++) {
+            ticks.add(1 + (long) random.nextInt(300000));
+        }
+
+        for (long tick : ticks) {
+            long deadline = start + tick * TICK;
+            wheel.schedule(deadline, deadline);
+            deadlines.computeIfAbsent(deadline, key -> new ArrayList<>()).add(deadline);
+        }
+
+        for (long deadline : deadlines.keySet()) {
+            assertEquals(List.of(), wheel.advance(deadline - TICK));
+            assertEquals(deadlines.get(deadline), wheel.advance(deadline));
+        }
+    }
+
+    private static List<String> sorted(List<String> items) {
+        List<String> copy = new ArrayList<>(items);
+        copy.sort(null);
+        return copy;
+    }
+}
@@ -0,0 +1,164 @@
+package zookeeper;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Push of the change events to the clients watching a key, with clients that are slow or gone.
+ */
+class WatchManagerTest {
+    private final ConnectionPool connections = new ConnectionPool(1000);
+    private final WatchManager watches = new WatchManager(connections, "127.0.0.1", 10097);
+    private final ExecutorService workers = new ThreadPoolExecutor(2, 2, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(1024));
+    private final List<NioServer> clients = new ArrayList<>();
+    private final List<ServerSocket> sockets = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() throws IOException {
+        watches.close();
+        connections.closeAll();
+        clients.forEach(NioServer::close);
+        workers.shutdownNow();
+
+        for (ServerSocket socket : sockets) {
+            socket.close();
+        }
+    }
+
+    @Test
+    void notifiesTheClientsOfTheKey() throws Exception {
+        BlockingQueue<Message> first = new LinkedBlockingQueue<>();
+        BlockingQueue<Message> second = new LinkedBlockingQueue<>();
+
+        watches.watch("a", "127.0.0.1", client(first));
+        watches.watch("a", "127.0.0.1", client(second));
+        watches.watch("b", "127.0.0.1", client(second));
+
+        assertTrue(watches.isWatched("a"));
+        assertFalse(watches.isWatched("c"));
+
+        watches.notify("a", new VersionedValue("1", 42));
+        watches.notify("c", new VersionedValue("2", 43));
+
+        for (BlockingQueue<Message> events : List.of(first, second)) {
+            Message event = events.poll(5, TimeUnit.SECONDS);
+
+            assertEquals(Message.ResponseType.WATCH_EVENT, event.getResponse());
+            assertEquals("a", event.getKey());
+            assertEquals("1", event.getValue());
+            assertEquals(42, event.getServerTimestamp());
+        }
+
+        watches.notify("b", null);
+        Message removal = second.poll(5, TimeUnit.SECONDS);
+
+        assertEquals("b", removal.getKey());
+        assertNull(removal.getValue());
+        assertNull(first.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void slowClientDoesNotDelayTheOthers() throws Exception {
+        BlockingQueue<Message> events = new LinkedBlockingQueue<>();
+        String value = "v".repeat(1024 * 1024);
+
+        // a client that accepts the connection and never reads
+        ServerSocket slow = new ServerSocket(0);
+        sockets.add(slow);
+        CompletableFuture.runAsync(() -> {
+            try {
+                Socket socket = slow.accept();
+                socket.setReceiveBufferSize(4096);
+            } catch (IOException e) {
+                // closed by the test
+            }
+        });
+
+        watches.watch("big", "127.0.0.1", slow.getLocalPort());
+        watches.watch("small", "127.0.0.1", client(events));
+
+        // far more than the socket buffers hold, so the writes to the slow client block
+        for (int i = 0; i < 32; i++) {
+            watches.notify("big", new VersionedValue(value, i));
+        }
+        Thread.sleep(200);
+
+        watches.notify("small", new VersionedValue("1", 1));
+
+        Message event = events.poll(5, TimeUnit.SECONDS);
+        assertEquals("small", event.getKey());
+    }
+
+    @Test
+    void dropsTheWatchesOfAnUnreachableClient() throws Exception {
+        int closedPort;
+
+        try (ServerSocket socket = new ServerSocket(0)) {
+            closedPort = socket.getLocalPort();
+        }
+
+        BlockingQueue<Message> events = new LinkedBlockingQueue<>();
+        int port = client(events);
+
+        watches.watch("a", "127.0.0.1", closedPort);
+        watches.watch("b", "127.0.0.1", closedPort);
+        watches.watch("b", "127.0.0.1", port);
+
+        watches.notify("a", new VersionedValue("1", 1));
+
+        long deadline = System.currentTimeMillis() + 5000;
+
+        while (watches.isWatched("a") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertFalse(watches.isWatched("a"));
+        assertTrue(watches.isWatched("b"));
+
+        watches.notify("b", new VersionedValue("2", 2));
+
+        assertEquals("b", events.poll(5, TimeUnit.SECONDS).getKey());
+    }
+
+    /**
+     * Start a client that collects the events it receives.
+     *
+     * @param events the queue of the events
+     * @return the port of the client
+     * @throws IOException exception when binding the port
+     */
+    private int client(BlockingQueue<Message> events) throws IOException {
+        int port;
+
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+
+        NioServer client = new NioServer(port, 1, workers, message -> {
+            events.add(message);
+            return CompletableFuture.completedFuture(null);
+        });
+        client.start();
+        clients.add(client);
+
+        return port;
+    }
+}
@@ -0,0 +1,149 @@
+package zookeeper;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Replay of the write-ahead log, whole and after a corrupted or torn record.
+ */
+class WriteAheadLogTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void replaysEverySegmentInOrder() throws IOException {
+        writeSegments();
+
+        assertEquals(List.of(1L, 2L, 3L, 4L, 5L), replay(1));
+    }
+
+    @Test
+    void replaysFromSegment() throws IOException {
+        writeSegments();
+
+        assertEquals(List.of(3L, 4L, 5L), replay(2));
+    }
+
+    @Test
+    void stopsAtCorruptedMiddleSegment() throws IOException {
+        writeSegments();
+
+        Path middle = directory.resolve("log.2");
+        long firstRecord = recordSize(middle, 0);
+
+        // flip a byte of the payload of the second record of the middle segment
+        try (FileChannel file = FileChannel.open(middle, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer b = ByteBuffer.allocate(1);
+            long position = firstRecord + 8 + 10;
+
+            file.read(b, position);
+            b.put(0, (byte) ~b.get(0)).rewind();
+            file.write(b, position);
+        }
+
+        assertEquals(List.of(1L, 2L, 3L), replay(1));
+        assertEquals(firstRecord, Files.size(middle));
+        assertFalse(Files.exists(directory.resolve("log.3")));
+
+        // the cut log replays the same records again
+        assertEquals(List.of(1L, 2L, 3L), replay(1));
+    }
+
+    @Test
+    void stopsAtTornRecord() throws IOException {
+        writeSegments();
+
+        Path last = directory.resolve("log.3");
+
+        try (FileChannel file = FileChannel.open(last, StandardOpenOption.WRITE)) {
+            file.truncate(file.size() - 2);
+        }
+
+        assertEquals(List.of(1L, 2L, 3L, 4L), replay(1));
+        assertEquals(0, Files.size(last));
+    }
+
+    /**
+     * Write five records over three segments: 1 and 2, then 3 and 4, then 5.
+     *
+     * @throws IOException exception when writing the log
+     */
+    private void writeSegments() throws IOException {
+        WriteAheadLog log = new WriteAheadLog(directory, false);
+
+        try {
+            log.append(record(1));
+            log.append(record(2));
+            log.roll();
+            log.append(record(3));
+            log.append(record(4));
+            log.roll();
+            log.append(record(5));
+        } finally {
+            log.close();
+        }
+
+        assertTrue(Files.exists(directory.resolve("log.3")));
+    }
+
+    /**
+     * Open the log again and replay it.
+     *
+     * @param fromSegment the first segment to read
+     * @return the indexes of the records replayed
+     * @throws IOException exception when reading the log
+     */
+    private List<Long> replay(long fromSegment) throws IOException {
+        List<Long> indexes = new ArrayList<>();
+        WriteAheadLog log = new WriteAheadLog(directory, false);
+
+        try {
+            log.replay(fromSegment, record -> indexes.add(record.getIndex()));
+        } finally {
+            log.close();
+        }
+
+        return indexes;
+    }
+
+    /**
+     * Get the size of a record of a segment: its checksum, its length and its frame.
+     *
+     * @param segment the segment
+     * @param position the position of the record
+     * @return the size in bytes
+     * @throws IOException exception when reading the segment
+     */
+    private static long recordSize(Path segment, long position) throws IOException {
+        try (FileChannel file = FileChannel.open(segment, StandardOpenOption.READ)) {
+            ByteBuffer length = ByteBuffer.allocate(4);
+            file.read(length, position + 4);
+
+            return 8 + length.getInt(0);
+        }
+    }
+
+    private static Message record(long index) {
+        Message record = new Message();
+
+        record.setOperation(Message.Operation.REPLICATION);
+        record.setEpoch(1);
+        record.setIndex(index);
+        record.setEntries(List.of(new Message.Entry("key-" + index, "value-" + index, index)));
+
+        return record;
+    }
+}
@@ -0,0 +1,163 @@
+package zookeeper;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Batching of the leader PUTs, and the answer of every PUT that is not committed: queue full,
+ * failed batch and close.
+ */
+class WriteBatcherTest {
+    private final List<List<Message>> batches = Collections.synchronizedList(new ArrayList<>());
+    private final List<Message> rejected = Collections.synchronizedList(new ArrayList<>());
+    private WriteBatcher batcher;
+
+    @AfterEach
+    void tearDown() {
+        if (batcher != null) {
+            batcher.close();
+        }
+    }
+
+    @Test
+    void groupsConcurrentPutsUpToTheMaximumSize() throws Exception {
+        start(50, 3, 100, batch -> {
+            batches.add(batch);
+            return CompletableFuture.completedFuture(null);
+        });
+
+        for (int i = 0; i < 5; i++) {
+            batcher.submit(put(i));
+        }
+
+        awaitSize(batches, 2);
+
+        assertEquals(3, batches.get(0).size());
+        assertEquals(2, batches.get(1).size());
+        assertEquals("key-0", batches.get(0).get(0).getKey());
+        assertEquals(List.of(), rejected);
+        assertEquals(2, batcher.getBatchSizes().getCount());
+    }
+
+    @Test
+    void rejectsWhenTheQueueIsFull() throws Exception {
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        start(0, 1, 2, batch -> {
+            blocked.countDown();
+            await(release);
+            batches.add(batch);
+            return CompletableFuture.completedFuture(null);
+        });
+
+        // the first PUT holds the batcher thread, the next two fill the queue
+        batcher.submit(put(0));
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+        batcher.submit(put(1));
+        batcher.submit(put(2));
+        batcher.submit(put(3));
+
+        assertEquals(1, rejected.size());
+        assertEquals("key-3", rejected.get(0).getKey());
+
+        release.countDown();
+        awaitSize(batches, 3);
+    }
+
+    @Test
+    void rejectsTheBatchesThatFail() throws Exception {
+        start(10, 10, 100, batch -> {
+            if (batch.get(0).getKey().equals("key-0")) {
+                return CompletableFuture.failedFuture(new IllegalStateException("store full"));
+            }
+            throw new IllegalStateException("log closed");
+        });
+
+        batcher.submit(put(0));
+        awaitSize(rejected, 1);
+
+        batcher.submit(put(1));
+        awaitSize(rejected, 2);
+
+        assertEquals("key-1", rejected.get(1).getKey());
+    }
+
+    @Test
+    void rejectsTheQueuedPutsOnClose() throws Exception {
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        start(0, 1, 100, batch -> {
+            blocked.countDown();
+            await(release);
+            batches.add(batch);
+            return CompletableFuture.completedFuture(null);
+        });
+
+        batcher.submit(put(0));
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+        batcher.submit(put(1));
+        batcher.submit(put(2));
+        batcher.close();
+        release.countDown();
+
+        assertEquals(2, rejected.size());
+
+        // a PUT arriving after the close is rejected too
+        batcher.submit(put(3));
+
+        assertEquals(3, rejected.size());
+        awaitSize(batches, 1);
+        assertEquals("key-0", batches.get(0).get(0).getKey());
+    }
+
+    /**
+     * Create and start a batcher.
+     *
+     * @param windowMillis the batch window
+     * @param maxSize the maximum batch size
+     * @param maxQueued the maximum queue size
+     * @param handler the batch handler
+     */
+    private void start(long windowMillis, int maxSize, int maxQueued, Function<List<Message>, CompletableFuture<?>> handler) {
+        batcher = new WriteBatcher(windowMillis, maxSize, maxQueued, handler, rejected::add);
+
+        Thread thread = new Thread(batcher, "write-batcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static Message put(int i) {
+        return new Message(Message.Operation.PUT, "key-" + i, "value-" + i, "127.0.0.1", 0);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void awaitSize(List<?> list, int size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+
+        while (list.size() < size && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(size, list.size());
+    }
+}
@@ -0,0 +1,80 @@
+package zookeeper;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The timestamps a client shares between its threads: the monotonic update of the version seen
+ * for each key, with the keys drawn from the key distribution, and the client timestamp taken by
+ * every write.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+public class ClientStateBenchmark {
+    @Param({"uniform", "zipf"})
+    private String distribution;
+
+    @Param({"10000"})
+    private int keyCount;
+
+    private KeyDistribution keys;
+    private Client client;
+
+    /**
+     * Key accesses and versions of one benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class Accesses {
+        private int sequence;
+        private long version;
+
+        /**
+         * Start each thread at a different place of the drawn accesses.
+         */
+        @Setup
+        public void setUp() {
+            sequence = (int) Thread.currentThread().getId() * 7919;
+            version = System.currentTimeMillis() << 16;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        keys = new KeyDistribution(distribution, keyCount, 42);
+        client = new Client();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        client.close();
+    }
+
+    @Benchmark
+    public void observe(Accesses accesses) {
+        client.observe(keys.get(accesses.sequence++), ++accesses.version);
+    }
+
+    @Benchmark
+    public long updateTimestamp() {
+        return client.updateTimestamp();
+    }
+}
@@ -0,0 +1,231 @@
+package zookeeper;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Check leader election and failover with an in-process cluster.
+ *
+ * The harness starts the specified number of servers without a leader and waits for one to be
+ * elected. Each round then writes a key through a follower, checks that every live server reads
+ * it, and stops the leader, until only a majority of the servers is left. It prints the election
+ * and commit times of each round, and exits with status 1 when a check fails.
+ *
+ * Usage: java -cp jmh/target/benchmarks.jar zookeeper.ElectionHarness [servers]
+ */
+public class ElectionHarness {
+    private static final int BASE_PORT = 21097;
+    private static final int CLIENT_PORT = 21190;
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        List<String> addresses = new ArrayList<>();
+
+        for (int i = 0; i < count; i++) {
+            addresses.add("127.0.0.1:" + (BASE_PORT + i));
+        }
+
+        System.setProperty("zookeeper.cluster.servers", String.join(",", addresses));
+        System.setProperty("zookeeper.dataDir", "none");
+        System.setProperty("zookeeper.replication.ackPolicy", "majority");
+        System.setProperty("zookeeper.election.timeoutMillis", "300");
+        System.setProperty("zookeeper.election.heartbeatMillis", "50");
+
+        BlockingQueue<Message> responses = new LinkedBlockingQueue<>();
+        startClientListener(responses);
+
+        List<Server> live = new ArrayList<>();
+
+        for (String address : addresses) {
+            Server server = new Server(address, null);
+            server.start();
+            live.add(server);
+        }
+
+        boolean failed = false;
+        long lastTerm = 0;
+
+        for (int round = 0; live.size() > count / 2; round++) {
+            long start = System.currentTimeMillis();
+            Server leader = awaitLeader(live, lastTerm);
+
+            if (leader == null) {
+                out.printf("round %d: no leader elected among %d servers%n", round, live.size());
+                failed = true;
+                break;
+            }
+
+            long elected = System.currentTimeMillis() - start;
+            String key = "round-" + round;
+            Server follower = live.get(live.get(0) == leader ? 1 : 0);
+
+            start = System.currentTimeMillis();
+            boolean committed = put(follower, key, responses);
+            long commit = System.currentTimeMillis() - start;
+            boolean replicated = committed && awaitValue(live, key);
+
+            out.printf("round %d: %d servers, leader %s:%d term %d elected in %d ms, write %s in %d ms, %s on every server%n",
+                    round, live.size(), leader.getServerIP(), leader.getServerPort(), leader.getTerm(), elected,
+                    committed ? "committed" : "NOT committed", commit, replicated ? "read" : "NOT read");
+
+            failed |= !committed || !replicated;
+            lastTerm = leader.getTerm();
+
+            leader.close();
+            live.remove(leader);
+        }
+
+        live.forEach(Server::close);
+        out.println(failed ? "FAILED" : "OK");
+        System.exit(failed ? 1 : 0);
+    }
+
+    /**
+     * Wait until a single live server leads a term newer than the previous leader.
+     *
+     * @param live the live servers
+     * @param lastTerm the term of the previous leader
+     * @return the leader, or null when none was elected in time
+     * @throws InterruptedException exception when interrupted while waiting
+     */
+    private static Server awaitLeader(List<Server> live, long lastTerm) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+
+        while (System.currentTimeMillis() < deadline) {
+            List<Server> leaders = new ArrayList<>();
+
+            for (Server server : live) {
+                if (server.isLeader() && server.getTerm() > lastTerm) {
+                    leaders.add(server);
+                }
+            }
+
+            if (leaders.size() == 1) {
+                return leaders.get(0);
+            }
+
+            Thread.sleep(10);
+        }
+
+        return null;
+    }
+
+    /**
+     * Write a key through a follower and wait for its PUT_OK, sending it again while the follower
+     * does not know the new leader yet.
+     *
+     * @param follower the follower
+     * @param key the key
+     * @param responses the responses received by the client listener
+     * @return true if the write was acknowledged, false otherwise
+     * @throws Exception exception when connecting to the follower
+     */
+    private static boolean put(Server follower, String key, BlockingQueue<Message> responses) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        Connection connection = new Connection(follower.getServerIP(), follower.getServerPort());
+
+        try {
+            while (System.currentTimeMillis() < deadline) {
+                Message put = new Message(Message.Operation.PUT, key, "value", "127.0.0.1", CLIENT_PORT);
+                put.setClientTimestamp(System.currentTimeMillis());
+                connection.send(put);
+
+                Message response = responses.poll(1, TimeUnit.SECONDS);
+
+                if (response != null && key.equals(response.getKey())) {
+                    return true;
+                }
+            }
+        } finally {
+            connection.close();
+        }
+
+        return false;
+    }
+
+    /**
+     * Wait until every live server reads a key.
+     *
+     * @param live the live servers
+     * @param key the key
+     * @return true if every server read the key, false otherwise
+     * @throws Exception exception when connecting to a server
+     */
+    private static boolean awaitValue(List<Server> live, String key) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+
+        for (Server server : live) {
+            Connection connection = new Connection(server.getServerIP(), server.getServerPort());
+
+            try {
+                while (true) {
+                    Message get = new Message(Message.Operation.GET, key, "127.0.0.1", CLIENT_PORT);
+                    Message response = connection.request(get).get(1, TimeUnit.SECONDS);
+
+                    if (response.getResponse() == Message.ResponseType.GET_OK) {
+                        break;
+                    }
+                    if (System.currentTimeMillis() > deadline) {
+                        return false;
+                    }
+                    Thread.sleep(10);
+                }
+            } finally {
+                connection.close();
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Receive the PUT_OK responses sent by the leader to the client port.
+     *
+     * @param responses the queue receiving the responses
+     * @throws IOException exception when binding the client port
+     */
+    private static void startClientListener(BlockingQueue<Message> responses) throws IOException {
+        ServerSocket serverSocket = new ServerSocket(CLIENT_PORT);
+
+        Thread acceptThread = new Thread(() -> {
+            try {
+                while (true) {
+                    Socket socket = serverSocket.accept();
+
+                    Thread readerThread = new Thread(() -> {
+                        MessageCodec decoder = new MessageCodec();
+
+                        try (DataInputStream reader = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+                            while (true) {
+                                responses.add(decoder.read(reader));
+                            }
+                        } catch (IOException e) {
+                            // the server closed the connection
+                        }
+                    });
+                    readerThread.setDaemon(true);
+                    readerThread.start();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "client-listener");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+}
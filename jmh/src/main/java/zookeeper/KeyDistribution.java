@@ -0,0 +1,90 @@
+package zookeeper;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Keys and pre-drawn key accesses for the benchmarks.
+ *
+ * The accesses are drawn once in the setup, so the measured code does not pay for the random
+ * numbers. A {@code uniform} distribution touches every key alike, and a {@code zipf} distribution
+ * (exponent 0.99) sends most accesses to a few hot keys, like the configuration and lock keys of
+ * a coordination service.
+ */
+public class KeyDistribution {
+    private static final double ZIPF_EXPONENT = 0.99;
+    private static final int ACCESSES = 1 << 16;
+
+    private final String[] keys;
+    private final int[] accesses;
+
+    /**
+     * Create the keys and draw the accesses.
+     *
+     * @param distribution {@code uniform} or {@code zipf}
+     * @param keyCount the number of keys
+     * @param seed the seed of the random draws
+     */
+    public KeyDistribution(String distribution, int keyCount, long seed) {
+        Random random = new Random(seed);
+
+        this.keys = new String[keyCount];
+        this.accesses = new int[ACCESSES];
+
+        for (int i = 0; i < keyCount; i++) {
+            keys[i] = "/services/service-" + (i % 64) + "/node-" + i;
+        }
+
+        if (distribution.equals("zipf")) {
+            double[] cumulative = new double[keyCount];
+            double sum = 0;
+
+            for (int i = 0; i < keyCount; i++) {
+                sum += 1 / Math.pow(i + 1, ZIPF_EXPONENT);
+                cumulative[i] = sum;
+            }
+
+            for (int i = 0; i < ACCESSES; i++) {
+                int index = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+                accesses[i] = Math.min(index < 0 ? -index - 1 : index, keyCount - 1);
+            }
+        } else if (distribution.equals("uniform")) {
+            for (int i = 0; i < ACCESSES; i++) {
+                accesses[i] = random.nextInt(keyCount);
+            }
+        } else {
+            throw new IllegalArgumentException("Unknown key distribution: " + distribution);
+        }
+    }
+
+    /**
+     * Get every key, in order.
+     *
+     * @return the keys
+     */
+    public String[] getKeys() {
+        return keys;
+    }
+
+    /**
+     * Get the key of an access.
+     *
+     * @param sequence the number of the access, wrapped over the drawn accesses
+     * @return the key
+     */
+    public String get(int sequence) {
+        return keys[accesses[sequence & (ACCESSES - 1)]];
+    }
+
+    /**
+     * Create a value of the specified size.
+     *
+     * @param size the size in characters
+     * @return the value
+     */
+    public static String value(int size) {
+        char[] chars = new char[size];
+        Arrays.fill(chars, 'v');
+        return new String(chars);
+    }
+}
@@ -0,0 +1,96 @@
+package zookeeper;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding and decoding of the messages, with the JSON of {@link Message#toJson()} and
+ * {@link Message#fromJson(String)} and with the binary frames of {@link MessageCodec}.
+ *
+ * The messages are a GET request, a PUT request with a value of 128 characters, and a REPLICATION
+ * batch of 32 such entries.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark {
+    @Param({"get", "put", "replication"})
+    private String shape;
+
+    private Message message;
+    private String json;
+    private MessageCodec codec;
+    private ByteBuffer frame;
+
+    @Setup
+    public void setUp() throws IOException {
+        String value = KeyDistribution.value(128);
+
+        if (shape.equals("get")) {
+            message = new Message(Message.Operation.GET, "/services/service-1/node-1", "127.0.0.1", 10100);
+            message.setClientTimestamp(System.currentTimeMillis() << 16);
+        } else if (shape.equals("put")) {
+            message = new Message(Message.Operation.PUT, "/services/service-1/node-1", value, "127.0.0.1", 10100);
+            message.setClientTimestamp(System.currentTimeMillis() << 16);
+        } else {
+            List<Message.Entry> entries = new ArrayList<>();
+
+            for (int i = 0; i < 32; i++) {
+                entries.add(new Message.Entry("/services/service-1/node-" + i, value, (System.currentTimeMillis() << 16) + i));
+            }
+
+            message = new Message();
+            message.setOperation(Message.Operation.REPLICATION);
+            message.setEpoch(3);
+            message.setIndex(123456);
+            message.setEntries(entries);
+        }
+
+        message.setRequestId(42);
+        json = message.toJson();
+        codec = new MessageCodec(false);
+
+        ByteBuffer encoded = codec.encode(message);
+        frame = ByteBuffer.allocate(encoded.remaining());
+        frame.put(encoded).flip();
+    }
+
+    @Benchmark
+    public String toJson() {
+        return message.toJson();
+    }
+
+    @Benchmark
+    public Message fromJson() {
+        return Message.fromJson(json);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeBinary() throws IOException {
+        return codec.encode(message);
+    }
+
+    @Benchmark
+    public Message decodeBinary() throws IOException {
+        // skip the length prefix, like a connection reading the frame
+        return codec.decode(frame.duplicate().position(4));
+    }
+}
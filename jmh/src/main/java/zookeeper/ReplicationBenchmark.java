@@ -0,0 +1,93 @@
+package zookeeper;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@code handleReplication} of a follower applying the batches of its leader, with the keys of
+ * each batch drawn from the key distribution.
+ *
+ * The leader stream is ordered, so the batches are applied by a single thread, one index after
+ * the other. The leader itself does not run: the follower is not a member of the cluster, so it
+ * never starts an election that would reject the batches.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReplicationBenchmark {
+    private static final String LEADER = "127.0.0.1:22197";
+    private static final String FOLLOWER = "127.0.0.1:22198";
+
+    @Param({"uniform", "zipf"})
+    private String distribution;
+
+    @Param({"100000"})
+    private int keyCount;
+
+    @Param({"1", "32"})
+    private int batchSize;
+
+    @Param({"heap", "offheap"})
+    private String engine;
+
+    private KeyDistribution keys;
+    private String value;
+    private Server follower;
+    private long index;
+    private int sequence;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        System.setProperty("zookeeper.cluster.servers", LEADER);
+        System.setProperty("zookeeper.dataDir", "none");
+        System.setProperty("zookeeper.storage.engine", engine);
+
+        keys = new KeyDistribution(distribution, keyCount, 42);
+        value = KeyDistribution.value(128);
+        follower = new Server(FOLLOWER, LEADER);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        follower.close();
+    }
+
+    @Benchmark
+    public Message handleReplication() {
+        List<Message.Entry> entries = new ArrayList<>(batchSize);
+        long version = System.currentTimeMillis() << 16;
+
+        for (int i = 0; i < batchSize; i++) {
+            entries.add(new Message.Entry(keys.get(sequence++), value, version + i));
+        }
+
+        Message replication = new Message();
+        replication.setOperation(Message.Operation.REPLICATION);
+        replication.setEpoch(0);
+        replication.setIndex(++index);
+        replication.setEntries(entries);
+
+        return follower.handleReplication(replication).join();
+    }
+}
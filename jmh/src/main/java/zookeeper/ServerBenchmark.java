@@ -0,0 +1,178 @@
+package zookeeper;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Request handling of a single-server cluster, called in-process without the network layer.
+ *
+ * {@code handleGet} reads keys drawn from the key distribution. {@code handlePut} writes them and
+ * waits for the PUT_OK the leader sends to the client address, so it measures the whole write
+ * path of the leader: batching, condition check, versioning, store and commit.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class ServerBenchmark {
+    private static final String ADDRESS = "127.0.0.1:22097";
+
+    @Param({"uniform", "zipf"})
+    private String distribution;
+
+    @Param({"100000"})
+    private int keyCount;
+
+    @Param({"heap", "offheap"})
+    private String engine;
+
+    private KeyDistribution keys;
+    private String value;
+    private Server server;
+    private ServerSocket clientSocket;
+    private final AtomicLong nextRequestId = new AtomicLong(1);
+    private final ConcurrentHashMap<Long, CompletableFuture<Message>> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Sequence of the key accesses of one benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class Accesses {
+        private int sequence;
+
+        /**
+         * Start each thread at a different place of the drawn accesses.
+         */
+        @Setup
+        public void setUp() {
+            sequence = (int) Thread.currentThread().getId() * 7919;
+        }
+
+        int next() {
+            return sequence++;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        // the handlers log every request, which would flood the output of the benchmark
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        System.setProperty("zookeeper.cluster.servers", ADDRESS);
+        System.setProperty("zookeeper.dataDir", "none");
+        System.setProperty("zookeeper.storage.engine", engine);
+
+        keys = new KeyDistribution(distribution, keyCount, 42);
+        value = KeyDistribution.value(128);
+        server = new Server(ADDRESS, ADDRESS);
+        clientSocket = new ServerSocket(0);
+        startClientListener();
+
+        CompletableFuture<?> last = null;
+
+        for (String key : keys.getKeys()) {
+            last = put(key);
+        }
+
+        last.get(30, TimeUnit.SECONDS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        server.close();
+        clientSocket.close();
+    }
+
+    @Benchmark
+    public Message handleGet(Accesses accesses) {
+        Message get = new Message(Message.Operation.GET, keys.get(accesses.next()), "127.0.0.1", clientSocket.getLocalPort());
+        return server.handleGet(get);
+    }
+
+    @Benchmark
+    public Message handlePut(Accesses accesses) throws Exception {
+        return put(keys.get(accesses.next())).get(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Send a PUT to the leader.
+     *
+     * @param key the key
+     * @return the future completed with the PUT_OK
+     */
+    private CompletableFuture<Message> put(String key) {
+        long requestId = nextRequestId.getAndIncrement();
+        CompletableFuture<Message> future = new CompletableFuture<>();
+        Message put = new Message(Message.Operation.PUT, key, value, "127.0.0.1", clientSocket.getLocalPort());
+
+        put.setRequestId(requestId);
+        put.setClientTimestamp(System.currentTimeMillis());
+        pending.put(requestId, future);
+        server.handlePut(put);
+
+        return future;
+    }
+
+    /**
+     * Receive the PUT_OK responses the leader sends to the client address and complete the
+     * matching PUTs.
+     */
+    private void startClientListener() {
+        Thread acceptThread = new Thread(() -> {
+            try {
+                while (true) {
+                    Socket socket = clientSocket.accept();
+
+                    Thread readerThread = new Thread(() -> {
+                        MessageCodec decoder = new MessageCodec();
+
+                        try (DataInputStream reader = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+                            while (true) {
+                                Message response = decoder.read(reader);
+                                CompletableFuture<Message> future = pending.remove(response.getRequestId());
+
+                                if (future != null) {
+                                    future.complete(response);
+                                }
+                            }
+                        } catch (IOException e) {
+                            // the server closed the connection
+                        }
+                    });
+                    readerThread.setDaemon(true);
+                    readerThread.start();
+                }
+            } catch (IOException e) {
+                // the benchmark is over
+            }
+        }, "client-listener");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+}
@@ -0,0 +1,113 @@
+package zookeeper;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The storage engines under contention: readers and writers sharing the versioned values of a
+ * server, with the keys drawn from the key distribution.
+ *
+ * The {@code mixed} group runs three readers and one writer, like a read-mostly coordination
+ * service, and {@code put} runs four writers racing on the last-writer-wins merge.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StoreBenchmark {
+    @Param({"uniform", "zipf"})
+    private String distribution;
+
+    @Param({"100000"})
+    private int keyCount;
+
+    @Param({"heap", "offheap", "lsm"})
+    private String engine;
+
+    private KeyDistribution keys;
+    private String value;
+    private StorageEngine store;
+
+    /**
+     * Key accesses and versions of one benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class Accesses {
+        private int sequence;
+        private long version;
+
+        /**
+         * Start each thread at a different place of the drawn accesses.
+         */
+        @Setup
+        public void setUp() {
+            sequence = (int) Thread.currentThread().getId() * 7919;
+            version = System.currentTimeMillis() << 16;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        ServerConfig config = new ServerConfig();
+
+        keys = new KeyDistribution(distribution, keyCount, 42);
+        value = KeyDistribution.value(128);
+
+        if (engine.equals("offheap")) {
+            store = new OffHeapStorageEngine(config.getStorageMaxBytes());
+        } else if (engine.equals("lsm")) {
+            store = new LsmStorageEngine(Files.createTempDirectory("zookeeper-lsm"), config.getStorageMemtableBytes());
+        } else {
+            store = new HeapStorageEngine();
+        }
+
+        for (String key : keys.getKeys()) {
+            store.put(key, new VersionedValue(value, 1));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        store.close();
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public VersionedValue mixedGet(Accesses accesses) {
+        return store.get(keys.get(accesses.sequence++));
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public void mixedPut(Accesses accesses) {
+        store.put(keys.get(accesses.sequence++), new VersionedValue(value, ++accesses.version));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void put(Accesses accesses) {
+        store.put(keys.get(accesses.sequence++), new VersionedValue(value, ++accesses.version));
+    }
+}
@@ -0,0 +1,118 @@
+package zookeeper;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Compare the platform and virtual thread modes of the blocking server.
+ *
+ * Each run starts an in-process server, opens the specified number of connections and keeps one
+ * GET in flight on every connection, then prints the throughput and latency percentiles.
+ *
+ * Usage: java -cp jmh/target/benchmarks.jar zookeeper.ThreadModeBenchmark [connections] [requests per connection]
+ */
+public class ThreadModeBenchmark {
+    private static final int BASE_PORT = 20097;
+    private static final int KEYS = 1000;
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        String[] modes = {ThreadMode.PLATFORM, ThreadMode.VIRTUAL};
+
+        // the harness measures the thread modes, not the disk
+        System.setProperty("zookeeper.dataDir", "none");
+
+        for (int i = 0; i < modes.length; i++) {
+            if (modes[i].equals(ThreadMode.VIRTUAL) && !ThreadMode.isVirtualSupported()) {
+                out.println("This JVM has no virtual threads, skipping the virtual mode");
+                continue;
+            }
+
+            System.setProperty("zookeeper.server.io", "blocking");
+            System.setProperty("zookeeper.server.threads", modes[i]);
+
+            String address = "127.0.0.1:" + (BASE_PORT + i);
+            System.setProperty("zookeeper.cluster.servers", address);
+            Server server = new Server(address, address);
+            server.start();
+
+            try {
+                run(server, connections, 1);
+                long[] latencies = new long[connections * requests];
+                long elapsed = run(server, connections, requests, latencies);
+
+                Arrays.sort(latencies);
+                out.printf("%-8s connections:%d requests:%d throughput:%.0f req/s p50:%dus p99:%dus max:%dus%n",
+                        modes[i], connections, latencies.length,
+                        latencies.length * 1e9 / elapsed,
+                        latencies[latencies.length / 2] / 1000,
+                        latencies[(int) (latencies.length * 0.99)] / 1000,
+                        latencies[latencies.length - 1] / 1000);
+            } finally {
+                server.close();
+            }
+        }
+
+        System.exit(0);
+    }
+
+    /**
+     * Warm up the server without recording the latencies.
+     *
+     * @param server the server
+     * @param connections the number of connections
+     * @param requests the number of requests per connection
+     * @throws Exception exception when connecting to the server
+     */
+    private static void run(Server server, int connections, int requests) throws Exception {
+        run(server, connections, requests, new long[connections * requests]);
+    }
+
+    /**
+     * Send GET requests with one request in flight per connection.
+     *
+     * @param server the server
+     * @param connections the number of connections
+     * @param requests the number of requests per connection
+     * @param latencies the array that receives the latency of every request, in nanoseconds
+     * @return the elapsed time in nanoseconds
+     * @throws Exception exception when connecting to the server
+     */
+    private static long run(Server server, int connections, int requests, long[] latencies) throws Exception {
+        List<Connection> nodes = new ArrayList<>(connections);
+
+        for (int c = 0; c < connections; c++) {
+            nodes.add(new Connection(server.getServerIP(), server.getServerPort()));
+        }
+
+        long start = System.nanoTime();
+
+        for (int r = 0; r < requests; r++) {
+            CompletableFuture<?>[] round = new CompletableFuture<?>[connections];
+
+            for (int c = 0; c < connections; c++) {
+                int sample = r * connections + c;
+                Message message = new Message(Message.Operation.GET, "key" + (sample % KEYS), "127.0.0.1", 0);
+                long sent = System.nanoTime();
+
+                round[c] = nodes.get(c).request(message).thenRun(() -> latencies[sample] = System.nanoTime() - sent);
+            }
+
+            CompletableFuture.allOf(round).join();
+        }
+
+        long elapsed = System.nanoTime() - start;
+        nodes.forEach(Connection::close);
+
+        return elapsed;
+    }
+}